@@ -0,0 +1,241 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2015 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.fam.impl;
+
+import com.adobe.acs.commons.fam.ActionManager;
+import com.adobe.acs.commons.functions.CheckedBiConsumer;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.testing.mock.osgi.MockOsgi;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Session;
+import javax.jcr.Workspace;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryManager;
+import javax.jcr.query.QueryResult;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+/**
+ * Processes all results of a large query with the throttled task runner, queueing every result up front
+ * (withQueryResults) or reading them in batches as they are processed (withStreamedQueryResults). The query and
+ * resolvers are stubs, so the time is spent in the action manager and the task queue. Each iteration reports the
+ * peak heap usage as the secondary result "peakHeapMb"; run with "-prof gc" for the allocation rate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+// The eager variant logs every result at info level, which would measure the console instead
+@Fork(value = 1, jvmArgsAppend = {"-Xmx2g", "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn"})
+public class ActionManagerQueryBenchmark {
+
+    private static final String EAGER = "eager";
+    private static final String STREAMING = "streaming";
+
+    @Param({"100000", "1000000"})
+    private int results;
+
+    @Param({EAGER, STREAMING})
+    private String mode;
+
+    @Param({"100"})
+    private int batchSize;
+
+    private ThrottledTaskRunnerImpl taskRunner;
+    private ResourceResolver resolver;
+    private final LongAdder processed = new LongAdder();
+
+    @Setup
+    public void setup() throws Exception {
+        taskRunner = new ThrottledTaskRunnerImpl();
+        final Map<String, Object> properties = new HashMap<>();
+        properties.put("max.threads", 4);
+        properties.put("max.cpu", -1d);
+        properties.put("max.heap", -1d);
+        // no watchdog thread per task
+        properties.put("task.timeout", 0);
+        MockOsgi.activate(taskRunner, MockOsgi.newBundleContext(), properties);
+        resolver = stubResolver();
+    }
+
+    @TearDown
+    public void tearDown() {
+        taskRunner.stopExecution();
+    }
+
+    /**
+     * The peak heap usage of an iteration, reported by JMH next to the time.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class HeapUsage {
+        public long peakHeapMb;
+
+        @Setup(Level.Iteration)
+        public void resetPeakHeap() {
+            peakHeapMb = 0;
+            System.gc();
+            heapPools().forEach(MemoryPoolMXBean::resetPeakUsage);
+        }
+
+        void recordPeakHeap() {
+            peakHeapMb = heapPools().mapToLong(pool -> pool.getPeakUsage().getUsed()).sum() >> 20;
+        }
+    }
+
+    @Benchmark
+    public long processQueryResults(HeapUsage heapUsage) throws Exception {
+        final ActionManager manager = new ActionManagerImpl("benchmark", taskRunner, resolver, 100);
+        final CountDownLatch finished = new CountDownLatch(1);
+        manager.onFinish(finished::countDown);
+
+        final CheckedBiConsumer<ResourceResolver, String> callback = (r, path) -> processed.increment();
+        if (STREAMING.equals(mode)) {
+            manager.withStreamedQueryResults("query", Query.JCR_SQL2, batchSize, callback);
+        } else {
+            manager.withQueryResults("query", Query.JCR_SQL2, callback);
+        }
+        finished.await();
+        heapUsage.recordPeakHeap();
+        return processed.sumThenReset();
+    }
+
+    private static Stream<MemoryPoolMXBean> heapPools() {
+        return ManagementFactory.getMemoryPoolMXBeans().stream().filter(pool -> pool.getType() == MemoryType.HEAP);
+    }
+
+    /**
+     * A resolver whose session runs every query with the configured number of results; all other calls do nothing.
+     */
+    private ResourceResolver stubResolver() {
+        final QueryResult queryResult = stub(QueryResult.class, (method, args) ->
+                "getNodes".equals(method) ? new StubNodeIterator(results) : null);
+        final Query query = stub(Query.class, (method, args) -> "execute".equals(method) ? queryResult : null);
+        final QueryManager queryManager = stub(QueryManager.class, (method, args) -> query);
+        final Workspace workspace = stub(Workspace.class, (method, args) -> queryManager);
+        final Session session = stub(Session.class, (method, args) -> workspace);
+        final ResourceResolver[] self = new ResourceResolver[1];
+        self[0] = stub(ResourceResolver.class, (method, args) -> {
+            switch (method) {
+                case "clone":
+                    return self[0];
+                case "adaptTo":
+                    return session;
+                case "isLive":
+                    return true;
+                case "hasChanges":
+                    return false;
+                default:
+                    return null;
+            }
+        });
+        return self[0];
+    }
+
+    private interface StubMethod {
+        Object invoke(String method, Object[] args);
+    }
+
+    private static <T> T stub(Class<T> type, StubMethod method) {
+        return type.cast(Proxy.newProxyInstance(ActionManagerQueryBenchmark.class.getClassLoader(),
+                new Class<?>[] { type }, (proxy, m, args) -> {
+                    if (m.getDeclaringClass() == Object.class) {
+                        switch (m.getName()) {
+                            case "equals":
+                                return proxy == args[0];
+                            case "hashCode":
+                                return System.identityHashCode(proxy);
+                            default:
+                                return type.getSimpleName();
+                        }
+                    }
+                    return method.invoke(m.getName(), args);
+                }));
+    }
+
+    private static final class StubNodeIterator implements NodeIterator {
+        private final int size;
+        private int position;
+
+        private StubNodeIterator(int size) {
+            this.size = size;
+        }
+
+        @Override
+        public Node nextNode() {
+            if (position == size) {
+                throw new NoSuchElementException();
+            }
+            final String path = "/content/dam/benchmark/asset" + position++;
+            return stub(Node.class, (method, args) -> "getPath".equals(method) ? path : null);
+        }
+
+        @Override
+        public Object next() {
+            return nextNode();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return position < size;
+        }
+
+        @Override
+        public void skip(long skipNum) {
+            position += (int) skipNum;
+        }
+
+        @Override
+        public long getSize() {
+            return size;
+        }
+
+        @Override
+        public long getPosition() {
+            return position;
+        }
+    }
+}
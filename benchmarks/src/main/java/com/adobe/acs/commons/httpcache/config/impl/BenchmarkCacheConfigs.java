@@ -0,0 +1,72 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2019 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.httpcache.config.impl;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Builds activated {@link HttpCacheConfigImpl} instances for the benchmarks, the way the OSGi runtime would.
+ */
+public final class BenchmarkCacheConfigs {
+
+    private BenchmarkCacheConfigs() {
+        // static factory methods only
+    }
+
+    /**
+     * @param order config order
+     * @param requestUriPatterns white-listed request URI patterns
+     * @return an activated config for the MEM store
+     */
+    public static HttpCacheConfigImpl create(int order, String... requestUriPatterns) {
+        final Map<String, Object> properties = new HashMap<>();
+        properties.put(PROP_ORDER, order);
+        properties.put(PROP_REQUEST_URI_PATTERNS, requestUriPatterns);
+        return create(properties);
+    }
+
+    /**
+     * @param order config order
+     * @param excludedHeaders response header exclusion patterns
+     * @param excludedCookies excluded cookie keys
+     * @param requestUriPatterns white-listed request URI patterns
+     * @return an activated config for the MEM store excluding the given response headers and cookies
+     */
+    public static HttpCacheConfigImpl createWithExclusions(int order, String[] excludedHeaders, String[] excludedCookies,
+                                                           String... requestUriPatterns) {
+        final Map<String, Object> properties = new HashMap<>();
+        properties.put(PROP_ORDER, order);
+        properties.put(PROP_REQUEST_URI_PATTERNS, requestUriPatterns);
+        properties.put(PROP_RESPONSE_HEADER_EXCLUSIONS, excludedHeaders);
+        properties.put(PROP_RESPONSE_COOKIE_KEY_EXCLUSIONS, excludedCookies);
+        return create(properties);
+    }
+
+    private static HttpCacheConfigImpl create(Map<String, Object> properties) {
+        properties.put(PROP_CACHE_STORE, DEFAULT_CACHE_STORE);
+        properties.put(PROP_AUTHENTICATION_REQUIREMENT, DEFAULT_AUTHENTICATION_REQUIREMENT);
+        properties.put(PROP_FILTER_SCOPE, DEFAULT_FILTER_SCOPE);
+
+        final HttpCacheConfigImpl config = new HttpCacheConfigImpl();
+        config.activate(properties);
+        return config;
+    }
+}
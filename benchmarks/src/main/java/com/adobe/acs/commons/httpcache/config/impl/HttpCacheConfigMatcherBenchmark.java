@@ -0,0 +1,127 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2019 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.httpcache.config.impl;
+
+import com.adobe.acs.commons.httpcache.config.HttpCacheConfig;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Compares {@link HttpCacheConfigMatcher} with running the patterns of every config, the way the engine resolved
+ * configs and invalidation paths before.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HttpCacheConfigMatcherBenchmark {
+
+    @Param({"10", "60"})
+    private int configCount;
+
+    private List<HttpCacheConfig> configs;
+    private HttpCacheConfigMatcher matcher;
+    private String requestUri;
+    private String invalidationPath;
+
+    @Setup
+    public void setup() {
+        configs = new ArrayList<>();
+        for (int i = 0; i < configCount; i++) {
+            final Map<String, Object> properties = new HashMap<>();
+            properties.put(HttpCacheConfigImpl.PROP_ORDER, i);
+            properties.put(HttpCacheConfigImpl.PROP_REQUEST_URI_PATTERNS,
+                    new String[] { "/content/site" + i + "/.*\\.html" });
+            properties.put(HttpCacheConfigImpl.PROP_BLACKLISTED_REQUEST_URI_PATTERNS,
+                    new String[] { "/content/site" + i + "/private/.*" });
+            properties.put(HttpCacheConfigImpl.PROP_CACHE_INVALIDATION_PATH_PATTERNS,
+                    new String[] { "/content/site" + i + "(/.*)?" });
+
+            final HttpCacheConfigImpl config = new HttpCacheConfigImpl();
+            config.activate(properties);
+            configs.add(config);
+        }
+        matcher = HttpCacheConfigMatcher.compile(configs);
+
+        // The last config matches, so the loop has to try every config.
+        requestUri = "/content/site" + (configCount - 1) + "/en/products/shoes.html";
+        invalidationPath = "/content/site" + (configCount - 1) + "/en/products/shoes/jcr:content";
+    }
+
+    @Benchmark
+    public List<HttpCacheConfig> requestUriLoop() {
+        final List<HttpCacheConfig> candidates = new ArrayList<>(2);
+        for (HttpCacheConfig config : configs) {
+            if (matches(config.getRequestUriPatterns(), requestUri)
+                    && !matches(config.getBlacklistedRequestUriPatterns(), requestUri)) {
+                candidates.add(config);
+            }
+        }
+        return candidates;
+    }
+
+    @Benchmark
+    public List<HttpCacheConfig> requestUriMatcher() {
+        return matcher.getRequestUriCandidates(requestUri);
+    }
+
+    @Benchmark
+    public List<HttpCacheConfig> invalidationLoop() {
+        final List<HttpCacheConfig> invalidating = new ArrayList<>(2);
+        for (HttpCacheConfig config : configs) {
+            if (config.canInvalidate(invalidationPath)) {
+                invalidating.add(config);
+            }
+        }
+        return invalidating;
+    }
+
+    @Benchmark
+    public List<HttpCacheConfig> invalidationMatcher() {
+        return matcher.getInvalidationConfigs(invalidationPath);
+    }
+
+    private static boolean matches(List<Pattern> patterns, String data) {
+        for (Pattern pattern : patterns) {
+            if (pattern.matcher(data).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2019 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.httpcache.config.impl.keys;
+
+import com.adobe.acs.commons.httpcache.config.HttpCacheConfig;
+import com.adobe.acs.commons.httpcache.config.impl.BenchmarkCacheConfigs;
+import com.adobe.acs.commons.httpcache.keys.CacheKey;
+import com.adobe.acs.commons.httpcache.keys.CacheKeyFactory;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.SyntheticResource;
+import org.apache.sling.testing.mock.osgi.MockOsgi;
+import org.apache.sling.testing.mock.sling.MockSling;
+import org.apache.sling.testing.mock.sling.ResourceResolverType;
+import org.apache.sling.testing.mock.sling.servlet.MockRequestPathInfo;
+import org.apache.sling.testing.mock.sling.servlet.MockSlingHttpServletRequest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osgi.framework.BundleContext;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Construction, hashing and comparison of the cache keys, which happen on every cache lookup: the key is built from the
+ * request and then hashed and compared by the store.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CacheKeyBenchmark {
+
+    private static final String URI = "/content/site/en/section/page.html";
+    private static final String KEY_ID = "[Cookie: loggedIn,region]";
+
+    private ResourceResolver resourceResolver;
+    private HttpCacheConfig cacheConfig;
+    private SlingHttpServletRequest request;
+    private Map<String, String[]> allowedKeyValues;
+    private List<CacheKeyFactory> cacheKeyFactories;
+
+    private CacheKey requestPathKey;
+    private CacheKey requestPathKeyCopy;
+    private CacheKey keyValueKey;
+    private CacheKey keyValueKeyCopy;
+    private CacheKey combinedKey;
+    private CacheKey combinedKeyCopy;
+
+    @Setup
+    public void setup() {
+        final BundleContext bundleContext = MockOsgi.newBundleContext();
+        resourceResolver = MockSling.newResourceResolver(ResourceResolverType.RESOURCERESOLVER_MOCK, bundleContext);
+        cacheConfig = BenchmarkCacheConfigs.create(0, "/content/.*");
+
+        final MockSlingHttpServletRequest mockRequest = new MockSlingHttpServletRequest(resourceResolver, bundleContext);
+        final MockRequestPathInfo requestPathInfo = (MockRequestPathInfo) mockRequest.getRequestPathInfo();
+        requestPathInfo.setResourcePath("/content/site/en/section/page");
+        requestPathInfo.setExtension("html");
+        mockRequest.setResource(new SyntheticResource(resourceResolver, "/content/site/en/section/page", "site/page"));
+        request = mockRequest;
+
+        allowedKeyValues = new HashMap<>();
+        allowedKeyValues.put("loggedIn", new String[]{"true"});
+        allowedKeyValues.put("region", new String[]{"emea", "apac"});
+
+        cacheKeyFactories = Arrays.asList(new RequestPathKeyFactory(), new KeyValueKeyFactory(allowedKeyValues));
+
+        requestPathKey = new RequestPathCacheKey(URI, cacheConfig);
+        requestPathKeyCopy = new RequestPathCacheKey(URI, cacheConfig);
+        keyValueKey = new KeyValueCacheKey(URI, cacheConfig, KEY_ID, allowedKeyValues);
+        keyValueKeyCopy = new KeyValueCacheKey(URI, cacheConfig, KEY_ID, new HashMap<>(allowedKeyValues));
+        combinedKey = new CombinedCacheKey(URI, cacheConfig, cacheKeyFactories);
+        combinedKeyCopy = new CombinedCacheKey(URI, cacheConfig, cacheKeyFactories);
+    }
+
+    @TearDown
+    public void tearDown() {
+        resourceResolver.close();
+    }
+
+    @Benchmark
+    public CacheKey buildRequestPathKey() {
+        return new RequestPathCacheKey(request, cacheConfig);
+    }
+
+    @Benchmark
+    public CacheKey buildKeyValueKey() {
+        return new KeyValueCacheKey(request, cacheConfig, KEY_ID, allowedKeyValues);
+    }
+
+    @Benchmark
+    public CacheKey buildCombinedKey() {
+        return new CombinedCacheKey(request, cacheConfig, cacheKeyFactories);
+    }
+
+    @Benchmark
+    public int hashRequestPathKey() {
+        return requestPathKey.hashCode();
+    }
+
+    @Benchmark
+    public int hashKeyValueKey() {
+        return keyValueKey.hashCode();
+    }
+
+    @Benchmark
+    public int hashCombinedKey() {
+        return combinedKey.hashCode();
+    }
+
+    @Benchmark
+    public boolean equalsRequestPathKey() {
+        return requestPathKey.equals(requestPathKeyCopy);
+    }
+
+    @Benchmark
+    public boolean equalsKeyValueKey() {
+        return keyValueKey.equals(keyValueKeyCopy);
+    }
+
+    @Benchmark
+    public boolean equalsCombinedKey() {
+        return combinedKey.equals(combinedKeyCopy);
+    }
+
+    private static final class RequestPathKeyFactory implements CacheKeyFactory {
+        @Override
+        public CacheKey build(SlingHttpServletRequest request, HttpCacheConfig cacheConfig) {
+            return new RequestPathCacheKey(request, cacheConfig);
+        }
+
+        @Override
+        public CacheKey build(String resourcePath, HttpCacheConfig cacheConfig) {
+            return new RequestPathCacheKey(resourcePath, cacheConfig);
+        }
+
+        @Override
+        public boolean doesKeyMatchConfig(CacheKey key, HttpCacheConfig cacheConfig) {
+            return key instanceof RequestPathCacheKey;
+        }
+    }
+
+    private static final class KeyValueKeyFactory implements CacheKeyFactory {
+        private final Map<String, String[]> allowedKeyValues;
+
+        KeyValueKeyFactory(Map<String, String[]> allowedKeyValues) {
+            this.allowedKeyValues = allowedKeyValues;
+        }
+
+        @Override
+        public CacheKey build(SlingHttpServletRequest request, HttpCacheConfig cacheConfig) {
+            return new KeyValueCacheKey(request, cacheConfig, KEY_ID, allowedKeyValues);
+        }
+
+        @Override
+        public CacheKey build(String resourcePath, HttpCacheConfig cacheConfig) {
+            return new KeyValueCacheKey(resourcePath, cacheConfig, KEY_ID, allowedKeyValues);
+        }
+
+        @Override
+        public boolean doesKeyMatchConfig(CacheKey key, HttpCacheConfig cacheConfig) {
+            return key instanceof KeyValueCacheKey;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2019 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.httpcache.engine.impl;
+
+import com.adobe.acs.commons.httpcache.config.HttpCacheConfig;
+import com.adobe.acs.commons.httpcache.config.impl.BenchmarkCacheConfigs;
+import com.adobe.acs.commons.httpcache.exception.HttpCacheException;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.testing.mock.osgi.MockOsgi;
+import org.apache.sling.testing.mock.sling.MockSling;
+import org.apache.sling.testing.mock.sling.ResourceResolverType;
+import org.apache.sling.testing.mock.sling.servlet.MockRequestPathInfo;
+import org.apache.sling.testing.mock.sling.servlet.MockSlingHttpServletRequest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osgi.framework.BundleContext;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resolution of the cache config for a request by {@link HttpCacheEngineImpl#getCacheConfig(SlingHttpServletRequest)},
+ * which runs on every request passing the http cache filter. Each config accepts the pages of its own site, so the
+ * first site resolves to the first config, the last site has to go through all configs, and a request outside of
+ * any site is rejected by all of them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HttpCacheConfigResolutionBenchmark {
+
+    @Param({"10", "100"})
+    private int configCount;
+
+    private ResourceResolver resourceResolver;
+    private HttpCacheEngineImpl engine;
+
+    private SlingHttpServletRequest firstConfigRequest;
+    private SlingHttpServletRequest lastConfigRequest;
+    private SlingHttpServletRequest noConfigRequest;
+
+    @Setup
+    public void setup() throws Exception {
+        final BundleContext bundleContext = MockOsgi.newBundleContext();
+        resourceResolver = MockSling.newResourceResolver(ResourceResolverType.RESOURCERESOLVER_MOCK, bundleContext);
+
+        engine = new HttpCacheEngineImpl();
+        engine.activate(Collections.emptyMap());
+        for (int i = 0; i < configCount; i++) {
+            engine.bindHttpCacheConfig(BenchmarkCacheConfigs.create(i, "/content/site" + i + "/.*\\.html"),
+                    Collections.emptyMap());
+        }
+
+        firstConfigRequest = request(bundleContext, "/content/site0/en/home");
+        lastConfigRequest = request(bundleContext, "/content/site" + (configCount - 1) + "/en/home");
+        noConfigRequest = request(bundleContext, "/content/unknown/en/home");
+    }
+
+    @TearDown
+    public void tearDown() {
+        resourceResolver.close();
+    }
+
+    @Benchmark
+    public HttpCacheConfig firstConfig() throws HttpCacheException {
+        return engine.getCacheConfig(firstConfigRequest);
+    }
+
+    @Benchmark
+    public HttpCacheConfig lastConfig() throws HttpCacheException {
+        return engine.getCacheConfig(lastConfigRequest);
+    }
+
+    @Benchmark
+    public HttpCacheConfig noConfig() throws HttpCacheException {
+        return engine.getCacheConfig(noConfigRequest);
+    }
+
+    private SlingHttpServletRequest request(BundleContext bundleContext, String resourcePath) {
+        final MockSlingHttpServletRequest request = new MockSlingHttpServletRequest(resourceResolver, bundleContext);
+        final MockRequestPathInfo requestPathInfo = (MockRequestPathInfo) request.getRequestPathInfo();
+        requestPathInfo.setResourcePath(resourcePath);
+        requestPathInfo.setExtension("html");
+        return request;
+    }
+}
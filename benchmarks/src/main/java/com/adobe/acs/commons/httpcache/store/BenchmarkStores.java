@@ -0,0 +1,110 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2019 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.httpcache.store;
+
+import com.adobe.acs.commons.httpcache.engine.CacheContent;
+import com.adobe.acs.commons.httpcache.engine.HttpCacheServletResponseWrapper;
+import com.adobe.acs.commons.httpcache.store.caffeine.impl.CaffeineMemHttpCacheStoreImpl;
+import com.adobe.acs.commons.httpcache.store.mem.impl.MemHttpCacheStoreImpl;
+import org.apache.sling.testing.mock.osgi.MockOsgi;
+import org.osgi.framework.BundleContext;
+
+import javax.management.NotCompliantMBeanException;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds the in-memory cache stores and cache content for the store benchmarks.
+ */
+final class BenchmarkStores {
+
+    static final String MEM = HttpCacheStore.VALUE_MEM_CACHE_STORE_TYPE;
+    static final String CAFFEINE = HttpCacheStore.VALUE_CAFFEINE_MEMORY_STORE_TYPE;
+
+    private BenchmarkStores() {
+        // static factory methods only
+    }
+
+    /**
+     * Creates a store activated through the OSGi mocks.
+     *
+     * @param type {@link #MEM} or {@link #CAFFEINE}
+     * @param maxSizeInMb maximum size of the store
+     * @param offHeap whether bodies are held in direct memory
+     * @param staleGracePeriod stale grace period in seconds
+     * @return the activated store
+     */
+    static HttpCacheStore create(String type, long maxSizeInMb, boolean offHeap, long staleGracePeriod)
+            throws NotCompliantMBeanException {
+        final String prefix;
+        final HttpCacheStore store;
+        if (MEM.equals(type)) {
+            prefix = "httpcache.cachestore.memcache.";
+            store = new MemHttpCacheStoreImpl();
+        } else if (CAFFEINE.equals(type)) {
+            prefix = "httpcache.cachestore.caffeine.";
+            store = new CaffeineMemHttpCacheStoreImpl();
+        } else {
+            throw new IllegalArgumentException("Unsupported store type " + type);
+        }
+
+        final Map<String, Object> properties = new HashMap<>();
+        properties.put(prefix + "ttl", -1L);
+        properties.put(prefix + "maxsize", maxSizeInMb);
+        properties.put(prefix + "offheap", offHeap);
+        properties.put(prefix + "stale.grace", staleGracePeriod);
+
+        final BundleContext bundleContext = MockOsgi.newBundleContext();
+        MockOsgi.activate(store, bundleContext, properties);
+        return store;
+    }
+
+    /**
+     * @param length body length in bytes
+     * @return an html body of the given length
+     */
+    static byte[] body(int length) {
+        final StringBuilder body = new StringBuilder(length);
+        while (body.length() < length) {
+            body.append("<div class=\"par\"><p>Cached content</p></div>\n");
+        }
+        return body.substring(0, length).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param body the body
+     * @return cache content as rendered by a page, with a typical set of response headers
+     */
+    static CacheContent content(byte[] body) {
+        final Map<String, List<String>> headers = new HashMap<>();
+        headers.put("Cache-Control", Collections.singletonList("max-age=300"));
+        headers.put("Content-Language", Collections.singletonList("en"));
+        headers.put("Dispatcher", Collections.singletonList("no-cache"));
+        headers.put("X-Frame-Options", Collections.singletonList("SAMEORIGIN"));
+        headers.put("Vary", Arrays.asList("Accept-Encoding", "Origin"));
+        return new CacheContent(200, "utf-8", "text/html", headers, new ByteArrayInputStream(body),
+                HttpCacheServletResponseWrapper.ResponseWriteMethod.PRINTWRITER);
+    }
+}
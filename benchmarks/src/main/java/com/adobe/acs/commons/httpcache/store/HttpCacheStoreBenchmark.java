@@ -0,0 +1,129 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2019 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.httpcache.store;
+
+import com.adobe.acs.commons.httpcache.config.HttpCacheConfig;
+import com.adobe.acs.commons.httpcache.config.impl.BenchmarkCacheConfigs;
+import com.adobe.acs.commons.httpcache.config.impl.keys.RequestPathCacheKey;
+import com.adobe.acs.commons.httpcache.engine.CacheContent;
+import com.adobe.acs.commons.httpcache.exception.HttpCacheException;
+import com.adobe.acs.commons.httpcache.keys.CacheKey;
+import org.apache.commons.io.IOUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lookups and puts of the in-memory stores, with bodies on the heap and off-heap. Lookups cycle through all cached
+ * keys, so they are not served from the CPU caches only.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HttpCacheStoreBenchmark {
+
+    private static final int ENTRIES = 10_000;
+
+    @Param({BenchmarkStores.MEM, BenchmarkStores.CAFFEINE})
+    private String storeType;
+
+    @Param({"false", "true"})
+    private boolean offHeap;
+
+    @Param({"4096"})
+    private int bodyLength;
+
+    private HttpCacheStore store;
+    private CacheKey[] keys;
+    private CacheKey missingKey;
+    private byte[] body;
+
+    @Setup
+    public void setup() throws Exception {
+        store = BenchmarkStores.create(storeType, 1024L, offHeap, 0L);
+        body = BenchmarkStores.body(bodyLength);
+
+        final HttpCacheConfig cacheConfig = BenchmarkCacheConfigs.create(0, "/content/.*");
+        keys = new CacheKey[ENTRIES];
+        for (int i = 0; i < ENTRIES; i++) {
+            keys[i] = new RequestPathCacheKey("/content/site/section" + (i / 100) + "/page" + i + ".html", cacheConfig);
+            store.put(keys[i], BenchmarkStores.content(body));
+        }
+        missingKey = new RequestPathCacheKey("/content/site/missing.html", cacheConfig);
+    }
+
+    @TearDown
+    public void tearDown() {
+        store.invalidateAll();
+    }
+
+    /**
+     * Position of a benchmark thread in the cached keys.
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int next;
+
+        int next() {
+            if (next == ENTRIES) {
+                next = 0;
+            }
+            return next++;
+        }
+    }
+
+    @Benchmark
+    public boolean contains(Cursor cursor) {
+        return store.contains(keys[cursor.next()]);
+    }
+
+    @Benchmark
+    public CacheContent getIfPresent(Cursor cursor) throws HttpCacheException {
+        final CacheContent content = store.getIfPresent(keys[cursor.next()]);
+        // Delivery closes the streams, which hands off-heap bodies back.
+        IOUtils.closeQuietly(content.getInputDataStream());
+        IOUtils.closeQuietly(content.getGzipInputDataStream());
+        return content;
+    }
+
+    @Benchmark
+    public CacheContent getIfPresentMiss() throws HttpCacheException {
+        return store.getIfPresent(missingKey);
+    }
+
+    @Benchmark
+    public void put(Cursor cursor) throws HttpCacheException {
+        store.put(keys[cursor.next()], BenchmarkStores.content(body));
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2019 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.httpcache.store;
+
+import com.adobe.acs.commons.httpcache.config.HttpCacheConfig;
+import com.adobe.acs.commons.httpcache.config.impl.BenchmarkCacheConfigs;
+import com.adobe.acs.commons.httpcache.config.impl.keys.RequestPathCacheKey;
+import com.adobe.acs.commons.httpcache.keys.CacheKey;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Invalidation of a path in stores of growing size. The stores keep invalidated entries for a stale grace period, so
+ * an invalidation marks the entries stale instead of removing them and every invocation sees the same store.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class HttpCacheStoreInvalidationBenchmark {
+
+    private static final int PAGES_PER_SECTION = 100;
+
+    @Param({BenchmarkStores.MEM, BenchmarkStores.CAFFEINE})
+    private String storeType;
+
+    @Param({"10000", "100000", "1000000"})
+    private int entries;
+
+    private HttpCacheStore store;
+    private CacheKey pageKey;
+    private CacheKey sectionKey;
+    private CacheKey unrelatedKey;
+    private List<CacheKey> sectionPageKeys;
+
+    @Setup
+    public void setup() throws Exception {
+        store = BenchmarkStores.create(storeType, 4096L, false, 3600L);
+
+        final HttpCacheConfig cacheConfig = BenchmarkCacheConfigs.create(0, "/content/.*");
+        final byte[] body = BenchmarkStores.body(64);
+        for (int i = 0; i < entries; i++) {
+            store.put(new RequestPathCacheKey(pagePath(i) + ".html", cacheConfig), BenchmarkStores.content(body));
+        }
+
+        final int page = entries / 2;
+        pageKey = new RequestPathCacheKey(pagePath(page) + ".html", cacheConfig);
+        sectionKey = new RequestPathCacheKey("/content/site/section" + (page / PAGES_PER_SECTION) + ".html",
+                cacheConfig);
+        unrelatedKey = new RequestPathCacheKey("/content/other/page.html", cacheConfig);
+
+        // All pages of a section, as a tree activation of the section would invalidate them.
+        sectionPageKeys = new ArrayList<>(PAGES_PER_SECTION);
+        final int firstPage = page - page % PAGES_PER_SECTION;
+        for (int i = firstPage; i < firstPage + PAGES_PER_SECTION; i++) {
+            sectionPageKeys.add(new RequestPathCacheKey(pagePath(i) + ".html", cacheConfig));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        store.invalidateAll();
+    }
+
+    @Benchmark
+    public void invalidatePage() throws Exception {
+        store.invalidate(pageKey);
+    }
+
+    @Benchmark
+    public void invalidateSection() throws Exception {
+        store.invalidate(sectionKey);
+    }
+
+    @Benchmark
+    public void invalidateUnrelatedPath() throws Exception {
+        store.invalidate(unrelatedKey);
+    }
+
+    @Benchmark
+    public void invalidateSectionPagesOneByOne() throws Exception {
+        for (CacheKey key : sectionPageKeys) {
+            store.invalidate(key);
+        }
+    }
+
+    @Benchmark
+    public void invalidateSectionPagesAsBatch() throws Exception {
+        store.invalidate(sectionPageKeys);
+    }
+
+    private static String pagePath(int i) {
+        return "/content/site/section" + (i / PAGES_PER_SECTION) + "/page" + i;
+    }
+}
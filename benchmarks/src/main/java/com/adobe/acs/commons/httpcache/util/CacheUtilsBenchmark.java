@@ -0,0 +1,90 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2019 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.httpcache.util;
+
+import com.adobe.acs.commons.httpcache.config.HttpCacheConfig;
+import com.adobe.acs.commons.httpcache.config.impl.BenchmarkCacheConfigs;
+import org.apache.sling.testing.mock.sling.servlet.MockSlingHttpServletResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Extraction of the response headers to cache, done for every response put into the cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CacheUtilsBenchmark {
+
+    private Collection<Pattern> globalHeaderExclusions;
+    private Collection<String> globalCookieExclusions;
+    private HttpCacheConfig cacheConfig;
+    private MockSlingHttpServletResponse response;
+
+    @Setup
+    public void setup() {
+        globalHeaderExclusions = Arrays.asList(Pattern.compile("Date"), Pattern.compile("X-Request-Id"));
+        globalCookieExclusions = Arrays.asList("JSESSIONID", "login-token");
+        cacheConfig = BenchmarkCacheConfigs.createWithExclusions(0,
+                new String[] { "X-Debug-.*", "Server-Timing" }, new String[] { "tracking" }, "/content/.*");
+
+        response = new MockSlingHttpServletResponse();
+        response.addHeader("Cache-Control", "max-age=300");
+        response.addHeader("Content-Language", "en");
+        response.addHeader("Date", "Wed, 16 Oct 2019 10:00:00 GMT");
+        response.addHeader("Dispatcher", "no-cache");
+        response.addHeader("ETag", "\"5d9f1c2a\"");
+        response.addHeader("Last-Modified", "Tue, 15 Oct 2019 08:00:00 GMT");
+        response.addHeader("Server-Timing", "render;dur=42");
+        response.addHeader("Vary", "Accept-Encoding");
+        response.addHeader("Vary", "Origin");
+        response.addHeader("X-Debug-Resource", "/content/site/page/jcr:content");
+        response.addHeader("X-Frame-Options", "SAMEORIGIN");
+        response.addHeader("X-Request-Id", "2f0c6c1e");
+        response.addHeader("X-Vhost", "publish");
+        response.addHeader(CacheUtils.HEADERKEY_COOKIE, "JSESSIONID=abc; Path=/; HttpOnly");
+        response.addHeader(CacheUtils.HEADERKEY_COOKIE, "__Secure-tracking=xyz; Path=/; Secure");
+        response.addHeader(CacheUtils.HEADERKEY_COOKIE, "locale=en; Path=/");
+        response.addHeader(CacheUtils.HEADERKEY_COOKIE, "consent=all; Path=/");
+    }
+
+    @Benchmark
+    public Map<String, List<String>> extractHeaders() {
+        return CacheUtils.extractHeaders(globalHeaderExclusions, globalCookieExclusions, response, cacheConfig);
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2015 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.images.transformers.impl;
+
+import com.day.image.Layer;
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.api.wrappers.ValueMapDecorator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.image.BufferedImage;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An RGB shift followed by two multiply blends, run chained like before and fused in a single pass. Run with
+ * -prof gc to compare the allocated rasters as well.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FusedColorTransformerBenchmark {
+
+    @Param({ "640", "2048" })
+    private int width;
+
+    private final RGBShiftImageTransformerImpl rgbShift = new RGBShiftImageTransformerImpl();
+
+    private final MultiplyBlendImageTransformerImpl multiply = new MultiplyBlendImageTransformerImpl();
+
+    private final ValueMap shift = params("red", 0.2, "green", -0.1);
+
+    private final ValueMap tint = params("color", "3399cc", "alpha", 0.5);
+
+    private final ValueMap shade = params("color", "808080", "alpha", 0.2);
+
+    private Layer layer;
+
+    @Setup
+    public void setUp() {
+        final int height = width * 3 / 4;
+        final Random random = new Random(42);
+        final BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.setRGB(x, y, random.nextInt());
+            }
+        }
+        // Neither way changes the given layer, so all invocations share it
+        layer = new Layer(image);
+    }
+
+    @Benchmark
+    public Layer chained() {
+        return multiply.transform(multiply.transform(rgbShift.transform(layer, shift), tint), shade);
+    }
+
+    @Benchmark
+    public Layer fused() {
+        final FusedColorTransformer fused = new FusedColorTransformer();
+        fused.add(rgbShift, shift);
+        fused.add(multiply, tint);
+        fused.add(multiply, shade);
+        return fused.transform(layer);
+    }
+
+    private static ValueMap params(Object... namesAndValues) {
+        final ValueMap params = new ValueMapDecorator(new HashMap<String, Object>());
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            params.put((String) namesAndValues[i], namesAndValues[i + 1]);
+        }
+        return params;
+    }
+}
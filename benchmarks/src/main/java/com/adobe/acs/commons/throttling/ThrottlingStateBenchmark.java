@@ -0,0 +1,76 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2015 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.throttling;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Clock;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throttling decisions of 64 concurrent requests, with a limit which lets most requests pass and with one which
+ * throttles nearly all of them. The serialized variant takes a shared monitor around each decision, as a baseline
+ * for requests waiting on each other.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(64)
+public class ThrottlingStateBenchmark {
+
+    @Param({"60", "2000000000"})
+    private int maxRequestsPerMinute;
+
+    private ThrottlingState state;
+
+    private final Object monitor = new Object();
+
+    @Setup
+    public void setup() {
+        final int limit = maxRequestsPerMinute;
+        state = new ThrottlingState(Clock.systemUTC(), () -> limit);
+    }
+
+    @Benchmark
+    public ThrottlingDecision evaluateThrottling() {
+        return state.evaluateThrottling();
+    }
+
+    @Benchmark
+    public ThrottlingDecision evaluateThrottlingSerialized() {
+        synchronized (monitor) {
+            return state.evaluateThrottling();
+        }
+    }
+}
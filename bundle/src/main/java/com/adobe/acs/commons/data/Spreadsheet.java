@@ -27,14 +27,19 @@ import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 
 import org.apache.commons.collections.CollectionUtils;
@@ -56,6 +61,7 @@ public class Spreadsheet {
 
     public static final String DEFAULT_DELIMITER = ",";
     public static final String ROW_NUMBER = "~~ROWNUM~~";
+    public static final int TYPE_SAMPLE_SIZE = 100;
     private String fileName = "unknown";
     private int rowCount;
     private transient List<Map<String, CompositeVariant>> dataRows;
@@ -66,6 +72,7 @@ public class Spreadsheet {
     private boolean enableHeaderNameConversion = true;
     private InputStream inputStream;
     private List<String> caseInsensitiveHeaders;
+    private Set<String> inferredColumns = Collections.emptySet();
 
     /**
      * Simple constructor used for unit testing purposes
@@ -152,26 +159,137 @@ public class Spreadsheet {
         rowCount = sheet.getLastRowNum();
         final Iterator<Row> rows = sheet.rowIterator();
 
-        Row firstRow = rows.next();
-        headerRow = readRow(firstRow, locale).stream()
+        readHeader(readRow(rows.next(), locale));
+
+        Iterable<Row> remainingRows = () -> rows;
+        dataRows = StreamSupport.stream(remainingRows.spliterator(), false)
+                .map(row -> buildRow(row.getRowNum(), readRow(row, locale)))
+                .filter(Optional::isPresent)
+                .map(Optional::get)
+                .collect(Collectors.toList());
+
+        return this;
+    }
+
+    /**
+     * Read the data rows one at a time instead of building the whole
+     * spreadsheet in memory, using the default JVM locale for numeric and
+     * date/time conversions.
+     *
+     * @return Stream of data rows, see {@link #streamDataRows(Locale)}
+     * @throws IOException if the file couldn't be read
+     */
+    public Stream<Map<String, CompositeVariant>> streamDataRows() throws IOException {
+        return streamDataRows(Locale.getDefault());
+    }
+
+    /**
+     * Read the data rows one at a time instead of building the whole
+     * spreadsheet in memory, so that the memory used does not depend on the
+     * number of rows.  The header row and row count are available once this
+     * returns; {@link #getDataRowsAsCompositeVariants()} stays empty.
+     * <p>
+     * Unlike {@link #buildSpreadsheet(Locale)}, columns without a type hint
+     * get one type for all rows, inferred from the first
+     * {@value #TYPE_SAMPLE_SIZE} data rows: the type all sampled values share,
+     * double for a mix of whole and decimal numbers, and string otherwise.
+     * A later value which does not fit the inferred type widens it the same
+     * way for the rows that follow, so that the value is not lost.
+     * <p>
+     * The stream must be closed to remove the temporary copy of the file.
+     *
+     * @param locale The locale to be used for numeric and date/time conversions.
+     * @return Stream of data rows, skipping empty rows and rows missing required columns
+     * @throws IOException if the file couldn't be read
+     */
+    public Stream<Map<String, CompositeVariant>> streamDataRows(Locale locale) throws IOException {
+        StreamingSheetReader reader = new StreamingSheetReader(this.inputStream, locale);
+        try {
+            rowCount = Math.max(reader.getLastRowNum(), 0);
+            dataRows = new ArrayList<>();
+            if (!reader.hasNext()) {
+                headerRow = new ArrayList<>();
+                headerTypes = new HashMap<>();
+                reader.close();
+                return Stream.empty();
+            }
+            readHeader(reader.next().getValues());
+
+            List<StreamingSheetReader.SheetRow> sample = new ArrayList<>();
+            while (sample.size() < TYPE_SAMPLE_SIZE && reader.hasNext()) {
+                sample.add(reader.next());
+            }
+            inferTypes(sample);
+
+            Stream<StreamingSheetReader.SheetRow> remainingRows
+                    = StreamSupport.stream(Spliterators.spliteratorUnknownSize(reader, Spliterator.ORDERED), false);
+            return Stream.concat(sample.stream(), remainingRows)
+                    .map(row -> buildRow(row.getRowNum(), row.getValues()))
+                    .filter(Optional::isPresent)
+                    .map(Optional::get)
+                    .onClose(reader::close);
+        } catch (RuntimeException ex) {
+            reader.close();
+            throw new IOException("Unable to read spreadsheet", ex);
+        }
+    }
+
+    private void readHeader(List<Variant> firstRow) {
+        headerRow = firstRow.stream()
                 .map(v -> v != null ? convertHeaderName(v.toString()) : null)
                 .collect(Collectors.toList());
-        headerTypes = readRow(firstRow, locale).stream()
+        headerTypes = firstRow.stream()
                 .map(Variant::toString)
                 .collect(Collectors.toMap(
                         this::convertHeaderName,
                         this::detectTypeFromName,
                         this::upgradeToArray
                 ));
+    }
 
-        Iterable<Row> remainingRows = () -> rows;
-        dataRows = StreamSupport.stream(remainingRows.spliterator(), false)
-                .map(row -> buildRow(row, locale))
-                .filter(Optional::isPresent)
-                .map(Optional::get)
-                .collect(Collectors.toList());
+    /**
+     * Give columns without a type hint the type shared by the sampled values.
+     */
+    private void inferTypes(List<StreamingSheetReader.SheetRow> sample) {
+        inferredColumns = new HashSet<>();
+        for (int i = 0; i < headerRow.size(); i++) {
+            String colName = headerRow.get(i);
+            if (colName == null || !Optional.of(Object.class).equals(headerTypes.get(colName))) {
+                continue;
+            }
+            Class type = null;
+            for (StreamingSheetReader.SheetRow row : sample) {
+                Variant value = i < row.getValues().size() ? row.getValues().get(i) : null;
+                if (value != null) {
+                    type = commonType(type, value.getBaseType());
+                }
+            }
+            if (type != null) {
+                headerTypes.put(colName, Optional.of(type));
+                inferredColumns.add(colName);
+            }
+        }
+    }
 
-        return this;
+    /**
+     * Widen the type inferred for a column if a value does not fit it.
+     */
+    private void widenInferredType(String colName, Class valueType) {
+        Class inferred = headerTypes.get(colName).get();
+        Class widened = commonType(inferred, valueType);
+        if (widened != inferred) {
+            headerTypes.put(colName, Optional.of(widened));
+        }
+    }
+
+    private static Class commonType(Class a, Class b) {
+        if (a == null || a == b) {
+            return b;
+        } else if ((a == Long.TYPE || a == Double.TYPE) && (b == Long.TYPE || b == Double.TYPE)) {
+            return Double.TYPE;
+        } else {
+            return String.class;
+        }
     }
 
     private List<Variant> readRow(Row row, Locale locale) {
@@ -189,15 +307,17 @@ public class Spreadsheet {
     }
 
     @SuppressWarnings("squid:S3776")
-    private Optional<Map<String, CompositeVariant>> buildRow(Row row, Locale locale) {
+    private Optional<Map<String, CompositeVariant>> buildRow(int rowNum, List<Variant> data) {
         Map<String, CompositeVariant> out = new LinkedHashMap<>();
-        out.put(ROW_NUMBER, new CompositeVariant(row.getRowNum()));
-        List<Variant> data = readRow(row, locale);
+        out.put(ROW_NUMBER, new CompositeVariant(rowNum));
         boolean empty = true;
         for (int i = 0; i < data.size() && i < getHeaderRow().size(); i++) {
             String colName = getHeaderRow().get(i);
             if (colName != null && data.get(i) != null && !data.get(i).isEmpty()) {
                 empty = false;
+                if (inferredColumns.contains(colName)) {
+                    widenInferredType(colName, data.get(i).getBaseType());
+                }
                 if (!out.containsKey(colName)) {
                     Class type = headerTypes.get(colName).orElse(data.get(i).getBaseType());
                     if (type == Object.class) {
@@ -0,0 +1,355 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2015 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.data;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.NoSuchElementException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.poi.openxml4j.exceptions.OpenXML4JException;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.ss.usermodel.DataFormatter;
+import org.apache.poi.ss.usermodel.DateUtil;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+import org.apache.poi.xssf.model.StylesTable;
+import org.apache.poi.xssf.usermodel.XSSFCellStyle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads the rows of the first sheet of an xlsx file one at a time.  Unlike
+ * XSSFWorkbook, which builds the whole document in memory, the sheet is parsed
+ * as a stream of XML events using the POI event API.  Only the shared strings
+ * table and the current row are held in memory.
+ * <p>
+ * The upload is copied to a temporary file first, so that the zip entries can
+ * be read without unpacking the whole file.  Close the reader to remove it.
+ * <p>
+ * Cell values are converted like {@link Variant#Variant(org.apache.poi.ss.usermodel.Cell, Locale)}
+ * does, except that formula cells always provide their cached value.
+ */
+final class StreamingSheetReader implements Iterator<StreamingSheetReader.SheetRow>, Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(StreamingSheetReader.class);
+
+    private final DataFormatter dataFormatter;
+    private File file;
+    private OPCPackage pkg;
+    private StylesTable styles;
+    private List<String> sharedStrings = new ArrayList<>();
+    private InputStream sheetData;
+    private XMLStreamReader xml;
+    private int lastRowNum = -1;
+    private int currentRowNum = -1;
+    private SheetRow nextRow;
+
+    /**
+     * One row of the sheet.
+     */
+    static final class SheetRow {
+        private final int rowNum;
+        private final List<Variant> values;
+
+        SheetRow(int rowNum, List<Variant> values) {
+            this.rowNum = rowNum;
+            this.values = values;
+        }
+
+        /**
+         * @return Zero-based row number, like Row.getRowNum()
+         */
+        int getRowNum() {
+            return rowNum;
+        }
+
+        /**
+         * @return Cell values by column index, null for empty cells
+         */
+        List<Variant> getValues() {
+            return values;
+        }
+    }
+
+    StreamingSheetReader(InputStream input, Locale locale) throws IOException {
+        dataFormatter = new DataFormatter(locale);
+        try {
+            file = File.createTempFile("acs-commons-spreadsheet", ".xlsx");
+            Files.copy(input, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            pkg = OPCPackage.open(file, PackageAccess.READ);
+            XSSFReader reader = new XSSFReader(pkg);
+            styles = reader.getStylesTable();
+            try (InputStream sharedStringsData = reader.getSharedStringsData()) {
+                if (sharedStringsData != null) {
+                    readSharedStrings(sharedStringsData);
+                }
+            }
+            Iterator<InputStream> sheets = reader.getSheetsData();
+            if (!sheets.hasNext()) {
+                throw new IOException("Spreadsheet has no sheets");
+            }
+            sheetData = sheets.next();
+            xml = createInputFactory().createXMLStreamReader(sheetData);
+            readDimension();
+        } catch (OpenXML4JException | XMLStreamException | RuntimeException ex) {
+            close();
+            throw new IOException("Unable to read spreadsheet", ex);
+        } catch (IOException ex) {
+            close();
+            throw ex;
+        }
+    }
+
+    /**
+     * @return Zero-based number of the last row, as declared by the sheet, or -1 if not declared
+     */
+    int getLastRowNum() {
+        return lastRowNum;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (nextRow == null && xml != null) {
+            try {
+                nextRow = readRow();
+            } catch (XMLStreamException ex) {
+                throw new IllegalStateException("Unable to read spreadsheet row " + (currentRowNum + 2), ex);
+            }
+        }
+        return nextRow != null;
+    }
+
+    @Override
+    public SheetRow next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        SheetRow row = nextRow;
+        nextRow = null;
+        return row;
+    }
+
+    @Override
+    public void close() {
+        try {
+            if (xml != null) {
+                xml.close();
+            }
+            if (sheetData != null) {
+                sheetData.close();
+            }
+            if (pkg != null) {
+                pkg.revert();
+            }
+        } catch (IOException | XMLStreamException ex) {
+            LOG.warn("Unable to close spreadsheet", ex);
+        } finally {
+            xml = null;
+            sheetData = null;
+            pkg = null;
+            if (file != null && !file.delete()) {
+                LOG.warn("Unable to delete temporary file {}", file);
+            }
+            file = null;
+        }
+    }
+
+    private static XMLInputFactory createInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory;
+    }
+
+    private void readSharedStrings(InputStream data) throws XMLStreamException {
+        XMLStreamReader reader = createInputFactory().createXMLStreamReader(data);
+        try {
+            StringBuilder value = null;
+            boolean inPhonetic = false;
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    String name = reader.getLocalName();
+                    if ("si".equals(name)) {
+                        value = new StringBuilder();
+                    } else if ("rPh".equals(name)) {
+                        inPhonetic = true;
+                    } else if ("t".equals(name) && value != null && !inPhonetic) {
+                        value.append(reader.getElementText());
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    String name = reader.getLocalName();
+                    if ("si".equals(name) && value != null) {
+                        sharedStrings.add(value.toString());
+                        value = null;
+                    } else if ("rPh".equals(name)) {
+                        inPhonetic = false;
+                    }
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Read up to the first row, picking up the declared sheet size on the way.
+     */
+    private void readDimension() throws XMLStreamException {
+        while (xml.hasNext()) {
+            int event = xml.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                String name = xml.getLocalName();
+                if ("dimension".equals(name)) {
+                    String ref = StringUtils.substringAfter(xml.getAttributeValue(null, "ref"), ":");
+                    String row = StringUtils.getDigits(ref);
+                    if (!row.isEmpty()) {
+                        lastRowNum = Integer.parseInt(row) - 1;
+                    }
+                } else if ("sheetData".equals(name)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    @SuppressWarnings("squid:S3776")
+    private SheetRow readRow() throws XMLStreamException {
+        List<Variant> values = null;
+        int column = -1;
+        String type = null;
+        String style = null;
+        String value = null;
+        String inlineValue = null;
+        while (xml.hasNext()) {
+            int event = xml.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                switch (xml.getLocalName()) {
+                    case "row":
+                        values = new ArrayList<>();
+                        String r = xml.getAttributeValue(null, "r");
+                        currentRowNum = r == null ? currentRowNum + 1 : Integer.parseInt(r) - 1;
+                        column = -1;
+                        break;
+                    case "c":
+                        String ref = xml.getAttributeValue(null, "r");
+                        column = ref == null ? column + 1 : columnIndex(ref);
+                        type = xml.getAttributeValue(null, "t");
+                        style = xml.getAttributeValue(null, "s");
+                        value = null;
+                        inlineValue = null;
+                        break;
+                    case "v":
+                        value = xml.getElementText();
+                        break;
+                    case "t":
+                        inlineValue = StringUtils.defaultString(inlineValue) + xml.getElementText();
+                        break;
+                    default:
+                        break;
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                String name = xml.getLocalName();
+                if ("c".equals(name) && values != null) {
+                    Variant val = toVariant(type, style, value, inlineValue);
+                    while (column > values.size()) {
+                        values.add(null);
+                    }
+                    values.add(val.isEmpty() ? null : val);
+                } else if ("row".equals(name) && values != null) {
+                    return new SheetRow(currentRowNum, values);
+                } else if ("sheetData".equals(name)) {
+                    return null;
+                }
+            }
+        }
+        return null;
+    }
+
+    private Variant toVariant(String type, String style, String value, String inlineValue) {
+        Variant variant = new Variant();
+        if ("inlineStr".equals(type)) {
+            if (inlineValue != null) {
+                variant.setValue(inlineValue.trim());
+            }
+        } else if (value == null || "e".equals(type)) {
+            // blank or error
+            variant.clear();
+        } else if ("s".equals(type)) {
+            variant.setValue(sharedStrings.get(Integer.parseInt(value)).trim());
+        } else if ("str".equals(type)) {
+            variant.setValue(value.trim());
+        } else if ("b".equals(type)) {
+            variant.setValue("1".equals(value));
+        } else {
+            setNumericValue(variant, Double.parseDouble(value), style);
+        }
+        return variant;
+    }
+
+    private void setNumericValue(Variant variant, double number, String style) {
+        if (Math.floor(number) == number) {
+            variant.setValue((long) number);
+        } else {
+            variant.setValue(number);
+        }
+        int formatIndex = 0;
+        String formatString = null;
+        if (styles != null && style != null) {
+            XSSFCellStyle cellStyle = styles.getStyleAt(Integer.parseInt(style));
+            if (cellStyle != null) {
+                formatIndex = cellStyle.getDataFormat();
+                formatString = cellStyle.getDataFormatString();
+            }
+        }
+        if (formatString == null) {
+            formatString = "General";
+        }
+        if (DateUtil.isADateFormat(formatIndex, formatString) && DateUtil.isValidExcelDate(number)) {
+            variant.setValue(DateUtil.getJavaDate(number));
+        }
+        variant.setValue(dataFormatter.formatRawCellContents(number, formatIndex, formatString));
+    }
+
+    /**
+     * @param ref Cell reference, such as AB12
+     * @return Zero-based column index
+     */
+    static int columnIndex(String ref) {
+        int column = 0;
+        for (int i = 0; i < ref.length() && Character.isLetter(ref.charAt(i)); i++) {
+            column = column * 26 + (Character.toUpperCase(ref.charAt(i)) - 'A' + 1);
+        }
+        return column - 1;
+    }
+}
@@ -20,7 +20,7 @@
 /**
  * Data handling functions
  */
-@Version("2.1.0")
+@Version("2.2.0")
 package com.adobe.acs.commons.data;
 
 import org.osgi.annotation.versioning.Version;
\ No newline at end of file
@@ -53,6 +53,25 @@ public interface ActionManager {
      */
     int withQueryResults(final String queryStatement, final String language, final CheckedBiConsumer<ResourceResolver, String> callback, final CheckedBiFunction<ResourceResolver, String, Boolean>... filters) throws RepositoryException, PersistenceException, Exception;
 
+    /**
+     * Schedule an activity to occur for every node found by a given query, like
+     * {@link #withQueryResults(String, String, CheckedBiConsumer, CheckedBiFunction...)},
+     * but read the query results while they are being processed.  Results are
+     * handed out in batches, each processed by one task which saves its changes
+     * once.  Only a few batches per worker thread are queued at any time; more
+     * results are read as batches complete, so large result sets neither fill
+     * the heap nor delay the start of work.
+     * @param queryStatement Query string
+     * @param language Query language to use
+     * @param batchSize Number of query results processed by one task
+     * @param callback Callback action to perform for every query result
+     * @param filters Optional filters return true if action should be taken
+     * @return Count of items queued when this method returns; the remaining
+     * results are counted in {@link #getAddedCount()} as they are read
+     * @throws Exception
+     */
+    int withStreamedQueryResults(final String queryStatement, final String language, final int batchSize, final CheckedBiConsumer<ResourceResolver, String> callback, final CheckedBiFunction<ResourceResolver, String, Boolean>... filters) throws Exception;
+
     /**
      * Perform action at some later time using a provided pooled resolver
      * @param action Action to perform
@@ -123,13 +142,39 @@ public interface ActionManager {
      */
     CompositeData getStatistics() throws OpenDataException;
 
+    /**
+     * Provide queue wait, execution and end-to-end time statistics rows for mbean reporting. Tasks reading query
+     * results in batches are timed per batch.
+     * @return List of composite data, one per measured time
+     * @throws OpenDataException
+     */
+    List<CompositeData> getLatencyStatistics() throws OpenDataException;
+
     /**
      * Note the name or path of the item currently being processed
      * This is particularly useful for error reporting
      * @param item Item name or path being processed currently
      */
     void setCurrentItem(String item);
-    
+
+    /**
+     * Record processed items in a checkpoint, so that work started again can
+     * skip them.  An item counts as processed once the task which set it as
+     * current item has completed without error, its changes are saved, and it
+     * did not schedule further work.  Tasks which only list items and schedule
+     * the work for them are therefore never recorded.  Query results found in
+     * the checkpoint are not processed again.
+     * @param checkpoint Checkpoint to use, or null to stop recording
+     */
+    void setCheckpoint(Checkpoint checkpoint);
+
+    /**
+     * @param item Item name or path
+     * @return True if the checkpoint of this action manager holds the item,
+     * meaning it was processed by an earlier run of the same work
+     */
+    boolean isCompleted(String item);
+
     /**
      * @return The name set on this action manager at the time of its creation
      */
@@ -0,0 +1,43 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2015 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.fam;
+
+import org.osgi.annotation.versioning.ConsumerType;
+
+/**
+ * Remembers which items of work have been processed, so that work which is
+ * started again can skip them.  Implementations must be thread safe.
+ * @see ActionManager#setCheckpoint(Checkpoint)
+ */
+@ConsumerType
+public interface Checkpoint {
+
+    /**
+     * @param item Item name or path, as set by {@link ActionManager#setCurrentItem(String)}
+     * @return True if the item has been processed successfully before
+     */
+    boolean isCompleted(String item);
+
+    /**
+     * Note that an item has been processed successfully and its changes are saved.
+     * @param item Item name or path, as set by {@link ActionManager#setCurrentItem(String)}
+     */
+    void completed(String item);
+}
@@ -80,6 +80,13 @@ public interface ThrottledTaskRunner extends ThrottledTaskRunnerMBean {
      */
     void logCompletion(long created, long started, long executed, long finished, boolean successful, Throwable error);
     
+    /**
+     * Record the duration of a repository commit done by a task, so that the runner can back off when saving slows down
+     * @param started Start time of the commit (Milliseconds since epoch)
+     * @param finished Finish time of the commit (Milliseconds since epoch)
+     */
+    void logCommit(long started, long finished);
+
     /**
      * Get number of maximum threads supported by this thread manager
      * @return Thread pool maximum size
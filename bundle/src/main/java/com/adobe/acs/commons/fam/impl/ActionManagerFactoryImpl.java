@@ -94,6 +94,15 @@ public class ActionManagerFactoryImpl extends AnnotatedStandardMBean implements
         return stats;
     }
     
+    @Override
+    public TabularDataSupport getLatencyStatistics() throws OpenDataException {
+        TabularDataSupport stats = new TabularDataSupport(RunningStatistic.getTaskStatisticsTableType());
+        for (ActionManager task : tasks.values()) {
+            stats.putAll(task.getLatencyStatistics().toArray(new CompositeData[0]));
+        }
+        return stats;
+    }
+
     @Override
     public TabularDataSupport getFailures() throws OpenDataException {
         TabularDataSupport stats = new TabularDataSupport(ActionManagerImpl.getFailuresTableType());
@@ -23,6 +23,8 @@ import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -51,6 +53,7 @@ import org.slf4j.LoggerFactory;
 
 import com.adobe.acs.commons.fam.ActionManager;
 import com.adobe.acs.commons.fam.CancelHandler;
+import com.adobe.acs.commons.fam.Checkpoint;
 import com.adobe.acs.commons.fam.Failure;
 import com.adobe.acs.commons.fam.ThrottledTaskRunner;
 import com.adobe.acs.commons.fam.actions.Actions;
@@ -72,6 +75,10 @@ class ActionManagerImpl extends CancelHandler implements ActionManager, Serializ
     public static final transient int HESITATION_DELAY = 50;
     // The cleanup task will wait this many milliseconds between its polling to see if the queue has been completely processed
     public static final transient int COMPLETION_CHECK_INTERVAL = 100;
+    // Streamed query results are read until this many batches per worker thread are queued for processing
+    public static final transient int STREAMING_HIGH_WATER_MARK = 4;
+    // Reading streamed query results resumes when the queued batches per worker thread drop to this many
+    public static final transient int STREAMING_LOW_WATER_MARK = 2;
     private final AtomicInteger tasksAdded = new AtomicInteger();
     private final AtomicInteger tasksCompleted = new AtomicInteger();
     private final AtomicInteger tasksFilteredOut = new AtomicInteger();
@@ -93,6 +100,12 @@ class ActionManagerImpl extends CancelHandler implements ActionManager, Serializ
     private final transient List<CheckedConsumer<ResourceResolver>> successHandlers = new CopyOnWriteArrayList<>();
     private final transient List<CheckedBiConsumer<List<Failure>, ResourceResolver>> errorHandlers = new CopyOnWriteArrayList<>();
     private final transient List<Runnable> finishHandlers = new CopyOnWriteArrayList<>();
+    private final transient Set<QueryResultStream> activeQueries = ConcurrentHashMap.newKeySet();
+    private final transient RunningStatistic waitTime = new RunningStatistic("Queue wait time");
+    private final transient RunningStatistic executionTime = new RunningStatistic("Execution time");
+    private final transient RunningStatistic endToEndTime = new RunningStatistic("End-to-end time");
+    private final transient ThreadLocal<RunningTask> runningTask = new ThreadLocal<>();
+    private transient volatile Checkpoint checkpoint;
 
     ActionManagerImpl(String name, ThrottledTaskRunner taskRunner, ResourceResolver resolver, int saveInterval) throws LoginException {
         this(name, taskRunner, resolver, saveInterval, ActionManagerConstants.DEFAULT_ACTION_PRIORITY);
@@ -153,19 +166,50 @@ class ActionManagerImpl extends CancelHandler implements ActionManager, Serializ
             final CheckedConsumer<ResourceResolver> action,
             final boolean closesResolver) {
         if (!closesResolver) {
+            noteScheduledWork();
             tasksAdded.incrementAndGet();
+            taskRunner.scheduleWork(timed(() -> runActionAndLogErrors(action, false)), this, priority);
+        } else {
+            taskRunner.scheduleWork(() -> {
+                runActionAndLogErrors(action, closesResolver);
+            }, this, priority);
         }
-        taskRunner.scheduleWork(() -> {
-            runActionAndLogErrors(action, closesResolver);
-        }, this, priority);
+    }
+
+    /**
+     * Wraps a task to record how long it waited in the queue and how long it ran.
+     */
+    private Runnable timed(Runnable work) {
+        final long queued = System.currentTimeMillis();
+        return () -> {
+            final long start = System.currentTimeMillis();
+            waitTime.log(start - queued);
+            try {
+                work.run();
+            } finally {
+                final long end = System.currentTimeMillis();
+                executionTime.log(end - start);
+                endToEndTime.log(end - queued);
+            }
+        };
     }
     
     @SuppressWarnings("squid:S1181")
     private void runActionAndLogErrors(CheckedConsumer<ResourceResolver> action, Boolean closesResolver) {
         started.compareAndSet(0, System.currentTimeMillis());
+        RunningTask task = new RunningTask();
+        runningTask.set(task);
         try {
-            withResolver(action);
-            if (!closesResolver) {
+            if (closesResolver) {
+                withResolver(action);
+            } else {
+                withResolver(resolver -> {
+                    action.accept(resolver);
+                    // Recorded in the checkpoint once the changes are saved
+                    if (!task.scheduledWork) {
+                        currentResolver.get().completed(task.item);
+                    }
+                });
                 logCompletetion();
             }
         } catch (Error e) {
@@ -187,6 +231,8 @@ class ActionManagerImpl extends CancelHandler implements ActionManager, Serializ
             if (!closesResolver) {
                 logError(new RuntimeException(t));
             }
+        } finally {
+            runningTask.remove();
         }
     }
 
@@ -220,6 +266,7 @@ class ActionManagerImpl extends CancelHandler implements ActionManager, Serializ
             final CheckedBiFunction<ResourceResolver, String, Boolean>... filters
     )
             throws RepositoryException, PersistenceException, Exception {
+        noteScheduledWork();
         withResolver((ResourceResolver resolver) -> {
             try {
                 Session session = resolver.adaptTo(Session.class);
@@ -228,9 +275,13 @@ class ActionManagerImpl extends CancelHandler implements ActionManager, Serializ
                 QueryResult results = query.execute();
                 for (NodeIterator nodeIterator = results.getNodes(); nodeIterator.hasNext();) {
                     final String nodePath = nodeIterator.nextNode().getPath();
+                    if (isCompleted(nodePath)) {
+                        LOG.debug("Skipping result completed before {}", nodePath);
+                        continue;
+                    }
                     LOG.info("Processing found result " + nodePath);
                     deferredWithResolver((ResourceResolver r) -> {
-                        currentPath.set(nodePath);
+                        setCurrentItem(nodePath);
                         if (filters != null) {
                             for (CheckedBiFunction<ResourceResolver, String, Boolean> filter : filters) {
                                 if (!filter.apply(r, nodePath)) {
@@ -250,9 +301,104 @@ class ActionManagerImpl extends CancelHandler implements ActionManager, Serializ
         return tasksAdded.get();
     }
 
+    @Override
+    @SuppressWarnings("squid:S2095")
+    public int withStreamedQueryResults(
+            final String queryStatement,
+            final String language,
+            final int batchSize,
+            final CheckedBiConsumer<ResourceResolver, String> callback,
+            final CheckedBiFunction<ResourceResolver, String, Boolean>... filters
+    )
+            throws Exception {
+        noteScheduledWork();
+        // The query resolver stays open until all results are read, it is closed by the stream
+        ResourceResolver queryResolver = baseResolver.clone(null);
+        try {
+            Session session = queryResolver.adaptTo(Session.class);
+            QueryManager queryManager = session.getWorkspace().getQueryManager();
+            Query query = queryManager.createQuery(queryStatement, language);
+            QueryResult results = query.execute();
+            QueryResultStream stream = new QueryResultStream(queryResolver, results.getNodes(), Math.max(batchSize, 1), callback, filters);
+            activeQueries.add(stream);
+            stream.pull();
+        } catch (RepositoryException ex) {
+            LOG.error("Repository exception processing query " + queryStatement, ex);
+            queryResolver.close();
+        }
+
+        return tasksAdded.get();
+    }
+
+    private void runBatch(QueryResultStream stream, List<String> paths) {
+        started.compareAndSet(0, System.currentTimeMillis());
+        try {
+            withResolver(resolver -> processBatch(resolver, paths, stream.callback, stream.filters));
+        } catch (Exception ex) {
+            // Failures of single items have been logged already
+            LOG.error("Error in action " + getName(), ex);
+        } finally {
+            stream.batchFinished();
+        }
+    }
+
+    @SuppressWarnings("squid:S1181")
+    private void processBatch(
+            final ResourceResolver resolver,
+            final List<String> paths,
+            final CheckedBiConsumer<ResourceResolver, String> callback,
+            final CheckedBiFunction<ResourceResolver, String, Boolean>[] filters) {
+        List<String> processed = new ArrayList<>(paths.size());
+        for (String path : paths) {
+            currentPath.set(path);
+            RunningTask task = new RunningTask();
+            runningTask.set(task);
+            try {
+                if (isAccepted(resolver, path, filters)) {
+                    callback.accept(resolver, path);
+                }
+                processed.add(path);
+                if (!task.scheduledWork) {
+                    currentResolver.get().completed(path);
+                }
+            } catch (Exception ex) {
+                LOG.error("Error in action " + getName(), ex);
+                logError(ex);
+            } catch (Throwable t) {
+                LOG.error("Fatal uncaught error in action " + getName(), t);
+                logError(new RuntimeException(t));
+            } finally {
+                runningTask.remove();
+            }
+        }
+        // Save once per batch, and only then count the items as completed so that cleanup cannot start in between
+        try {
+            currentResolver.get().commit();
+        } catch (PersistenceException ex) {
+            logPersistenceException(processed, ex);
+        }
+        tasksCompleted.addAndGet(processed.size());
+        tasksSuccessful.addAndGet(processed.size());
+        checkCompletion();
+    }
+
+    private boolean isAccepted(ResourceResolver resolver, String path, CheckedBiFunction<ResourceResolver, String, Boolean>[] filters) throws Exception {
+        if (filters != null) {
+            for (CheckedBiFunction<ResourceResolver, String, Boolean> filter : filters) {
+                if (!filter.apply(resolver, path)) {
+                    logFilteredOutItem(path);
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
     @Override
     public void cancel(boolean useForce) {
         super.cancel(useForce);
+        // Stop reading streamed query results, their queued batches will not run anymore
+        activeQueries.forEach(QueryResultStream::pull);
         if (getErrorCount() > 0) {
             processErrorHandlers();
         }
@@ -338,12 +484,42 @@ class ActionManagerImpl extends CancelHandler implements ActionManager, Serializ
     @Override
     public void setCurrentItem(String item) {
         currentPath.set(item);
+        RunningTask task = runningTask.get();
+        if (task != null) {
+            task.item = item;
+        }
+    }
+
+    @Override
+    public void setCheckpoint(Checkpoint checkpoint) {
+        this.checkpoint = checkpoint;
+        synchronized (resolvers) {
+            resolvers.forEach(resolver -> resolver.setCheckpoint(checkpoint));
+        }
+    }
+
+    @Override
+    public boolean isCompleted(String item) {
+        Checkpoint current = checkpoint;
+        return current != null && item != null && current.isCompleted(item);
+    }
+
+    /**
+     * Tasks which schedule more work are not recorded in the checkpoint, as only the scheduled work
+     * completes their item.
+     */
+    private void noteScheduledWork() {
+        RunningTask task = runningTask.get();
+        if (task != null) {
+            task.scheduledWork = true;
+        }
     }
 
     private ReusableResolver getResourceResolver() throws LoginException {
         ReusableResolver resolver = currentResolver.get();
         if (resolver == null || !resolver.getResolver().isLive()) {
-            resolver = new ReusableResolver(baseResolver.clone(null), saveInterval);
+            resolver = new ReusableResolver(baseResolver.clone(null), saveInterval, taskRunner);
+            resolver.setCheckpoint(checkpoint);
             currentResolver.set(resolver);
             resolvers.add(resolver);
         }
@@ -353,6 +529,10 @@ class ActionManagerImpl extends CancelHandler implements ActionManager, Serializ
     private void logCompletetion() {
         tasksCompleted.incrementAndGet();
         tasksSuccessful.incrementAndGet();
+        checkCompletion();
+    }
+
+    private void checkCompletion() {
         if (isComplete()) {
             finished = System.currentTimeMillis();
             performAutomaticCleanup();
@@ -367,10 +547,7 @@ class ActionManagerImpl extends CancelHandler implements ActionManager, Serializ
         failures.add(fail);
         tasksCompleted.incrementAndGet();
         tasksError.incrementAndGet();
-        if (isComplete()) {
-            finished = System.currentTimeMillis();
-            performAutomaticCleanup();
-        }
+        checkCompletion();
     }
 
     private void logPersistenceException(List<String> items, PersistenceException ex) {
@@ -409,13 +586,13 @@ class ActionManagerImpl extends CancelHandler implements ActionManager, Serializ
     @Override
     @SuppressWarnings("squid:S2142")
     public boolean isComplete() {
-        if (tasksCompleted.get() == tasksAdded.get()) {
+        if (tasksCompleted.get() == tasksAdded.get() && activeQueries.isEmpty()) {
             try {
                 Thread.sleep(HESITATION_DELAY);
             } catch (InterruptedException ex) {
                 // no-op
             }
-            return tasksCompleted.get() == tasksAdded.get();
+            return tasksCompleted.get() == tasksAdded.get() && activeQueries.isEmpty();
         } else {
             return false;
         }
@@ -437,6 +614,15 @@ class ActionManagerImpl extends CancelHandler implements ActionManager, Serializ
         );
     }
 
+    @Override
+    public List<CompositeData> getLatencyStatistics() throws OpenDataException {
+        List<CompositeData> statistics = new ArrayList<>();
+        statistics.add(waitTime.getStatistics(name));
+        statistics.add(executionTime.getStatistics(name));
+        statistics.add(endToEndTime.getStatistics(name));
+        return statistics;
+    }
+
     @Override
     public synchronized void closeAllResolvers() {
         if (!resolvers.isEmpty()) {
@@ -469,6 +655,105 @@ class ActionManagerImpl extends CancelHandler implements ActionManager, Serializ
         return failureData;
     }
 
+    /**
+     * Reads the results of a query while they are processed, and schedules them in batches.  Reading stops when
+     * the high water mark of queued batches is reached, and resumes when completed batches bring the queue down
+     * to the low water mark.  Only one thread reads at a time, as the query session is not thread-safe.
+     */
+    private class QueryResultStream {
+        private final ResourceResolver queryResolver;
+        private final NodeIterator nodes;
+        private final int batchSize;
+        private final int highWaterMark;
+        private final int lowWaterMark;
+        private final CheckedBiConsumer<ResourceResolver, String> callback;
+        private final CheckedBiFunction<ResourceResolver, String, Boolean>[] filters;
+        private final AtomicInteger queuedBatches = new AtomicInteger();
+        private final AtomicBoolean reading = new AtomicBoolean(false);
+        private volatile boolean done = false;
+
+        QueryResultStream(ResourceResolver queryResolver, NodeIterator nodes, int batchSize,
+                CheckedBiConsumer<ResourceResolver, String> callback,
+                CheckedBiFunction<ResourceResolver, String, Boolean>[] filters) {
+            this.queryResolver = queryResolver;
+            this.nodes = nodes;
+            this.batchSize = batchSize;
+            int threads = Math.max(taskRunner.getMaxThreads(), 1);
+            this.highWaterMark = threads * STREAMING_HIGH_WATER_MARK;
+            this.lowWaterMark = threads * STREAMING_LOW_WATER_MARK;
+            this.callback = callback;
+            this.filters = filters;
+        }
+
+        /**
+         * Read and schedule results unless enough batches are queued, or another thread is reading already.
+         * The conditions are checked again after reading, as batches completing meanwhile could not resume it.
+         */
+        void pull() {
+            while (!done && (queuedBatches.get() <= lowWaterMark || isCancelled())
+                    && reading.compareAndSet(false, true)) {
+                try {
+                    while (!done && (queuedBatches.get() < highWaterMark || isCancelled())) {
+                        if (isCancelled() || !nodes.hasNext()) {
+                            finish();
+                        } else {
+                            List<String> batch = nextBatch();
+                            if (!batch.isEmpty()) {
+                                scheduleBatch(batch);
+                            }
+                        }
+                    }
+                } catch (RepositoryException | RuntimeException ex) {
+                    LOG.error("Error reading query results in action " + getName(), ex);
+                    finish();
+                } finally {
+                    reading.set(false);
+                }
+            }
+        }
+
+        void batchFinished() {
+            if (queuedBatches.decrementAndGet() <= lowWaterMark) {
+                pull();
+            }
+        }
+
+        private List<String> nextBatch() throws RepositoryException {
+            List<String> batch = new ArrayList<>(batchSize);
+            while (batch.size() < batchSize && nodes.hasNext()) {
+                String nodePath = nodes.nextNode().getPath();
+                if (isCompleted(nodePath)) {
+                    LOG.debug("Skipping result completed before {}", nodePath);
+                } else {
+                    LOG.debug("Processing found result {}", nodePath);
+                    batch.add(nodePath);
+                }
+            }
+            return batch;
+        }
+
+        private void scheduleBatch(List<String> batch) {
+            queuedBatches.incrementAndGet();
+            tasksAdded.addAndGet(batch.size());
+            taskRunner.scheduleWork(timed(() -> runBatch(this, batch)), ActionManagerImpl.this, priority);
+        }
+
+        private void finish() {
+            done = true;
+            queryResolver.close();
+            activeQueries.remove(this);
+            checkCompletion();
+        }
+    }
+
+    /**
+     * Item and scheduled work of the task running on the current thread.
+     */
+    private static class RunningTask {
+        private String item;
+        private boolean scheduledWork = false;
+    }
+
     private static transient String[] statsItemNames;
     private static transient CompositeType statsCompositeType;
     private static transient TabularType statsTabularType;
@@ -0,0 +1,165 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2015 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.fam.impl;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Additive increase / multiplicative decrease controller for the number of threads of the throttled task runner.
+ * <p>
+ * Once per interval the controller compares the average task and commit latency of the interval with their
+ * baseline, the lowest average seen so far. The limit is cut by a quarter if the CPU or heap are above their
+ * maximum or either latency grew by more than the tolerated factor, it grows by one thread if all threads were busy
+ * and work was waiting, and stays as is otherwise. The baseline slowly follows latencies which stay high, so a job
+ * with slower tasks does not keep the limit down forever.
+ * </p>
+ */
+class AdaptiveConcurrency {
+
+    static final double DECREASE_FACTOR = 0.75;
+    /** Share of the distance to the latest average the baseline moves up per interval. */
+    static final double BASELINE_DRIFT = 0.05;
+    /** Latency increase in milliseconds which is never treated as congestion, as short tasks jitter a lot. */
+    static final long LATENCY_SLACK = 10;
+
+    private final Latency taskLatency = new Latency();
+    private final Latency commitLatency = new Latency();
+    private final int minLimit;
+    private final double tolerance;
+    private int maxLimit;
+    private volatile int limit;
+    private volatile String state = "starting";
+
+    AdaptiveConcurrency(int minLimit, int maxLimit, int initialLimit, double tolerance) {
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.limit = Math.max(this.minLimit, Math.min(this.maxLimit, initialLimit));
+        this.tolerance = tolerance;
+    }
+
+    void recordTaskLatency(long millis) {
+        taskLatency.record(millis);
+    }
+
+    void recordCommitLatency(long millis) {
+        commitLatency.record(millis);
+    }
+
+    /**
+     * Closes the current interval and picks the limit for the next one.
+     *
+     * @param cpu the CPU load, or a negative value if not checked
+     * @param maxCpu the maximum CPU load, or a negative value if not checked
+     * @param heap the heap usage, or a negative value if not checked
+     * @param maxHeap the maximum heap usage, or a negative value if not checked
+     * @param saturated true if all threads were busy and work was waiting
+     * @return the new limit
+     */
+    synchronized int update(double cpu, double maxCpu, double heap, double maxHeap, boolean saturated) {
+        final boolean taskCongestion = taskLatency.roll(tolerance);
+        final boolean commitCongestion = commitLatency.roll(tolerance);
+
+        String overload = null;
+        if (maxCpu > 0 && cpu >= maxCpu) {
+            overload = "cpu";
+        } else if (maxHeap > 0 && heap >= maxHeap) {
+            overload = "heap";
+        } else if (taskCongestion) {
+            overload = "task latency";
+        } else if (commitCongestion) {
+            overload = "commit latency";
+        }
+
+        if (overload != null) {
+            limit = Math.max(minLimit, (int) (limit * DECREASE_FACTOR));
+            state = "decrease (" + overload + ")";
+        } else if (saturated && limit < maxLimit) {
+            limit++;
+            state = "increase";
+        } else {
+            state = "steady";
+        }
+        return limit;
+    }
+
+    synchronized void setMaxLimit(int maxLimit) {
+        this.maxLimit = Math.max(minLimit, maxLimit);
+        limit = Math.min(limit, this.maxLimit);
+    }
+
+    int getLimit() {
+        return limit;
+    }
+
+    String getState() {
+        return state;
+    }
+
+    double getTaskLatency() {
+        return taskLatency.latest;
+    }
+
+    double getTaskLatencyBaseline() {
+        return taskLatency.baseline;
+    }
+
+    double getCommitLatency() {
+        return commitLatency.latest;
+    }
+
+    double getCommitLatencyBaseline() {
+        return commitLatency.baseline;
+    }
+
+    /**
+     * Latency samples of the current interval together with the latest interval average and the baseline.
+     */
+    private static class Latency {
+        private final LongAdder total = new LongAdder();
+        private final LongAdder count = new LongAdder();
+        private volatile double latest = Double.NaN;
+        private volatile double baseline = Double.NaN;
+
+        private void record(long millis) {
+            total.add(millis);
+            count.increment();
+        }
+
+        /**
+         * @return true if the average of the interval exceeds the baseline by more than the tolerated factor
+         */
+        private boolean roll(double tolerance) {
+            final long samples = count.sumThenReset();
+            final long sum = total.sumThenReset();
+            if (samples == 0) {
+                // Nothing finished in this interval, so there is nothing to compare
+                return false;
+            }
+            latest = (double) sum / samples;
+            if (Double.isNaN(baseline) || latest < baseline) {
+                baseline = latest;
+                return false;
+            }
+            final boolean congested = latest > baseline * tolerance && latest - baseline > LATENCY_SLACK;
+            baseline += (latest - baseline) * BASELINE_DRIFT;
+            return congested;
+        }
+    }
+}
@@ -0,0 +1,408 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2015 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.fam.impl;
+
+import com.adobe.acs.commons.fam.ActionManager;
+import com.adobe.acs.commons.fam.CancelHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenDataException;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
+import javax.management.openmbean.TabularDataSupport;
+import javax.management.openmbean.TabularType;
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.WeakHashMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Work queue of the throttled task runner which shares the threads fairly between tenants.
+ * <p>
+ * A tenant is the {@link CancelHandler} work is scheduled with, i.e. the action manager. Work scheduled without one,
+ * like http cache writes, belongs to the default tenant. Every tenant has a queue of its own, ordered by task priority
+ * like the single queue before. Tenants with queued work take turns in deficit round robin order: in each turn a
+ * tenant hands out as many tasks as its weight before the next tenant is served, so one large job cannot starve
+ * the others.
+ * </p>
+ */
+class FairTaskQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FairTaskQueue.class);
+
+    static final String DEFAULT_TENANT = "default";
+
+    private static final Comparator<Runnable> PRIORITY_ORDER = (a, b) -> {
+        final Optional<TimedRunnable> first = getTimedRunnable(a);
+        final Optional<TimedRunnable> second = getTimedRunnable(b);
+        return first.isPresent() && second.isPresent() ? first.get().compareTo(second.get()) : 0;
+    };
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Map<String, Integer> weights;
+    // Tenants are dropped once their action manager is gone; queued work keeps it reachable
+    private final Map<CancelHandler, Tenant> tenants = new WeakHashMap<>();
+    private final Tenant defaultTenant;
+    private final ArrayDeque<Tenant> activeTenants = new ArrayDeque<>();
+    private int count;
+
+    /**
+     * @param weights weights by tenant name prefix, the longest matching prefix applies; tenants without a matching
+     * prefix have weight 1
+     */
+    FairTaskQueue(Map<String, Integer> weights) {
+        this.weights = weights;
+        defaultTenant = new Tenant(DEFAULT_TENANT, getWeight(DEFAULT_TENANT));
+    }
+
+    private int getWeight(String tenantName) {
+        String match = null;
+        for (String prefix : weights.keySet()) {
+            if (tenantName.startsWith(prefix) && (match == null || prefix.length() > match.length())) {
+                match = prefix;
+            }
+        }
+        return match == null ? 1 : Math.max(1, weights.get(match));
+    }
+
+    /**
+     * Work is queued as future when submitted, and as is when resumed after a pause.
+     */
+    private static Optional<TimedRunnable> getTimedRunnable(Runnable work) {
+        if (work instanceof TimedRunnableFuture) {
+            return ((TimedRunnableFuture) work).getTimedRunnable();
+        } else if (work instanceof TimedRunnable) {
+            return Optional.of((TimedRunnable) work);
+        }
+        return Optional.empty();
+    }
+
+    private Tenant getTenant(Runnable work) {
+        final CancelHandler handler = getTimedRunnable(work).flatMap(r -> r.cancelHandler).orElse(null);
+        if (handler == null) {
+            return defaultTenant;
+        }
+        return tenants.computeIfAbsent(handler, h -> {
+            final String name = h instanceof ActionManager
+                    ? ((ActionManager) h).getName()
+                    : h.getClass().getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(h));
+            return new Tenant(name, getWeight(name));
+        });
+    }
+
+    @Override
+    public boolean offer(Runnable work) {
+        if (work == null) {
+            throw new NullPointerException();
+        }
+        lock.lock();
+        try {
+            final Tenant tenant = getTenant(work);
+            tenant.queue.add(work);
+            if (tenant.queue.size() == 1) {
+                activeTenants.addLast(tenant);
+            }
+            count++;
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void put(Runnable work) {
+        offer(work);
+    }
+
+    @Override
+    public boolean offer(Runnable work, long timeout, TimeUnit unit) {
+        return offer(work);
+    }
+
+    /**
+     * Takes the next task of the tenant whose turn it is. Must be called with the lock held.
+     */
+    private Runnable dequeue() {
+        final Tenant tenant = activeTenants.peekFirst();
+        if (tenant == null) {
+            return null;
+        }
+        if (tenant.deficit <= 0) {
+            // Start of the tenant's turn
+            tenant.deficit += tenant.weight;
+        }
+        final Runnable work = tenant.queue.poll();
+        tenant.deficit--;
+        tenant.dispatched++;
+        count--;
+        if (tenant.queue.isEmpty()) {
+            activeTenants.removeFirst();
+            tenant.deficit = 0;
+        } else if (tenant.deficit <= 0) {
+            activeTenants.addLast(activeTenants.removeFirst());
+        }
+        getTimedRunnable(work).ifPresent(r -> tenant.waitTime.log(System.currentTimeMillis() - r.created));
+        return work;
+    }
+
+    @Override
+    public Runnable poll() {
+        lock.lock();
+        try {
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (count == 0) {
+                notEmpty.await();
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (count == 0 && nanos > 0) {
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable peek() {
+        lock.lock();
+        try {
+            final Tenant tenant = activeTenants.peekFirst();
+            return tenant == null ? null : tenant.queue.peek();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public boolean remove(Object work) {
+        lock.lock();
+        try {
+            for (Iterator<Tenant> iterator = activeTenants.iterator(); iterator.hasNext();) {
+                final Tenant tenant = iterator.next();
+                if (tenant.queue.remove(work)) {
+                    count--;
+                    if (tenant.queue.isEmpty()) {
+                        iterator.remove();
+                        tenant.deficit = 0;
+                    }
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> target) {
+        return drainTo(target, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> target, int maxElements) {
+        lock.lock();
+        try {
+            int drained = 0;
+            while (drained < maxElements && count > 0) {
+                target.add(dequeue());
+                drained++;
+            }
+            return drained;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return an iterator over a snapshot of the queued work, in no particular order
+     */
+    @Override
+    public Iterator<Runnable> iterator() {
+        final List<Runnable> snapshot = new ArrayList<>();
+        lock.lock();
+        try {
+            activeTenants.forEach(tenant -> snapshot.addAll(tenant.queue));
+        } finally {
+            lock.unlock();
+        }
+        final Iterator<Runnable> iterator = snapshot.iterator();
+        return new Iterator<Runnable>() {
+            private Runnable current;
+
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public Runnable next() {
+                current = iterator.next();
+                return current;
+            }
+
+            @Override
+            public void remove() {
+                FairTaskQueue.this.remove(current);
+            }
+        };
+    }
+
+    /**
+     * @return queue depth and queue wait time of every known tenant
+     */
+    TabularDataSupport getTenantStatistics() {
+        final TabularDataSupport stats = new TabularDataSupport(tenantTabularType);
+        final List<Tenant> snapshot = new ArrayList<>();
+        lock.lock();
+        try {
+            snapshot.add(defaultTenant);
+            snapshot.addAll(tenants.values());
+        } finally {
+            lock.unlock();
+        }
+        for (Tenant tenant : snapshot) {
+            try {
+                final CompositeDataSupport row = tenant.getStatistics();
+                if (!stats.containsKey(stats.calculateIndex(row))) {
+                    stats.put(row);
+                }
+            } catch (OpenDataException ex) {
+                LOG.error("Error generating tenant statistics", ex);
+            }
+        }
+        return stats;
+    }
+
+    static TabularType getTenantStatisticsTableType() {
+        return tenantTabularType;
+    }
+
+    private class Tenant {
+        private final String name;
+        private final int weight;
+        private final PriorityQueue<Runnable> queue = new PriorityQueue<>(PRIORITY_ORDER);
+        private final RunningStatistic waitTime = new RunningStatistic("Queue wait time");
+        private int deficit;
+        private long dispatched;
+
+        private Tenant(String name, int weight) {
+            this.name = name;
+            this.weight = weight;
+        }
+
+        private CompositeDataSupport getStatistics() throws OpenDataException {
+            final int queued;
+            final long dispatchedCount;
+            lock.lock();
+            try {
+                queued = queue.size();
+                dispatchedCount = dispatched;
+            } finally {
+                lock.unlock();
+            }
+            return new CompositeDataSupport(tenantCompositeType, tenantItemNames, new Object[]{
+                name,
+                weight,
+                queued,
+                dispatchedCount,
+                waitTime.getCount() == 0 ? 0.0 : waitTime.getMean(),
+                waitTime.getPercentile(0.5),
+                waitTime.getPercentile(0.99),
+                waitTime.getCount() == 0 ? 0L : waitTime.getMax()
+            });
+        }
+    }
+
+    private static String[] tenantItemNames;
+    private static CompositeType tenantCompositeType;
+    private static TabularType tenantTabularType;
+
+    static {
+        try {
+            tenantItemNames = new String[]{"tenant", "weight", "queued", "dispatched", "wait mean", "wait p50",
+                "wait p99", "wait max"};
+            tenantCompositeType = new CompositeType(
+                    "Tenant",
+                    "Queue of a tenant",
+                    tenantItemNames,
+                    new String[]{"Action manager, or default for work without one", "Weight", "Queued tasks",
+                        "Tasks handed to a thread", "Average queue wait time (ms)", "Median queue wait time (ms)",
+                        "99th percentile queue wait time (ms)", "Maximum queue wait time (ms)"},
+                    new OpenType[]{SimpleType.STRING, SimpleType.INTEGER, SimpleType.INTEGER, SimpleType.LONG,
+                        SimpleType.DOUBLE, SimpleType.LONG, SimpleType.LONG, SimpleType.LONG});
+            tenantTabularType = new TabularType("Tenants", "Queues per tenant", tenantCompositeType,
+                    new String[]{"tenant"});
+        } catch (OpenDataException ex) {
+            LOG.error("Unable to build MBean composite types", ex);
+        }
+    }
+}
@@ -23,6 +23,8 @@ import java.util.ArrayList;
 import java.util.List;
 import org.apache.sling.api.resource.PersistenceException;
 import org.apache.sling.api.resource.ResourceResolver;
+import com.adobe.acs.commons.fam.Checkpoint;
+import com.adobe.acs.commons.fam.ThrottledTaskRunner;
 
 /**
  * Encapsulates details about a pooled resource resolver
@@ -34,12 +36,26 @@ public class ReusableResolver {
     private final int saveInterval;
     private final List<String> pendingItems;
     private String currentItem;
+    private final ThrottledTaskRunner runner;
+    private final List<String> completedItems;
+    private Checkpoint checkpoint;
 
     public ReusableResolver(ResourceResolver res, int save) {
+        this(res, save, null);
+    }
+
+    /**
+     * @param res the resolver
+     * @param save number of changes after which to commit
+     * @param runner the runner to report commit times to, may be null
+     */
+    public ReusableResolver(ResourceResolver res, int save, ThrottledTaskRunner runner) {
         resolver = res;
         changeCount = 0;
         saveInterval = save;
         pendingItems = new ArrayList<>();
+        this.runner = runner;
+        completedItems = new ArrayList<>();
     }
 
     public void setCurrentItem(String current) {
@@ -65,9 +81,14 @@ public class ReusableResolver {
     public void commit() throws PersistenceException {
         setChangeCount(0);
         if (getResolver().isLive() && getResolver().hasChanges()) {
+            long started = System.currentTimeMillis();
             try {
                 getResolver().commit();
+                if (runner != null) {
+                    runner.logCommit(started, System.currentTimeMillis());
+                }
             } catch (PersistenceException e) {
+                completedItems.clear();
                 getResolver().revert();
                 getResolver().refresh();
                 throw e;
@@ -75,6 +96,40 @@ public class ReusableResolver {
                 getPendingItems().clear();
             }
         }
+        if (getResolver().isLive()) {
+            recordCompletedItems();
+        } else {
+            completedItems.clear();
+        }
+    }
+
+    /**
+     * @param checkpoint checkpoint to record completed items in once their changes are saved, may be null
+     */
+    public void setCheckpoint(Checkpoint checkpoint) {
+        this.checkpoint = checkpoint;
+    }
+
+    /**
+     * Note that the work for an item is done.  It is recorded in the checkpoint
+     * right away if it left no unsaved changes, otherwise with the next commit.
+     * @param item the item
+     */
+    public void completed(String item) {
+        if (checkpoint == null || item == null) {
+            return;
+        }
+        completedItems.add(item);
+        if (getChangeCount() == 0 && !getResolver().hasChanges()) {
+            recordCompletedItems();
+        }
+    }
+
+    private void recordCompletedItems() {
+        if (checkpoint != null) {
+            completedItems.forEach(checkpoint::completed);
+        }
+        completedItems.clear();
     }
 
     public int getChangeCount() {
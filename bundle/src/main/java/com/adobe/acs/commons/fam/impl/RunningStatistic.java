@@ -19,10 +19,10 @@
  */
 package com.adobe.acs.commons.fam.impl;
 
-import java.util.Collections;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.Arrays;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.management.openmbean.CompositeData;
@@ -34,46 +34,74 @@ import javax.management.openmbean.SimpleType;
 import javax.management.openmbean.TabularType;
 
 /**
- * Collect a numeric series and produce a rolling report on the trend
+ * Collect a numeric series and produce a rolling report on the trend and its percentiles.
+ * <p>
+ * Values are counted in a fixed set of logarithmic buckets, 16 per power of two, so percentiles are accurate to
+ * about 6% with the same small memory footprint no matter how many values are logged. Logging takes no locks, so
+ * it can be called from every worker thread for every task.
+ * </p>
  */
 public class RunningStatistic {
 
     private static int rollingAverageWidth = 20;
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    /** Values are capped at 2^40 - 1, which is about 35 years in milliseconds. */
+    private static final int MAX_EXPONENT = 39;
+    private static final long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+    private static final int BUCKET_COUNT = bucket(MAX_VALUE) + 1;
+
     private final String name;
-    private final AtomicLong counter = new AtomicLong();
+    private final LongAdder counter = new LongAdder();
+    private final LongAdder total = new LongAdder();
     private final AtomicLong min = new AtomicLong();
     private final AtomicLong max = new AtomicLong();
-    private double total;
-    private double rollingCounter;
-    private List<Long> rollingSeries;
+    private final LongAdder[] buckets = new LongAdder[BUCKET_COUNT];
+    private final AtomicLongArray rollingSeries = new AtomicLongArray(rollingAverageWidth);
+    private final AtomicLong rollingPosition = new AtomicLong();
 
     public RunningStatistic(String name) {
         this.name = name;
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
         reset();
     }
 
-    public synchronized void log(long l) {
-        total += l;
-        counter.incrementAndGet();
-        rollingCounter += l;
-        rollingSeries.add(l);
-        rollingCounter -= rollingSeries.remove(0);
-        min.set(Math.min(min.get(), l));
-        max.set(Math.max(max.get(), l));
+    public void log(long l) {
+        counter.increment();
+        total.add(l);
+        buckets[bucket(l)].increment();
+        rollingSeries.set((int) (rollingPosition.getAndIncrement() % rollingAverageWidth), l);
+        // Only write when the value is a new extreme, which is rare once the series has settled
+        if (l < min.get()) {
+            min.accumulateAndGet(l, Math::min);
+        }
+        if (l > max.get()) {
+            max.accumulateAndGet(l, Math::max);
+        }
     }
 
-    public synchronized void reset() {
-        rollingSeries = Collections.synchronizedList(new LinkedList<>());
+    /**
+     * Clears the series. Values logged while resetting may be partially counted.
+     */
+    public void reset() {
+        for (LongAdder bucket : buckets) {
+            bucket.reset();
+        }
         for (int i = 0; i < rollingAverageWidth; i++) {
-            rollingSeries.add(0L);
+            rollingSeries.set(i, 0L);
         }
-        counter.set(0);
-        rollingCounter=0;
-        total=0;
+        counter.reset();
+        total.reset();
         min.set(Long.MAX_VALUE);
         max.set(Long.MIN_VALUE);
     }
 
+    public long getCount() {
+        return counter.sum();
+    }
+
     public long getMin() {
         return min.get();
     }
@@ -82,44 +110,148 @@ public class RunningStatistic {
         return max.get();
     }
 
-    public synchronized double getMean() {
-        return total / counter.get();
+    public double getMean() {
+        return (double) total.sum() / counter.sum();
     }
 
-    public synchronized double getRollingMean() {
+    public double getRollingMean() {
+        double rollingCounter = 0;
+        for (int i = 0; i < rollingAverageWidth; i++) {
+            rollingCounter += rollingSeries.get(i);
+        }
         return rollingCounter / rollingAverageWidth;
     }
 
+    /**
+     * Get the value which the given share of all logged values does not exceed. The result is the upper end of the
+     * bucket the percentile falls into, but never more than the maximum logged value.
+     *
+     * @param percentile the percentile, 0..1, e.g. 0.99
+     * @return the value at the percentile, or 0 if nothing was logged
+     */
+    public long getPercentile(double percentile) {
+        final long[] counts = new long[buckets.length];
+        long count = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            counts[i] = buckets[i].sum();
+            count += counts[i];
+        }
+        if (count == 0) {
+            return 0;
+        }
+
+        final long rank = Math.max(1, (long) Math.ceil(percentile * count));
+        long seen = 0;
+        int i = 0;
+        while (i < counts.length - 1 && seen + counts[i] < rank) {
+            seen += counts[i++];
+        }
+        return Math.min(highestValue(i), max.get());
+    }
+
     public CompositeData getStatistics() throws OpenDataException {
-        return new CompositeDataSupport(compositeType,itemNames, new Object[] {
-            name, 
-            min.get(), 
-            max.get(), 
-            getMean(), 
-            getRollingMean()
-        });
+        return new CompositeDataSupport(compositeType, itemNames, getRow());
+    }
+
+    /**
+     * @param taskName name of the action manager the statistic belongs to
+     * @return the statistics row for the table of {@link #getTaskStatisticsTableType()}
+     * @throws OpenDataException if the row cannot be built
+     */
+    public CompositeData getStatistics(String taskName) throws OpenDataException {
+        Object[] row = getRow();
+        Object[] taskRow = new Object[row.length + 1];
+        taskRow[0] = taskName;
+        System.arraycopy(row, 0, taskRow, 1, row.length);
+        return new CompositeDataSupport(taskCompositeType, taskItemNames, taskRow);
+    }
+
+    private Object[] getRow() {
+        return new Object[] {
+            name,
+            min.get(),
+            max.get(),
+            getMean(),
+            getRollingMean(),
+            getCount(),
+            getPercentile(0.5),
+            getPercentile(0.9),
+            getPercentile(0.99),
+            getPercentile(0.999)
+        };
+    }
+
+    static int bucket(long value) {
+        final long v = Math.max(0, Math.min(value, MAX_VALUE));
+        if (v < SUB_BUCKETS) {
+            return (int) v;
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros(v);
+        final int shift = exponent - SUB_BUCKET_BITS;
+        return SUB_BUCKETS * (shift + 1) + (int) ((v >> shift) - SUB_BUCKETS);
+    }
+
+    static long highestValue(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        final int shift = bucket / SUB_BUCKETS - 1;
+        final long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
     }
 
     public static TabularType getStaticsTableType() {
         return tabularType;
     }
 
+    /**
+     * @return table type for the statistics of several action managers, keyed by task name and attribute
+     */
+    public static TabularType getTaskStatisticsTableType() {
+        return taskTabularType;
+    }
+
     private static String[] itemNames;
     private static CompositeType compositeType;
     private static TabularType tabularType;
+    private static String[] taskItemNames;
+    private static CompositeType taskCompositeType;
+    private static TabularType taskTabularType;
 
     static {
         try {
-            itemNames = new String[]{"attribute","min", "max", "mean", "rolling mean"};
+            itemNames = new String[]{"attribute", "min", "max", "mean", "rolling mean", "count", "p50", "p90", "p99", "p999"};
+            String[] descriptions = new String[]{"Name", "Minimum value", "Maximum value", "Overall average",
+                "Average of last " + rollingAverageWidth, "Number of values", "Median", "90th percentile",
+                "99th percentile", "99.9th percentile"};
+            OpenType[] types = new OpenType[]{SimpleType.STRING, SimpleType.LONG, SimpleType.LONG, SimpleType.DOUBLE,
+                SimpleType.DOUBLE, SimpleType.LONG, SimpleType.LONG, SimpleType.LONG, SimpleType.LONG, SimpleType.LONG};
             compositeType = new CompositeType(
                     "Statics Row",
                     "Single row of statistics",
                     itemNames,
-                    new String[]{"Name", "Minimum value", "Maximum value", "Overall average", "Average of last " + rollingAverageWidth},
-                    new OpenType[]{SimpleType.STRING, SimpleType.LONG, SimpleType.LONG, SimpleType.DOUBLE, SimpleType.DOUBLE});
+                    descriptions,
+                    types);
             tabularType = new TabularType("Statistics", "Collected statistics", compositeType, new String[] {"attribute"});
+
+            taskItemNames = prepend("_taskName", itemNames);
+            taskCompositeType = new CompositeType(
+                    "Task Statics Row",
+                    "Single row of statistics of a task",
+                    taskItemNames,
+                    prepend("Task name", descriptions),
+                    prepend(SimpleType.STRING, types));
+            taskTabularType = new TabularType("Task statistics", "Collected statistics per task", taskCompositeType,
+                    new String[] {"_taskName", "attribute"});
         } catch (OpenDataException ex) {
             Logger.getLogger(RunningStatistic.class.getName()).log(Level.SEVERE, null, ex);
         }
     }
+
+    private static <T> T[] prepend(T first, T[] rest) {
+        T[] result = Arrays.copyOf(rest, rest.length + 1);
+        System.arraycopy(rest, 0, result, 1, rest.length);
+        result[0] = first;
+        return result;
+    }
 }
@@ -47,12 +47,18 @@ import javax.management.openmbean.CompositeData;
 import javax.management.openmbean.OpenDataException;
 import javax.management.openmbean.TabularDataSupport;
 import java.lang.management.ManagementFactory;
+import java.util.Collections;
 import java.util.Dictionary;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
 import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 @Component(metatype = true, immediate = true,
            label = "ACS AEM Commons - Throttled Task Runner Service",
@@ -64,7 +70,13 @@ import java.util.concurrent.TimeUnit;
     @Property(name = "max.cpu", label = "Max cpu %", description = "Range is 0..1; -1 means disable this check", doubleValue = 0.75),
     @Property(name = "max.heap", label = "Max heap %", description = "Range is 0..1; -1 means disable this check", doubleValue = 0.85),
     @Property(name = "cooldown.wait.time", label = "Cooldown time", description="Time to wait for cpu/mem cooldown between checks", value = "100"),
-    @Property(name = "task.timeout", label = "Watchdog time", description="Maximum time allowed (in ms) per action before it is interrupted forcefully. Defaults to 1 hour.", value = "3600000"),})
+    @Property(name = "task.timeout", label = "Watchdog time", description="Maximum time allowed (in ms) per action before it is interrupted forcefully. Defaults to 1 hour.", value = "3600000"),
+    @Property(name = "adaptive.concurrency", label = "Adaptive concurrency", description = "If enabled, the number of threads is adjusted continuously between the min and max threads based on task latency, commit latency, cpu and heap, instead of pausing tasks while cpu or heap are too high", boolValue = false),
+    @Property(name = "adaptive.min.threads", label = "Adaptive min threads", description = "Lowest number of threads in adaptive mode", intValue = 1),
+    @Property(name = "adaptive.interval", label = "Adaptive interval", description = "Time (in ms) between adjustments of the number of threads in adaptive mode", intValue = 1000),
+    @Property(name = "fair.scheduling", label = "Fair scheduling", description = "If enabled, each action manager gets a queue of its own and the queues take turns, so one large job cannot starve the others. Work scheduled without an action manager shares the default queue.", boolValue = false),
+    @Property(name = "fair.scheduling.weights", label = "Fair scheduling weights", description = "Tasks a queue may hand out per turn, as action manager name prefix=weight, e.g. default=4. The longest matching prefix applies, the weight of other queues is 1.", cardinality = Integer.MAX_VALUE),
+    @Property(name = "adaptive.latency.tolerance", label = "Adaptive latency tolerance", description = "Factor by which the average task or commit latency may exceed its baseline before the number of threads is reduced", doubleValue = 2.0),})
 public class ThrottledTaskRunnerImpl extends AnnotatedStandardMBean implements ThrottledTaskRunner, ThrottledTaskRunnerStats {
 
     private static final Logger LOG = LoggerFactory.getLogger(ThrottledTaskRunnerImpl.class);
@@ -79,6 +91,16 @@ public class ThrottledTaskRunnerImpl extends AnnotatedStandardMBean implements T
     private ObjectName memBeanName;
     private PriorityThreadPoolExecutor workerPool;
     private BlockingQueue<Runnable> workQueue;
+    private boolean fairScheduling;
+    private Map<String, Integer> fairSchedulingWeights = Collections.emptyMap();
+    private AdaptiveConcurrency adaptiveConcurrency;
+    private int adaptiveInterval;
+    private final AtomicLong nextAdjustment = new AtomicLong();
+    private final ThreadLocal<Boolean> isWorkerThread = ThreadLocal.withInitial(() -> false);
+    private final ThreadFactory workerThreadFactory = work -> Executors.defaultThreadFactory().newThread(() -> {
+        isWorkerThread.set(true);
+        work.run();
+    });
 
     public ThrottledTaskRunnerImpl() throws NotCompliantMBeanException {
         super(ThrottledTaskRunnerMBean.class);
@@ -111,18 +133,34 @@ public class ThrottledTaskRunnerImpl extends AnnotatedStandardMBean implements T
             resumeList.add(r);
         } else {
             workerPool.submit(r);
+            adjustConcurrency();
         }
     }
 
     RunningStatistic waitTime = new RunningStatistic("Queue wait time");
     RunningStatistic throttleTime = new RunningStatistic("Throttle time");
     RunningStatistic processingTime = new RunningStatistic("Processing time");
+    RunningStatistic commitTime = new RunningStatistic("Commit time");
+    RunningStatistic endToEndTime = new RunningStatistic("End-to-end time");
 
     @Override
     public void logCompletion(long created, long started, long executed, long finished, boolean successful, Throwable error) {
         waitTime.log(started - created);
         throttleTime.log(executed - started);
         processingTime.log(finished - executed);
+        endToEndTime.log(finished - created);
+        if (adaptiveConcurrency != null && executed > 0) {
+            adaptiveConcurrency.recordTaskLatency(finished - executed);
+            adjustConcurrency();
+        }
+    }
+
+    @Override
+    public void logCommit(long started, long finished) {
+        commitTime.log(finished - started);
+        if (adaptiveConcurrency != null) {
+            adaptiveConcurrency.recordCommitLatency(finished - started);
+        }
     }
 
     @Override
@@ -130,6 +168,8 @@ public class ThrottledTaskRunnerImpl extends AnnotatedStandardMBean implements T
         waitTime.reset();
         throttleTime.reset();
         processingTime.reset();
+        commitTime.reset();
+        endToEndTime.reset();
     }
 
     @Override
@@ -139,6 +179,8 @@ public class ThrottledTaskRunnerImpl extends AnnotatedStandardMBean implements T
             stats.put(waitTime.getStatistics());
             stats.put(throttleTime.getStatistics());
             stats.put(processingTime.getStatistics());
+            stats.put(commitTime.getStatistics());
+            stats.put(endToEndTime.getStatistics());
             return stats;
         } catch (OpenDataException ex) {
             LOG.error("Error generating statistics", ex);
@@ -146,6 +188,14 @@ public class ThrottledTaskRunnerImpl extends AnnotatedStandardMBean implements T
         }
     }
 
+    @Override
+    public TabularDataSupport getTenantStatistics() {
+        if (workQueue instanceof FairTaskQueue) {
+            return ((FairTaskQueue) workQueue).getTenantStatistics();
+        }
+        return new TabularDataSupport(FairTaskQueue.getTenantStatisticsTableType());
+    }
+
     @Override
     public boolean isRunning() {
         return workerPool != null && !workerPool.isTerminating() && !workerPool.isTerminated();
@@ -237,8 +287,59 @@ public class ThrottledTaskRunnerImpl extends AnnotatedStandardMBean implements T
         return wasRecentlyBusy;
     }
 
+    /**
+     * Lets the adaptive controller pick the number of threads for the next interval, if the current one is over.
+     * Only one caller per interval does the work, everybody else returns right away.
+     */
+    @SuppressWarnings("squid:S1166")
+    private void adjustConcurrency() {
+        final AdaptiveConcurrency controller = adaptiveConcurrency;
+        final PriorityThreadPoolExecutor pool = workerPool;
+        final long now = System.currentTimeMillis();
+        final long next = nextAdjustment.get();
+        if (controller == null || pool == null || now < next || !nextAdjustment.compareAndSet(next, now + adaptiveInterval)) {
+            return;
+        }
+
+        double cpuLevel = -1;
+        if (maxCpu > 0) {
+            try {
+                cpuLevel = getCpuLevel();
+            } catch (InstanceNotFoundException | ReflectionException ex) {
+                LOG.error("Unable to read cpu level, adjusting concurrency without it", ex);
+            }
+        }
+        double heapUsage = maxHeap > 0 ? getMemoryUsage() : -1;
+        boolean saturated = !workQueue.isEmpty() && pool.getActiveCount() >= pool.getMaximumPoolSize();
+
+        int limit = controller.update(cpuLevel, maxCpu, heapUsage, maxHeap, saturated);
+        if (limit != pool.getMaximumPoolSize()) {
+            LOG.debug("Adaptive concurrency: {} to {} threads", controller.getState(), limit);
+            resize(pool, limit);
+        }
+    }
+
+    /**
+     * Changes the pool size in place. Surplus threads end once their current task is done, missing ones are started
+     * as work is picked up.
+     */
+    private static void resize(PriorityThreadPoolExecutor pool, int size) {
+        if (size > pool.getMaximumPoolSize()) {
+            pool.setMaximumPoolSize(size);
+            pool.setCorePoolSize(size);
+        } else {
+            pool.setCorePoolSize(size);
+            pool.setMaximumPoolSize(size);
+        }
+    }
+
     @Override
     public void waitForLowCpuAndLowMemory() throws InterruptedException {
+        if (adaptiveConcurrency != null && isWorkerThread.get()) {
+            // The pool is shrunk instead, so a worker parks in the queue rather than holding a thread while sleeping
+            adjustConcurrency();
+            return;
+        }
         while (isTooBusy()) {
             Thread.sleep(cooldownWaitTime);
         }
@@ -282,20 +383,61 @@ public class ThrottledTaskRunnerImpl extends AnnotatedStandardMBean implements T
         return maxHeap;
     }
 
+    @Override
+    public boolean isAdaptiveConcurrency() {
+        return adaptiveConcurrency != null;
+    }
+
+    @Override
+    public int getConcurrencyLimit() {
+        return adaptiveConcurrency != null ? adaptiveConcurrency.getLimit() : maxThreads;
+    }
+
+    @Override
+    public String getConcurrencyControllerState() {
+        return adaptiveConcurrency != null ? adaptiveConcurrency.getState() : "disabled";
+    }
+
+    @Override
+    public double getTaskLatency() {
+        return adaptiveConcurrency != null ? adaptiveConcurrency.getTaskLatency() : processingTime.getRollingMean();
+    }
+
+    @Override
+    public double getTaskLatencyBaseline() {
+        return adaptiveConcurrency != null ? adaptiveConcurrency.getTaskLatencyBaseline() : Double.NaN;
+    }
+
+    @Override
+    public double getCommitLatency() {
+        return adaptiveConcurrency != null ? adaptiveConcurrency.getCommitLatency() : commitTime.getRollingMean();
+    }
+
+    @Override
+    public double getCommitLatencyBaseline() {
+        return adaptiveConcurrency != null ? adaptiveConcurrency.getCommitLatencyBaseline() : Double.NaN;
+    }
+
     @Override
     public void setThreadPoolSize(int newSize) {
         maxThreads = newSize;
+        if (adaptiveConcurrency != null) {
+            adaptiveConcurrency.setMaxLimit(newSize);
+            if (isRunning() && workerPool.getMaximumPoolSize() > adaptiveConcurrency.getLimit()) {
+                resize(workerPool, adaptiveConcurrency.getLimit());
+            }
+        }
         initThreadPool();
     }
 
     @SuppressWarnings("squid:S2142")
     private void initThreadPool() {
         if (workQueue == null) {
-            workQueue = new PriorityBlockingQueue<>();
+            workQueue = fairScheduling ? new FairTaskQueue(fairSchedulingWeights) : new PriorityBlockingQueue<>();
         }
 
-        // Terminate pool if the thread size has changed
-        if (workerPool != null && workerPool.getMaximumPoolSize() != maxThreads) {
+        // Terminate pool if the thread size has changed, an adaptive pool is resized in place instead
+        if (workerPool != null && adaptiveConcurrency == null && workerPool.getMaximumPoolSize() != maxThreads) {
             try {
                 workerPool.shutdown();
                 workerPool.awaitTermination(taskTimeout, TimeUnit.MILLISECONDS);
@@ -306,7 +448,8 @@ public class ThrottledTaskRunnerImpl extends AnnotatedStandardMBean implements T
             workerPool = null;
         }
         if (!isRunning()) {
-            workerPool = new PriorityThreadPoolExecutor(maxThreads, maxThreads, taskTimeout, TimeUnit.MILLISECONDS, workQueue);
+            int poolSize = adaptiveConcurrency != null ? adaptiveConcurrency.getLimit() : maxThreads;
+            workerPool = new PriorityThreadPoolExecutor(poolSize, poolSize, taskTimeout, TimeUnit.MILLISECONDS, workQueue, workerThreadFactory);
         }
     }
 
@@ -319,6 +462,21 @@ public class ThrottledTaskRunnerImpl extends AnnotatedStandardMBean implements T
         maxThreads = PropertiesUtil.toInteger(properties.get("max.threads"), defaultThreadCount);
         cooldownWaitTime = PropertiesUtil.toInteger(properties.get("cooldown.wait.time"), 100);
         taskTimeout = PropertiesUtil.toInteger(properties.get("task.timeout"), 3600000);
+        fairScheduling = PropertiesUtil.toBoolean(properties.get("fair.scheduling"), false);
+        fairSchedulingWeights = new HashMap<>();
+        for (Map.Entry<String, String> weight : PropertiesUtil.toMap(properties.get("fair.scheduling.weights"), new String[0]).entrySet()) {
+            String value = weight.getValue() == null ? null : weight.getValue().trim();
+            fairSchedulingWeights.put(weight.getKey().trim(), PropertiesUtil.toInteger(value, 1));
+        }
+
+        if (PropertiesUtil.toBoolean(properties.get("adaptive.concurrency"), false)) {
+            int minThreads = PropertiesUtil.toInteger(properties.get("adaptive.min.threads"), 1);
+            double tolerance = PropertiesUtil.toDouble(properties.get("adaptive.latency.tolerance"), 2.0);
+            adaptiveInterval = PropertiesUtil.toInteger(properties.get("adaptive.interval"), 1000);
+            adaptiveConcurrency = new AdaptiveConcurrency(minThreads, maxThreads, defaultThreadCount, tolerance);
+        } else {
+            adaptiveConcurrency = null;
+        }
 
         try {
             memBeanName = ObjectName.getInstance("java.lang:type=Memory");
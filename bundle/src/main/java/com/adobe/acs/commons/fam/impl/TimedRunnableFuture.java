@@ -19,6 +19,7 @@
  */
 package com.adobe.acs.commons.fam.impl;
 
+import java.util.Optional;
 import java.util.concurrent.Callable;
 import java.util.concurrent.FutureTask;
 import java.util.concurrent.atomic.AtomicLong;
@@ -48,6 +49,13 @@ public class TimedRunnableFuture extends FutureTask implements Comparable<TimedR
         }
     }
 
+    /**
+     * @return the timed runnable this future runs, if it runs one
+     */
+    Optional<TimedRunnable> getTimedRunnable() {
+        return Optional.ofNullable(timedRunnable);
+    }
+
     @Override
     public int compareTo(TimedRunnableFuture other) {
         TimedRunnable otherTimedRunnable = other.timedRunnable;
@@ -36,6 +36,9 @@ public interface ActionManagerMBean {
     @Description("Purge completed tasks")
     public void purgeCompletedTasks();
     
+    @Description("Task latencies with percentiles (ms)")
+    public TabularDataSupport getLatencyStatistics() throws OpenDataException;
+
     @Description("Failures")
     public TabularDataSupport getFailures() throws OpenDataException;    
 }
@@ -55,9 +55,33 @@ public interface ThrottledTaskRunnerMBean {
     @Description("Job processing statistics")
     public TabularDataSupport getStatistics();
     
+    @Description("Queue depth and queue wait time per action manager")
+    public TabularDataSupport getTenantStatistics();
+
     @Description("Reset job processing statistics")
     public void clearProcessingStatistics();
     
+    @Description("Is the number of threads adjusted by the adaptive concurrency controller?")
+    public boolean isAdaptiveConcurrency();
+
+    @Description("Number of threads currently allowed to run tasks")
+    public int getConcurrencyLimit();
+
+    @Description("Latest decision of the adaptive concurrency controller")
+    public String getConcurrencyControllerState();
+
+    @Description("Average task processing time (ms) of the latest controller interval")
+    public double getTaskLatency();
+
+    @Description("Task processing time (ms) the adaptive concurrency controller considers normal")
+    public double getTaskLatencyBaseline();
+
+    @Description("Average commit time (ms) of the latest controller interval")
+    public double getCommitLatency();
+
+    @Description("Commit time (ms) the adaptive concurrency controller considers normal")
+    public double getCommitLatencyBaseline();
+
     @Description("Change thread pool size (preserves running queue)")
     public void setThreadPoolSize(@Name("New size") @Description("4 is the suggested default.") int size);
     
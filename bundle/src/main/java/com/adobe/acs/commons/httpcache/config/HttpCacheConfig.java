@@ -197,4 +197,35 @@ public interface HttpCacheConfig {
     default long getExpiryForUpdate() {
         return -1L;
     }
+
+    /**
+     * Whether concurrent cache misses for the same cache key should be coalesced: the first request renders the
+     * response while the others wait for it to be cached.
+     *
+     * @return true if request coalescing is enabled for this config
+     */
+    default boolean isRequestCoalescingEnabled() {
+        return false;
+    }
+
+    /**
+     * Gets the maximum time a request waits for another request rendering the same cache key, before rendering the
+     * response itself. Value is in miliseconds.
+     *
+     * @return the wait timeout
+     */
+    default long getRequestCoalescingTimeout() {
+        return 0L;
+    }
+
+    /**
+     * Whether expired or invalidated entries still retained by the cache store may be served while they get refreshed
+     * in the background. Only anonymous requests are served stale, as the refresh renders the request anonymously with
+     * the headers and cookies of the request served stale.
+     *
+     * @return true if stale entries may be served for this config
+     */
+    default boolean isServeStaleEnabled() {
+        return false;
+    }
 }
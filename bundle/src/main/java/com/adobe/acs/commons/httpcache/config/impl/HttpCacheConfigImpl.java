@@ -253,6 +253,30 @@ public class HttpCacheConfigImpl implements HttpCacheConfig {
     static final String PROP_EXPIRY_ON_UPDATE = "httpcache.config.expiry.on.update";
     static final long DEFAULT_EXPIRY_ON_UPDATE = 0L;
     private long expiryOnUpdate;
+
+
+    @Property(label = "Request coalescing",
+        description = "Lets concurrent requests missing the cache for the same key wait for the first one to render and cache the response, instead of rendering it themselves.",
+        boolValue = HttpCacheConfigImpl.DEFAULT_REQUEST_COALESCING)
+    static final String PROP_REQUEST_COALESCING = "httpcache.config.request.coalescing";
+    static final boolean DEFAULT_REQUEST_COALESCING = false;
+    private boolean requestCoalescing;
+
+
+    @Property(label = "Request coalescing timeout",
+        description = "Maximum time in milliseconds a coalesced request waits for the response to be cached, before rendering it itself.",
+        longValue = HttpCacheConfigImpl.DEFAULT_REQUEST_COALESCING_TIMEOUT)
+    static final String PROP_REQUEST_COALESCING_TIMEOUT = "httpcache.config.request.coalescing.timeout";
+    static final long DEFAULT_REQUEST_COALESCING_TIMEOUT = 5000L;
+    private long requestCoalescingTimeout;
+
+
+    @Property(label = "Serve stale",
+        description = "Serves expired or invalidated entries kept by the cache store for its stale grace period, while they are refreshed in the background. Only anonymous requests are served stale, as the refresh renders the request anonymously with the headers and cookies of the request served stale.",
+        boolValue = HttpCacheConfigImpl.DEFAULT_SERVE_STALE)
+    static final String PROP_SERVE_STALE = "httpcache.config.serve.stale";
+    static final boolean DEFAULT_SERVE_STALE = false;
+    private boolean serveStale;
     private String cacheConfigExtensionTarget;
     private String cacheKeyFactoryTarget;
 
@@ -287,6 +311,14 @@ public class HttpCacheConfigImpl implements HttpCacheConfig {
         expiryOnAccess = PropertiesUtil.toLong(configs.get(PROP_EXPIRY_ON_ACCESS), DEFAULT_EXPIRY_ON_ACCESS);
         expiryOnUpdate = PropertiesUtil.toLong(configs.get(PROP_EXPIRY_ON_UPDATE), DEFAULT_EXPIRY_ON_UPDATE);
 
+        // Request coalescing
+        requestCoalescing = PropertiesUtil.toBoolean(configs.get(PROP_REQUEST_COALESCING), DEFAULT_REQUEST_COALESCING);
+        requestCoalescingTimeout = PropertiesUtil.toLong(configs.get(PROP_REQUEST_COALESCING_TIMEOUT),
+                DEFAULT_REQUEST_COALESCING_TIMEOUT);
+
+        // Serve stale
+        serveStale = PropertiesUtil.toBoolean(configs.get(PROP_SERVE_STALE), DEFAULT_SERVE_STALE);
+
         // Cache invalidation paths.
         cacheInvalidationPathPatterns = Arrays.asList(PropertiesUtil.toStringArray(configs
                 .get(PROP_CACHE_INVALIDATION_PATH_PATTERNS), new String[]{}));
@@ -459,6 +491,21 @@ public class HttpCacheConfigImpl implements HttpCacheConfig {
         return expiryOnUpdate;
     }
 
+    @Override
+    public boolean isRequestCoalescingEnabled() {
+        return requestCoalescing;
+    }
+
+    @Override
+    public long getRequestCoalescingTimeout() {
+        return requestCoalescingTimeout;
+    }
+
+    @Override
+    public boolean isServeStaleEnabled() {
+        return serveStale;
+    }
+
     @Override
     public int getOrder() {
         return this.order;
@@ -0,0 +1,295 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2019 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.httpcache.config.impl;
+
+import com.adobe.acs.commons.httpcache.config.HttpCacheConfig;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Matches request URIs and invalidation paths against the patterns of all cache configs in one pass.
+ * <p>
+ * The literal prefix of every pattern (e.g. <code>/content/site/</code> for <code>/content/site/.*\.html</code>) is
+ * put into a prefix trie. A lookup walks the trie along the URI or path once and only runs the patterns whose literal
+ * prefix matches, instead of running every pattern of every config.
+ * </p>
+ * <p>
+ * Only configs of exactly {@link HttpCacheConfigImpl} are known to match by their patterns alone. Any other
+ * implementation is always returned as candidate, so it decides by itself like before.
+ * </p>
+ * <p>
+ * Instances are immutable and have to be compiled again when the configs change.
+ * </p>
+ */
+public final class HttpCacheConfigMatcher {
+
+    /** Characters ending the literal prefix of a pattern. */
+    private static final String META_CHARACTERS = "\\^$.|?*+()[]{}";
+
+    /** Quantifiers making the preceding character optional or repeated. */
+    private static final String QUANTIFIERS = "?*+{";
+
+    private final HttpCacheConfig[] configs;
+    private final boolean[] patternBased;
+    private final Node requestUriPatterns = new Node();
+    private final Node blacklistedRequestUriPatterns = new Node();
+    private final Node invalidationPathPatterns = new Node();
+
+    private HttpCacheConfigMatcher(List<HttpCacheConfig> configs) {
+        this.configs = configs.toArray(new HttpCacheConfig[0]);
+        this.patternBased = new boolean[this.configs.length];
+
+        for (int i = 0; i < this.configs.length; i++) {
+            final HttpCacheConfig config = this.configs[i];
+            patternBased[i] = config.getClass() == HttpCacheConfigImpl.class;
+            if (patternBased[i]) {
+                add(requestUriPatterns, i, config.getRequestUriPatterns());
+                add(blacklistedRequestUriPatterns, i, config.getBlacklistedRequestUriPatterns());
+                add(invalidationPathPatterns, i, config.getJCRInvalidationPathPatterns());
+            }
+        }
+    }
+
+    /**
+     * Compiles the patterns of the given configs.
+     *
+     * @param configs the cache configs
+     * @return the matcher
+     */
+    public static HttpCacheConfigMatcher compile(Collection<HttpCacheConfig> configs) {
+        final List<HttpCacheConfig> sorted = new ArrayList<>(configs);
+        // Stable sort, configs of the same order keep the order they were given in.
+        Collections.sort(sorted, new HttpCacheConfigComparator());
+        return new HttpCacheConfigMatcher(sorted);
+    }
+
+    /**
+     * Get the configs which may accept a request for the given URI, i.e. which white-list and do not black-list the
+     * URI. The authentication requirement and config extension still have to be checked with
+     * {@link HttpCacheConfig#accepts(org.apache.sling.api.SlingHttpServletRequest)}.
+     *
+     * @param requestUri the request URI
+     * @return the candidate configs in {@link HttpCacheConfigComparator} order
+     */
+    public List<HttpCacheConfig> getRequestUriCandidates(String requestUri) {
+        if (requestUri == null) {
+            return Arrays.asList(configs);
+        }
+
+        final BitSet matched = new BitSet(configs.length);
+        match(requestUriPatterns, requestUri, matched, null);
+        if (!matched.isEmpty()) {
+            final BitSet blacklisted = new BitSet(configs.length);
+            match(blacklistedRequestUriPatterns, requestUri, blacklisted, matched);
+            matched.andNot(blacklisted);
+        }
+
+        final List<HttpCacheConfig> candidates = new ArrayList<>(2);
+        for (int i = 0; i < configs.length; i++) {
+            if (!patternBased[i] || matched.get(i)) {
+                candidates.add(configs[i]);
+            }
+        }
+        return candidates;
+    }
+
+    /**
+     * Get the configs which can invalidate the given path.
+     *
+     * @param path the JCR path
+     * @return the configs for which {@link HttpCacheConfig#canInvalidate(String)} is true, in
+     * {@link HttpCacheConfigComparator} order
+     */
+    public List<HttpCacheConfig> getInvalidationConfigs(String path) {
+        final BitSet matched = new BitSet(configs.length);
+        if (path != null) {
+            match(invalidationPathPatterns, path, matched, null);
+        }
+
+        final List<HttpCacheConfig> invalidating = new ArrayList<>(2);
+        for (int i = 0; i < configs.length; i++) {
+            final boolean canInvalidate = patternBased[i] && path != null
+                    ? matched.get(i)
+                    : configs[i].canInvalidate(path);
+            if (canInvalidate) {
+                invalidating.add(configs[i]);
+            }
+        }
+        return invalidating;
+    }
+
+    /**
+     * Runs the patterns whose literal prefix is a prefix of the given string.
+     *
+     * @param root the trie
+     * @param data the URI or path
+     * @param matched collects the indices of the configs with a matching pattern
+     * @param only the configs to consider, or null for all
+     */
+    private static void match(Node root, String data, BitSet matched, BitSet only) {
+        Node node = root;
+        int position = 0;
+        while (true) {
+            for (Entry entry : node.entries) {
+                if (!matched.get(entry.config) && (only == null || only.get(entry.config))
+                        && entry.pattern.matcher(data).matches()) {
+                    matched.set(entry.config);
+                }
+            }
+            if (position == data.length()) {
+                return;
+            }
+            final int child = Arrays.binarySearch(node.labels, data.charAt(position++));
+            if (child < 0) {
+                return;
+            }
+            node = node.children[child];
+        }
+    }
+
+    private static void add(Node root, int config, List<Pattern> patterns) {
+        if (patterns == null) {
+            return;
+        }
+        for (Pattern pattern : patterns) {
+            final String prefix = literalPrefix(pattern);
+            Node node = root;
+            for (int i = 0; i < prefix.length(); i++) {
+                node = node.child(prefix.charAt(i));
+            }
+            node.entries = Arrays.copyOf(node.entries, node.entries.length + 1);
+            node.entries[node.entries.length - 1] = new Entry(config, pattern);
+        }
+    }
+
+    /**
+     * Get the literal text every string matched by the pattern starts with. Only plain characters and escaped
+     * punctuation count, anything else ends the prefix. The prefix is empty for patterns with flags or a top level
+     * alternation, as their matches need not start with the leading literal.
+     *
+     * @param pattern the pattern
+     * @return the literal prefix, possibly empty
+     */
+    static String literalPrefix(Pattern pattern) {
+        final String regex = pattern.pattern();
+        if (pattern.flags() != 0 || hasTopLevelAlternation(regex)) {
+            return "";
+        }
+
+        final StringBuilder prefix = new StringBuilder();
+        // A leading ^ is redundant as patterns always match the whole string.
+        int position = regex.startsWith("^") ? 1 : 0;
+        while (position < regex.length()) {
+            final char c = regex.charAt(position);
+            final char literal;
+            final int next;
+            if (c == '\\') {
+                if (position + 1 == regex.length() || Character.isLetterOrDigit(regex.charAt(position + 1))) {
+                    // Character classes like \d, quotes, back references, ...
+                    break;
+                }
+                literal = regex.charAt(position + 1);
+                next = position + 2;
+            } else if (META_CHARACTERS.indexOf(c) >= 0) {
+                break;
+            } else {
+                literal = c;
+                next = position + 1;
+            }
+
+            if (next < regex.length() && QUANTIFIERS.indexOf(regex.charAt(next)) >= 0) {
+                break;
+            }
+            prefix.append(literal);
+            position = next;
+        }
+        return prefix.toString();
+    }
+
+    /**
+     * Checks conservatively for an alternation outside of any group. A <code>|</code> inside a character class counts
+     * as alternation too, which only costs the prefix of such a pattern.
+     */
+    private static boolean hasTopLevelAlternation(String regex) {
+        int groupDepth = 0;
+        int classDepth = 0;
+        for (int i = 0; i < regex.length(); i++) {
+            final char c = regex.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == '|' && groupDepth == 0) {
+                return true;
+            } else if (c == '[') {
+                classDepth++;
+            } else if (c == ']' && classDepth > 0) {
+                classDepth--;
+            } else if (c == '(' && classDepth == 0) {
+                groupDepth++;
+            } else if (c == ')' && classDepth == 0) {
+                groupDepth--;
+            }
+        }
+        // Whatever could not be followed is treated like an alternation.
+        return groupDepth != 0 || classDepth != 0;
+    }
+
+    /**
+     * Trie node, holding the patterns with the literal prefix leading to it.
+     */
+    private static final class Node {
+        private char[] labels = new char[0];
+        private Node[] children = new Node[0];
+        private Entry[] entries = new Entry[0];
+
+        private Node child(char label) {
+            int index = Arrays.binarySearch(labels, label);
+            if (index < 0) {
+                index = -index - 1;
+                final char[] newLabels = new char[labels.length + 1];
+                final Node[] newChildren = new Node[children.length + 1];
+                System.arraycopy(labels, 0, newLabels, 0, index);
+                System.arraycopy(children, 0, newChildren, 0, index);
+                newLabels[index] = label;
+                newChildren[index] = new Node();
+                System.arraycopy(labels, index, newLabels, index + 1, labels.length - index);
+                System.arraycopy(children, index, newChildren, index + 1, children.length - index);
+                labels = newLabels;
+                children = newChildren;
+            }
+            return children[index];
+        }
+    }
+
+    private static final class Entry {
+        private final int config;
+        private final Pattern pattern;
+
+        private Entry(int config, Pattern pattern) {
+            this.config = config;
+            this.pattern = pattern;
+        }
+    }
+}
@@ -18,6 +18,6 @@
  * #L%
  */
 
-@org.osgi.annotation.versioning.Version("2.4.0")
+@org.osgi.annotation.versioning.Version("2.5.0")
 package com.adobe.acs.commons.httpcache.config;
 
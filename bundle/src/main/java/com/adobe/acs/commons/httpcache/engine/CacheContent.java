@@ -45,6 +45,8 @@ public class CacheContent {
     private Map<String, List<String>> headers = new HashMap<>();
     /** Response content as input stream */
     private InputStream dataInputStream;
+    /** Gzip compressed response content as input stream, if the cache store holds it compressed */
+    private InputStream gzipInputDataStream;
     /** Temp sink attached to this cache content */
     private TempSink tempSink;
 
@@ -218,6 +220,25 @@ public class CacheContent {
         return dataInputStream;
     }
 
+    /**
+     * Get input stream of the gzip compressed response content, which can be delivered as is to clients accepting gzip.
+     * Whoever consumes the content must close both streams.
+     *
+     * @return the stream, or null if the cache store does not hold the content compressed
+     */
+    public InputStream getGzipInputDataStream() {
+        return gzipInputDataStream;
+    }
+
+    /**
+     * Set input stream of the gzip compressed response content.
+     *
+     * @param gzipInputDataStream
+     */
+    public void setGzipInputDataStream(InputStream gzipInputDataStream) {
+        this.gzipInputDataStream = gzipInputDataStream;
+    }
+
     /**
      * Get the temp size attached to this cache content.
      * @return
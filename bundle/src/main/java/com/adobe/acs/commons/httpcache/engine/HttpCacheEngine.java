@@ -28,6 +28,8 @@ import com.adobe.acs.commons.httpcache.exception.HttpCacheRepositoryAccessExcept
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 
+import java.util.Collection;
+
 /**
  * Access gateway and controlling module for http cache sub-system. Coordinates with cache store, cache handling rules,
  * cache configs and cache invalidators.
@@ -129,6 +131,18 @@ public interface HttpCacheEngine {
             cacheConfig) throws HttpCacheKeyCreationException, HttpCacheDataStreamException,
             HttpCachePersistenceException;
 
+    /**
+     * Called once the filter chain has processed a request that missed the cache, whether or not the response was
+     * cached or the chain failed. Releases requests waiting for this one to render the response, so they do not wait
+     * for a response which will never be stored.
+     *
+     * @param request
+     * @param cacheConfig
+     */
+    default void releaseInFlight(SlingHttpServletRequest request, HttpCacheConfig cacheConfig) {
+        // Nothing to release for engines which do not coalesce requests.
+    }
+
     /**
      * Check if the supplied JCR repository path has the potential to invalidate cache. This can be identified based on
      * the {@link HttpCacheConfig}.
@@ -147,4 +161,19 @@ public interface HttpCacheEngine {
      * @throws HttpCachePersistenceException
      */
     void invalidateCache(String path) throws HttpCachePersistenceException, HttpCacheKeyCreationException;
+
+    /**
+     * Invalidate the cache for all the given paths, like {@link #invalidateCache(String)} does for every single path.
+     * Implementations should hand all keys of a cache store to the store at once, so it is scanned once per batch
+     * rather than once per path.
+     *
+     * @param paths JCR repository paths.
+     * @throws HttpCachePersistenceException
+     */
+    default void invalidateCache(Collection<String> paths) throws HttpCachePersistenceException,
+            HttpCacheKeyCreationException {
+        for (String path : paths) {
+            invalidateCache(path);
+        }
+    }
 }
@@ -25,7 +25,9 @@ import com.adobe.acs.commons.httpcache.engine.CacheContent;
 import com.adobe.acs.commons.httpcache.engine.HttpCacheEngine;
 import com.adobe.acs.commons.httpcache.engine.HttpCacheServletResponseWrapper;
 import com.adobe.acs.commons.httpcache.engine.impl.delegate.HttpCacheEngineBindingsDelegate;
+import com.adobe.acs.commons.httpcache.engine.impl.delegate.HttpCacheEngineCoalescingDelegate;
 import com.adobe.acs.commons.httpcache.engine.impl.delegate.HttpCacheEngineMBeanDelegate;
+import com.adobe.acs.commons.httpcache.engine.impl.delegate.HttpCacheEngineRefreshDelegate;
 import com.adobe.acs.commons.httpcache.exception.HttpCacheException;
 import com.adobe.acs.commons.httpcache.exception.HttpCacheConfigConflictException;
 import com.adobe.acs.commons.httpcache.exception.HttpCacheDataStreamException;
@@ -36,8 +38,10 @@ import com.adobe.acs.commons.httpcache.keys.CacheKey;
 import com.adobe.acs.commons.httpcache.rule.HttpCacheHandlingRule;
 import com.adobe.acs.commons.httpcache.store.HttpCacheStore;
 import com.adobe.acs.commons.httpcache.util.CacheUtils;
+import com.adobe.acs.commons.httpcache.util.UserUtils;
 import com.adobe.acs.commons.util.ParameterUtil;
 import com.adobe.granite.jmx.annotation.AnnotatedStandardMBean;
+import com.day.cq.contentsync.handler.util.RequestResponseFactory;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.felix.scr.annotations.Component;
@@ -55,7 +59,9 @@ import org.apache.felix.scr.annotations.ReferenceCardinality;
 
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.resource.ResourceResolverFactory;
 import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.apache.sling.engine.SlingRequestProcessor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -64,11 +70,17 @@ import javax.management.NotCompliantMBeanException;
 import javax.management.openmbean.OpenDataException;
 import javax.management.openmbean.TabularData;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
+import java.util.Set;
 import java.util.function.Function;
 import java.util.regex.Pattern;
 
@@ -114,6 +126,11 @@ import java.util.regex.Pattern;
 public class HttpCacheEngineImpl extends AnnotatedStandardMBean implements HttpCacheEngine, HttpCacheEngineMBean {
     private static final Logger log = LoggerFactory.getLogger(HttpCacheEngineImpl.class);
 
+    private static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+    private static final String HEADER_CONTENT_ENCODING = "Content-Encoding";
+    private static final String HEADER_CONTENT_LENGTH = "Content-Length";
+    private static final String HEADER_VARY = "Vary";
+
     /** Method name that binds cache configs */
     static final String METHOD_NAME_TO_BIND_CONFIG = "httpCacheConfig";
 
@@ -156,8 +173,19 @@ public class HttpCacheEngineImpl extends AnnotatedStandardMBean implements HttpC
     @Reference
     private ThrottledTaskRunner throttledTaskRunner;
 
+    @Reference
+    private ResourceResolverFactory resourceResolverFactory;
+
+    @Reference
+    private RequestResponseFactory requestResponseFactory;
+
+    @Reference
+    private SlingRequestProcessor slingRequestProcessor;
+
     private final HttpCacheEngineMBeanDelegate mBeanDelegate = new HttpCacheEngineMBeanDelegate();
     private final HttpCacheEngineBindingsDelegate bindingsDelegate = new HttpCacheEngineBindingsDelegate();
+    private final HttpCacheEngineCoalescingDelegate coalescingDelegate = new HttpCacheEngineCoalescingDelegate();
+    private final HttpCacheEngineRefreshDelegate refreshDelegate = new HttpCacheEngineRefreshDelegate();
     //-------------------<OSGi specific methods>---------------//
 
     @Activate
@@ -223,7 +251,11 @@ public class HttpCacheEngineImpl extends AnnotatedStandardMBean implements HttpC
         // Get the first accepting cache config based on the cache config order.
         HttpCacheConfig bestCacheConfig = null;
 
-        for (HttpCacheConfig cacheConfig : bindingsDelegate.getCacheConfigs()) {
+        // Only the configs whose URI patterns match the request can accept it.
+        final List<HttpCacheConfig> candidates =
+                bindingsDelegate.getCacheConfigMatcher().getRequestUriCandidates(request.getRequestURI());
+
+        for (HttpCacheConfig cacheConfig : candidates) {
             if (bestCacheConfig != null) {
                 // A matching HttpCacheConfig has been found, so check for order + acceptance conflicts
                 if (bestCacheConfig.getOrder() == cacheConfig.getOrder()) {
@@ -252,7 +284,20 @@ public class HttpCacheEngineImpl extends AnnotatedStandardMBean implements HttpC
             HttpCacheKeyCreationException, HttpCachePersistenceException {
 
         // Build a cache key and do a lookup in the configured cache store.
-        return getCacheStore(cacheConfig).contains(cacheConfig.buildCacheKey(request));
+        final HttpCacheStore cacheStore = getCacheStore(cacheConfig);
+        final CacheKey cacheKey = cacheConfig.buildCacheKey(request);
+        if (cacheStore.contains(cacheKey) || (isServingStale(request, cacheConfig, cacheKey) && hasStale(cacheStore, cacheKey))) {
+            return true;
+        }
+
+        // On a miss, wait for a concurrent request already rendering this key instead of rendering it again.
+        if (cacheConfig.isRequestCoalescingEnabled()
+                && coalescingDelegate.awaitInFlight(request, cacheKey, cacheConfig.getRequestCoalescingTimeout())
+                && cacheStore.contains(cacheKey)) {
+            coalescingDelegate.recordCoalesced();
+            return true;
+        }
+        return false;
     }
 
     @Override
@@ -260,13 +305,78 @@ public class HttpCacheEngineImpl extends AnnotatedStandardMBean implements HttpC
                                        HttpCacheConfig cacheConfig) throws HttpCacheKeyCreationException,
             HttpCacheDataStreamException, HttpCachePersistenceException {
         // Get the cached content from cache
-        CacheContent cacheContent = getCacheStore(cacheConfig).getIfPresent(cacheConfig.buildCacheKey(request));
-        if (!isRequestDeliverableFromCacheAccordingToHandlingRules(request, response, cacheConfig, cacheContent)){
+        final HttpCacheStore cacheStore = getCacheStore(cacheConfig);
+        final CacheKey cacheKey = cacheConfig.buildCacheKey(request);
+        CacheContent cacheContent = cacheStore.getIfPresent(cacheKey);
+        boolean stale = false;
+        if (cacheContent == null && isServingStale(request, cacheConfig, cacheKey)) {
+            cacheContent = cacheStore.getStaleIfPresent(cacheKey);
+            stale = cacheContent != null;
+        }
+
+        if (cacheContent == null) {
+            // Gone since the cache hit was determined.
             return false;
         }
+        try {
+            if (!isRequestDeliverableFromCacheAccordingToHandlingRules(request, response, cacheConfig, cacheContent)){
+                return false;
+            }
+            if (stale) {
+                if (!isRequestDeliverableStaleAccordingToHandlingRules(request, response, cacheConfig, cacheContent)) {
+                    return false;
+                }
+                refreshDelegate.staleDelivered(request, cacheKey, throttledTaskRunner, resourceResolverFactory,
+                        requestResponseFactory, slingRequestProcessor);
+            }
 
-        prepareCachedResponse(response, cacheContent);
-        return executeCacheContentDeliver(request, response, cacheContent);
+            // Content the store holds compressed is delivered as is to clients accepting it.
+            final InputStream gzipInputStream = acceptsGzip(request) ? cacheContent.getGzipInputDataStream() : null;
+            prepareCachedResponse(response, cacheContent, gzipInputStream != null);
+            return executeCacheContentDeliver(request, response, cacheContent, gzipInputStream);
+        } finally {
+            closeStreams(cacheContent);
+        }
+    }
+
+    private boolean hasStale(HttpCacheStore cacheStore, CacheKey cacheKey) throws HttpCachePersistenceException {
+        final CacheContent staleContent = cacheStore.getStaleIfPresent(cacheKey);
+        closeStreams(staleContent);
+        return staleContent != null;
+    }
+
+    /**
+     * Closes the streams of content read from a store, so stores holding content off-heap can recycle it.
+     */
+    private static void closeStreams(CacheContent cacheContent) {
+        if (cacheContent != null) {
+            IOUtils.closeQuietly(cacheContent.getInputDataStream());
+            IOUtils.closeQuietly(cacheContent.getGzipInputDataStream());
+        }
+    }
+
+    static boolean acceptsGzip(SlingHttpServletRequest request) {
+        final String acceptEncoding = request.getHeader(HEADER_ACCEPT_ENCODING);
+        if (StringUtils.isBlank(acceptEncoding)) {
+            return false;
+        }
+        for (String coding : StringUtils.split(acceptEncoding, ',')) {
+            final String[] parts = StringUtils.split(coding, ';');
+            if (parts.length > 0 && ("gzip".equalsIgnoreCase(parts[0].trim()) || "*".equals(parts[0].trim()))) {
+                // gzip;q=0 explicitly refuses gzip.
+                return parts.length < 2 || !parts[1].trim().matches("q=0(\\.0*)?");
+            }
+        }
+        return false;
+    }
+
+    private boolean isServingStale(SlingHttpServletRequest request, HttpCacheConfig cacheConfig, CacheKey cacheKey) {
+        // The internal request refreshing a stale entry must render it. The refresh renders anonymously, so entries
+        // of authenticated requests or whose last refresh did not rebuild their key could never be refreshed.
+        return cacheConfig.isServeStaleEnabled()
+                && !refreshDelegate.isRefreshRequest(request)
+                && UserUtils.isAnonymous(request.getResourceResolver().getUserID())
+                && refreshDelegate.isRefreshable(cacheKey);
     }
 
 
@@ -300,22 +410,48 @@ public class HttpCacheEngineImpl extends AnnotatedStandardMBean implements HttpC
         final String contentType = responseWrapper.getContentType();
         
         // Construct the cache content.
+        Runnable releaseWaiters = null;
         try {
             final CacheKey cacheKey = cacheConfig.buildCacheKey(request);
+            releaseWaiters = coalescingDelegate.detach(request, cacheKey);
             final CacheContent cacheContent = new CacheContent().build(responseWrapper, status, charEncoding, contentType, extractedHeaders);
         
             // Persist in cache.
             if (isRequestCachableAccordingToHandlingRules(request, response, cacheConfig, cacheContent)) {
-                throttledTaskRunner.scheduleWork(putToStore(cacheConfig, cacheKey, cacheContent));
+                refreshDelegate.caching(request, cacheKey);
+                throttledTaskRunner.scheduleWork(putToStore(cacheConfig, cacheKey, cacheContent, releaseWaiters));
+                releaseWaiters = null;
                 log.debug("Response for the URI cached - {}", request.getRequestURI());
             }
         } catch (HttpCacheException e) {
             log.error("Error creating http cache content", e);
+        } finally {
+            if (releaseWaiters != null) {
+                // Nothing will be stored, let the waiting requests render the response themselves.
+                releaseWaiters.run();
+            }
         }
 
     }
 
-    private Runnable putToStore(final HttpCacheConfig cacheConfig, final CacheKey cacheKey, final CacheContent cacheContent) {
+    @Override
+    public void releaseInFlight(SlingHttpServletRequest request, HttpCacheConfig cacheConfig) {
+        if (!cacheConfig.isRequestCoalescingEnabled()) {
+            return;
+        }
+        try {
+            // Still attached only if cacheResponse was not reached, e.g. because the filter chain failed.
+            final Runnable releaseWaiters = coalescingDelegate.detach(request, cacheConfig.buildCacheKey(request));
+            if (releaseWaiters != null) {
+                releaseWaiters.run();
+            }
+        } catch (HttpCacheKeyCreationException e) {
+            log.error("Could not release requests waiting for [ {} ]", request.getRequestURI(), e);
+        }
+    }
+
+    private Runnable putToStore(final HttpCacheConfig cacheConfig, final CacheKey cacheKey, final CacheContent cacheContent,
+                                final Runnable releaseWaiters) {
         return () -> {
             try {
                 getCacheStore(cacheConfig).put(cacheKey, cacheContent);
@@ -326,6 +462,10 @@ public class HttpCacheEngineImpl extends AnnotatedStandardMBean implements HttpC
                 if (null != cacheContent) {
                     IOUtils.closeQuietly(cacheContent.getInputDataStream());
                 }
+                // Wake up the requests coalesced onto this one, now the response can be served from the cache.
+                if (releaseWaiters != null) {
+                    releaseWaiters.run();
+                }
             }
         };
     }
@@ -335,24 +475,34 @@ public class HttpCacheEngineImpl extends AnnotatedStandardMBean implements HttpC
     public boolean isPathPotentialToInvalidate(String path) {
 
         // Check all the configs to see if this path is of interest.
-        for (HttpCacheConfig config : bindingsDelegate.getCacheConfigs()) {
-            if (config.canInvalidate(path)) {
-                return true;
-            }
-        }
-
-        return false;
+        return !bindingsDelegate.getCacheConfigMatcher().getInvalidationConfigs(path).isEmpty();
     }
 
     @Override
     public void invalidateCache(String path) throws HttpCachePersistenceException, HttpCacheKeyCreationException {
-        // Find out all the cache config which has this path applicable for invalidation.
-        for (HttpCacheConfig cacheConfig : bindingsDelegate.getCacheConfigs()) {
-            if (cacheConfig.canInvalidate(path)) {
+        invalidateCache(Collections.singletonList(path));
+    }
+
+    @Override
+    public void invalidateCache(Collection<String> paths) throws HttpCachePersistenceException,
+            HttpCacheKeyCreationException {
+        // Collect the keys per cache store, so each store is scanned once for all the paths.
+        final Map<HttpCacheStore, Set<CacheKey>> invalidationKeys = new LinkedHashMap<>();
+        for (String path : paths) {
+            // Find out all the cache config which has this path applicable for invalidation.
+            for (HttpCacheConfig cacheConfig : bindingsDelegate.getCacheConfigMatcher().getInvalidationConfigs(path)) {
                 // Execute custom rules.
-                executeCustomRuleInvalidations(path, cacheConfig);
+                if (isInvalidationAcceptedByRules(path, cacheConfig)) {
+                    final HttpCacheStore cacheStore = getCacheStore(cacheConfig);
+                    invalidationKeys.computeIfAbsent(cacheStore, store -> new LinkedHashSet<>())
+                            .add(cacheConfig.buildCacheKey(path));
+                }
             }
         }
+
+        for (Map.Entry<HttpCacheStore, Set<CacheKey>> entry : invalidationKeys.entrySet()) {
+            entry.getKey().invalidate(entry.getValue());
+        }
     }
 
 
@@ -395,6 +545,36 @@ public class HttpCacheEngineImpl extends AnnotatedStandardMBean implements HttpC
         return mBeanDelegate.getRegisteredPersistenceStores(bindingsDelegate.getCacheStoresMap());
     }
 
+    @Override
+    public long getCoalescedRequestCount() {
+        return coalescingDelegate.getCoalescedCount();
+    }
+
+    @Override
+    public long getCoalescingTimeoutCount() {
+        return coalescingDelegate.getTimedOutCount();
+    }
+
+    @Override
+    public int getInFlightRequestCount() {
+        return coalescingDelegate.getInFlightCount();
+    }
+
+    @Override
+    public void resetCoalescingStats() {
+        coalescingDelegate.resetStats();
+    }
+
+    @Override
+    public long getStaleDeliveredCount() {
+        return refreshDelegate.getStaleDeliveredCount();
+    }
+
+    @Override
+    public long getStaleRefreshCount() {
+        return refreshDelegate.getRefreshCount();
+    }
+
     /**
      * Binds cache config. Cache config could come and go at run time.
      *
@@ -463,6 +643,10 @@ public class HttpCacheEngineImpl extends AnnotatedStandardMBean implements HttpC
         return checkOnHandlingRule(request, cacheConfig, rule-> rule.onCacheDeliver(request, response, cacheConfig, cacheContent), "Cache cannot be delivered for the url {} honoring the rule {}");
     }
 
+    private boolean isRequestDeliverableStaleAccordingToHandlingRules(SlingHttpServletRequest request, SlingHttpServletResponse response, HttpCacheConfig cacheConfig, CacheContent cacheContent) {
+        return checkOnHandlingRule(request, cacheConfig, rule -> rule.onStaleCacheDeliver(request, response, cacheConfig, cacheContent), "Stale cache cannot be delivered for the url {} honoring the rule {}");
+    }
+
     private boolean checkOnHandlingRule(SlingHttpServletRequest request,  HttpCacheConfig cacheConfig, Function<HttpCacheHandlingRule, Boolean> check,String onFailLogMessage){
         for (final Map.Entry<String, HttpCacheHandlingRule> entry : bindingsDelegate.getCacheHandlingRules().entrySet()) {
             // Apply rule if it's a configured global or cache-config tied rule.
@@ -480,12 +664,29 @@ public class HttpCacheEngineImpl extends AnnotatedStandardMBean implements HttpC
         return true;
     }
 
-    private void prepareCachedResponse(SlingHttpServletResponse response, CacheContent cacheContent) {
+    private void prepareCachedResponse(SlingHttpServletResponse response, CacheContent cacheContent, boolean gzip) {
         response.setStatus(cacheContent.getStatus());
         // Spool header info into the servlet response.
+        boolean varyOnAcceptEncoding = false;
         for (String headerName : cacheContent.getHeaders().keySet()) {
+            if (gzip && HEADER_CONTENT_LENGTH.equalsIgnoreCase(headerName)) {
+                // The length of the uncompressed content.
+                continue;
+            }
             for (String headerValue : cacheContent.getHeaders().get(headerName)) {
                 response.setHeader(headerName, headerValue);
+                varyOnAcceptEncoding |= HEADER_VARY.equalsIgnoreCase(headerName)
+                        && StringUtils.containsIgnoreCase(headerValue, HEADER_ACCEPT_ENCODING);
+            }
+        }
+
+        if (cacheContent.getGzipInputDataStream() != null) {
+            // Whether the response is compressed depends on the request, caches in front must not mix both variants.
+            if (!varyOnAcceptEncoding) {
+                response.addHeader(HEADER_VARY, HEADER_ACCEPT_ENCODING);
+            }
+            if (gzip) {
+                response.setHeader(HEADER_CONTENT_ENCODING, "gzip");
             }
         }
 
@@ -495,10 +696,16 @@ public class HttpCacheEngineImpl extends AnnotatedStandardMBean implements HttpC
     }
 
 
-    private boolean executeCacheContentDeliver(SlingHttpServletRequest request, SlingHttpServletResponse response, CacheContent cacheContent) throws HttpCacheDataStreamException {
+    private boolean executeCacheContentDeliver(SlingHttpServletRequest request, SlingHttpServletResponse response,
+                                               CacheContent cacheContent, InputStream gzipInputStream) throws HttpCacheDataStreamException {
         // Copy the cached data into the servlet output stream.
         try {
-            serveCacheContentIntoResponse(response, cacheContent);
+            if (gzipInputStream != null) {
+                // Compressed bytes cannot go through the writer.
+                IOUtils.copy(gzipInputStream, response.getOutputStream());
+            } else {
+                serveCacheContentIntoResponse(response, cacheContent);
+            }
 
             if (log.isDebugEnabled()) {
                 log.debug("Response delivered from cache for the url [ {} ]", request.getRequestURI());
@@ -511,31 +718,38 @@ public class HttpCacheEngineImpl extends AnnotatedStandardMBean implements HttpC
 
     private void serveCacheContentIntoResponse(SlingHttpServletResponse response, CacheContent cacheContent)
             throws IOException {
-        if(HttpCacheServletResponseWrapper.ResponseWriteMethod.OUTPUTSTREAM.equals(cacheContent.getWriteMethod())){
-            try {
-                IOUtils.copy(cacheContent.getInputDataStream(), response.getOutputStream());
-            } catch(IllegalStateException ex) {
-                // in this case, either the writer has already been obtained or the response doesn't support getOutputStream()
+        try {
+            if(HttpCacheServletResponseWrapper.ResponseWriteMethod.OUTPUTSTREAM.equals(cacheContent.getWriteMethod())){
+                try {
+                    IOUtils.copy(cacheContent.getInputDataStream(), response.getOutputStream());
+                } catch(IllegalStateException ex) {
+                    // in this case, either the writer has already been obtained or the response doesn't support getOutputStream()
+                    IOUtils.copy(cacheContent.getInputDataStream(), response.getWriter(), response.getCharacterEncoding());
+                }
+            }else{
                 IOUtils.copy(cacheContent.getInputDataStream(), response.getWriter(), response.getCharacterEncoding());
             }
-        }else{
-            IOUtils.copy(cacheContent.getInputDataStream(), response.getWriter(), response.getCharacterEncoding());
+        } finally {
+            // Lets stores release what backs the body, such as the memory mapping of a disk cache segment.
+            IOUtils.closeQuietly(cacheContent.getInputDataStream());
         }
     }
 
-    private void executeCustomRuleInvalidations(String path, HttpCacheConfig cacheConfig) throws HttpCachePersistenceException, HttpCacheKeyCreationException {
+    private boolean isInvalidationAcceptedByRules(String path, HttpCacheConfig cacheConfig) {
+        boolean accepted = false;
         for (final Map.Entry<String, HttpCacheHandlingRule> entry : bindingsDelegate.getCacheHandlingRules().entrySet()) {
             // Apply rule if it's a configured global or cache-config tied rule.
             if (globalCacheHandlingRulesPid.contains(entry.getKey()) || cacheConfig.acceptsRule(entry.getKey())) {
                 HttpCacheHandlingRule rule = entry.getValue();
                 if (rule.onCacheInvalidate(path)) {
-                    getCacheStore(cacheConfig).invalidate(cacheConfig.buildCacheKey(path));
+                    accepted = true;
                 } else {
                     log.debug("Cache invalidation rejected for path {} per custom rule {}", path, rule
                             .getClass().getName());
                 }
             }
         }
+        return accepted;
     }
 
 }
@@ -42,6 +42,24 @@ public interface HttpCacheEngineMBean {
     @Description("Registered Persistence Stores")
     TabularData getRegisteredPersistenceStores() throws OpenDataException;
 
+    @Description("Number of cache misses served from a response rendered by a concurrent request for the same key")
+    long getCoalescedRequestCount();
+
+    @Description("Number of cache misses which stopped waiting for a concurrent request and rendered the response themselves")
+    long getCoalescingTimeoutCount();
+
+    @Description("Number of cache keys currently being rendered with coalescing enabled")
+    int getInFlightRequestCount();
+
+    @Description("Reset the request coalescing statistics to 0")
+    void resetCoalescingStats();
+
+    @Description("Number of requests served with an expired or invalidated entry while it got refreshed")
+    long getStaleDeliveredCount();
+
+    @Description("Number of background refreshes of stale entries")
+    long getStaleRefreshCount();
+
     @Description("Invalidate")
     void invalidateCache(@Name(value="Path") String path) throws HttpCachePersistenceException, HttpCacheKeyCreationException;
 }
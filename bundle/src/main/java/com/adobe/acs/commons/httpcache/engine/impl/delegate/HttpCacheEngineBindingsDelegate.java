@@ -21,6 +21,7 @@ package com.adobe.acs.commons.httpcache.engine.impl.delegate;
 
 import com.adobe.acs.commons.httpcache.config.HttpCacheConfig;
 import com.adobe.acs.commons.httpcache.config.impl.HttpCacheConfigComparator;
+import com.adobe.acs.commons.httpcache.config.impl.HttpCacheConfigMatcher;
 import com.adobe.acs.commons.httpcache.engine.impl.HttpCacheEngineImpl;
 import com.adobe.acs.commons.httpcache.rule.HttpCacheHandlingRule;
 import com.adobe.acs.commons.httpcache.store.HttpCacheStore;
@@ -48,6 +49,9 @@ public class HttpCacheEngineBindingsDelegate {
     /** Thread safe list to contain the registered HttpCacheConfig references. */
     private CopyOnWriteArrayList<HttpCacheConfig> cacheConfigs = new CopyOnWriteArrayList<>();
 
+    /** Patterns of the registered HttpCacheConfigs, compiled again whenever a config comes or goes. */
+    private volatile HttpCacheConfigMatcher cacheConfigMatcher = HttpCacheConfigMatcher.compile(cacheConfigs);
+
     /** Thread safe hash map to contain the registered cache store references. */
     private final ConcurrentHashMap<String, HttpCacheStore> cacheStoresMap = new ConcurrentHashMap<>();
 
@@ -85,6 +89,7 @@ public class HttpCacheEngineBindingsDelegate {
 
         Collections.sort(tmp, new HttpCacheConfigComparator());
         this.cacheConfigs = tmp;
+        this.cacheConfigMatcher = HttpCacheConfigMatcher.compile(tmp);
 
         this.cacheConfigConfigs.put(cacheConfig, configs);
 
@@ -109,6 +114,7 @@ public class HttpCacheEngineBindingsDelegate {
 
             // Remove the entry from the map.
             cacheConfigs.remove(cacheConfig);
+            cacheConfigMatcher = HttpCacheConfigMatcher.compile(cacheConfigs);
             cacheConfigConfigs.remove(cacheConfig);
 
             log.debug("Total number of cache configs after removal: {}", cacheConfigs.size());
@@ -178,6 +184,10 @@ public class HttpCacheEngineBindingsDelegate {
         return cacheConfigs;
     }
 
+    public HttpCacheConfigMatcher getCacheConfigMatcher() {
+        return cacheConfigMatcher;
+    }
+
     public Map<String, HttpCacheStore> getCacheStoresMap() {
         return cacheStoresMap;
     }
@@ -0,0 +1,159 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2019 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.httpcache.engine.impl.delegate;
+
+import com.adobe.acs.commons.httpcache.engine.impl.HttpCacheEngineImpl;
+import com.adobe.acs.commons.httpcache.keys.CacheKey;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * HttpCacheEngineCoalescingDelegate
+ * <p>
+ * Coalesces concurrent cache misses for the same cache key. The first request missing a key becomes the leader and
+ * renders the response, while following requests for the same key wait (bounded) until the leader has stored the
+ * response, so they can be served from the cache instead of rendering the same page again.
+ * </p>
+ */
+public class HttpCacheEngineCoalescingDelegate {
+
+    private static final Logger log = LoggerFactory.getLogger(HttpCacheEngineImpl.class);
+
+    /** Request attribute holding the cache keys the request is rendering on behalf of waiting requests, with their latches. */
+    static final String ATTR_LEADING_KEYS = HttpCacheEngineCoalescingDelegate.class.getName() + ".leadingKeys";
+
+    /** Cache keys currently being rendered, mapped to the latch released once the response is stored. */
+    private final ConcurrentHashMap<CacheKey, CountDownLatch> inFlight = new ConcurrentHashMap<>();
+
+    private final AtomicLong coalescedCount = new AtomicLong();
+    private final AtomicLong timedOutCount = new AtomicLong();
+
+    /**
+     * Either registers the request as the one rendering the given key, or waits for the request already rendering it.
+     *
+     * @param request the request which missed the cache
+     * @param cacheKey the missed key
+     * @param timeout maximum time in milliseconds to wait for another request rendering the key
+     * @return true if the request rendering the key finished while this one waited, in which case the cache has to be
+     * checked again; false if this request has to render the response itself.
+     */
+    public boolean awaitInFlight(SlingHttpServletRequest request, CacheKey cacheKey, long timeout) {
+        if (getLeadingKeys(request, false).containsKey(cacheKey)) {
+            // The request is already rendering this key (e.g. an include of itself); never wait on ourselves.
+            return false;
+        }
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        final CountDownLatch existing = inFlight.putIfAbsent(cacheKey, latch);
+        if (existing == null) {
+            getLeadingKeys(request, true).put(cacheKey, latch);
+            return false;
+        }
+
+        try {
+            if (existing.await(timeout, TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        // The leader did not finish in time, possibly because it failed before it could cache its response. Drop its
+        // registration so the next miss for this key takes over, and render this request ourselves.
+        timedOutCount.incrementAndGet();
+        inFlight.remove(cacheKey, existing);
+        log.debug("Timed out waiting for in-flight request rendering [ {} ]", cacheKey);
+        return false;
+    }
+
+    /**
+     * Detaches the key from the request which registered itself as rendering it.
+     *
+     * @param request the request
+     * @param cacheKey the cache key
+     * @return a callback releasing the requests waiting for the key, which must run once the response has been stored
+     * or it is known it will not be; null if the request is not rendering the key on behalf of other requests.
+     */
+    public Runnable detach(SlingHttpServletRequest request, CacheKey cacheKey) {
+        final CountDownLatch latch = getLeadingKeys(request, false).remove(cacheKey);
+        if (latch == null) {
+            return null;
+        }
+
+        return () -> {
+            // Waiters check the cache again once released.
+            inFlight.remove(cacheKey, latch);
+            latch.countDown();
+        };
+    }
+
+    /**
+     * Counts a request which waited for another request and found the response it rendered in the cache.
+     */
+    public void recordCoalesced() {
+        coalescedCount.incrementAndGet();
+    }
+
+    /**
+     * @return the number of requests which were served a response rendered by another request.
+     */
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    /**
+     * @return the number of requests which gave up waiting for another request and rendered the response themselves.
+     */
+    public long getTimedOutCount() {
+        return timedOutCount.get();
+    }
+
+    /**
+     * @return the number of cache keys currently being rendered.
+     */
+    public int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    public void resetStats() {
+        coalescedCount.set(0);
+        timedOutCount.set(0);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<CacheKey, CountDownLatch> getLeadingKeys(SlingHttpServletRequest request, boolean create) {
+        Map<CacheKey, CountDownLatch> keys = (Map<CacheKey, CountDownLatch>) request.getAttribute(ATTR_LEADING_KEYS);
+        if (keys == null) {
+            keys = new HashMap<>();
+            if (create) {
+                request.setAttribute(ATTR_LEADING_KEYS, keys);
+            }
+        }
+        return keys;
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2019 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.httpcache.engine.impl.delegate;
+
+import com.adobe.acs.commons.fam.ThrottledTaskRunner;
+import com.adobe.acs.commons.httpcache.engine.impl.HttpCacheEngineImpl;
+import com.adobe.acs.commons.httpcache.keys.CacheKey;
+import com.day.cq.contentsync.handler.util.RequestResponseFactory;
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.engine.SlingRequestProcessor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * HttpCacheEngineRefreshDelegate
+ * <p>
+ * Refreshes stale cache entries in the background. The request is rendered again through an internal request, which
+ * passes the http cache filter like any other request and so replaces the stale entry once its response is cached.
+ * The internal request is rendered anonymously with the headers and cookies of the request served stale, so it only
+ * rebuilds the cache key of entries served to anonymous requests. A refresh which does not cache the stale entry's
+ * key again stops that entry from being served stale until it is cached by a regular request.
+ * </p>
+ */
+public class HttpCacheEngineRefreshDelegate {
+
+    private static final Logger log = LoggerFactory.getLogger(HttpCacheEngineImpl.class);
+
+    /** Request attribute marking the internal requests refreshing a stale entry, holding the key to refresh. */
+    static final String ATTR_REFRESH = HttpCacheEngineRefreshDelegate.class.getName() + ".refresh";
+
+    /** Request attribute set on the internal request once it caches the key it was refreshing. */
+    static final String ATTR_REFRESHED = HttpCacheEngineRefreshDelegate.class.getName() + ".refreshed";
+
+    /** Keys with a refresh scheduled or running, so a stale entry is refreshed only once at a time. */
+    private final Set<CacheKey> refreshing = ConcurrentHashMap.newKeySet();
+
+    /** Keys whose last refresh did not cache them again, not served stale until a regular request caches them. */
+    private final Set<CacheKey> unrefreshable = ConcurrentHashMap.newKeySet();
+
+    private final AtomicLong staleDeliveredCount = new AtomicLong();
+    private final AtomicLong refreshCount = new AtomicLong();
+
+    /**
+     * @param request the request
+     * @return true if the request is an internal request refreshing a stale entry, which must not be served stale.
+     */
+    public boolean isRefreshRequest(SlingHttpServletRequest request) {
+        return request.getAttribute(ATTR_REFRESH) != null;
+    }
+
+    /**
+     * @param cacheKey the key of a stale entry
+     * @return false if the last refresh of the entry did not cache its key again, so refreshing it is pointless.
+     */
+    public boolean isRefreshable(CacheKey cacheKey) {
+        return !unrefreshable.contains(cacheKey);
+    }
+
+    /**
+     * Records a response being cached, which confirms the refresh of its key when rendered by the refresh request.
+     *
+     * @param request the request whose response is cached
+     * @param cacheKey the key the response is cached under
+     */
+    public void caching(SlingHttpServletRequest request, CacheKey cacheKey) {
+        unrefreshable.remove(cacheKey);
+        if (cacheKey.equals(request.getAttribute(ATTR_REFRESH))) {
+            request.setAttribute(ATTR_REFRESHED, Boolean.TRUE);
+        }
+    }
+
+    /**
+     * Records the delivery of a stale entry and schedules its refresh, unless one is pending already.
+     *
+     * @param request the request served stale
+     * @param cacheKey the key of the stale entry
+     * @param throttledTaskRunner runner executing the refresh
+     * @param resourceResolverFactory used to render the refresh anonymously, like the requests served stale
+     * @param requestResponseFactory used to build the internal request
+     * @param slingRequestProcessor used to process the internal request
+     */
+    @SuppressWarnings("squid:S00107")
+    public void staleDelivered(SlingHttpServletRequest request, CacheKey cacheKey, ThrottledTaskRunner throttledTaskRunner,
+                               ResourceResolverFactory resourceResolverFactory,
+                               RequestResponseFactory requestResponseFactory,
+                               SlingRequestProcessor slingRequestProcessor) {
+        staleDeliveredCount.incrementAndGet();
+        if (!refreshing.add(cacheKey)) {
+            return;
+        }
+
+        // Copy what is needed from the request, it is recycled once the response is delivered.
+        final String uri = request.getRequestURI();
+        final Map<String, Object> params = new HashMap<>(request.getParameterMap());
+        final Map<String, List<String>> headers = copyHeaders(request);
+        final Cookie[] cookies = copyCookies(request);
+
+        try {
+            throttledTaskRunner.scheduleWork(() -> {
+                try {
+                    final HttpServletRequest refreshRequest = new RefreshRequest(
+                            requestResponseFactory.createRequest("GET", uri, params), headers, cookies);
+                    if (refresh(refreshRequest, cacheKey, resourceResolverFactory, requestResponseFactory,
+                            slingRequestProcessor)) {
+                        refreshCount.incrementAndGet();
+                        log.debug("Refreshed stale http cache entry for [ {} ]", uri);
+                    } else {
+                        unrefreshable.add(cacheKey);
+                    }
+                } finally {
+                    refreshing.remove(cacheKey);
+                }
+            });
+        } catch (RuntimeException e) {
+            refreshing.remove(cacheKey);
+            throw e;
+        }
+    }
+
+    private boolean refresh(HttpServletRequest request, CacheKey cacheKey, ResourceResolverFactory resourceResolverFactory,
+                            RequestResponseFactory requestResponseFactory, SlingRequestProcessor slingRequestProcessor) {
+        // Only anonymous requests are served stale, render the refresh as anonymous too.
+        try (ResourceResolver resourceResolver = resourceResolverFactory.getResourceResolver(null);
+             NullOutputStream out = new NullOutputStream()) {
+            request.setAttribute(ATTR_REFRESH, cacheKey);
+            final HttpServletResponse response = requestResponseFactory.createResponse(out);
+
+            slingRequestProcessor.processRequest(request, response, resourceResolver);
+            response.flushBuffer();
+            if (request.getAttribute(ATTR_REFRESHED) != null) {
+                return true;
+            }
+            log.warn("Refresh of stale http cache entry for [ {} ] did not cache [ {} ] again, no longer serving it stale",
+                    request.getRequestURI(), cacheKey);
+        } catch (LoginException | ServletException | IOException e) {
+            log.warn("Could not refresh stale http cache entry for [ {} ], no longer serving it stale",
+                    request.getRequestURI(), e);
+        }
+        return false;
+    }
+
+    private static Map<String, List<String>> copyHeaders(SlingHttpServletRequest request) {
+        final Map<String, List<String>> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        final Enumeration<String> names = request.getHeaderNames();
+        while (names != null && names.hasMoreElements()) {
+            final String name = names.nextElement();
+            final Enumeration<String> values = request.getHeaders(name);
+            headers.put(name, values == null ? new ArrayList<>() : Collections.list(values));
+        }
+        return headers;
+    }
+
+    private static Cookie[] copyCookies(SlingHttpServletRequest request) {
+        final Cookie[] cookies = request.getCookies();
+        if (cookies == null) {
+            return null;
+        }
+        final Cookie[] copies = new Cookie[cookies.length];
+        for (int i = 0; i < cookies.length; i++) {
+            copies[i] = (Cookie) cookies[i].clone();
+        }
+        return copies;
+    }
+
+    /**
+     * Internal request carrying the headers and cookies of the request served stale, which cache keys may depend on.
+     */
+    private static final class RefreshRequest extends HttpServletRequestWrapper {
+        private final Map<String, List<String>> headers;
+        private final Cookie[] cookies;
+
+        RefreshRequest(HttpServletRequest request, Map<String, List<String>> headers, Cookie[] cookies) {
+            super(request);
+            this.headers = headers;
+            this.cookies = cookies;
+        }
+
+        @Override
+        public String getHeader(String name) {
+            final List<String> values = headers.get(name);
+            return values == null || values.isEmpty() ? null : values.get(0);
+        }
+
+        @Override
+        public Enumeration<String> getHeaders(String name) {
+            return Collections.enumeration(headers.getOrDefault(name, Collections.emptyList()));
+        }
+
+        @Override
+        public Enumeration<String> getHeaderNames() {
+            return Collections.enumeration(headers.keySet());
+        }
+
+        @Override
+        public Cookie[] getCookies() {
+            return cookies == null ? null : cookies.clone();
+        }
+    }
+
+    /**
+     * @return the number of requests served with a stale entry.
+     */
+    public long getStaleDeliveredCount() {
+        return staleDeliveredCount.get();
+    }
+
+    /**
+     * @return the number of background refreshes of stale entries.
+     */
+    public long getRefreshCount() {
+        return refreshCount.get();
+    }
+}
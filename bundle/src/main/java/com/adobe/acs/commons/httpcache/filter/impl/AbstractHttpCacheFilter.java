@@ -84,21 +84,28 @@ public abstract class AbstractHttpCacheFilter implements Filter {
             log.error("HttpCache exception while dealing with request. Passed on the control to filter chain.", e);
         }
 
-        // Pass on the request to filter chain.
-        chain.doFilter(request, slingResponse);
-
         try {
-            // If the request has the attribute marked, cache the response.
-            if (isResponseCacheable) {
-                cacheEngine.cacheResponse(slingRequest, slingResponse, cacheConfig);
-            }
+            // Pass on the request to filter chain.
+            chain.doFilter(request, slingResponse);
+
+            try {
+                // If the request has the attribute marked, cache the response.
+                if (isResponseCacheable) {
+                    cacheEngine.cacheResponse(slingRequest, slingResponse, cacheConfig);
+                }
 
-            if (log.isTraceEnabled()) {
-                log.trace("Delivered un-cached request [ {} ] in {} ms",  slingRequest.getResource().getPath(),
-                        System.currentTimeMillis() - start);
+                if (log.isTraceEnabled()) {
+                    log.trace("Delivered un-cached request [ {} ] in {} ms",  slingRequest.getResource().getPath(),
+                            System.currentTimeMillis() - start);
+                }
+            } catch (HttpCacheException e) {
+                log.error("HttpCache exception while dealing with response. Returned the filter chain response", e);
+            }
+        } finally {
+            if (isResponseCacheable) {
+                // Requests coalesced onto this one must not wait for a response that is never stored.
+                cacheEngine.releaseInFlight(slingRequest, cacheConfig);
             }
-        } catch (HttpCacheException e) {
-            log.error("HttpCache exception while dealing with response. Returned the filter chain response", e);
         }
     }
 
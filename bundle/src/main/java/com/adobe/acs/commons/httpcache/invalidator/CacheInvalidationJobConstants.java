@@ -34,6 +34,12 @@ public final class CacheInvalidationJobConstants {
      */
     public static final String PAYLOAD_KEY_DATA_CHANGE_PATH = "path";
 
+    /**
+     * Paths for which the data is changed, for jobs carrying the changes of several paths at once. Every path is
+     * handled like the one of {@link #PAYLOAD_KEY_DATA_CHANGE_PATH}.
+     */
+    public static final String PAYLOAD_KEY_DATA_CHANGE_PATHS = "paths";
+
     private CacheInvalidationJobConstants() {
     }
 }
@@ -21,10 +21,12 @@ package com.adobe.acs.commons.httpcache.invalidator;
 
 import com.adobe.acs.commons.httpcache.engine.HttpCacheEngine;
 import com.adobe.acs.commons.httpcache.exception.HttpCacheException;
+import com.adobe.granite.jmx.annotation.AnnotatedStandardMBean;
 import com.day.cq.wcm.commons.ReferenceSearch;
-import org.apache.commons.lang.StringUtils;
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.ReferenceCardinality;
@@ -38,8 +40,25 @@ import org.apache.sling.event.jobs.consumer.JobConsumer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.management.DynamicMBean;
+import javax.management.NotCompliantMBeanException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.apache.commons.lang.StringUtils.isNotEmpty;
 
 /**
  * ACS AEM Commons - HTTP Cache - Cache invalidation job consumer
@@ -47,17 +66,26 @@ import java.util.Map;
  *
  * Sling job consumer consuming the job created for invalidating cache. For creating an invalidation job for this
  * consumer, make use of the topic and associated constants defined at {@link CacheInvalidationJobConstants}
+ *
+ * Jobs are collected for a short batch window and processed asynchronously in batches: the paths of all jobs in a
+ * batch are de-duplicated and handed to the engine at once, so every cache store is scanned once per batch rather
+ * than once per job. Jobs are acknowledged once their batch got processed.
  */
 @Component(label = "ACS AEM Commons - HTTP Cache - Cache invalidation job consumer",
            description = "Consumes job for invalidating the http cache",
            immediate = true,
            metatype = true)
-@Service
-@Property(name = JobConsumer.PROPERTY_TOPICS,
-          value = CacheInvalidationJobConstants.TOPIC_HTTP_CACHE_INVALIDATION_JOB,
-          propertyPrivate = true
-)
-public class HttpCacheInvalidationJobConsumer implements JobConsumer {
+@Service(value = {JobConsumer.class, DynamicMBean.class})
+@Properties({
+        @Property(name = JobConsumer.PROPERTY_TOPICS,
+                  value = CacheInvalidationJobConstants.TOPIC_HTTP_CACHE_INVALIDATION_JOB,
+                  propertyPrivate = true),
+        @Property(name = "jmx.objectname",
+                  value = "com.adobe.acs.commons.httpcache:type=HTTP Cache - Invalidation Job Consumer",
+                  propertyPrivate = true)
+})
+public class HttpCacheInvalidationJobConsumer extends AnnotatedStandardMBean
+        implements JobConsumer, HttpCacheInvalidationJobConsumerMBean {
     private static final Logger log = LoggerFactory.getLogger(HttpCacheInvalidationJobConsumer.class);
 
     @Property(label = "Invalidate references",
@@ -67,6 +95,24 @@ public class HttpCacheInvalidationJobConsumer implements JobConsumer {
     private static final boolean DEFAULT_REFERENCES = false;
     private boolean invalidateRefs;
 
+    @Property(label = "Batch window",
+            description = "Time in milliseconds invalidation jobs are collected before they are processed together. "
+                    + "0 processes every job on its own. [Default: 250 ms]",
+            longValue = HttpCacheInvalidationJobConsumer.DEFAULT_BATCH_WINDOW)
+    private static final String PROP_BATCH_WINDOW = "httpcache.config.invalidation.batch.window";
+    private static final long DEFAULT_BATCH_WINDOW = 250L;
+    private long batchWindow;
+
+    @Property(label = "Maximum batch size",
+            description = "Number of paths processed in a single batch. A batch is processed right away once it "
+                    + "reaches this size. [Default: 1000]",
+            intValue = HttpCacheInvalidationJobConsumer.DEFAULT_MAX_BATCH_SIZE)
+    private static final String PROP_MAX_BATCH_SIZE = "httpcache.config.invalidation.batch.maxsize";
+    private static final int DEFAULT_MAX_BATCH_SIZE = 1000;
+    private int maxBatchSize;
+
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 10L;
+
     @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY,
             policy = ReferencePolicy.DYNAMIC)
     private volatile HttpCacheEngine httpCacheEngine;
@@ -74,29 +120,169 @@ public class HttpCacheInvalidationJobConsumer implements JobConsumer {
     @Reference
     private ResourceResolverFactory resolverFactory;
 
+    /** Processes the batches, null if batching is disabled. */
+    private volatile ScheduledExecutorService batchExecutor;
+
+    private final ConcurrentLinkedQueue<PendingJob> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queuedJobCount = new AtomicInteger();
+    private final AtomicInteger queuedPathCount = new AtomicInteger();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+    private final AtomicLong batchCount = new AtomicLong();
+    private final AtomicLong batchedJobCount = new AtomicLong();
+    private final AtomicLong batchedPathCount = new AtomicLong();
+    private final AtomicInteger lastBatchSize = new AtomicInteger();
+    private final AtomicInteger maxBatchSizeSeen = new AtomicInteger();
+
+    public HttpCacheInvalidationJobConsumer() throws NotCompliantMBeanException {
+        super(HttpCacheInvalidationJobConsumerMBean.class);
+    }
+
     @Activate
     protected void activate(Map<String, Object> configs) {
         invalidateRefs = PropertiesUtil.toBoolean(configs.get(PROP_REFERENCES), DEFAULT_REFERENCES);
+        batchWindow = PropertiesUtil.toLong(configs.get(PROP_BATCH_WINDOW), DEFAULT_BATCH_WINDOW);
+        maxBatchSize = Math.max(1, PropertiesUtil.toInteger(configs.get(PROP_MAX_BATCH_SIZE), DEFAULT_MAX_BATCH_SIZE));
+
+        if (batchWindow > 0) {
+            final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+                final Thread thread = new Thread(runnable, "ACS AEM Commons - HTTP Cache - Invalidation batches");
+                thread.setDaemon(true);
+                return thread;
+            });
+            // Deactivation processes the queued jobs itself instead of waiting for the batch window.
+            executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+            batchExecutor = executor;
+        }
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        final ScheduledExecutorService executor = batchExecutor;
+        batchExecutor = null;
+        if (executor != null) {
+            executor.shutdown();
+            try {
+                // Let a batch being processed finish.
+                executor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        // Process what is still queued while the engine is bound; jobs failing here are retried by Sling.
+        flush();
     }
 
     @Override
     public JobResult process(final Job job) {
 
         // Validate the given job.
-        String path = (String) job.getProperty(CacheInvalidationJobConstants.PAYLOAD_KEY_DATA_CHANGE_PATH);
-        if (StringUtils.isEmpty(path)) {
+        final Set<String> paths = getPaths(job);
+        if (paths.isEmpty()) {
             log.error("Invalidation job doesn't have path information.");
             return JobResult.CANCEL;
         }
 
-        invalidate(path);
+        final ScheduledExecutorService executor = batchExecutor;
+        final AsyncHandler handler = executor == null ? null
+                : job.getProperty(JobConsumer.PROPERTY_JOB_ASYNC_HANDLER, AsyncHandler.class);
+        if (handler == null) {
+            invalidateBatch(paths, 1);
+            log.trace("Invalidation job for the paths {} processed.", paths);
+            return JobResult.OK;
+        }
+
+        queue.add(new PendingJob(paths, handler));
+        queuedJobCount.incrementAndGet();
+        if (queuedPathCount.addAndGet(paths.size()) >= maxBatchSize) {
+            schedule(executor, 0L);
+        } else if (flushScheduled.compareAndSet(false, true)) {
+            schedule(executor, batchWindow);
+        }
+        return JobResult.ASYNC;
+    }
 
-        if(invalidateRefs) {
-            invalidateReferences(path);
+    private void schedule(ScheduledExecutorService executor, long delay) {
+        try {
+            executor.schedule(this::flush, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Deactivating, process what is queued right away.
+            flush();
         }
+    }
+
+    /**
+     * Processes the queued jobs in batches of up to the maximum batch size.
+     */
+    void flush() {
+        flushScheduled.set(false);
+
+        List<PendingJob> jobs;
+        while (!(jobs = nextBatch()).isEmpty()) {
+            final Set<String> paths = new LinkedHashSet<>();
+            for (PendingJob job : jobs) {
+                paths.addAll(job.paths);
+            }
+
+            try {
+                invalidateBatch(paths, jobs.size());
+            } catch (RuntimeException e) {
+                log.error("Could not process a batch of {} invalidation jobs, they will be retried.", jobs.size(), e);
+                jobs.forEach(job -> job.handler.failed());
+                continue;
+            }
+            jobs.forEach(job -> job.handler.ok());
+        }
+    }
+
+    private List<PendingJob> nextBatch() {
+        final List<PendingJob> jobs = new ArrayList<>();
+        int paths = 0;
+        PendingJob pending;
+        while (paths < maxBatchSize && (pending = queue.poll()) != null) {
+            dequeued(pending);
+            jobs.add(pending);
+            paths += pending.paths.size();
+        }
+        return jobs;
+    }
+
+    private void dequeued(PendingJob pending) {
+        queuedJobCount.decrementAndGet();
+        queuedPathCount.addAndGet(-pending.paths.size());
+    }
+
+    private void invalidateBatch(Set<String> paths, int jobCount) {
+        invalidate(paths);
+
+        if (invalidateRefs) {
+            invalidate(findReferences(paths));
+        }
+
+        batchCount.incrementAndGet();
+        batchedJobCount.addAndGet(jobCount);
+        batchedPathCount.addAndGet(paths.size());
+        lastBatchSize.set(paths.size());
+        maxBatchSizeSeen.accumulateAndGet(paths.size(), Math::max);
+    }
 
-        log.trace("Invalidation job for the path processed.", path);
-        return JobResult.OK;
+    private static Set<String> getPaths(Job job) {
+        final Set<String> paths = new LinkedHashSet<>();
+        final String path = job.getProperty(CacheInvalidationJobConstants.PAYLOAD_KEY_DATA_CHANGE_PATH, String.class);
+        if (isNotEmpty(path)) {
+            paths.add(path);
+        }
+        final String[] morePaths = job.getProperty(CacheInvalidationJobConstants.PAYLOAD_KEY_DATA_CHANGE_PATHS,
+                String[].class);
+        if (morePaths != null) {
+            for (String morePath : morePaths) {
+                if (isNotEmpty(morePath)) {
+                    paths.add(morePath);
+                }
+            }
+        }
+        return paths;
     }
 
     /**
@@ -104,36 +290,113 @@ public class HttpCacheInvalidationJobConsumer implements JobConsumer {
      *
      * @param path the resource to invalidate
      */
-    void invalidate(String path){
-        // Check if the path in the job is applicable for the set cache configs.
-        if (httpCacheEngine.isPathPotentialToInvalidate(path)) {
-            // Invalidate the cache.
-            try{
-                log.debug("invalidating {}", path);
-                httpCacheEngine.invalidateCache(path);
-            } catch (HttpCacheException e){
-                log.debug("Job with the payload path - {} has invalidated the cache", path);
+    void invalidate(String path) {
+        invalidate(Collections.singleton(path));
+    }
+
+    /**
+     * Invalidate the cache for the given paths, all at once.
+     *
+     * @param paths the resources to invalidate
+     */
+    void invalidate(Collection<String> paths) {
+        // Check if the paths in the jobs are applicable for the set cache configs.
+        final List<String> potentialPaths = new ArrayList<>(paths.size());
+        for (String path : paths) {
+            if (httpCacheEngine.isPathPotentialToInvalidate(path)) {
+                potentialPaths.add(path);
             }
         }
+        if (potentialPaths.isEmpty()) {
+            return;
+        }
 
+        // Invalidate the cache.
+        try {
+            log.debug("invalidating {}", potentialPaths);
+            httpCacheEngine.invalidateCache(potentialPaths);
+        } catch (HttpCacheException e) {
+            log.debug("Could not invalidate the cache for the paths {}", potentialPaths, e);
+        }
     }
 
     /**
-     * Searches for references to the given path and invalidates them in the cache
+     * Searches for the pages referencing the given paths.
      *
-     * @param path the path to search for
+     * @param paths the paths to search for
+     * @return the paths of the referencing pages
      */
-    void invalidateReferences(String path) {
-        try (ResourceResolver adminResolver = resolverFactory.getServiceResourceResolver(null)){
-            Collection<ReferenceSearch.Info> refs = new ReferenceSearch()
-                    .search(adminResolver, path).values();
-            for (ReferenceSearch.Info info : refs) {
-                String refPath = info.getPage().getPath();
-                invalidate(refPath);
-
+    Set<String> findReferences(Collection<String> paths) {
+        final Set<String> refPaths = new LinkedHashSet<>();
+        try (ResourceResolver adminResolver = resolverFactory.getServiceResourceResolver(null)) {
+            for (String path : paths) {
+                Collection<ReferenceSearch.Info> refs = new ReferenceSearch()
+                        .search(adminResolver, path).values();
+                for (ReferenceSearch.Info info : refs) {
+                    refPaths.add(info.getPage().getPath());
+                }
             }
-        } catch (Exception e){
-            log.debug("failed to invalidate references of {}", path);
+        } catch (Exception e) {
+            log.debug("failed to invalidate references of {}", paths);
+        }
+        return refPaths;
+    }
+
+    @Override
+    public int getQueuedJobCount() {
+        return queuedJobCount.get();
+    }
+
+    @Override
+    public int getQueuedPathCount() {
+        return queuedPathCount.get();
+    }
+
+    @Override
+    public long getBatchCount() {
+        return batchCount.get();
+    }
+
+    @Override
+    public long getBatchedJobCount() {
+        return batchedJobCount.get();
+    }
+
+    @Override
+    public int getLastBatchSize() {
+        return lastBatchSize.get();
+    }
+
+    @Override
+    public int getMaxBatchSize() {
+        return maxBatchSizeSeen.get();
+    }
+
+    @Override
+    public double getAverageBatchSize() {
+        final long batches = batchCount.get();
+        return batches == 0 ? 0 : (double) batchedPathCount.get() / batches;
+    }
+
+    @Override
+    public void resetBatchStats() {
+        batchCount.set(0);
+        batchedJobCount.set(0);
+        batchedPathCount.set(0);
+        lastBatchSize.set(0);
+        maxBatchSizeSeen.set(0);
+    }
+
+    /**
+     * Job waiting for its batch, acknowledged through its handler once the batch got processed.
+     */
+    private static final class PendingJob {
+        private final Set<String> paths;
+        private final AsyncHandler handler;
+
+        private PendingJob(Set<String> paths, AsyncHandler handler) {
+            this.paths = paths;
+            this.handler = handler;
         }
     }
 }
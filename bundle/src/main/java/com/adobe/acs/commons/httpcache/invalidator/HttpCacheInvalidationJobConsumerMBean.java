@@ -0,0 +1,53 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2015 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.httpcache.invalidator;
+
+import com.adobe.granite.jmx.annotation.Description;
+
+/**
+ * JMX MBean for the http cache invalidation job consumer.
+ */
+@Description("ACS AEM Commons - Http Cache - Invalidation Job Consumer")
+public interface HttpCacheInvalidationJobConsumerMBean {
+
+    @Description("Number of invalidation jobs waiting for the next batch")
+    int getQueuedJobCount();
+
+    @Description("Number of paths of the invalidation jobs waiting for the next batch")
+    int getQueuedPathCount();
+
+    @Description("Number of batches processed")
+    long getBatchCount();
+
+    @Description("Number of invalidation jobs processed in batches")
+    long getBatchedJobCount();
+
+    @Description("Number of distinct paths invalidated by the last batch")
+    int getLastBatchSize();
+
+    @Description("Largest number of distinct paths invalidated by a single batch")
+    int getMaxBatchSize();
+
+    @Description("Average number of distinct paths invalidated per batch")
+    double getAverageBatchSize();
+
+    @Description("Reset the batch statistics to 0")
+    void resetBatchStats();
+}
@@ -22,8 +22,10 @@ package com.adobe.acs.commons.httpcache.invalidator.event;
 import java.util.Collections;
 import java.util.Dictionary;
 import java.util.Hashtable;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
@@ -121,8 +123,16 @@ public class JCRNodeChangeEventHandler implements EventHandler, ResourceChangeLi
     
     @Override
     public void onChange(List<ResourceChange> changes) {
+        // Observation delivers changes in bulk, e.g. for a tree activation. Create a single job for all of them.
+        final Set<String> paths = new LinkedHashSet<>();
         for (ResourceChange change : changes) {
-            handlePath(change.getPath());
+            paths.add(change.getPath());
+        }
+
+        if (paths.size() == 1) {
+            handlePath(paths.iterator().next());
+        } else if (!paths.isEmpty()) {
+            handlePaths(paths);
         }
     }
     
@@ -132,4 +142,11 @@ public class JCRNodeChangeEventHandler implements EventHandler, ResourceChangeLi
 
         log.debug("New invalidation job created with the payload path. - {}", path);
     }
+
+    private void handlePaths(Set<String> paths) {
+        final Map<String, Object> payload = Collections.singletonMap(CacheInvalidationJobConstants.PAYLOAD_KEY_DATA_CHANGE_PATHS, paths.toArray(new String[0]));
+        jobManager.addJob(CacheInvalidationJobConstants.TOPIC_HTTP_CACHE_INVALIDATION_JOB, payload);
+
+        log.debug("New invalidation job created with the payload paths. - {}", paths);
+    }
 }
@@ -70,6 +70,23 @@ public interface HttpCacheHandlingRule {
     boolean onCacheDeliver(SlingHttpServletRequest request, SlingHttpServletResponse response, HttpCacheConfig
             cacheConfig, CacheContent cacheContent);
 
+    /**
+     * Hook to supply custom behavior on {@link com.adobe.acs.commons.httpcache.engine.HttpCacheEngine} delivering cache
+     * content which expired or got invalidated, while it gets refreshed in the background. Called in addition to
+     * {@link #onCacheDeliver(SlingHttpServletRequest, SlingHttpServletResponse, HttpCacheConfig, CacheContent)}.
+     *
+     * @param request
+     * @param response
+     * @param cacheConfig
+     * @param cacheContent Object carrying the stale data to be delivered.
+     * @return True represents success and cache handling rules will be continued. False represents failure with cache
+     * handling rules being stopped and fallback action will be taken.
+     */
+    default boolean onStaleCacheDeliver(SlingHttpServletRequest request, SlingHttpServletResponse response,
+                                        HttpCacheConfig cacheConfig, CacheContent cacheContent) {
+        return true;
+    }
+
     /**
      * Hook to supply custom behavior on {@link com.adobe.acs.commons.httpcache.engine.HttpCacheEngine} invalidating
      * cache for the changes in the given JCR repository path.
@@ -24,6 +24,8 @@ import com.adobe.acs.commons.httpcache.engine.CacheContent;
 import com.adobe.acs.commons.httpcache.exception.HttpCacheDataStreamException;
 import com.adobe.acs.commons.httpcache.keys.CacheKey;
 
+import java.util.Collection;
+
 /**
  * Data store for persisting cache items. Data store implementation could be in-memory, disk or even JCR repository.
  * Multiple implementation of this cache store can be present at any time and they can work in conjunction.
@@ -68,6 +70,17 @@ public interface HttpCacheStore {
      */
     CacheContent getIfPresent(CacheKey key);
 
+    /**
+     * Get the Cache item given a key, even if it expired or got invalidated, as long as the store retains it within
+     * its stale grace period. Stores which do not retain stale entries return null.
+     *
+     * @param key Object holding the key attributes.
+     * @return Object holding the cached content, fresh or stale. Null if key not present.
+     */
+    default CacheContent getStaleIfPresent(CacheKey key) {
+        return null;
+    }
+
     /**
      * Get the number of entries in the cache.
      *
@@ -83,6 +96,18 @@ public interface HttpCacheStore {
      */
     void invalidate(CacheKey key);
 
+    /**
+     * Invalidate the given cache keys, e.g. all keys of a batch of invalidation jobs. Stores able to evaluate all keys
+     * in a single pass over their entries should override this.
+     *
+     * @param keys
+     */
+    default void invalidate(Collection<CacheKey> keys) {
+        for (CacheKey key : keys) {
+            invalidate(key);
+        }
+    }
+
     /**
      * Invalidate all the cached items applicable for the given cache config.
      *
@@ -29,9 +29,19 @@ import static com.adobe.acs.commons.httpcache.store.caffeine.impl.CaffeineMemHtt
 public class CacheExpiryPolicy implements Expiry<CacheKey, MemCachePersistenceObject> {
 
     private final long standardTtl;
+    private final long staleGracePeriod;
 
     public CacheExpiryPolicy(long standardTtl) {
+        this(standardTtl, 0L);
+    }
+
+    /**
+     * @param standardTtl default time to live
+     * @param staleGracePeriod time entries are retained after they expired, so they can be served stale
+     */
+    public CacheExpiryPolicy(long standardTtl, long staleGracePeriod) {
         this.standardTtl = standardTtl;
+        this.staleGracePeriod = staleGracePeriod;
     }
 
     @Override
@@ -39,10 +49,10 @@ public class CacheExpiryPolicy implements Expiry<CacheKey, MemCachePersistenceOb
             CacheKey key, MemCachePersistenceObject value, long currentTime) {
         long customExpiryTime = key.getExpiryForCreation();
         if (customExpiryTime > 0) {
-            return customExpiryTime * NANOSECOND_MODIFIER;
+            return (customExpiryTime + staleGracePeriod) * NANOSECOND_MODIFIER;
         } else {
             if (standardTtl > 0) {
-                return standardTtl * NANOSECOND_MODIFIER;
+                return (standardTtl + staleGracePeriod) * NANOSECOND_MODIFIER;
             } else {
                 return Long.MAX_VALUE;
             }
@@ -53,7 +63,7 @@ public class CacheExpiryPolicy implements Expiry<CacheKey, MemCachePersistenceOb
     public long expireAfterUpdate(
             CacheKey key, MemCachePersistenceObject value, long currentTime, long currentDuration) {
         if (key.getExpiryForUpdate() > 0) {
-            return key.getExpiryForUpdate() * NANOSECOND_MODIFIER;
+            return (key.getExpiryForUpdate() + staleGracePeriod) * NANOSECOND_MODIFIER;
         }
         return currentDuration;
     }
@@ -62,7 +72,7 @@ public class CacheExpiryPolicy implements Expiry<CacheKey, MemCachePersistenceOb
     public long expireAfterRead(
             CacheKey key, MemCachePersistenceObject value, long currentTime, long currentDuration) {
         if (key.getExpiryForAccess() > 0) {
-            return key.getExpiryForAccess() * NANOSECOND_MODIFIER;
+            return (key.getExpiryForAccess() + staleGracePeriod) * NANOSECOND_MODIFIER;
         }
         return currentDuration;
     }
@@ -26,7 +26,10 @@ import com.adobe.acs.commons.httpcache.exception.HttpCacheKeyCreationException;
 import com.adobe.acs.commons.httpcache.keys.CacheKey;
 import com.adobe.acs.commons.httpcache.store.HttpCacheStore;
 import com.adobe.acs.commons.httpcache.store.TempSink;
+import com.adobe.acs.commons.httpcache.store.mem.impl.CacheKeyInvalidationBatch;
+import com.adobe.acs.commons.httpcache.store.mem.impl.CacheKeyPathIndex;
 import com.adobe.acs.commons.httpcache.store.mem.impl.MemCachePersistenceObject;
+import com.adobe.acs.commons.httpcache.store.mem.impl.MemSlabPool;
 import com.adobe.acs.commons.httpcache.store.mem.impl.MemTempSinkImpl;
 import com.adobe.acs.commons.util.impl.AbstractCacheMBean;
 import com.adobe.acs.commons.util.impl.exception.CacheMBeanException;
@@ -50,10 +53,12 @@ import javax.management.openmbean.CompositeType;
 import javax.management.openmbean.OpenDataException;
 import javax.management.openmbean.OpenType;
 import javax.management.openmbean.SimpleType;
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
 import java.util.Map;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 
 /**
  * In-memory cache store implementation. Uses Caffeine Cache.
@@ -102,6 +107,32 @@ public class CaffeineMemHttpCacheStoreImpl extends AbstractCaffeineCacheMBean<Ca
     private static final String PROP_MAX_SIZE_IN_MB = "httpcache.cachestore.caffeine.maxsize";
     private long maxSizeInMb;
 
+    private static final long DEFAULT_STALE_GRACE_PERIOD = 0L;
+    @Property(label = "Stale grace period",
+            description = "Time in seconds expired or invalidated entries are kept and can still be served stale "
+                    + "by cache configs which allow it, while they get refreshed. Default to 0 meaning entries are "
+                    + "dropped immediately.",
+            longValue = DEFAULT_STALE_GRACE_PERIOD)
+    private static final String PROP_STALE_GRACE_PERIOD = "httpcache.cachestore.caffeine.stale.grace";
+    private long staleGracePeriod;
+
+    private static final boolean DEFAULT_OFF_HEAP = false;
+    @Property(label = "Off-heap bodies",
+            description = "Hold the response bodies in pooled direct memory instead of the java heap, to reduce "
+                    + "garbage collection pressure of large caches. Requires -XX:MaxDirectMemorySize to allow the "
+                    + "maximum size of this store. Default to false.",
+            boolValue = DEFAULT_OFF_HEAP)
+    private static final String PROP_OFF_HEAP = "httpcache.cachestore.caffeine.offheap";
+    private MemSlabPool slabPool;
+
+    private static final boolean DEFAULT_GZIP = false;
+    @Property(label = "Compress bodies",
+            description = "Store textual response bodies gzip compressed. They are delivered as is to clients "
+                    + "accepting gzip, and decompressed for the others. Only enable if every cache in front of AEM "
+                    + "honors the Vary: Accept-Encoding header. Default to false.",
+            boolValue = DEFAULT_GZIP)
+    private static final String PROP_GZIP = "httpcache.cachestore.caffeine.gzip";
+    private boolean gzip;
 
     /** Megabyte to byte */
     private static final long MEGABYTE = 1024L * 1024L;
@@ -112,16 +143,24 @@ public class CaffeineMemHttpCacheStoreImpl extends AbstractCaffeineCacheMBean<Ca
     private Cache<CacheKey, MemCachePersistenceObject> cache;
     private Expiry<CacheKey, MemCachePersistenceObject> expiryPolicy;
 
+    /** Keys by hierarchy resource path, kept in sync with the cache through the removal listener */
+    private final CacheKeyPathIndex keyIndex = new CacheKeyPathIndex();
+
     @Activate
     protected void activate(Map<String, Object> config) {
         // Read config and populate values.
         ttl = PropertiesUtil.toLong(config.get(PROP_TTL), DEFAULT_TTL);
         maxSizeInMb = PropertiesUtil.toLong(config.get(PROP_MAX_SIZE_IN_MB), DEFAULT_MAX_SIZE_IN_MB);
-        expiryPolicy = new CacheExpiryPolicy(ttl);
+        staleGracePeriod = TimeUnit.SECONDS.toMillis(Math.max(0L, PropertiesUtil.toLong(
+                config.get(PROP_STALE_GRACE_PERIOD), DEFAULT_STALE_GRACE_PERIOD)));
+        expiryPolicy = new CacheExpiryPolicy(ttl, staleGracePeriod);
+        gzip = PropertiesUtil.toBoolean(config.get(PROP_GZIP), DEFAULT_GZIP);
 
         // Initializing the cache.
         // If cache is present, invalidate all and reinitialize the cache.
         deactivate();
+        slabPool = PropertiesUtil.toBoolean(config.get(PROP_OFF_HEAP), DEFAULT_OFF_HEAP)
+                ? new MemSlabPool(maxSizeInMb * MEGABYTE) : null;
 
         // Recording cache usage stats enabled.
         try {
@@ -137,6 +176,10 @@ public class CaffeineMemHttpCacheStoreImpl extends AbstractCaffeineCacheMBean<Ca
         if (cache != null) {
             cache.invalidateAll();
         }
+        keyIndex.clear();
+        if (slabPool != null) {
+            slabPool.clear();
+        }
     }
 
     private Cache<CacheKey, MemCachePersistenceObject> buildCache() {
@@ -160,13 +203,13 @@ public class CaffeineMemHttpCacheStoreImpl extends AbstractCaffeineCacheMBean<Ca
 
     @Override
     protected long getBytesLength(MemCachePersistenceObject cacheObj) {
-        return cacheObj.getBytes().length;
+        return cacheObj.getWeight();
     }
 
     @Override
     protected void addCacheData(Map<String, Object> data, MemCachePersistenceObject cacheObj) {
         int hitCount = cacheObj.getHitCount();
-        long size = cacheObj.getBytes().length;
+        long size = cacheObj.getBodySize();
         data.put(AbstractCacheMBean.JMX_PN_STATUS, cacheObj.getStatus());
         data.put(AbstractCacheMBean.JMX_PN_SIZE, FileUtils.byteCountToDisplaySize(size));
         data.put(AbstractCacheMBean.JMX_PN_CONTENTTYPE, cacheObj.getContentType());
@@ -177,10 +220,8 @@ public class CaffeineMemHttpCacheStoreImpl extends AbstractCaffeineCacheMBean<Ca
 
     @Override
     protected String toString(MemCachePersistenceObject cacheObj) throws CacheMBeanException {
-        try {
-            return IOUtils.toString(
-                    new ByteArrayInputStream(cacheObj.getBytes()),
-                    cacheObj.getCharEncoding());
+        try (InputStream in = cacheObj.getInputStream()) {
+            return in == null ? null : IOUtils.toString(in, cacheObj.getCharEncoding());
         } catch (IOException e) {
             throw new CacheMBeanException("Error getting the content from the cacheObject", e);
         }
@@ -200,12 +241,19 @@ public class CaffeineMemHttpCacheStoreImpl extends AbstractCaffeineCacheMBean<Ca
     }
 
     /**
-     * Removal listener for cache entry items.
+     * Removal listener for cache entry items. Keeps the key index in sync with evictions and invalidations, and releases
+     * the bodies of removed entries.
      */
-    private static class MemCacheEntryRemovalListener implements RemovalListener<CacheKey, MemCachePersistenceObject> {
+    private class MemCacheEntryRemovalListener implements RemovalListener<CacheKey, MemCachePersistenceObject> {
         @Override
         public void onRemoval(CacheKey cacheKey, MemCachePersistenceObject memCachePersistenceObject, RemovalCause removalCause) {
-            //do nothing as of now
+            if (memCachePersistenceObject != null) {
+                memCachePersistenceObject.release();
+            }
+            // Caffeine notifies asynchronously, the index re-checks the cache before dropping the key.
+            if (cacheKey != null && removalCause != RemovalCause.REPLACED) {
+                keyIndex.remove(cacheKey, CaffeineMemHttpCacheStoreImpl.this::isCached);
+            }
         }
     }
 
@@ -216,39 +264,109 @@ public class CaffeineMemHttpCacheStoreImpl extends AbstractCaffeineCacheMBean<Ca
 
         @Override
         public int weigh(CacheKey memCacheKey, MemCachePersistenceObject memCachePersistenceObject) {
-            // Size of the byte array.
-            return memCachePersistenceObject.getBytes().length;
+            // Memory held by the entry, including off-heap blocks and headers.
+            return (int) Math.min(Integer.MAX_VALUE, memCachePersistenceObject.getWeight());
         }
     }
 
     //-------------------------<CacheStore interface specific implementation>
     @Override
     public void put(CacheKey key, CacheContent content) throws HttpCacheDataStreamException {
-        cache.put(key, new MemCachePersistenceObject().buildForCaching(content.getStatus(), content.getCharEncoding(),
-                content.getContentType(), content.getHeaders(), content.getInputDataStream(), content.getWriteMethod()));
+        final MemCachePersistenceObject value = new MemCachePersistenceObject().buildForCaching(content.getStatus(),
+                content.getCharEncoding(), content.getContentType(), content.getHeaders(), content.getInputDataStream(),
+                content.getWriteMethod(), slabPool, gzip);
+        if (staleGracePeriod > 0) {
+            value.freshUntil(getFreshUntil(key));
+        }
+        cache.put(key, value);
+        keyIndex.add(key, this::isCached);
+    }
 
+    /**
+     * Mirrors the {@link CacheExpiryPolicy} to determine until when a new value for the key is fresh.
+     */
+    private long getFreshUntil(CacheKey key) {
+        final long now = System.currentTimeMillis();
+        final MemCachePersistenceObject existing = cache.getIfPresent(key);
+        if (existing != null && existing.isFresh(now)) {
+            // An update of a fresh entry keeps its expiry, unless the key has a custom expiry on update.
+            return key.getExpiryForUpdate() > 0 ? now + key.getExpiryForUpdate() : existing.getFreshUntil();
+        } else if (existing != null) {
+            // A stale entry is replaced by a new one instead of inheriting its remaining grace period.
+            cache.asMap().remove(key, existing);
+        }
+
+        if (key.getExpiryForCreation() > 0) {
+            return now + key.getExpiryForCreation();
+        }
+        return ttl > 0 ? now + ttl : Long.MAX_VALUE;
     }
 
     @Override
     public boolean contains(CacheKey key) {
-        if (null == cache.getIfPresent(key)) {
-            return false;
-        }
-        return true;
+        return null != getServable(key, true);
     }
 
     @Override
     public CacheContent getIfPresent(CacheKey key) {
-        MemCachePersistenceObject value = cache.getIfPresent(key);
+        MemCachePersistenceObject value = getServable(key, true);
+        if (null == value) {
+            return null;
+        }
+
+        if (staleGracePeriod > 0 && key.getExpiryForAccess() > 0) {
+            // Reading refreshes the expiry of the entry, see CacheExpiryPolicy#expireAfterRead
+            value.freshUntil(System.currentTimeMillis() + key.getExpiryForAccess());
+        }
+        return toCacheContent(value);
+    }
+
+    @Override
+    public CacheContent getStaleIfPresent(CacheKey key) {
+        return toCacheContent(getServable(key, false));
+    }
+
+    private MemCachePersistenceObject getServable(CacheKey key, boolean freshOnly) {
+        final MemCachePersistenceObject value = cache.getIfPresent(key);
+        if (null == value) {
+            return null;
+        }
+
+        final long now = System.currentTimeMillis();
+        if (value.isFresh(now)) {
+            return value;
+        } else if (!value.isServable(now, staleGracePeriod)) {
+            // Past the grace period, drop the stale entry instead of waiting for it to expire.
+            cache.asMap().remove(key, value);
+            return null;
+        }
+        return freshOnly ? null : value;
+    }
+
+    private CacheContent toCacheContent(MemCachePersistenceObject value) {
         if (null == value) {
             return null;
         }
 
+        final InputStream dataInputStream;
+        try {
+            dataInputStream = value.getInputStream();
+        } catch (IOException e) {
+            log.error("Could not read cached body, treating it as a miss", e);
+            return null;
+        }
+        if (null == dataInputStream) {
+            // Released concurrently by an eviction.
+            return null;
+        }
+
         // Increment hit count
         value.incrementHitCount();
 
-        return new CacheContent(value.getStatus(), value.getCharEncoding(), value.getContentType(), value.getHeaders(), new
-                ByteArrayInputStream(value.getBytes()));
+        final CacheContent cacheContent = new CacheContent(value.getStatus(), value.getCharEncoding(),
+                value.getContentType(), value.getHeaders(), dataInputStream);
+        cacheContent.setGzipInputDataStream(value.getGzipInputStream());
+        return cacheContent;
     }
 
     @Override
@@ -258,15 +376,45 @@ public class CaffeineMemHttpCacheStoreImpl extends AbstractCaffeineCacheMBean<Ca
 
     @Override
     public void invalidate(CacheKey invalidationKey) {
-        final ConcurrentMap<CacheKey, MemCachePersistenceObject> cacheAsMap = cache.asMap();
+        // Only keys related to the invalidated path can be affected; fall back to a full scan if the path is unknown.
+        final Collection<CacheKey> candidates = keyIndex.getCandidates(invalidationKey);
 
-        for (CacheKey key : cacheAsMap.keySet()) {
+        for (CacheKey key : candidates != null ? candidates : cache.asMap().keySet()) {
             if (key.isInvalidatedBy(invalidationKey)) {
-                cache.invalidate(key);
+                invalidateKey(key);
             }
         }
     }
 
+    @Override
+    public void invalidate(Collection<CacheKey> invalidationKeys) {
+        if (invalidationKeys.isEmpty()) {
+            return;
+        }
+
+        // A single pass over the keys related to any of the invalidated paths, rather than one pass per path.
+        final CacheKeyInvalidationBatch batch = new CacheKeyInvalidationBatch(invalidationKeys);
+        final Collection<CacheKey> candidates = keyIndex.getCandidates(invalidationKeys);
+
+        for (CacheKey key : candidates != null ? candidates : cache.asMap().keySet()) {
+            if (batch.invalidates(key)) {
+                invalidateKey(key);
+            }
+        }
+    }
+
+    /**
+     * Drops the entry, or with a stale grace period, keeps it to be served stale until it is refreshed.
+     */
+    private void invalidateKey(CacheKey key) {
+        final MemCachePersistenceObject value = staleGracePeriod > 0 ? cache.getIfPresent(key) : null;
+        if (null != value) {
+            value.markStale(System.currentTimeMillis());
+        } else {
+            cache.invalidate(key);
+        }
+    }
+
     @Override
     public void invalidate(HttpCacheConfig cacheConfig) {
         ConcurrentMap<CacheKey, MemCachePersistenceObject> cacheAsMap = cache.asMap();
@@ -287,6 +435,11 @@ public class CaffeineMemHttpCacheStoreImpl extends AbstractCaffeineCacheMBean<Ca
     @Override
     public void invalidateAll() {
         cache.invalidateAll();
+        keyIndex.clear();
+    }
+
+    private boolean isCached(CacheKey key) {
+        return cache.asMap().containsKey(key);
     }
 
     @Override
@@ -0,0 +1,104 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2019 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.httpcache.store.disk.impl;
+
+import java.io.InputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+/**
+ * Input stream over a region of a (memory mapped) byte buffer. Works on a private view so concurrent readers of the
+ * same buffer do not interfere with each other.
+ * <p>
+ * The optional release callback runs once, when the end of the region is reached or the stream is closed, whichever
+ * happens first. The buffer is not touched anymore afterwards, so the callback may unmap it.
+ */
+final class ByteBufferInputStream extends InputStream {
+    private final ByteBuffer view;
+    private Runnable onRelease;
+
+    ByteBufferInputStream(ByteBuffer source, int offset, int length) {
+        this(source, offset, length, null);
+    }
+
+    ByteBufferInputStream(ByteBuffer source, int offset, int length, Runnable onRelease) {
+        this.view = source.duplicate();
+        this.onRelease = onRelease;
+        // Casting to Buffer keeps the byte code compatible with Java 8 runtimes.
+        ((Buffer) view).limit(offset + length);
+        ((Buffer) view).position(offset);
+    }
+
+    @Override
+    public int read() {
+        if (!hasRemaining()) {
+            return -1;
+        }
+        return view.get() & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+        if (len == 0) {
+            return 0;
+        }
+        if (!hasRemaining()) {
+            return -1;
+        }
+        final int toRead = Math.min(len, view.remaining());
+        view.get(b, off, toRead);
+        return toRead;
+    }
+
+    @Override
+    public long skip(long n) {
+        final int toSkip = (int) Math.max(0, Math.min(n, view.remaining()));
+        ((Buffer) view).position(view.position() + toSkip);
+        return toSkip;
+    }
+
+    @Override
+    public int available() {
+        return view.remaining();
+    }
+
+    @Override
+    public void close() {
+        // Drop whatever is left, so the released buffer is never read again.
+        ((Buffer) view).position(view.limit());
+        release();
+    }
+
+    private boolean hasRemaining() {
+        if (view.hasRemaining()) {
+            return true;
+        }
+        release();
+        return false;
+    }
+
+    private void release() {
+        final Runnable callback = onRelease;
+        onRelease = null;
+        if (callback != null) {
+            callback.run();
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2019 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.httpcache.store.disk.impl;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Index value of the disk cache store. Only holds the position of a record inside its segment file, the record itself
+ * (key, metadata and body) stays on disk.
+ */
+final class DiskCacheEntry {
+    private final int segmentId;
+    private final long recordOffset;
+    private final int keyLength;
+    private final int metaLength;
+    private final long bodyLength;
+    private final long expiresOn;
+    private final AtomicInteger hitCount = new AtomicInteger(0);
+
+    DiskCacheEntry(int segmentId, long recordOffset, int keyLength, int metaLength, long bodyLength, long expiresOn) {
+        this.segmentId = segmentId;
+        this.recordOffset = recordOffset;
+        this.keyLength = keyLength;
+        this.metaLength = metaLength;
+        this.bodyLength = bodyLength;
+        this.expiresOn = expiresOn;
+    }
+
+    int getSegmentId() {
+        return segmentId;
+    }
+
+    long getRecordOffset() {
+        return recordOffset;
+    }
+
+    int getKeyLength() {
+        return keyLength;
+    }
+
+    int getMetaLength() {
+        return metaLength;
+    }
+
+    long getBodyLength() {
+        return bodyLength;
+    }
+
+    long getKeyOffset() {
+        return recordOffset + DiskCacheSegment.HEADER_LENGTH;
+    }
+
+    long getMetaOffset() {
+        return getKeyOffset() + keyLength;
+    }
+
+    long getBodyOffset() {
+        return getMetaOffset() + metaLength;
+    }
+
+    /**
+     * @return the number of bytes this record occupies in its segment file, header and checksum included.
+     */
+    long getRecordLength() {
+        return DiskCacheSegment.HEADER_LENGTH + keyLength + metaLength + bodyLength + DiskCacheSegment.TRAILER_LENGTH;
+    }
+
+    boolean isExpired(long now) {
+        return expiresOn > 0 && expiresOn <= now;
+    }
+
+    long getExpiresOn() {
+        return expiresOn;
+    }
+
+    /**
+     * Creates a copy of this entry pointing to a new location, used when compaction relocates a record.
+     */
+    DiskCacheEntry relocate(int newSegmentId, long newRecordOffset) {
+        DiskCacheEntry relocated = new DiskCacheEntry(newSegmentId, newRecordOffset, keyLength, metaLength, bodyLength, expiresOn);
+        relocated.hitCount.set(hitCount.get());
+        return relocated;
+    }
+
+    void incrementHitCount() {
+        hitCount.incrementAndGet();
+    }
+
+    int getHitCount() {
+        return hitCount.get();
+    }
+}
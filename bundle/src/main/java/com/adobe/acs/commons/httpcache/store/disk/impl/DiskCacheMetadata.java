@@ -0,0 +1,143 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2019 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.httpcache.store.disk.impl;
+
+import com.adobe.acs.commons.httpcache.engine.CacheContent;
+import com.adobe.acs.commons.httpcache.engine.HttpCacheServletResponseWrapper;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary encoding of the status, content type, character encoding, write method and headers of a cached response.
+ */
+final class DiskCacheMetadata {
+    private static final String SLING_TRACER_PROTOCOL_VERSION = "Sling-Tracer-Protocol-Version";
+    private static final String SLING_TRACER_REQUEST_ID = "Sling-Tracer-Request-Id";
+
+    private final int status;
+    private final String charEncoding;
+    private final String contentType;
+    private final HttpCacheServletResponseWrapper.ResponseWriteMethod writeMethod;
+    private final Map<String, List<String>> headers;
+
+    private DiskCacheMetadata(int status, String charEncoding, String contentType,
+                              HttpCacheServletResponseWrapper.ResponseWriteMethod writeMethod,
+                              Map<String, List<String>> headers) {
+        this.status = status;
+        this.charEncoding = charEncoding;
+        this.contentType = contentType;
+        this.writeMethod = writeMethod;
+        this.headers = headers;
+    }
+
+    static byte[] encode(CacheContent content) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(content.getStatus());
+            writeNullable(out, content.getCharEncoding());
+            writeNullable(out, content.getContentType());
+            writeNullable(out, content.getWriteMethod() == null ? null : content.getWriteMethod().name());
+
+            final Map<String, List<String>> headers = new LinkedHashMap<>();
+            if (content.getHeaders() != null) {
+                for (Map.Entry<String, List<String>> entry : content.getHeaders().entrySet()) {
+                    // Do NOT cache Sling Tracer headers as this makes debugging difficult and confusing!
+                    if (!SLING_TRACER_PROTOCOL_VERSION.equals(entry.getKey())
+                            && !SLING_TRACER_REQUEST_ID.equals(entry.getKey())) {
+                        headers.put(entry.getKey(), entry.getValue());
+                    }
+                }
+            }
+
+            out.writeInt(headers.size());
+            for (Map.Entry<String, List<String>> entry : headers.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeInt(entry.getValue().size());
+                for (String value : entry.getValue()) {
+                    out.writeUTF(value);
+                }
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    static DiskCacheMetadata decode(byte[] bytes) throws IOException {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+            final int status = in.readInt();
+            final String charEncoding = readNullable(in);
+            final String contentType = readNullable(in);
+            final String writeMethodName = readNullable(in);
+
+            final int headerCount = in.readInt();
+            final Map<String, List<String>> headers = new LinkedHashMap<>(headerCount);
+            for (int i = 0; i < headerCount; i++) {
+                final String name = in.readUTF();
+                final int valueCount = in.readInt();
+                final List<String> values = new ArrayList<>(valueCount);
+                for (int j = 0; j < valueCount; j++) {
+                    values.add(in.readUTF());
+                }
+                headers.put(name, values);
+            }
+
+            final HttpCacheServletResponseWrapper.ResponseWriteMethod writeMethod = writeMethodName == null
+                    ? HttpCacheServletResponseWrapper.ResponseWriteMethod.PRINTWRITER
+                    : HttpCacheServletResponseWrapper.ResponseWriteMethod.valueOf(writeMethodName);
+
+            return new DiskCacheMetadata(status, charEncoding, contentType, writeMethod, headers);
+        }
+    }
+
+    CacheContent toCacheContent(InputStream body) {
+        return new CacheContent(status, charEncoding, contentType, headers, body, writeMethod);
+    }
+
+    int getStatus() {
+        return status;
+    }
+
+    String getCharEncoding() {
+        return charEncoding;
+    }
+
+    String getContentType() {
+        return contentType;
+    }
+
+    private static void writeNullable(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readNullable(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
@@ -0,0 +1,517 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2019 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.httpcache.store.disk.impl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only segment file of the disk cache store.
+ * <p>
+ * Every record is laid out as <code>[magic][type][key length][meta length][body length][expires on]</code> followed by
+ * the serialized cache key, the encoded metadata, the body and a CRC32 checksum over those three. Records are only
+ * appended to the active segment; once a segment is full it is sealed and memory-mapped read-only so that hits are
+ * served straight from the page cache without copying the body onto the heap.
+ * <p>
+ * Readers hold a reference on the segment. Once the segment is closed and the last reader is done, the file is closed
+ * and the mapping is released right away instead of waiting for the garbage collector, which frees the disk space of
+ * deleted segments and lets their files be deleted on platforms that refuse to delete mapped files.
+ */
+final class DiskCacheSegment {
+    private static final Logger log = LoggerFactory.getLogger(DiskCacheSegment.class);
+
+    static final String FILE_PREFIX = "segment-";
+    static final String FILE_SUFFIX = ".dat";
+
+    /** Prefix of the temporary single record files responses are written to before they are published */
+    static final String TEMP_FILE_PREFIX = "record-";
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+    static final byte TYPE_ENTRY = 1;
+    static final byte TYPE_TOMBSTONE = 2;
+
+    static final int HEADER_LENGTH = 29;
+    static final int TRAILER_LENGTH = 4;
+
+    private static final int MAGIC = 0xAC5D15C0;
+    private static final int OFFSET_BODY_LENGTH = 13;
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private final int id;
+    private final File file;
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel channel;
+    private final AtomicLong deadBytes = new AtomicLong();
+    /** One reference held by the segment itself until it is closed, plus one per reader */
+    private final AtomicInteger references = new AtomicInteger(1);
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private volatile boolean deleted;
+    private volatile long size;
+    private volatile MappedByteBuffer mapped;
+
+    private DiskCacheSegment(int id, File file) throws IOException {
+        this.id = id;
+        this.file = file;
+        this.randomAccessFile = new RandomAccessFile(file, "rw");
+        this.channel = randomAccessFile.getChannel();
+        this.size = channel.size();
+    }
+
+    /**
+     * Opens the segment with the given id in the given directory, creating the file if it does not exist yet.
+     */
+    static DiskCacheSegment open(File directory, int id) throws IOException {
+        return new DiskCacheSegment(id, new File(directory, fileName(id)));
+    }
+
+    /**
+     * Creates a segment in a new temporary file, used to write a record before it is published into the store.
+     */
+    static DiskCacheSegment createTemporary(File directory) throws IOException {
+        return new DiskCacheSegment(-1, File.createTempFile(TEMP_FILE_PREFIX, TEMP_FILE_SUFFIX, directory));
+    }
+
+    static String fileName(int id) {
+        return String.format("%s%010d%s", FILE_PREFIX, id, FILE_SUFFIX);
+    }
+
+    /**
+     * @return the segment id encoded in the file name, or -1 if the file is not a segment file.
+     */
+    static int parseId(String fileName) {
+        if (!fileName.startsWith(FILE_PREFIX) || !fileName.endsWith(FILE_SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(fileName.substring(FILE_PREFIX.length(), fileName.length() - FILE_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    int getId() {
+        return id;
+    }
+
+    long size() {
+        return size;
+    }
+
+    long getDeadBytes() {
+        return deadBytes.get();
+    }
+
+    void markDead(long bytes) {
+        deadBytes.addAndGet(bytes);
+    }
+
+    boolean isSealed() {
+        return mapped != null;
+    }
+
+    /**
+     * Appends a record to the end of this segment. The body is streamed into the file, its length is patched into the
+     * header once known.
+     *
+     * @return index entry describing the appended record.
+     */
+    synchronized DiskCacheEntry append(byte type, byte[] key, byte[] meta, InputStream body, long expiresOn)
+            throws IOException {
+        if (isSealed()) {
+            throw new IOException("Segment " + id + " is sealed");
+        }
+
+        final long recordOffset = size;
+        final CRC32 crc = new CRC32();
+        long position = recordOffset;
+
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        header.putInt(0, MAGIC);
+        header.put(4, type);
+        header.putInt(5, key.length);
+        header.putInt(9, meta.length);
+        header.putLong(OFFSET_BODY_LENGTH, 0L);
+        header.putLong(21, expiresOn);
+        position += writeFully(header, position);
+
+        crc.update(key, 0, key.length);
+        position += writeFully(ByteBuffer.wrap(key), position);
+        crc.update(meta, 0, meta.length);
+        position += writeFully(ByteBuffer.wrap(meta), position);
+
+        long bodyLength = 0;
+        if (body != null) {
+            final byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            int read;
+            while ((read = body.read(buffer)) != -1) {
+                crc.update(buffer, 0, read);
+                position += writeFully(ByteBuffer.wrap(buffer, 0, read), position);
+                bodyLength += read;
+            }
+        }
+
+        final ByteBuffer trailer = ByteBuffer.allocate(TRAILER_LENGTH);
+        trailer.putInt(0, (int) crc.getValue());
+        position += writeFully(trailer, position);
+
+        final ByteBuffer patchedLength = ByteBuffer.allocate(8);
+        patchedLength.putLong(0, bodyLength);
+        writeFully(patchedLength, recordOffset + OFFSET_BODY_LENGTH);
+
+        size = position;
+        return new DiskCacheEntry(id, recordOffset, key.length, meta.length, bodyLength, expiresOn);
+    }
+
+    /**
+     * Copies a record of another segment verbatim to the end of this segment using
+     * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}, so the bytes never enter the
+     * JVM heap.
+     *
+     * @return the offset of the copied record in this segment.
+     */
+    synchronized long transferFrom(DiskCacheSegment source, long recordOffset, long recordLength) throws IOException {
+        if (isSealed()) {
+            throw new IOException("Segment " + id + " is sealed");
+        }
+
+        final long targetOffset = size;
+        channel.position(targetOffset);
+        long transferred = 0;
+        while (transferred < recordLength) {
+            long count = source.channel.transferTo(recordOffset + transferred, recordLength - transferred, channel);
+            if (count <= 0) {
+                throw new EOFException("Unexpected end of segment " + source.getId());
+            }
+            transferred += count;
+        }
+        size = targetOffset + recordLength;
+        return targetOffset;
+    }
+
+    byte[] read(long offset, int length) throws IOException {
+        retain();
+        try {
+            final byte[] bytes = new byte[length];
+            final MappedByteBuffer buffer = mapped;
+            if (buffer != null) {
+                final ByteBuffer view = buffer.duplicate();
+                ((Buffer) view).position((int) offset);
+                view.get(bytes);
+            } else {
+                readFully(ByteBuffer.wrap(bytes), offset);
+            }
+            return bytes;
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Opens a stream over a region of this segment. Sealed segments are served from the memory mapping, the active
+     * segment through positional channel reads. The mapping or channel stays open until the stream is read to its end
+     * or closed.
+     */
+    InputStream openStream(long offset, long length) throws IOException {
+        retain();
+        final MappedByteBuffer buffer = mapped;
+        if (buffer != null) {
+            return new ByteBufferInputStream(buffer, (int) offset, (int) length, this::release);
+        }
+        return new ChannelInputStream(offset, length);
+    }
+
+    /**
+     * Flushes this segment to disk and switches reads over to a read-only memory mapping.
+     */
+    synchronized void seal() throws IOException {
+        if (isSealed()) {
+            return;
+        }
+        if (channel.size() > size) {
+            // Drop whatever a failed append left behind after the last complete record.
+            channel.truncate(size);
+        }
+        channel.force(false);
+        if (size > Integer.MAX_VALUE) {
+            log.warn("Segment {} is too large to be memory mapped, falling back to channel reads", id);
+            return;
+        }
+        mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+    }
+
+    /**
+     * Reads all records of this segment in order. Scanning stops at the first record that is truncated or fails its
+     * checksum, which is what a crash in the middle of an append leaves behind.
+     *
+     * @return the number of bytes holding valid records.
+     */
+    long scan(RecordVisitor visitor) throws IOException {
+        final long length = channel.size();
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        long position = 0;
+
+        while (position + HEADER_LENGTH + TRAILER_LENGTH <= length) {
+            ((Buffer) header).clear();
+            readFully(header, position);
+
+            final int magic = header.getInt(0);
+            final byte type = header.get(4);
+            final int keyLength = header.getInt(5);
+            final int metaLength = header.getInt(9);
+            final long bodyLength = header.getLong(OFFSET_BODY_LENGTH);
+            final long expiresOn = header.getLong(21);
+
+            if (magic != MAGIC || (type != TYPE_ENTRY && type != TYPE_TOMBSTONE) || keyLength < 0 || metaLength < 0
+                    || bodyLength < 0) {
+                break;
+            }
+
+            final long recordLength = (long) HEADER_LENGTH + keyLength + metaLength + bodyLength + TRAILER_LENGTH;
+            if (position + recordLength > length || !isChecksumValid(position, keyLength, metaLength, bodyLength)) {
+                break;
+            }
+
+            final byte[] key = new byte[keyLength];
+            readFully(ByteBuffer.wrap(key), position + HEADER_LENGTH);
+            visitor.visit(type, key, new DiskCacheEntry(id, position, keyLength, metaLength, bodyLength, expiresOn));
+
+            position += recordLength;
+        }
+
+        if (position < length) {
+            log.warn("Disk cache segment {} has {} trailing bytes that do not form a valid record", id,
+                    length - position);
+        }
+        return position;
+    }
+
+    /**
+     * Cuts off everything after the given length, used to drop partially written records found by {@link #scan}.
+     */
+    synchronized void truncate(long length) throws IOException {
+        channel.truncate(length);
+        size = length;
+    }
+
+    /**
+     * Closes this segment. Readers still streaming from it keep the file open until they are done.
+     */
+    void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        release();
+    }
+
+    /**
+     * Closes this segment and removes its file. If readers still use the mapping, the file is removed once the last
+     * of them is done.
+     */
+    void delete() {
+        deleted = true;
+        close();
+    }
+
+    private void retain() throws IOException {
+        int count;
+        do {
+            count = references.get();
+            if (count <= 0) {
+                throw new IOException("Disk cache segment " + id + " is closed");
+            }
+        } while (!references.compareAndSet(count, count + 1));
+    }
+
+    private void release() {
+        if (references.decrementAndGet() != 0) {
+            return;
+        }
+        final MappedByteBuffer buffer = mapped;
+        mapped = null;
+        if (buffer != null) {
+            Unmapper.unmap(buffer);
+        }
+        try {
+            channel.close();
+            randomAccessFile.close();
+        } catch (IOException e) {
+            log.warn("Could not close disk cache segment {}", id, e);
+        }
+        if (deleted && !file.delete() && file.exists()) {
+            log.warn("Could not delete disk cache segment file {}", file.getAbsolutePath());
+        }
+    }
+
+    private boolean isChecksumValid(long recordOffset, int keyLength, int metaLength, long bodyLength) throws IOException {
+        final CRC32 crc = new CRC32();
+        final byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        long remaining = keyLength + metaLength + bodyLength;
+        long position = recordOffset + HEADER_LENGTH;
+
+        while (remaining > 0) {
+            final int chunk = (int) Math.min(buffer.length, remaining);
+            readFully(ByteBuffer.wrap(buffer, 0, chunk), position);
+            crc.update(buffer, 0, chunk);
+            position += chunk;
+            remaining -= chunk;
+        }
+
+        final ByteBuffer trailer = ByteBuffer.allocate(TRAILER_LENGTH);
+        readFully(trailer, position);
+        return trailer.getInt(0) == (int) crc.getValue();
+    }
+
+    private int writeFully(ByteBuffer buffer, long position) throws IOException {
+        int written = 0;
+        while (buffer.hasRemaining()) {
+            written += channel.write(buffer, position + written);
+        }
+        return written;
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        long current = position;
+        while (buffer.hasRemaining()) {
+            final int read = channel.read(buffer, current);
+            if (read < 0) {
+                throw new EOFException("Unexpected end of disk cache segment " + id);
+            }
+            current += read;
+        }
+    }
+
+    /**
+     * Releases memory mappings without waiting for the garbage collector. There is no public API for this, so it goes
+     * through {@code sun.misc.Unsafe.invokeCleaner} on Java 9 and later, and the buffer's cleaner on Java 8. If neither
+     * is available, the mapping is left to the garbage collector.
+     */
+    private static final class Unmapper {
+        private static final Object UNSAFE;
+        private static final Method INVOKE_CLEANER;
+
+        static {
+            Object unsafe = null;
+            Method invokeCleaner = null;
+            try {
+                final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+                final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                unsafe = theUnsafe.get(null);
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                // Java 8, handled through the cleaner of the buffer.
+                invokeCleaner = null;
+            }
+            UNSAFE = unsafe;
+            INVOKE_CLEANER = invokeCleaner;
+        }
+
+        private Unmapper() {
+        }
+
+        static void unmap(MappedByteBuffer buffer) {
+            try {
+                if (INVOKE_CLEANER != null) {
+                    INVOKE_CLEANER.invoke(UNSAFE, buffer);
+                } else {
+                    final Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                    cleanerMethod.setAccessible(true);
+                    final Object cleaner = cleanerMethod.invoke(buffer);
+                    if (cleaner != null) {
+                        cleaner.getClass().getMethod("clean").invoke(cleaner);
+                    }
+                }
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                log.debug("Could not unmap a disk cache segment, leaving it to the garbage collector", e);
+            }
+        }
+    }
+
+    /**
+     * Callback for {@link #scan(RecordVisitor)}.
+     */
+    interface RecordVisitor {
+        void visit(byte type, byte[] key, DiskCacheEntry entry) throws IOException;
+    }
+
+    /**
+     * Stream over a region of the active (not yet mapped) segment. Holds a reference on the segment until the end of
+     * the region is reached or the stream is closed, whichever happens first.
+     */
+    private final class ChannelInputStream extends InputStream {
+        private long position;
+        private final long end;
+        private boolean released;
+
+        ChannelInputStream(long offset, long length) {
+            this.position = offset;
+            this.end = offset + length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] single = new byte[1];
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (position >= end || released) {
+                close();
+                return -1;
+            }
+            final int toRead = (int) Math.min(len, end - position);
+            final int read = channel.read(ByteBuffer.wrap(b, off, toRead), position);
+            if (read > 0) {
+                position += read;
+            }
+            return read;
+        }
+
+        @Override
+        public int available() {
+            return released ? 0 : (int) Math.min(Integer.MAX_VALUE, end - position);
+        }
+
+        @Override
+        public void close() {
+            if (!released) {
+                released = true;
+                release();
+            }
+        }
+    }
+}
@@ -22,65 +22,359 @@ package com.adobe.acs.commons.httpcache.store.disk.impl;
 import com.adobe.acs.commons.httpcache.config.HttpCacheConfig;
 import com.adobe.acs.commons.httpcache.engine.CacheContent;
 import com.adobe.acs.commons.httpcache.exception.HttpCacheDataStreamException;
+import com.adobe.acs.commons.httpcache.exception.HttpCacheKeyCreationException;
 import com.adobe.acs.commons.httpcache.keys.CacheKey;
 import com.adobe.acs.commons.httpcache.store.HttpCacheStore;
 import com.adobe.acs.commons.httpcache.store.TempSink;
-import org.apache.commons.lang.NotImplementedException;
+import com.adobe.acs.commons.httpcache.store.mem.impl.CacheKeyInvalidationBatch;
+import com.adobe.acs.commons.httpcache.store.mem.impl.CacheKeyPathIndex;
+import com.adobe.acs.commons.util.DynamicObjectInputStream;
+import com.adobe.acs.commons.util.impl.AbstractJCRCacheMBean;
+import com.adobe.acs.commons.util.impl.exception.CacheMBeanException;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.ConfigurationPolicy;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.classloader.DynamicClassLoaderManager;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.osgi.framework.BundleContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.NotCompliantMBeanException;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenDataException;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
 
 /**
  * ACS AEM Commons - HTTP Cache - Disk based cache store implementation.
+ * <p>
+ * Bodies are appended to segment files on the local file system. Sealed segments are memory-mapped, so cache hits are
+ * streamed from the OS page cache instead of the JVM heap. The in-memory index only holds the position of each record,
+ * and is rebuilt by scanning the segment files when the component is activated, so cached entries survive bundle and
+ * instance restarts. Invalidations are persisted as tombstone records; segments that are mostly made up of invalidated
+ * or expired records are compacted by the scheduled job.
  */
+@Component(label = "ACS AEM Commons - HTTP Cache - Disk cache store",
+           description = "Cache data store implementation for local file system storage.",
+           metatype = true,
+           policy = ConfigurationPolicy.REQUIRE)
+@Properties({
+        @Property(name = HttpCacheStore.KEY_CACHE_STORE_TYPE,
+                  value = HttpCacheStore.VALUE_DISK_CACHE_STORE_TYPE,
+                  propertyPrivate = true),
+        @Property(name = "jmx.objectname",
+                  value = "com.adobe.acs.commons.httpcache:type=HTTP Cache - Disk Cache Store",
+                  propertyPrivate = true),
+        @Property(label = "Cache clean-up schedule",
+                  description = "Schedule of the expired entry purge and segment compaction. "
+                          + "[every minute = 0 * * * * ?] Visit www.cronmaker.com to generate cron expressions.",
+                  name = "scheduler.expression",
+                  value = "0 0/5 * * * ?"),
+        @Property(label = "Allow concurrent executions",
+                  description = "Allow concurrent executions of this Scheduled Service. This is almost always false.",
+                  name = "scheduler.concurrent",
+                  propertyPrivate = true,
+                  boolValue = false),
+        @Property(name = "webconsole.configurationFactory.nameHint",
+                  value = "TTL: {httpcache.cachestore.diskcache.ttl}, "
+                          + "Max size in MB: {httpcache.cachestore.diskcache.maxsize}",
+                  propertyPrivate = true)
+})
+@Service(value = {HttpCacheStore.class, Runnable.class})
+public class DiskHttpCacheStoreImpl extends AbstractJCRCacheMBean<CacheKey, DiskCacheEntry> implements HttpCacheStore, DiskCacheMBean, Runnable {
+    private static final Logger log = LoggerFactory.getLogger(DiskHttpCacheStoreImpl.class);
 
-// TODO - Placeholder component. To be implemented.
-/*
-@Component
-@Service
-@Property(name = HttpCacheStore.KEY_CACHE_STORE_TYPE,
-          value = HttpCacheStore.VALUE_DISK_CACHE_STORE_TYPE,
-          propertyPrivate = true)
-*/
-public class DiskHttpCacheStoreImpl implements HttpCacheStore {
+    /** Megabyte to byte */
+    private static final long MEGABYTE = 1024L * 1024L;
+
+    /** Name of the directory in the bundle data area used when no path is configured */
+    private static final String DEFAULT_DIRECTORY = "httpcache";
+    private static final String SEGMENTS_DIRECTORY = "segments";
+    private static final String TEMP_DIRECTORY = "tmp";
+
+    /** Temp sinks of responses that were never persisted are swept after this age */
+    private static final long STALE_TEMP_FILE_AGE = TimeUnit.HOURS.toMillis(1);
+
+    @Property(label = "Cache directory",
+              description = "Directory holding the cache segment files. Leave empty to use the bundle data area.")
+    private static final String PROP_PATH = "httpcache.cachestore.diskcache.path";
+
+    @Property(label = "TTL",
+              description = "TTL for all entries in this cache in seconds. Default to -1 meaning no TTL.",
+              longValue = DiskHttpCacheStoreImpl.DEFAULT_TTL)
+    private static final String PROP_TTL = "httpcache.cachestore.diskcache.ttl";
+    private static final long DEFAULT_TTL = -1L; // Defaults to -1 meaning no TTL.
+    private long ttl;
+
+    @Property(label = "Maximum size of this store in MB",
+              description = "Default to 1024MB. If the segment files grow beyond this size, the oldest segment is "
+                      + "evicted from the cache",
+              longValue = DiskHttpCacheStoreImpl.DEFAULT_MAX_SIZE_IN_MB)
+    private static final String PROP_MAX_SIZE_IN_MB = "httpcache.cachestore.diskcache.maxsize";
+    private static final long DEFAULT_MAX_SIZE_IN_MB = 1024L; // Defaults to 1GB.
+    private long maxSizeInMb;
+
+    @Property(label = "Segment size in MB",
+              description = "Size after which the active segment file is sealed and memory-mapped. "
+                      + "Eviction and compaction work on whole segments.",
+              longValue = DiskHttpCacheStoreImpl.DEFAULT_SEGMENT_SIZE_IN_MB)
+    private static final String PROP_SEGMENT_SIZE_IN_MB = "httpcache.cachestore.diskcache.segmentsize";
+    private static final long DEFAULT_SEGMENT_SIZE_IN_MB = 64L;
+    private long segmentSizeInBytes;
+
+    @Property(label = "Compaction threshold",
+              description = "Percentage of invalidated or expired bytes after which a segment gets compacted.",
+              intValue = DiskHttpCacheStoreImpl.DEFAULT_COMPACTION_THRESHOLD)
+    private static final String PROP_COMPACTION_THRESHOLD = "httpcache.cachestore.diskcache.compaction.threshold";
+    private static final int DEFAULT_COMPACTION_THRESHOLD = 50;
+    private int compactionThreshold;
+
+    @Reference
+    private DynamicClassLoaderManager dclm;
+
+    /** Guards all writes to segment files and all structural changes to the index */
+    private final Object writeLock = new Object();
+
+    private final Map<CacheKey, DiskCacheEntry> index = new ConcurrentHashMap<>();
+    private final CacheKeyPathIndex keyIndex = new CacheKeyPathIndex();
+    private final ConcurrentSkipListMap<Integer, DiskCacheSegment> segments = new ConcurrentSkipListMap<>();
+    private volatile DiskCacheSegment activeSegment;
+    private int nextSegmentId;
+
+    private File segmentDirectory;
+    private File tempDirectory;
+
+    public DiskHttpCacheStoreImpl() throws NotCompliantMBeanException {
+        super(DiskCacheMBean.class);
+    }
+
+    @Activate
+    protected void activate(BundleContext bundleContext, Map<String, Object> configs) throws IOException {
+        // Read config and populate values.
+        ttl = PropertiesUtil.toLong(configs.get(PROP_TTL), DEFAULT_TTL);
+        maxSizeInMb = PropertiesUtil.toLong(configs.get(PROP_MAX_SIZE_IN_MB), DEFAULT_MAX_SIZE_IN_MB);
+        compactionThreshold = PropertiesUtil.toInteger(configs.get(PROP_COMPACTION_THRESHOLD), DEFAULT_COMPACTION_THRESHOLD);
+
+        // Eviction drops whole segments, so keep at least a handful of them within the size budget.
+        final long segmentSizeInMb = PropertiesUtil.toLong(configs.get(PROP_SEGMENT_SIZE_IN_MB), DEFAULT_SEGMENT_SIZE_IN_MB);
+        segmentSizeInBytes = Math.max(1L, Math.min(segmentSizeInMb * MEGABYTE, maxSizeInMb * MEGABYTE / 4));
+
+        final String path = PropertiesUtil.toString(configs.get(PROP_PATH), "");
+        final File rootDirectory = StringUtils.isBlank(path) ? bundleContext.getDataFile(DEFAULT_DIRECTORY) : new File(path);
+        if (rootDirectory == null) {
+            throw new IllegalStateException("No cache directory configured and the framework provides no bundle data area");
+        }
+
+        segmentDirectory = new File(rootDirectory, SEGMENTS_DIRECTORY);
+        tempDirectory = new File(rootDirectory, TEMP_DIRECTORY);
+        FileUtils.forceMkdir(segmentDirectory);
+        FileUtils.forceMkdir(tempDirectory);
+        sweepTempDirectory(0);
+
+        final long start = System.currentTimeMillis();
+        synchronized (writeLock) {
+            loadSegments();
+            for (CacheKey key : index.keySet()) {
+                keyIndex.add(key, index::containsKey);
+            }
+        }
+        log.info("DiskHttpCacheStoreImpl activated with {} entries in {} segments under {} (index rebuilt in {} ms).",
+                index.size(), segments.size(), rootDirectory.getAbsolutePath(), System.currentTimeMillis() - start);
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        synchronized (writeLock) {
+            for (DiskCacheSegment segment : segments.values()) {
+                try {
+                    // Make sure the active segment hits the disk, so it is found again on the next activation.
+                    segment.seal();
+                } catch (IOException e) {
+                    log.warn("Could not flush disk cache segment {}", segment.getId(), e);
+                }
+                segment.close();
+            }
+            segments.clear();
+            index.clear();
+            keyIndex.clear();
+            activeSegment = null;
+        }
+        log.info("DiskHttpCacheStoreImpl deactivated.");
+    }
+
+    //-------------------------<CacheStore interface specific implementation>
     @Override
     public void put(CacheKey key, CacheContent content) throws HttpCacheDataStreamException {
-        throw new NotImplementedException();
+        final long currentTime = System.currentTimeMillis();
+        incrementLoadCount();
+
+        final byte[] keyBytes;
+        final byte[] metaBytes;
+        try {
+            keyBytes = serialize(key);
+            metaBytes = DiskCacheMetadata.encode(content);
+        } catch (IOException e) {
+            incrementLoadExceptionCount();
+            throw new HttpCacheDataStreamException("Unable to serialize cache entry", e);
+        }
+
+        // The body is written to a record file of its own first, so slow responses do not hold up other writers. Only
+        // publishing the finished record into the active segment happens under the write lock.
+        DiskCacheSegment staging = null;
+        try {
+            staging = DiskCacheSegment.createTemporary(tempDirectory);
+            final DiskCacheEntry staged = staging.append(DiskCacheSegment.TYPE_ENTRY, keyBytes, metaBytes,
+                    content.getInputDataStream(), getExpiresOn(key, currentTime));
+
+            synchronized (writeLock) {
+                rollSegmentIfFull();
+                final long offset = activeSegment.transferFrom(staging, staged.getRecordOffset(), staged.getRecordLength());
+                markDead(index.put(key, staged.relocate(activeSegment.getId(), offset)));
+                keyIndex.add(key, index::containsKey);
+                enforceMaxSize();
+            }
+        } catch (IOException e) {
+            incrementLoadExceptionCount();
+            throw new HttpCacheDataStreamException("Unable to write cache entry to disk", e);
+        } finally {
+            if (staging != null) {
+                staging.delete();
+            }
+        }
+
+        incrementLoadSuccessCount();
+        incrementTotalLoadTime(System.currentTimeMillis() - currentTime);
     }
 
     @Override
     public boolean contains(CacheKey key) {
-        throw new NotImplementedException();
+        return getLiveEntry(key, System.currentTimeMillis()) != null;
     }
 
     @Override
     public CacheContent getIfPresent(CacheKey key) {
-        throw new NotImplementedException();
+        final long currentTime = System.currentTimeMillis();
+        incrementRequestCount();
+
+        final DiskCacheEntry entry = getLiveEntry(key, currentTime);
+        final DiskCacheSegment segment = entry == null ? null : segments.get(entry.getSegmentId());
+        if (segment != null) {
+            try {
+                final DiskCacheMetadata metadata = readMetadata(segment, entry);
+                final InputStream body = segment.openStream(entry.getBodyOffset(), entry.getBodyLength());
+
+                // Increment hit count
+                entry.incrementHitCount();
+                incrementHitCount();
+                incrementTotalLookupTime(System.currentTimeMillis() - currentTime);
+                return metadata.toCacheContent(body);
+            } catch (IOException e) {
+                log.warn("Could not read disk cache entry for {}, dropping it", key, e);
+                removeEntry(key, entry);
+            }
+        }
+
+        incrementMissCount();
+        incrementTotalLookupTime(System.currentTimeMillis() - currentTime);
+        return null;
     }
 
     @Override
     public long size() {
-        throw new NotImplementedException();
+        return index.size();
+    }
+
+    @Override
+    public void invalidate(CacheKey invalidationKey) {
+        // Only keys related to the invalidated path can be affected; fall back to a full scan if the path is unknown.
+        final Collection<CacheKey> candidates = keyIndex.getCandidates(invalidationKey);
+
+        for (CacheKey key : candidates != null ? candidates : index.keySet()) {
+            if (key.isInvalidatedBy(invalidationKey)) {
+                invalidateKey(key);
+            }
+        }
     }
 
     @Override
-    public void invalidate(CacheKey key) {
-        throw new NotImplementedException();
+    public void invalidate(Collection<CacheKey> invalidationKeys) {
+        if (invalidationKeys.isEmpty()) {
+            return;
+        }
+
+        // A single pass over the keys related to any of the invalidated paths, rather than one pass per path.
+        final CacheKeyInvalidationBatch batch = new CacheKeyInvalidationBatch(invalidationKeys);
+        final Collection<CacheKey> candidates = keyIndex.getCandidates(invalidationKeys);
+
+        for (CacheKey key : candidates != null ? candidates : index.keySet()) {
+            if (batch.invalidates(key)) {
+                invalidateKey(key);
+            }
+        }
     }
 
     @Override
     public void invalidate(HttpCacheConfig cacheConfig) {
-        throw new NotImplementedException();
+        for (CacheKey key : index.keySet()) {
+            // Match the cache key with cache config.
+            try {
+                if (cacheConfig.knows(key)) {
+                    // If matches, invalidate that particular key.
+                    invalidateKey(key);
+                }
+            } catch (HttpCacheKeyCreationException e) {
+                log.error("Could not invalidate HTTP cache. Falling back to full cache invalidation.", e);
+                this.invalidateAll();
+                return;
+            }
+        }
     }
 
     @Override
     public void invalidateAll() {
-        throw new NotImplementedException();
+        synchronized (writeLock) {
+            final int evicted = index.size();
+            index.clear();
+            keyIndex.clear();
+            for (DiskCacheSegment segment : segments.values()) {
+                segment.delete();
+            }
+            segments.clear();
+            try {
+                activeSegment = openSegment();
+            } catch (IOException e) {
+                activeSegment = null;
+                log.error("Could not create a new disk cache segment", e);
+            }
+            incrementEvictionCount(evicted);
+        }
     }
 
     @Override
     public TempSink createTempSink() {
-        throw new NotImplementedException();
+        return new DiskTempSinkImpl(tempDirectory);
     }
 
     @Override
@@ -88,5 +382,366 @@ public class DiskHttpCacheStoreImpl implements HttpCacheStore {
         return HttpCacheStore.VALUE_DISK_CACHE_STORE_TYPE;
     }
 
+    //-------------------------<Scheduled maintenance>
+
+    @Override
+    public void run() {
+        purgeExpiredEntries();
+        compactSegments();
+        sweepTempDirectory(STALE_TEMP_FILE_AGE);
+    }
+
+    @Override
+    public void purgeExpiredEntries() {
+        final long currentTime = System.currentTimeMillis();
+        for (Map.Entry<CacheKey, DiskCacheEntry> entry : index.entrySet()) {
+            if (entry.getValue().isExpired(currentTime)) {
+                removeEntry(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    @Override
+    public void compactSegments() {
+        synchronized (writeLock) {
+            final DiskCacheSegment active = activeSegment;
+            for (DiskCacheSegment segment : new ArrayList<>(segments.values())) {
+                if (segment != active && segment.size() > 0
+                        && segment.getDeadBytes() * 100 >= segment.size() * compactionThreshold) {
+                    try {
+                        compact(segment);
+                    } catch (IOException e) {
+                        log.error("Could not compact disk cache segment {}", segment.getId(), e);
+                    }
+                }
+            }
+        }
+    }
+
+    //-------------------------<Segment management>
+
+    /**
+     * Rebuilds the index from the segment files found on disk. Later records win over earlier ones, tombstones remove
+     * the key, and expired or unreadable records are accounted as dead bytes.
+     */
+    private void loadSegments() throws IOException {
+        final long currentTime = System.currentTimeMillis();
+        final File[] files = segmentDirectory.listFiles();
+        final List<Integer> ids = new ArrayList<>();
+        if (files != null) {
+            for (File file : files) {
+                final int id = DiskCacheSegment.parseId(file.getName());
+                if (id >= 0) {
+                    ids.add(id);
+                }
+            }
+        }
+        ids.sort(null);
+
+        for (Integer id : ids) {
+            final DiskCacheSegment segment = DiskCacheSegment.open(segmentDirectory, id);
+            segments.put(id, segment);
+            nextSegmentId = id + 1;
+
+            final long validLength = segment.scan((type, keyBytes, record) -> restore(segment, type, keyBytes, record, currentTime));
+            if (validLength == 0) {
+                segments.remove(id);
+                segment.delete();
+                continue;
+            }
+            if (validLength < segment.size()) {
+                segment.truncate(validLength);
+            }
+            segment.seal();
+        }
+
+        activeSegment = openSegment();
+    }
+
+    private void restore(DiskCacheSegment segment, byte type, byte[] keyBytes, DiskCacheEntry record, long currentTime) {
+        final CacheKey key = deserialize(keyBytes);
+        if (key == null) {
+            segment.markDead(record.getRecordLength());
+        } else if (type == DiskCacheSegment.TYPE_TOMBSTONE) {
+            markDead(index.remove(key));
+            segment.markDead(record.getRecordLength());
+        } else if (record.isExpired(currentTime)) {
+            markDead(index.remove(key));
+            segment.markDead(record.getRecordLength());
+        } else {
+            markDead(index.put(key, record));
+        }
+    }
+
+    /**
+     * Moves the records of the given segment which are still referenced by the index to the active segment, and drops
+     * the segment file. Tombstones are carried over as long as older segments may still hold the invalidated record.
+     */
+    private void compact(final DiskCacheSegment segment) throws IOException {
+        final int segmentId = segment.getId();
+
+        if (segments.firstKey() < segmentId) {
+            segment.scan((type, keyBytes, record) -> {
+                if (type == DiskCacheSegment.TYPE_TOMBSTONE) {
+                    final CacheKey key = deserialize(keyBytes);
+                    if (key == null || !index.containsKey(key)) {
+                        rollSegmentIfFull();
+                        activeSegment.transferFrom(segment, record.getRecordOffset(), record.getRecordLength());
+                        activeSegment.markDead(record.getRecordLength());
+                    }
+                }
+            });
+        }
+
+        for (Map.Entry<CacheKey, DiskCacheEntry> entry : index.entrySet()) {
+            final DiskCacheEntry record = entry.getValue();
+            if (record.getSegmentId() == segmentId) {
+                rollSegmentIfFull();
+                final long offset = activeSegment.transferFrom(segment, record.getRecordOffset(), record.getRecordLength());
+                entry.setValue(record.relocate(activeSegment.getId(), offset));
+            }
+        }
+
+        segments.remove(segmentId);
+        segment.delete();
+        log.debug("Compacted disk cache segment {}", segmentId);
+    }
+
+    /**
+     * Evicts whole segments, oldest first, until the store fits in its size budget again.
+     */
+    private void enforceMaxSize() {
+        final long maxSize = maxSizeInMb * MEGABYTE;
+        while (getTotalSegmentSize() > maxSize && segments.size() > 1) {
+            final DiskCacheSegment oldest = segments.firstEntry().getValue();
+            if (oldest == activeSegment) {
+                break;
+            }
+
+            final int oldestId = oldest.getId();
+            int evicted = 0;
+            for (Map.Entry<CacheKey, DiskCacheEntry> entry : index.entrySet()) {
+                if (entry.getValue().getSegmentId() == oldestId && index.remove(entry.getKey(), entry.getValue())) {
+                    keyIndex.remove(entry.getKey(), index::containsKey);
+                    evicted++;
+                }
+            }
+
+            segments.remove(oldestId);
+            oldest.delete();
+            incrementEvictionCount(evicted);
+            log.debug("Evicted disk cache segment {} holding {} entries", oldestId, evicted);
+        }
+    }
+
+    private void rollSegmentIfFull() throws IOException {
+        if (activeSegment == null) {
+            activeSegment = openSegment();
+        } else if (activeSegment.size() >= segmentSizeInBytes) {
+            activeSegment.seal();
+            activeSegment = openSegment();
+        }
+    }
+
+    private DiskCacheSegment openSegment() throws IOException {
+        final DiskCacheSegment segment = DiskCacheSegment.open(segmentDirectory, nextSegmentId++);
+        segments.put(segment.getId(), segment);
+        return segment;
+    }
+
+    private long getTotalSegmentSize() {
+        long total = 0;
+        for (DiskCacheSegment segment : segments.values()) {
+            total += segment.size();
+        }
+        return total;
+    }
+
+    //-------------------------<Index management>
+
+    private DiskCacheEntry getLiveEntry(CacheKey key, long currentTime) {
+        final DiskCacheEntry entry = index.get(key);
+        if (entry != null && entry.isExpired(currentTime)) {
+            removeEntry(key, entry);
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Removes an entry that is gone for good (expired or unreadable). No tombstone is needed as the record itself
+     * carries its expiry.
+     */
+    private void removeEntry(CacheKey key, DiskCacheEntry entry) {
+        synchronized (writeLock) {
+            if (index.remove(key, entry)) {
+                keyIndex.remove(key, index::containsKey);
+                markDead(entry);
+                incrementEvictionCount(1);
+            }
+        }
+    }
+
+    /**
+     * Removes an entry and appends a tombstone for it, so the invalidation also holds after the index is rebuilt.
+     */
+    private void invalidateKey(CacheKey key) {
+        synchronized (writeLock) {
+            final DiskCacheEntry entry = index.remove(key);
+            if (entry == null) {
+                return;
+            }
+            keyIndex.remove(key, index::containsKey);
+            markDead(entry);
+            incrementEvictionCount(1);
+
+            final DiskCacheSegment segment = segments.get(entry.getSegmentId());
+            if (segment == null) {
+                return;
+            }
+            try {
+                final byte[] keyBytes = segment.read(entry.getKeyOffset(), entry.getKeyLength());
+                rollSegmentIfFull();
+                final DiskCacheEntry tombstone = activeSegment.append(DiskCacheSegment.TYPE_TOMBSTONE, keyBytes,
+                        new byte[0], null, -1L);
+                activeSegment.markDead(tombstone.getRecordLength());
+            } catch (IOException e) {
+                log.warn("Could not persist invalidation of {}", key, e);
+            }
+        }
+    }
+
+    private void markDead(DiskCacheEntry entry) {
+        if (entry == null) {
+            return;
+        }
+        final DiskCacheSegment segment = segments.get(entry.getSegmentId());
+        if (segment != null) {
+            segment.markDead(entry.getRecordLength());
+        }
+    }
+
+    private long getExpiresOn(CacheKey key, long currentTime) {
+        // Key specific expiry is in milliseconds, the store TTL in seconds.
+        if (key.getExpiryForCreation() > 0) {
+            return currentTime + key.getExpiryForCreation();
+        } else if (ttl > 0) {
+            return currentTime + TimeUnit.SECONDS.toMillis(ttl);
+        }
+        return -1L;
+    }
 
+    private DiskCacheMetadata readMetadata(DiskCacheSegment segment, DiskCacheEntry entry) throws IOException {
+        return DiskCacheMetadata.decode(segment.read(entry.getMetaOffset(), entry.getMetaLength()));
+    }
+
+    private byte[] serialize(CacheKey key) throws IOException {
+        final ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        try (ObjectOutputStream objectOutputStream = new ObjectOutputStream(byteArrayOutputStream)) {
+            objectOutputStream.writeObject(key);
+        }
+        return byteArrayOutputStream.toByteArray();
+    }
+
+    private CacheKey deserialize(byte[] keyBytes) {
+        final ClassLoader classLoader = dclm != null ? dclm.getDynamicClassLoader() : getClass().getClassLoader();
+
+        try (DynamicObjectInputStream in = new DynamicObjectInputStream(new ByteArrayInputStream(keyBytes), classLoader)) {
+            return (CacheKey) in.readObject();
+        } catch (IOException | ClassNotFoundException | ClassCastException e) {
+            log.debug("Could not restore a cache key from disk, skipping its record", e);
+            return null;
+        }
+    }
+
+    private void sweepTempDirectory(long minimumAge) {
+        final File[] files = tempDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        final long threshold = System.currentTimeMillis() - minimumAge;
+        for (File file : files) {
+            final String name = file.getName();
+            if ((name.startsWith(DiskTempSinkImpl.FILE_PREFIX) || name.startsWith(DiskCacheSegment.TEMP_FILE_PREFIX))
+                    && file.lastModified() <= threshold && !file.delete()) {
+                log.debug("Could not delete stale temp sink {}", file.getAbsolutePath());
+            }
+        }
+    }
+
+    //-------------------------<Mbean specific implementation>
+
+    @Override
+    public long getTtl() {
+        return this.ttl;
+    }
+
+    @Override
+    public void clearCache() {
+        invalidateAll();
+    }
+
+    @Override
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    @Override
+    public String getDiskUsage() {
+        return FileUtils.byteCountToDisplaySize(getTotalSegmentSize());
+    }
+
+    @Override
+    protected Map<CacheKey, DiskCacheEntry> getCacheAsMap() {
+        return index;
+    }
+
+    @Override
+    protected long getBytesLength(DiskCacheEntry cacheObj) {
+        return cacheObj.getBodyLength();
+    }
+
+    @Override
+    @SuppressWarnings("squid:S1192")
+    protected void addCacheData(Map<String, Object> data, DiskCacheEntry cacheObj) {
+        int hitCount = cacheObj.getHitCount();
+        long size = cacheObj.getBodyLength();
+        data.put(JMX_PN_SIZE, FileUtils.byteCountToDisplaySize(size));
+        data.put(JMX_PN_HITS, hitCount);
+        data.put(JMX_PN_TOTALSIZESERVED, FileUtils.byteCountToDisplaySize(hitCount * size));
+
+        final DiskCacheSegment segment = segments.get(cacheObj.getSegmentId());
+        try {
+            if (segment != null) {
+                final DiskCacheMetadata metadata = readMetadata(segment, cacheObj);
+                data.put(JMX_PN_STATUS, metadata.getStatus());
+                data.put(JMX_PN_CONTENTTYPE, metadata.getContentType());
+                data.put(JMX_PN_CHARENCODING, metadata.getCharEncoding());
+            }
+        } catch (IOException e) {
+            log.error("Error adding cache data to JMX data map", e);
+        }
+    }
+
+    @Override
+    protected String toString(DiskCacheEntry cacheObj) throws CacheMBeanException {
+        final DiskCacheSegment segment = segments.get(cacheObj.getSegmentId());
+        if (segment == null) {
+            throw new CacheMBeanException("The segment holding this entry has been evicted");
+        }
+        try (InputStream body = segment.openStream(cacheObj.getBodyOffset(), cacheObj.getBodyLength())) {
+            return IOUtils.toString(body, StringUtils.defaultIfEmpty(readMetadata(segment, cacheObj).getCharEncoding(), "UTF-8"));
+        } catch (IOException e) {
+            throw new CacheMBeanException("Error getting the content from the cacheObject", e);
+        }
+    }
+
+    @Override
+    @SuppressWarnings("squid:S1192")
+    protected CompositeType getCacheEntryType() throws OpenDataException {
+        return new CompositeType(JMX_PN_CACHEENTRY, JMX_PN_CACHEENTRY,
+                new String[] { JMX_PN_CACHEKEY, JMX_PN_STATUS, JMX_PN_SIZE, JMX_PN_CONTENTTYPE, JMX_PN_CHARENCODING, JMX_PN_HITS, JMX_PN_TOTALSIZESERVED },
+                new String[] { JMX_PN_CACHEKEY, JMX_PN_STATUS, JMX_PN_SIZE, JMX_PN_CONTENTTYPE, JMX_PN_CHARENCODING, JMX_PN_HITS, JMX_PN_TOTALSIZESERVED },
+                new OpenType[] { SimpleType.STRING, SimpleType.INTEGER, SimpleType.STRING, SimpleType.STRING, SimpleType.STRING, SimpleType.INTEGER, SimpleType.STRING });
+    }
 }
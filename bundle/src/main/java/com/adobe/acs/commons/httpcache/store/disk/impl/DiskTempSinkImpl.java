@@ -0,0 +1,107 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2019 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.httpcache.store.disk.impl;
+
+import com.adobe.acs.commons.httpcache.exception.HttpCacheDataStreamException;
+import com.adobe.acs.commons.httpcache.store.TempSink;
+import org.apache.commons.io.IOUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * TempSink implementation for the disk cache store. Spools the response into a temporary file so that large responses
+ * do not have to be buffered on the heap. The file is removed once the input stream is closed.
+ */
+public class DiskTempSinkImpl implements TempSink {
+    static final String FILE_PREFIX = "sink-";
+    static final String FILE_SUFFIX = ".tmp";
+
+    private final File directory;
+    private File file;
+    private OutputStream outputStream;
+    private long length = -1;
+
+    public DiskTempSinkImpl(File directory) {
+        this.directory = directory;
+    }
+
+    @Override
+    public OutputStream createOutputStream() throws HttpCacheDataStreamException {
+        if (null == outputStream) {
+            try {
+                file = File.createTempFile(FILE_PREFIX, FILE_SUFFIX, directory);
+                outputStream = new FileOutputStream(file);
+            } catch (IOException e) {
+                throw new HttpCacheDataStreamException("Unable to create disk temp sink", e);
+            }
+        }
+        return outputStream;
+    }
+
+    @Override
+    public InputStream createInputStream() throws HttpCacheDataStreamException {
+        if (null == file) {
+            return new ByteArrayInputStream(new byte[0]);
+        }
+
+        IOUtils.closeQuietly(outputStream);
+        length = file.length();
+        try {
+            return new DeleteOnCloseInputStream(file);
+        } catch (IOException e) {
+            throw new HttpCacheDataStreamException("Unable to read disk temp sink", e);
+        }
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    /**
+     * Removes the spooled file once the response has been persisted into the store.
+     */
+    private static final class DeleteOnCloseInputStream extends FilterInputStream {
+        private final File file;
+
+        DeleteOnCloseInputStream(File file) throws IOException {
+            super(new FileInputStream(file));
+            this.file = file;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                if (!file.delete() && file.exists()) {
+                    file.deleteOnExit();
+                }
+            }
+        }
+    }
+}
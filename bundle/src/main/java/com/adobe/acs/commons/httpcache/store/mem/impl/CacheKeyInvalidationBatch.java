@@ -0,0 +1,118 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2019 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.httpcache.store.mem.impl;
+
+import com.adobe.acs.commons.httpcache.keys.CacheKey;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Invalidation keys of a batch, grouped by their hierarchy resource path. A cached key is only checked against the
+ * invalidation keys a {@link CacheKeyPathIndex} lookup would have returned it for, i.e. the keys on its path, on its
+ * ancestors and below it, so evaluating a batch gives the same result as invalidating its keys one by one.
+ */
+public final class CacheKeyInvalidationBatch {
+    private static final String ROOT = "/";
+
+    private final List<CacheKey> unindexed = new ArrayList<>();
+    private final NavigableMap<String, List<CacheKey>> keysByPath = new TreeMap<>();
+
+    /**
+     * @param invalidationKeys keys built for the invalidated paths
+     */
+    public CacheKeyInvalidationBatch(Collection<CacheKey> invalidationKeys) {
+        for (CacheKey invalidationKey : invalidationKeys) {
+            final String path = invalidationKey.getHierarchyResourcePath();
+            if (path == null) {
+                unindexed.add(invalidationKey);
+            } else {
+                keysByPath.computeIfAbsent(CacheKeyPathIndex.normalize(path), p -> new ArrayList<>(1))
+                        .add(invalidationKey);
+            }
+        }
+    }
+
+    /**
+     * @param cachedKey a cached key
+     * @return true if any key of the batch invalidates the cached key
+     */
+    public boolean invalidates(CacheKey cachedKey) {
+        if (isInvalidatedByAny(cachedKey, unindexed)) {
+            return true;
+        }
+
+        final String hierarchyResourcePath = cachedKey.getHierarchyResourcePath();
+        if (hierarchyResourcePath == null) {
+            // Keys without a path are candidates for every invalidation.
+            for (List<CacheKey> invalidationKeys : keysByPath.values()) {
+                if (isInvalidatedByAny(cachedKey, invalidationKeys)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        // Invalidation keys on the cached key's path and on its ancestors.
+        final String path = CacheKeyPathIndex.normalize(hierarchyResourcePath);
+        String ancestor = path;
+        while (ancestor != null) {
+            if (isInvalidatedByAny(cachedKey, keysByPath.get(ancestor))) {
+                return true;
+            }
+            ancestor = getParent(ancestor);
+        }
+
+        // Invalidation keys below the cached key's path.
+        final String prefix = ROOT.equals(path) ? ROOT : path + ROOT;
+        for (Map.Entry<String, List<CacheKey>> entry : keysByPath.tailMap(prefix, true).entrySet()) {
+            if (!entry.getKey().startsWith(prefix)) {
+                break;
+            }
+            if (!entry.getKey().equals(path) && isInvalidatedByAny(cachedKey, entry.getValue())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isInvalidatedByAny(CacheKey cachedKey, List<CacheKey> invalidationKeys) {
+        if (invalidationKeys != null) {
+            for (CacheKey invalidationKey : invalidationKeys) {
+                if (cachedKey.isInvalidatedBy(invalidationKey)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static String getParent(String path) {
+        if (ROOT.equals(path)) {
+            return null;
+        }
+        final int separator = path.lastIndexOf('/');
+        return separator == 0 ? ROOT : path.substring(0, separator);
+    }
+}
@@ -0,0 +1,281 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2019 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.httpcache.store.mem.impl;
+
+import com.adobe.acs.commons.httpcache.keys.CacheKey;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Predicate;
+
+/**
+ * Secondary index of cache keys by their hierarchy resource path, so invalidation only has to evaluate
+ * {@link CacheKey#isInvalidatedBy(CacheKey)} for keys related to the invalidated path instead of every cached key.
+ * <p>
+ * Keys are stored in a trie keyed by path segments. The candidates for an invalidation are the keys on the invalidated
+ * path, on any of its ancestors, and anywhere below it. Keys without a hierarchy resource path cannot be placed in the
+ * trie and are always returned as candidates.
+ * <p>
+ * All methods are synchronized on the index. Stores pass a predicate telling whether the key is still cached, which
+ * is evaluated under that lock so that a removal notification racing with a put of the same key cannot drop a live key
+ * from the index.
+ */
+public final class CacheKeyPathIndex {
+    private static final char SEPARATOR = '/';
+
+    private final Node root = new Node(null, null);
+    private final Set<CacheKey> unindexed = new HashSet<>();
+    private int size;
+
+    /**
+     * Adds the key to the index, provided it is (still) cached.
+     *
+     * @param key the key that was put into the cache
+     * @param cached tells whether the key is currently held by the cache
+     */
+    public synchronized void add(CacheKey key, Predicate<CacheKey> cached) {
+        if (!cached.test(key)) {
+            return;
+        }
+
+        final String path = key.getHierarchyResourcePath();
+        final boolean added;
+        if (path == null) {
+            added = unindexed.add(key);
+        } else {
+            added = getOrCreate(path).getKeys().add(key);
+        }
+        if (added) {
+            size++;
+        }
+    }
+
+    /**
+     * Removes the key from the index, unless the cache holds it again.
+     *
+     * @param key the key removed from the cache
+     * @param cached tells whether the key is currently held by the cache
+     */
+    public synchronized void remove(CacheKey key, Predicate<CacheKey> cached) {
+        if (cached.test(key)) {
+            return;
+        }
+
+        final String path = key.getHierarchyResourcePath();
+        if (path == null) {
+            if (unindexed.remove(key)) {
+                size--;
+            }
+            return;
+        }
+
+        Node node = find(path);
+        if (node != null && node.keys != null && node.keys.remove(key)) {
+            size--;
+            // Prune nodes which no longer hold keys, so the trie does not outgrow the cache.
+            while (node.parent != null && node.isEmpty()) {
+                node.parent.children.remove(node.segment);
+                node = node.parent;
+            }
+        }
+    }
+
+    /**
+     * Collects the keys which may be invalidated by the given key.
+     *
+     * @param invalidationKey key built for the invalidated path
+     * @return the candidate keys, or null if the invalidation key has no hierarchy resource path and every key must be
+     * considered.
+     */
+    public synchronized Collection<CacheKey> getCandidates(CacheKey invalidationKey) {
+        final String path = invalidationKey.getHierarchyResourcePath();
+        if (path == null) {
+            return null;
+        }
+
+        final List<CacheKey> candidates = new ArrayList<>(unindexed);
+        collect(path, candidates, null);
+        return candidates;
+    }
+
+    /**
+     * Collects the keys which may be invalidated by any of the given keys, each of them once. Paths below another
+     * invalidated path are covered by the candidates of that path and are not walked again.
+     *
+     * @param invalidationKeys keys built for the invalidated paths
+     * @return the candidate keys, or null if any invalidation key has no hierarchy resource path and every key must be
+     * considered.
+     */
+    public synchronized Collection<CacheKey> getCandidates(Collection<CacheKey> invalidationKeys) {
+        // Sorted, so ancestors are walked before their descendants.
+        final Set<String> paths = new TreeSet<>();
+        for (CacheKey invalidationKey : invalidationKeys) {
+            final String path = invalidationKey.getHierarchyResourcePath();
+            if (path == null) {
+                return null;
+            }
+            paths.add(path);
+        }
+
+        final Set<CacheKey> candidates = new HashSet<>(unindexed);
+        final Set<Node> collectedSubtrees = new HashSet<>();
+        for (String path : paths) {
+            collect(path, candidates, collectedSubtrees);
+        }
+        return candidates;
+    }
+
+    /**
+     * Adds the keys on the path's ancestors, on the path and below it.
+     *
+     * @param collectedSubtrees nodes whose subtree was collected already and can be skipped, or null
+     */
+    private void collect(String path, Collection<CacheKey> candidates, Set<Node> collectedSubtrees) {
+        // Keys on the invalidated path's ancestors.
+        Node node = root;
+        for (String segment : split(path)) {
+            if (collectedSubtrees != null && collectedSubtrees.contains(node)) {
+                return;
+            }
+            if (node.keys != null) {
+                candidates.addAll(node.keys);
+            }
+            node = node.children == null ? null : node.children.get(segment);
+            if (node == null) {
+                return;
+            }
+        }
+        if (collectedSubtrees != null && !collectedSubtrees.add(node)) {
+            return;
+        }
+
+        // Keys on the invalidated path and below.
+        final Deque<Node> stack = new ArrayDeque<>();
+        stack.push(node);
+        while (!stack.isEmpty()) {
+            final Node current = stack.pop();
+            if (current.keys != null) {
+                candidates.addAll(current.keys);
+            }
+            if (current.children != null) {
+                for (Node child : current.children.values()) {
+                    stack.push(child);
+                }
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        root.children = null;
+        root.keys = null;
+        unindexed.clear();
+        size = 0;
+    }
+
+    /**
+     * @return the number of keys in the index.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    private Node find(String path) {
+        Node node = root;
+        for (String segment : split(path)) {
+            node = node.children == null ? null : node.children.get(segment);
+            if (node == null) {
+                return null;
+            }
+        }
+        return node;
+    }
+
+    private Node getOrCreate(String path) {
+        Node node = root;
+        for (String segment : split(path)) {
+            node = node.getOrCreateChild(segment);
+        }
+        return node;
+    }
+
+    /**
+     * @param path a resource path
+     * @return the path as the index sees it, i.e. without empty segments and trailing separator
+     */
+    static String normalize(String path) {
+        final StringBuilder normalized = new StringBuilder(path.length());
+        for (String segment : split(path)) {
+            normalized.append(SEPARATOR).append(segment);
+        }
+        return normalized.length() == 0 ? String.valueOf(SEPARATOR) : normalized.toString();
+    }
+
+    private static List<String> split(String path) {
+        final List<String> segments = new ArrayList<>();
+        int start = 0;
+        for (int i = 0; i <= path.length(); i++) {
+            if (i == path.length() || path.charAt(i) == SEPARATOR) {
+                if (i > start) {
+                    segments.add(path.substring(start, i));
+                }
+                start = i + 1;
+            }
+        }
+        return segments;
+    }
+
+    private static final class Node {
+        private final Node parent;
+        private final String segment;
+        private Map<String, Node> children;
+        private Set<CacheKey> keys;
+
+        Node(Node parent, String segment) {
+            this.parent = parent;
+            this.segment = segment;
+        }
+
+        Node getOrCreateChild(String childSegment) {
+            if (children == null) {
+                children = new HashMap<>(4);
+            }
+            return children.computeIfAbsent(childSegment, s -> new Node(this, s));
+        }
+
+        Set<CacheKey> getKeys() {
+            if (keys == null) {
+                keys = new HashSet<>(2);
+            }
+            return keys;
+        }
+
+        boolean isEmpty() {
+            return (keys == null || keys.isEmpty()) && (children == null || children.isEmpty());
+        }
+    }
+}
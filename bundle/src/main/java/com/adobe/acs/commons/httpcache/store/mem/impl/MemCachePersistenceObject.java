@@ -21,11 +21,16 @@ package com.adobe.acs.commons.httpcache.store.mem.impl;
 
 import com.adobe.acs.commons.httpcache.engine.HttpCacheServletResponseWrapper;
 import com.adobe.acs.commons.httpcache.exception.HttpCacheDataStreamException;
-import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.Multimaps;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.Serializable;
@@ -35,11 +40,25 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Value for cache item in mem store.
  */
 public class MemCachePersistenceObject implements Serializable {
+    /** Header names and values repeat across entries (content types, cache control, ...), keep a single copy of each. */
+    private static final Interner<String> HEADER_INTERNER = Interners.newWeakInterner();
+
+    /** Bodies smaller than this are not worth compressing. */
+    static final int GZIP_MIN_LENGTH = 1024;
+
+    /** Estimated heap held by an entry besides its body: the entry itself, its key and the cache's bookkeeping. */
+    static final int ENTRY_OVERHEAD = 256;
+
+    /** Estimated heap held by each header value; names and values themselves are interned and shared. */
+    static final int HEADER_OVERHEAD = 64;
+
     /** Response status **/
     private int status;
     /** Response character encoding */
@@ -48,12 +67,22 @@ public class MemCachePersistenceObject implements Serializable {
     private String contentType;
     /** Response headers */
     Multimap<String, String> headers;
-    /** Byte array to hold the data from the stream */
+    /** Byte array to hold the data from the stream, unless the body is held off-heap */
     private byte[] bytes;
+    /** Body held in direct memory, if the store keeps bodies off-heap */
+    private transient MemDirectBody directBody;
+    /** Length of the body as stored, i.e. compressed if gzipped */
+    private int bodyLength;
+    /** Whether the body is stored gzip compressed */
+    private boolean gzipped;
     private HttpCacheServletResponseWrapper.ResponseWriteMethod writeMethod;
 
     AtomicInteger count = new AtomicInteger(0);
 
+    /** Point in time (epoch milliseconds) until which the entry is fresh. Stale entries are only served within the
+     * stale grace period of the store. */
+    private volatile long freshUntil = Long.MAX_VALUE;
+
     /**
      * Create <code>MemCachePersistenceObject</code>. Use <code>buildForCaching</code> method to initialize parameters.
      */
@@ -73,6 +102,24 @@ public class MemCachePersistenceObject implements Serializable {
      */
     public MemCachePersistenceObject buildForCaching(int status, String charEncoding, String contentType, Map<String,
             List<String>> headers, InputStream dataInputStream, HttpCacheServletResponseWrapper.ResponseWriteMethod writeMethod) throws HttpCacheDataStreamException {
+        return buildForCaching(status, charEncoding, contentType, headers, dataInputStream, writeMethod, null, false);
+    }
+
+    /**
+     * Construct a Mem cache value suitable for caching, optionally compressing the body and holding it off-heap.
+     *
+     * @param charEncoding
+     * @param contentType
+     * @param headers
+     * @param dataInputStream
+     * @param pool pool to hold the body in direct memory, null to keep it on the heap
+     * @param gzip whether to store compressible bodies gzip compressed
+     * @throws HttpCacheDataStreamException
+     */
+    @SuppressWarnings("squid:S00107")
+    public MemCachePersistenceObject buildForCaching(int status, String charEncoding, String contentType, Map<String,
+            List<String>> headers, InputStream dataInputStream, HttpCacheServletResponseWrapper.ResponseWriteMethod writeMethod,
+            MemSlabPool pool, boolean gzip) throws HttpCacheDataStreamException {
 
         this.status = status;
         this.charEncoding = charEncoding;
@@ -80,26 +127,65 @@ public class MemCachePersistenceObject implements Serializable {
         this.writeMethod = writeMethod;
 
         // Iterate headers and take a copy.
-        this.headers = HashMultimap.create();
+        final ImmutableSetMultimap.Builder<String, String> headersBuilder = ImmutableSetMultimap.builder();
         for (Map.Entry<String, List<String>> entry : headers.entrySet()) {
             for (String value : entry.getValue()) {
                 if (!"Sling-Tracer-Protocol-Version".equals(entry.getKey()) && !"Sling-Tracer-Request-Id".equals(entry.getKey())) {
                     // Do NOT cache Sling Tracer headers as this makes debugging difficult and confusing!
-                    this.headers.put(entry.getKey(), value);
+                    headersBuilder.put(HEADER_INTERNER.intern(entry.getKey()), HEADER_INTERNER.intern(value));
                 }
             }
         }
+        this.headers = headersBuilder.build();
 
         // Read input stream and place it in a byte array.
+        byte[] body;
         try {
-            this.bytes = IOUtils.toByteArray(dataInputStream);
+            body = IOUtils.toByteArray(dataInputStream);
         } catch (IOException e) {
             throw new HttpCacheDataStreamException("Unable to get byte array out of stream", e);
         }
 
+        if (gzip && isCompressible(body.length)) {
+            final byte[] compressed = compress(body);
+            // Only keep the compressed body if it pays off.
+            if (compressed.length < body.length) {
+                body = compressed;
+                gzipped = true;
+            }
+        }
+
+        bodyLength = body.length;
+        directBody = pool != null && bodyLength > 0 ? MemDirectBody.create(pool, body, bodyLength) : null;
+        this.bytes = directBody == null ? body : null;
+
         return this;
     }
 
+    private boolean isCompressible(int length) {
+        if (length < GZIP_MIN_LENGTH || contentType == null) {
+            return false;
+        }
+        for (String name : headers.keySet()) {
+            if ("Content-Encoding".equalsIgnoreCase(name)) {
+                // Already encoded by the application.
+                return false;
+            }
+        }
+        return contentType.startsWith("text/")
+                || StringUtils.containsAny(contentType, new String[] {"json", "javascript", "xml"});
+    }
+
+    private static byte[] compress(byte[] body) throws HttpCacheDataStreamException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(body.length / 4);
+        try (GZIPOutputStream gzipOut = new GZIPOutputStream(out)) {
+            gzipOut.write(body);
+        } catch (IOException e) {
+            throw new HttpCacheDataStreamException("Unable to compress the response body", e);
+        }
+        return out.toByteArray();
+    }
+
     /**
      * Get response status
      * @return the status code
@@ -145,14 +231,96 @@ public class MemCachePersistenceObject implements Serializable {
     }
 
     /**
-     * Get the data byte array
+     * Get the data byte array. The body is decompressed or copied from direct memory if needed, prefer
+     * {@link #getInputStream()} to deliver it.
      *
-     * @return
+     * @return the body, or null if the entry has been released
      */
     public byte[] getBytes() {
-        return bytes;
+        if (bytes != null && !gzipped) {
+            return bytes;
+        }
+        try (InputStream in = getInputStream()) {
+            return in == null ? null : IOUtils.toByteArray(in);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to read the cached body", e);
+        }
+    }
+
+    /**
+     * Opens a stream on the (decompressed) body. The stream must be closed, so an off-heap body can be recycled once
+     * the entry is removed from the cache.
+     *
+     * @return the stream, or null if the entry has been released
+     * @throws IOException if the compressed body cannot be read
+     */
+    public InputStream getInputStream() throws IOException {
+        final InputStream stored = openStoredStream();
+        if (stored == null || !gzipped) {
+            return stored;
+        }
+        try {
+            return new GZIPInputStream(stored);
+        } catch (IOException e) {
+            stored.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens a stream on the gzip compressed body, to be delivered as is to clients accepting gzip.
+     *
+     * @return the stream, or null if the body is not stored compressed or the entry has been released
+     */
+    public InputStream getGzipInputStream() {
+        return gzipped ? openStoredStream() : null;
     }
 
+    private InputStream openStoredStream() {
+        return directBody != null ? directBody.openStream() : new ByteArrayInputStream(bytes);
+    }
+
+    /**
+     * @return true if the body is stored gzip compressed
+     */
+    public boolean isGzipped() {
+        return gzipped;
+    }
+
+    /**
+     * @return true if the body is held in direct memory
+     */
+    public boolean isOffHeap() {
+        return directBody != null;
+    }
+
+    /**
+     * @return the length of the body as stored, i.e. compressed if gzipped
+     */
+    public int getBodySize() {
+        return bodyLength;
+    }
+
+    /**
+     * Estimates the memory held by this entry: the body with the unused tail of its last direct block, plus the
+     * headers and the fixed overhead of an entry.
+     *
+     * @return the weight in bytes
+     */
+    public long getWeight() {
+        final long body = directBody != null ? directBody.getCapacity() : bodyLength;
+        return ENTRY_OVERHEAD + body + (long) headers.size() * HEADER_OVERHEAD;
+    }
+
+    /**
+     * Releases the cache's hold on the body once the entry is removed from the cache. Streams still open on an off-heap
+     * body keep it alive until they are closed.
+     */
+    public void release() {
+        if (directBody != null) {
+            directBody.release();
+        }
+    }
 
     /**
      * Increments the hit for this cache entry.
@@ -171,4 +339,50 @@ public class MemCachePersistenceObject implements Serializable {
     public HttpCacheServletResponseWrapper.ResponseWriteMethod getWriteMethod() {
         return writeMethod;
     }
+
+    /**
+     * Sets the point in time until which this entry is fresh.
+     *
+     * @param freshUntil epoch milliseconds
+     * @return this object
+     */
+    public MemCachePersistenceObject freshUntil(long freshUntil) {
+        this.freshUntil = freshUntil;
+        return this;
+    }
+
+    /**
+     * @return the point in time (epoch milliseconds) until which this entry is fresh
+     */
+    public long getFreshUntil() {
+        return freshUntil;
+    }
+
+    /**
+     * Marks this entry as stale, e.g. because it got invalidated.
+     *
+     * @param now current time in epoch milliseconds
+     */
+    public void markStale(long now) {
+        if (freshUntil > now) {
+            freshUntil = now;
+        }
+    }
+
+    /**
+     * @param now current time in epoch milliseconds
+     * @return true if this entry did not expire and was not invalidated
+     */
+    public boolean isFresh(long now) {
+        return now < freshUntil;
+    }
+
+    /**
+     * @param now current time in epoch milliseconds
+     * @param gracePeriod time in milliseconds a stale entry may still be served
+     * @return true if this entry is fresh, or became stale less than the grace period ago
+     */
+    public boolean isServable(long now, long gracePeriod) {
+        return freshUntil == Long.MAX_VALUE || now < freshUntil + gracePeriod;
+    }
 }
@@ -0,0 +1,196 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2019 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.httpcache.store.mem.impl;
+
+import java.io.InputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Body of a mem cache entry held in direct blocks of a {@link MemSlabPool}.
+ * <p>
+ * The body is reference counted: the cache holds one reference until the entry is removed, and every stream opened on
+ * the body holds one until it is closed or fully read. The blocks go back to the pool once the last reference is
+ * released, so a body evicted while it is being delivered is never overwritten.
+ * </p>
+ */
+final class MemDirectBody {
+    private final MemSlabPool pool;
+    private final ByteBuffer[] blocks;
+    private final int length;
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    private MemDirectBody(MemSlabPool pool, ByteBuffer[] blocks, int length) {
+        this.pool = pool;
+        this.blocks = blocks;
+        this.length = length;
+    }
+
+    /**
+     * Copies the bytes into direct blocks.
+     *
+     * @return the body, or null if the pool is out of direct memory
+     */
+    static MemDirectBody create(MemSlabPool pool, byte[] bytes, int length) {
+        final ByteBuffer[] blocks = pool.allocate(length);
+        if (blocks == null) {
+            return null;
+        }
+
+        int offset = 0;
+        for (ByteBuffer block : blocks) {
+            final int chunk = Math.min(MemSlabPool.BLOCK_SIZE, length - offset);
+            block.put(bytes, offset, chunk);
+            ((Buffer) block).flip();
+            offset += chunk;
+        }
+        return new MemDirectBody(pool, blocks, length);
+    }
+
+    int getLength() {
+        return length;
+    }
+
+    /**
+     * @return the direct memory held by the body, including the unused tail of its last block
+     */
+    long getCapacity() {
+        return (long) blocks.length * MemSlabPool.BLOCK_SIZE;
+    }
+
+    /**
+     * Opens a stream on the body.
+     *
+     * @return the stream, or null if the body has been released already
+     */
+    InputStream openStream() {
+        return retain() ? new BodyInputStream() : null;
+    }
+
+    /**
+     * Copies the body to the heap.
+     *
+     * @return the bytes, or null if the body has been released already
+     */
+    byte[] toByteArray() {
+        if (!retain()) {
+            return null;
+        }
+        try {
+            final byte[] bytes = new byte[length];
+            int offset = 0;
+            for (ByteBuffer block : blocks) {
+                final ByteBuffer view = block.duplicate();
+                final int chunk = view.remaining();
+                view.get(bytes, offset, chunk);
+                offset += chunk;
+            }
+            return bytes;
+        } finally {
+            release();
+        }
+    }
+
+    private boolean retain() {
+        int current;
+        do {
+            current = references.get();
+            if (current <= 0) {
+                return false;
+            }
+        } while (!references.compareAndSet(current, current + 1));
+        return true;
+    }
+
+    /**
+     * Releases a reference, handing the blocks back to the pool with the last one.
+     */
+    void release() {
+        if (references.decrementAndGet() == 0) {
+            pool.release(blocks);
+        }
+    }
+
+    /**
+     * Stream over the blocks. Each stream reads through its own views of the blocks, so streams do not interfere.
+     */
+    private final class BodyInputStream extends InputStream {
+        private final AtomicBoolean released = new AtomicBoolean();
+        private int blockIndex;
+        private ByteBuffer current;
+
+        @Override
+        public int read() {
+            final ByteBuffer block = nextReadable();
+            return block == null ? -1 : block.get() & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            final ByteBuffer block = nextReadable();
+            if (block == null) {
+                return -1;
+            }
+            final int chunk = Math.min(len, block.remaining());
+            block.get(b, off, chunk);
+            return chunk;
+        }
+
+        @Override
+        public int available() {
+            if (released.get()) {
+                return 0;
+            }
+            int available = current == null ? 0 : current.remaining();
+            for (int i = blockIndex; i < blocks.length; i++) {
+                available += blocks[i].remaining();
+            }
+            return available;
+        }
+
+        @Override
+        public void close() {
+            if (released.compareAndSet(false, true)) {
+                current = null;
+                release();
+            }
+        }
+
+        private ByteBuffer nextReadable() {
+            if (released.get()) {
+                return null;
+            }
+            while (current == null || !current.hasRemaining()) {
+                if (blockIndex == blocks.length) {
+                    // Fully read; give the blocks back without waiting for the stream to be closed.
+                    close();
+                    return null;
+                }
+                current = blocks[blockIndex++].duplicate();
+            }
+            return current;
+        }
+    }
+}
@@ -30,6 +30,7 @@ import com.adobe.acs.commons.util.impl.AbstractGuavaCacheMBean;
 import com.adobe.acs.commons.util.impl.exception.CacheMBeanException;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
 import com.google.common.cache.RemovalListener;
 import com.google.common.cache.RemovalNotification;
 import com.google.common.cache.Weigher;
@@ -51,8 +52,9 @@ import javax.management.openmbean.CompositeType;
 import javax.management.openmbean.OpenDataException;
 import javax.management.openmbean.OpenType;
 import javax.management.openmbean.SimpleType;
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
 import java.util.Map;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
@@ -98,14 +100,48 @@ public class MemHttpCacheStoreImpl extends AbstractGuavaCacheMBean<CacheKey, Mem
 
     private long maxSizeInMb;
 
+    @Property(label = "Stale grace period",
+              description = "Time in seconds expired or invalidated entries are kept and can still be served stale "
+                      + "by cache configs which allow it, while they get refreshed. Default to 0 meaning entries are "
+                      + "dropped immediately.",
+              longValue = MemHttpCacheStoreImpl.DEFAULT_STALE_GRACE_PERIOD)
+    private static final String PROP_STALE_GRACE_PERIOD = "httpcache.cachestore.memcache.stale.grace";
+    private static final long DEFAULT_STALE_GRACE_PERIOD = 0L;
+    private long staleGracePeriod;
+
+    @Property(label = "Off-heap bodies",
+              description = "Hold the response bodies in pooled direct memory instead of the java heap, to reduce "
+                      + "garbage collection pressure of large caches. Requires -XX:MaxDirectMemorySize to allow the "
+                      + "maximum size of this store. Default to false.",
+              boolValue = MemHttpCacheStoreImpl.DEFAULT_OFF_HEAP)
+    private static final String PROP_OFF_HEAP = "httpcache.cachestore.memcache.offheap";
+    private static final boolean DEFAULT_OFF_HEAP = false;
+    private MemSlabPool slabPool;
+
+    @Property(label = "Compress bodies",
+              description = "Store textual response bodies gzip compressed. They are delivered as is to clients "
+                      + "accepting gzip, and decompressed for the others. Only enable if every cache in front of AEM "
+                      + "honors the Vary: Accept-Encoding header. Default to false.",
+              boolValue = MemHttpCacheStoreImpl.DEFAULT_GZIP)
+    private static final String PROP_GZIP = "httpcache.cachestore.memcache.gzip";
+    private static final boolean DEFAULT_GZIP = false;
+    private boolean gzip;
+
     /** Cache - Uses Google Guava's cache */
     private Cache<CacheKey, MemCachePersistenceObject> cache;
 
+    /** Keys by hierarchy resource path, kept in sync with the cache through the removal listener */
+    private final CacheKeyPathIndex keyIndex = new CacheKeyPathIndex();
+
     @Activate
     protected void activate(Map<String, Object> configs) {
         // Read config and populate values.
         ttl = PropertiesUtil.toLong(configs.get(PROP_TTL), DEFAULT_TTL);
         maxSizeInMb = PropertiesUtil.toLong(configs.get(PROP_MAX_SIZE_IN_MB), DEFAULT_MAX_SIZE_IN_MB);
+        staleGracePeriod = Math.max(0L, PropertiesUtil.toLong(configs.get(PROP_STALE_GRACE_PERIOD),
+                DEFAULT_STALE_GRACE_PERIOD));
+        gzip = PropertiesUtil.toBoolean(configs.get(PROP_GZIP), DEFAULT_GZIP);
+        final boolean offHeap = PropertiesUtil.toBoolean(configs.get(PROP_OFF_HEAP), DEFAULT_OFF_HEAP);
 
         // Initializing the cache.
         // If cache is present, invalidate all and reinitailize the cache.
@@ -114,12 +150,17 @@ public class MemHttpCacheStoreImpl extends AbstractGuavaCacheMBean<CacheKey, Mem
             cache.invalidateAll();
             log.info("Mem cache already present. Invalidating the cache and re-initializing it.");
         }
+        keyIndex.clear();
+        if (null != slabPool) {
+            slabPool.clear();
+        }
+        slabPool = offHeap ? new MemSlabPool(maxSizeInMb * MEGABYTE) : null;
         if (ttl != DEFAULT_TTL) {
-            // If ttl is present, attach it to guava cache configuration.
+            // If ttl is present, attach it to guava cache configuration. Expired entries are kept for the grace period.
             cache = CacheBuilder.newBuilder()
                     .maximumWeight(maxSizeInMb * MEGABYTE)
                     .weigher(new MemCacheEntryWeigher())
-                    .expireAfterWrite(ttl, TimeUnit.SECONDS)
+                    .expireAfterWrite(ttl + staleGracePeriod, TimeUnit.SECONDS)
                     .removalListener(new MemCacheEntryRemovalListener())
                     .recordStats()
                     .build();
@@ -139,19 +180,28 @@ public class MemHttpCacheStoreImpl extends AbstractGuavaCacheMBean<CacheKey, Mem
     @Deactivate
     protected void deactivate(Map<String, Object> configs) {
         cache.invalidateAll();
+        if (null != slabPool) {
+            slabPool.clear();
+        }
         log.info("MemHttpCacheStoreImpl deactivated.");
     }
 
     /**
-     * Removal listener for cache entry items.
+     * Removal listener for cache entry items. Keeps the key index in sync with evictions and invalidations, and releases
+     * the bodies of removed entries.
      */
-    private static class MemCacheEntryRemovalListener implements RemovalListener<CacheKey, MemCachePersistenceObject> {
-        private static final Logger log = LoggerFactory.getLogger(MemCacheEntryRemovalListener.class);
+    private class MemCacheEntryRemovalListener implements RemovalListener<CacheKey, MemCachePersistenceObject> {
 
         @Override
         public void onRemoval(RemovalNotification<CacheKey, MemCachePersistenceObject> removalNotification) {
             log.debug("Mem cache entry for uri {} removed due to {}", removalNotification.getKey().toString(),
                     removalNotification.getCause().name());
+            if (null != removalNotification.getValue()) {
+                removalNotification.getValue().release();
+            }
+            if (removalNotification.getCause() != RemovalCause.REPLACED) {
+                keyIndex.remove(removalNotification.getKey(), MemHttpCacheStoreImpl.this::isCached);
+            }
         }
     }
 
@@ -162,38 +212,84 @@ public class MemHttpCacheStoreImpl extends AbstractGuavaCacheMBean<CacheKey, Mem
 
         @Override
         public int weigh(CacheKey memCacheKey, MemCachePersistenceObject memCachePersistenceObject) {
-            // Size of the byte array.
-            return memCachePersistenceObject.getBytes().length;
+            // Memory held by the entry, including off-heap blocks and headers.
+            return (int) Math.min(Integer.MAX_VALUE, memCachePersistenceObject.getWeight());
         }
     }
 
     //-------------------------<CacheStore interface specific implementation>
     @Override
     public void put(CacheKey key, CacheContent content) throws HttpCacheDataStreamException {
-        cache.put(key, new MemCachePersistenceObject().buildForCaching(content.getStatus(), content.getCharEncoding(),
-                content.getContentType(), content.getHeaders(), content.getInputDataStream(), content.getWriteMethod()));
+        final MemCachePersistenceObject value = new MemCachePersistenceObject().buildForCaching(content.getStatus(),
+                content.getCharEncoding(), content.getContentType(), content.getHeaders(), content.getInputDataStream(),
+                content.getWriteMethod(), slabPool, gzip);
+        if (staleGracePeriod > 0 && ttl != DEFAULT_TTL) {
+            value.freshUntil(System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(ttl));
+        }
+        cache.put(key, value);
+        keyIndex.add(key, this::isCached);
     }
 
     @Override
     public boolean contains(CacheKey key) {
-        if (null == cache.getIfPresent(key)) {
-            return false;
-        }
-        return true;
+        return null != getFresh(key);
     }
 
     @Override
     public CacheContent getIfPresent(CacheKey key) {
-        MemCachePersistenceObject value = cache.getIfPresent(key);
+        return toCacheContent(getFresh(key));
+    }
+
+    @Override
+    public CacheContent getStaleIfPresent(CacheKey key) {
+        return toCacheContent(getServable(key, false));
+    }
+
+    private MemCachePersistenceObject getFresh(CacheKey key) {
+        return getServable(key, true);
+    }
+
+    private MemCachePersistenceObject getServable(CacheKey key, boolean freshOnly) {
+        final MemCachePersistenceObject value = cache.getIfPresent(key);
+        if (null == value) {
+            return null;
+        }
+
+        final long now = System.currentTimeMillis();
+        if (value.isFresh(now)) {
+            return value;
+        } else if (!value.isServable(now, TimeUnit.SECONDS.toMillis(staleGracePeriod))) {
+            // Past the grace period, drop the stale entry instead of waiting for it to be evicted.
+            cache.asMap().remove(key, value);
+            return null;
+        }
+        return freshOnly ? null : value;
+    }
+
+    private CacheContent toCacheContent(MemCachePersistenceObject value) {
         if (null == value) {
             return null;
         }
 
+        final InputStream dataInputStream;
+        try {
+            dataInputStream = value.getInputStream();
+        } catch (IOException e) {
+            log.error("Could not read cached body, treating it as a miss", e);
+            return null;
+        }
+        if (null == dataInputStream) {
+            // Released concurrently by an eviction.
+            return null;
+        }
+
         // Increment hit count
         value.incrementHitCount();
 
-        return new CacheContent(value.getStatus(), value.getCharEncoding(), value.getContentType(), value.getHeaders(), new
-                ByteArrayInputStream(value.getBytes()), value.getWriteMethod());
+        final CacheContent cacheContent = new CacheContent(value.getStatus(), value.getCharEncoding(),
+                value.getContentType(), value.getHeaders(), dataInputStream, value.getWriteMethod());
+        cacheContent.setGzipInputDataStream(value.getGzipInputStream());
+        return cacheContent;
     }
 
     @Override
@@ -203,15 +299,45 @@ public class MemHttpCacheStoreImpl extends AbstractGuavaCacheMBean<CacheKey, Mem
 
     @Override
     public void invalidate(CacheKey invalidationKey) {
-        final ConcurrentMap<CacheKey, MemCachePersistenceObject> cacheAsMap = cache.asMap();
+        // Only keys related to the invalidated path can be affected; fall back to a full scan if the path is unknown.
+        final Collection<CacheKey> candidates = keyIndex.getCandidates(invalidationKey);
 
-        for (CacheKey key : cacheAsMap.keySet()) {
+        for (CacheKey key : candidates != null ? candidates : cache.asMap().keySet()) {
             if (key.isInvalidatedBy(invalidationKey)) {
-                cache.invalidate(key);
+                invalidateKey(key);
+            }
+        }
+    }
+
+    @Override
+    public void invalidate(Collection<CacheKey> invalidationKeys) {
+        if (invalidationKeys.isEmpty()) {
+            return;
+        }
+
+        // A single pass over the keys related to any of the invalidated paths, rather than one pass per path.
+        final CacheKeyInvalidationBatch batch = new CacheKeyInvalidationBatch(invalidationKeys);
+        final Collection<CacheKey> candidates = keyIndex.getCandidates(invalidationKeys);
+
+        for (CacheKey key : candidates != null ? candidates : cache.asMap().keySet()) {
+            if (batch.invalidates(key)) {
+                invalidateKey(key);
             }
         }
     }
 
+    /**
+     * Drops the entry, or with a stale grace period, keeps it to be served stale until it is refreshed.
+     */
+    private void invalidateKey(CacheKey key) {
+        final MemCachePersistenceObject value = staleGracePeriod > 0 ? cache.getIfPresent(key) : null;
+        if (null != value) {
+            value.markStale(System.currentTimeMillis());
+        } else {
+            cache.invalidate(key);
+        }
+    }
+
     @Override
     public void invalidate(HttpCacheConfig cacheConfig) {
         ConcurrentMap<CacheKey, MemCachePersistenceObject> cacheAsMap = cache.asMap();
@@ -232,6 +358,11 @@ public class MemHttpCacheStoreImpl extends AbstractGuavaCacheMBean<CacheKey, Mem
     @Override
     public void invalidateAll() {
         cache.invalidateAll();
+        keyIndex.clear();
+    }
+
+    private boolean isCached(CacheKey key) {
+        return cache.asMap().containsKey(key);
     }
 
     @Override
@@ -262,14 +393,14 @@ public class MemHttpCacheStoreImpl extends AbstractGuavaCacheMBean<CacheKey, Mem
 
     @Override
     protected long getBytesLength(MemCachePersistenceObject cacheObj) {
-        return cacheObj.getBytes().length;
+        return cacheObj.getWeight();
     }
 
     @Override
     @SuppressWarnings("squid:S1192")
     protected void addCacheData(Map<String, Object> data, MemCachePersistenceObject cacheObj) {
         int hitCount = cacheObj.getHitCount();
-        long size = cacheObj.getBytes().length;
+        long size = cacheObj.getBodySize();
         data.put(JMX_PN_STATUS, cacheObj.getStatus());
         data.put(JMX_PN_SIZE, FileUtils.byteCountToDisplaySize(size));
         data.put(JMX_PN_CONTENTTYPE, cacheObj.getContentType());
@@ -281,10 +412,8 @@ public class MemHttpCacheStoreImpl extends AbstractGuavaCacheMBean<CacheKey, Mem
 
     @Override
     protected String toString(MemCachePersistenceObject cacheObj) throws CacheMBeanException{
-        try {
-            return IOUtils.toString(
-                    new ByteArrayInputStream(cacheObj.getBytes()),
-                    cacheObj.getCharEncoding());
+        try (InputStream in = cacheObj.getInputStream()) {
+            return in == null ? null : IOUtils.toString(in, cacheObj.getCharEncoding());
         } catch (IOException e) {
             throw new CacheMBeanException("Error getting the content from the cacheObject", e);
         }
@@ -0,0 +1,170 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2019 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.httpcache.store.mem.impl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of fixed size direct memory blocks holding the bodies of mem cache entries outside of the java heap.
+ * <p>
+ * Blocks are carved from larger direct slabs, as direct allocations are expensive and each carries its own bookkeeping.
+ * The pool only references free blocks: blocks handed out are owned by the entry body until it releases them, and a
+ * body that is never released (e.g. a stream that was not closed) is simply reclaimed by the garbage collector together
+ * with its slab once no block of the slab is referenced anymore.
+ * </p>
+ */
+public final class MemSlabPool {
+    private static final Logger log = LoggerFactory.getLogger(MemSlabPool.class);
+
+    /** Size of a single block in bytes. */
+    static final int BLOCK_SIZE = 8 * 1024;
+
+    /** Number of blocks per direct slab, i.e. 1MB slabs. */
+    static final int BLOCKS_PER_SLAB = 128;
+
+    private final ConcurrentLinkedQueue<ByteBuffer> freeBlocks = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger freeCount = new AtomicInteger();
+    private final int maxFreeBlocks;
+
+    private final AtomicLong slabCount = new AtomicLong();
+    private final AtomicLong heapFallbackCount = new AtomicLong();
+
+    /**
+     * @param maxFreeBytes upper bound of the memory kept in free blocks for reuse, usually the maximum store size
+     */
+    public MemSlabPool(long maxFreeBytes) {
+        this.maxFreeBlocks = (int) Math.min(Integer.MAX_VALUE, Math.max(BLOCKS_PER_SLAB, maxFreeBytes / BLOCK_SIZE));
+    }
+
+    /**
+     * Allocates the blocks to hold the given number of bytes.
+     *
+     * @param length number of bytes
+     * @return the blocks, cleared, or null if the direct memory is exhausted and the caller has to fall back to the heap
+     */
+    public ByteBuffer[] allocate(int length) {
+        final ByteBuffer[] blocks = new ByteBuffer[blockCount(length)];
+        for (int i = 0; i < blocks.length; i++) {
+            ByteBuffer block = poll();
+            if (block == null) {
+                try {
+                    block = allocateSlab();
+                } catch (OutOfMemoryError e) {
+                    // Direct memory exhausted (-XX:MaxDirectMemorySize), hand back what we got and let the caller use the heap.
+                    release(blocks);
+                    heapFallbackCount.incrementAndGet();
+                    log.debug("Direct memory exhausted, falling back to heap for a body of {} bytes", length);
+                    return null;
+                }
+            }
+            blocks[i] = block;
+        }
+        return blocks;
+    }
+
+    /**
+     * Returns blocks to the pool. Blocks beyond the free block limit are left to the garbage collector.
+     *
+     * @param blocks the blocks, null elements are ignored
+     */
+    public void release(ByteBuffer[] blocks) {
+        for (ByteBuffer block : blocks) {
+            if (block == null) {
+                continue;
+            }
+            if (freeCount.incrementAndGet() <= maxFreeBlocks) {
+                ((Buffer) block).clear();
+                freeBlocks.offer(block);
+            } else {
+                freeCount.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Drops all free blocks, so their slabs can be garbage collected.
+     */
+    public void clear() {
+        while (freeBlocks.poll() != null) {
+            freeCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * @return the number of direct slabs allocated since the pool was created
+     */
+    public long getSlabCount() {
+        return slabCount.get();
+    }
+
+    /**
+     * @return the number of bodies which could not be stored off-heap
+     */
+    public long getHeapFallbackCount() {
+        return heapFallbackCount.get();
+    }
+
+    /**
+     * @return the number of blocks currently available for reuse
+     */
+    public int getFreeBlockCount() {
+        return freeCount.get();
+    }
+
+    static int blockCount(int length) {
+        return (length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    }
+
+    private ByteBuffer poll() {
+        final ByteBuffer block = freeBlocks.poll();
+        if (block != null) {
+            freeCount.decrementAndGet();
+        }
+        return block;
+    }
+
+    /**
+     * Allocates a new slab, keeps all but one of its blocks as free blocks and returns the remaining one.
+     */
+    private ByteBuffer allocateSlab() {
+        final ByteBuffer slab = ByteBuffer.allocateDirect(BLOCK_SIZE * BLOCKS_PER_SLAB);
+        slabCount.incrementAndGet();
+
+        ByteBuffer first = null;
+        for (int i = 0; i < BLOCKS_PER_SLAB; i++) {
+            ((Buffer) slab).limit((i + 1) * BLOCK_SIZE);
+            ((Buffer) slab).position(i * BLOCK_SIZE);
+            final ByteBuffer block = slab.slice();
+            if (first == null) {
+                first = block;
+            } else {
+                release(new ByteBuffer[] { block });
+            }
+        }
+        return first;
+    }
+}
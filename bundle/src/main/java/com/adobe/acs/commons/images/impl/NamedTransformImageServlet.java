@@ -22,6 +22,7 @@ package com.adobe.acs.commons.images.impl;
 import com.adobe.acs.commons.dam.RenditionPatternPicker;
 import com.adobe.acs.commons.images.ImageTransformer;
 import com.adobe.acs.commons.images.NamedImageTransformer;
+import com.adobe.acs.commons.images.transformers.impl.FusedColorTransformer;
 import com.adobe.acs.commons.util.PathInfoUtil;
 import com.day.cq.commons.jcr.JcrConstants;
 import com.day.cq.dam.api.Asset;
@@ -33,10 +34,13 @@ import com.day.cq.wcm.api.PageManager;
 import com.day.cq.wcm.foundation.Image;
 import com.day.image.Layer;
 
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.ArrayUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
@@ -49,11 +53,15 @@ import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.api.resource.observation.ResourceChange;
+import org.apache.sling.api.resource.observation.ResourceChangeListener;
 import org.apache.sling.api.servlets.OptingServlet;
 import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
 import org.apache.sling.api.wrappers.ValueMapDecorator;
 import org.apache.sling.commons.mime.MimeTypeService;
 import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceRegistration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -62,8 +70,15 @@ import javax.jcr.RepositoryException;
 import javax.servlet.Servlet;
 import javax.servlet.ServletException;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Dictionary;
+import java.util.Hashtable;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -153,6 +168,48 @@ public class NamedTransformImageServlet extends SlingSafeMethodsServlet implemen
             value = DEFAULT_ASSET_RENDITION_PICKER_REGEX)
     private static final String PROP_ASSET_RENDITION_PICKER_REGEX = "prop.asset-rendition-picker-regex";
 
+    /* Cache of transformed images */
+
+    private static final int DEFAULT_CACHE_MAX_SIZE = 256;
+
+    private static final String CACHE_DIRECTORY = "named-transform-cache";
+
+    private static final String DEFAULT_CACHE_INVALIDATION_PATH = "/content/dam";
+
+    @Property(label = "Cache transformed images",
+            description = "Store transformed images on disk, so the same transform of the same image is only"
+                    + " computed once. [ Default: false ]",
+            boolValue = false)
+    private static final String PROP_CACHE_ENABLED = "cache.enabled";
+
+    @Property(label = "Cache size",
+            description = "Maximum disk space used by cached images, in megabytes. Least recently used images are"
+                    + " dropped first. [ Default: 256 ]",
+            intValue = DEFAULT_CACHE_MAX_SIZE)
+    private static final String PROP_CACHE_MAX_SIZE = "cache.max-size";
+
+    @Property(label = "Cache invalidation paths",
+            description = "Changes under these paths drop the cached images of the changed assets."
+                    + " [ Default: /content/dam ]",
+            value = { DEFAULT_CACHE_INVALIDATION_PATH })
+    private static final String PROP_CACHE_INVALIDATION_PATHS = "cache.invalidation-paths";
+
+    /* Source selection and decoding */
+
+    private static final int DEFAULT_MAX_LARGE_DECODES = 4;
+
+    @Property(label = "Select smallest source",
+            description = "Transform images starting with a resize from the smallest web or thumbnail rendition"
+                    + " which is still large enough, and decode large sources with subsampling. [ Default: false ]",
+            boolValue = false)
+    private static final String PROP_SOURCE_SELECTION_ENABLED = "source-selection.enabled";
+
+    @Property(label = "Concurrent large decodes",
+            description = "Maximum number of images over 4 megapixels, or of unknown size, decoded at full size at"
+                    + " the same time. Further requests wait. [ Default: 4 ]",
+            intValue = DEFAULT_MAX_LARGE_DECODES)
+    private static final String PROP_MAX_LARGE_DECODES = "decode.max-concurrent-large";
+
     private final Map<String, NamedImageTransformer> namedImageTransformers =
             new ConcurrentHashMap<String, NamedImageTransformer>();
 
@@ -166,6 +223,14 @@ public class NamedTransformImageServlet extends SlingSafeMethodsServlet implemen
     private RenditionPatternPicker renditionPatternPicker =
             new RenditionPatternPicker(Pattern.compile(DEFAULT_ASSET_RENDITION_PICKER_REGEX));
 
+    private boolean sourceSelection = false;
+
+    private SourceRenditionSelector sourceSelector = new SourceRenditionSelector(DEFAULT_MAX_LARGE_DECODES);
+
+    private TransformedImageCache cache;
+
+    private ServiceRegistration<ResourceChangeListener> cacheInvalidation;
+
     /**
      * Only accept requests that.
      * - Are not null
@@ -212,16 +277,73 @@ public class NamedTransformImageServlet extends SlingSafeMethodsServlet implemen
 
         final Image image = resolveImage(request);
         final String mimeType = getMimeType(request, image);
-        Layer layer = getLayer(image);
-        
+
+        final TransformedImageCache transformedImageCache = this.cache;
+        final String cacheKey = transformedImageCache == null
+                ? null : getCacheKey(request, image, mimeType, imageTransformersWithParams);
+        if (cacheKey != null) {
+            final List<String> paths = new ArrayList<String>();
+            paths.add(request.getResource().getPath());
+            if (StringUtils.isNotBlank(image.getFileReference())) {
+                paths.add(image.getFileReference());
+            }
+
+            try (InputStream cached = transformedImageCache.open(cacheKey, paths, out -> {
+                final Layer layer = getTransformedLayer(request, image, imageTransformersWithParams);
+                if (layer == null) {
+                    return false;
+                }
+                writeLayer(layer, mimeType, imageTransformersWithParams, out);
+                return true;
+            })) {
+                if (cached == null) {
+                    response.setStatus(SlingHttpServletResponse.SC_NOT_FOUND);
+                    return;
+                }
+                response.setContentType(mimeType);
+                IOUtils.copy(cached, response.getOutputStream());
+            }
+            response.flushBuffer();
+            return;
+        }
+
+        final Layer layer = getTransformedLayer(request, image, imageTransformersWithParams);
+
         if (layer == null) {
             response.setStatus(SlingHttpServletResponse.SC_NOT_FOUND);
             return;
         }
-        
+
+        response.setContentType(mimeType);
+
+        writeLayer(layer, mimeType, imageTransformersWithParams, response.getOutputStream());
+
+        response.flushBuffer();
+    }
+
+    private Layer getTransformedLayer(final SlingHttpServletRequest request, final Image image,
+                                      final ValueMap imageTransformersWithParams) throws IOException {
+        final SourceRenditionSelector selector = this.sourceSelector;
+        if (sourceSelection && imageTransformers.containsKey(SourceRenditionSelector.TYPE_RESIZE)) {
+            // Decode no more of the image than the transforms need
+            final SourceRenditionSelector.Source source =
+                    selector.select(image, request.getResourceResolver(), imageTransformersWithParams);
+            if (source != null) {
+                return this.transform(source.getLayer(), source.getTransforms());
+            }
+        }
+
+        final Layer layer = getLayer(image, request.getResourceResolver(), selector);
+        if (layer == null) {
+            return null;
+        }
+
         // Transform the image
-        layer = this.transform(layer, imageTransformersWithParams);
+        return this.transform(layer, imageTransformersWithParams);
+    }
 
+    private void writeLayer(final Layer layer, final String mimeType, final ValueMap imageTransformersWithParams,
+                            final OutputStream out) throws IOException {
         // Get the quality
         final double quality = this.getQuality(mimeType,
                 imageTransformersWithParams.get(TYPE_QUALITY, EMPTY_PARAMS));
@@ -230,25 +352,107 @@ public class NamedTransformImageServlet extends SlingSafeMethodsServlet implemen
         final boolean progressiveJpeg = isProgressiveJpeg(mimeType,
                 imageTransformersWithParams.get(TYPE_PROGRESSIVE, EMPTY_PARAMS));
 
-        response.setContentType(mimeType);
-
         if (progressiveJpeg) {
-            ProgressiveJpeg.write(layer, quality, response.getOutputStream());
+            ProgressiveJpeg.write(layer, quality, out);
         } else {
-            layer.write(mimeType, quality, response.getOutputStream());
+            layer.write(mimeType, quality, out);
         }
+    }
 
-        response.flushBuffer();
+    /**
+     * Gets the key of the transformed image in the cache. The key covers the requested resource, the last
+     * modification of the resource and of the file it references, the crop and rotation of the image, the selectors,
+     * the named transforms with their params and the mime type. Crop and rotation are part of the key as they may be
+     * set on a resource other than the requested one, whose modification is not tracked.
+     *
+     * @return the cache key, or null if the image cannot be cached as its last modification is unknown
+     */
+    private String getCacheKey(final SlingHttpServletRequest request, final Image image, final String mimeType,
+                               final ValueMap imageTransformersWithParams) {
+        final Resource resource = request.getResource();
+        final StringBuilder key = new StringBuilder(resource.getPath());
+
+        boolean fingerprinted = appendLastModified(key, resource);
+        final String fileReference = image.getFileReference();
+        if (StringUtils.isNotBlank(fileReference)) {
+            fingerprinted |= appendLastModified(key,
+                    request.getResourceResolver().getResource(fileReference));
+        }
+        if (!fingerprinted) {
+            return null;
+        }
+
+        key.append("|crop=").append(StringUtils.defaultString(image.get(Image.PN_IMAGE_CROP)));
+        key.append("|rotate=").append(StringUtils.defaultString(image.get(Image.PN_IMAGE_ROTATE)));
+        key.append('|').append(StringUtils.defaultString(request.getRequestPathInfo().getSelectorString()));
+        key.append('|');
+        for (final String suffix : PathInfoUtil.getSuffixSegments(request)) {
+            if (namedImageTransformers.containsKey(suffix)) {
+                key.append(suffix).append('/');
+            }
+        }
+        key.append('|');
+        appendParams(key, imageTransformersWithParams);
+        key.append('|').append(mimeType);
+        return key.toString();
+    }
+
+    private static boolean appendLastModified(final StringBuilder key, final Resource resource) {
+        if (resource == null) {
+            key.append("|-");
+            return false;
+        }
+
+        Calendar lastModified = getLastModified(resource);
+        final Resource content = resource.getChild(JcrConstants.JCR_CONTENT);
+        if (lastModified == null && content != null) {
+            lastModified = getLastModified(content);
+        }
+
+        key.append('|').append(resource.getPath()).append('@');
+        if (lastModified == null) {
+            key.append('-');
+            return false;
+        }
+        key.append(lastModified.getTimeInMillis());
+        return true;
+    }
+
+    private static Calendar getLastModified(final Resource resource) {
+        final ValueMap properties = resource.getValueMap();
+        final Calendar lastModified = properties.get(JcrConstants.JCR_LASTMODIFIED, Calendar.class);
+        return lastModified != null ? lastModified : properties.get(NameConstants.PN_PAGE_LAST_MOD, Calendar.class);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void appendParams(final StringBuilder key, final Map<String, Object> params) {
+        key.append('{');
+        for (final Map.Entry<String, Object> param : params.entrySet()) {
+            key.append(param.getKey()).append('=');
+            final Object value = param.getValue();
+            if (value instanceof Map) {
+                appendParams(key, (Map<String, Object>) value);
+            } else if (value instanceof Object[]) {
+                key.append(Arrays.toString((Object[]) value));
+            } else {
+                key.append(value);
+            }
+            key.append(';');
+        }
+        key.append('}');
     }
 
     /**
      * Execute the ImageTransformers as specified by the Request's suffix segments against the Image layer.
+     * Consecutive colour transforms run fused, in a single pass over the image.
      *
      * @param layer the Image layer
      * @param imageTransformersWithParams the transforms and their params
      * @return the transformed Image layer
      */
     protected final Layer transform(Layer layer, final ValueMap imageTransformersWithParams) {
+        final FusedColorTransformer fusedColorTransformer = new FusedColorTransformer();
+
         for (final String type : imageTransformersWithParams.keySet()) {
             if (StringUtils.equals(TYPE_QUALITY, type)) {
                 // Do not process the "quality" transform in the usual manner
@@ -263,12 +467,13 @@ public class NamedTransformImageServlet extends SlingSafeMethodsServlet implemen
 
             final ValueMap transformParams = imageTransformersWithParams.get(type, EMPTY_PARAMS);
 
-            if (transformParams != null) {
+            if (transformParams != null && !fusedColorTransformer.add(imageTransformer, transformParams)) {
+                layer = fusedColorTransformer.transform(layer);
                 layer = imageTransformer.transform(layer, transformParams);
             }
         }
 
-        return layer;
+        return fusedColorTransformer.transform(layer);
     }
 
     /**
@@ -434,16 +639,27 @@ public class NamedTransformImageServlet extends SlingSafeMethodsServlet implemen
      * Gets the Image layer.
      *
      * @param image The Image to get the layer from
+     * @param resourceResolver the resolver to read the image with
+     * @param selector limits the large images decoded at the same time
      * @return the image's Layer
      * @throws IOException
      */
-    private Layer getLayer(final Image image) throws IOException {
+    private Layer getLayer(final Image image, final ResourceResolver resourceResolver,
+                           final SourceRenditionSelector selector) throws IOException {
         Layer layer = null;
 
+        final boolean large = selector.isLargeDecode(image, resourceResolver);
+        if (large) {
+            selector.acquireLargeDecode();
+        }
         try {
             layer = image.getLayer(false, false, false);
         } catch (RepositoryException ex) {
             log.error("Could not create layer");
+        } finally {
+            if (large) {
+                selector.releaseLargeDecode();
+            }
         }
 
         if (layer == null) {
@@ -514,7 +730,7 @@ public class NamedTransformImageServlet extends SlingSafeMethodsServlet implemen
     }
 
     @Activate
-    protected final void activate(final Map<String, String> properties) {
+    protected final void activate(final BundleContext bundleContext, final Map<String, Object> properties) {
         final String regex = PropertiesUtil.toString(properties.get(PROP_ASSET_RENDITION_PICKER_REGEX),
                 DEFAULT_ASSET_RENDITION_PICKER_REGEX);
         final String fileNameRegex = PropertiesUtil.toString(properties.get(NAMED_IMAGE_FILENAME_PATTERN),
@@ -531,6 +747,52 @@ public class NamedTransformImageServlet extends SlingSafeMethodsServlet implemen
                     DEFAULT_ASSET_RENDITION_PICKER_REGEX);
             renditionPatternPicker = new RenditionPatternPicker(DEFAULT_ASSET_RENDITION_PICKER_REGEX);
         }
+
+        sourceSelection = PropertiesUtil.toBoolean(properties.get(PROP_SOURCE_SELECTION_ENABLED), false);
+        sourceSelector = new SourceRenditionSelector(
+                PropertiesUtil.toInteger(properties.get(PROP_MAX_LARGE_DECODES), DEFAULT_MAX_LARGE_DECODES));
+
+        if (PropertiesUtil.toBoolean(properties.get(PROP_CACHE_ENABLED), false)) {
+            activateCache(bundleContext, properties);
+        }
+    }
+
+    private void activateCache(final BundleContext bundleContext, final Map<String, Object> properties) {
+        final File directory = bundleContext.getDataFile(CACHE_DIRECTORY);
+        if (directory == null) {
+            log.error("Transformed images are not cached, as there is no file system support for bundle data");
+            return;
+        }
+
+        final long maxSize = PropertiesUtil.toLong(properties.get(PROP_CACHE_MAX_SIZE), DEFAULT_CACHE_MAX_SIZE)
+                * FileUtils.ONE_MB;
+        try {
+            cache = new TransformedImageCache(directory, maxSize);
+        } catch (IOException e) {
+            log.error("Transformed images are not cached, as the cache directory [ {} ] could not be created",
+                    directory, e);
+            return;
+        }
+
+        final Dictionary<String, Object> listenerProperties = new Hashtable<String, Object>();
+        listenerProperties.put(ResourceChangeListener.PATHS, PropertiesUtil.toStringArray(
+                properties.get(PROP_CACHE_INVALIDATION_PATHS), new String[] { DEFAULT_CACHE_INVALIDATION_PATH }));
+        listenerProperties.put(ResourceChangeListener.CHANGES, new String[] {
+                ResourceChange.ChangeType.CHANGED.name(), ResourceChange.ChangeType.REMOVED.name() });
+        cacheInvalidation = bundleContext.registerService(ResourceChangeListener.class, cache, listenerProperties);
+        log.info("Caching transformed images in [ {} ], up to {} bytes", directory, maxSize);
+    }
+
+    @Deactivate
+    protected final void deactivate() {
+        if (cacheInvalidation != null) {
+            cacheInvalidation.unregister();
+            cacheInvalidation = null;
+        }
+        if (cache != null) {
+            cache.clear();
+            cache = null;
+        }
     }
 
     protected final void bindNamedImageTransformers(final NamedImageTransformer service,
@@ -0,0 +1,529 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2015 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.images.impl;
+
+import com.day.cq.commons.jcr.JcrConstants;
+import com.day.cq.dam.api.Asset;
+import com.day.cq.dam.api.Rendition;
+import com.day.cq.dam.commons.util.DamUtil;
+import com.day.cq.wcm.foundation.Image;
+import com.day.image.Layer;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.apache.commons.lang.StringUtils;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.api.wrappers.ValueMapDecorator;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import javax.jcr.Binary;
+import javax.jcr.Property;
+import javax.jcr.RepositoryException;
+import java.awt.Dimension;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.regex.Pattern;
+
+/**
+ * Picks the smallest source an image can be transformed from.
+ * <p>
+ * When the transforms start with a resize, bounded resize or scale, only as
+ * many pixels are needed as that first resize produces.  The smallest web or
+ * thumbnail rendition of the asset which still has that many pixels is used
+ * instead of the referenced rendition, and sources much larger than needed are
+ * decoded with subsampling.  The first resize is replaced by a resize to the
+ * exact size it would have produced from the referenced rendition, so the
+ * transformed image keeps its size.
+ * <p>
+ * Decoding large images at full size needs a lot of heap, so only a limited
+ * number of them are decoded at the same time.  The sizes of renditions are
+ * kept until the renditions are modified, so their headers are read once.
+ */
+final class SourceRenditionSelector {
+
+    private static final Logger log = LoggerFactory.getLogger(SourceRenditionSelector.class);
+
+    static final String TYPE_RESIZE = "resize";
+
+    private static final String TYPE_BOUNDED_RESIZE = "bounded-resize";
+
+    private static final String TYPE_SCALE = "scale";
+
+    private static final String KEY_WIDTH = "width";
+
+    private static final String KEY_WIDTH_ALIAS = "w";
+
+    private static final String KEY_HEIGHT = "height";
+
+    private static final String KEY_HEIGHT_ALIAS = "h";
+
+    private static final String KEY_UPSCALE = "upscale";
+
+    private static final String KEY_SCALE = "scale";
+
+    private static final String KEY_ROUND = "round";
+
+    /** Transforms which do not depend on the size of the image, and may come before the first resize. */
+    private static final Set<String> SIZE_INDEPENDENT_TYPES = new HashSet<String>(Arrays.asList(
+            "adjust", "greyscale", "multiply", "rgb-shift", "quality", "progressive"));
+
+    /** Renditions which may be used instead of the referenced one. */
+    static final Pattern CANDIDATE_RENDITIONS = Pattern.compile("cq5dam\\.(web|thumbnail)\\..+");
+
+    /** Images with more pixels need a permit to be decoded at full size. */
+    static final long LARGE_IMAGE_PIXELS = 4000000L;
+
+    /** Smallest subsampling worth decoding with; the subsampled image keeps at least twice the pixels needed. */
+    private static final int MIN_SUBSAMPLING = 2;
+
+    /** Renditions may differ in aspect ratio from the source by one in this many. */
+    private static final int ASPECT_RATIO_TOLERANCE = 100;
+
+    /** Number of rendition sizes kept. */
+    private static final long MAX_CACHED_SIZES = 10000L;
+
+    private static final ValueMap EMPTY_PARAMS = new ValueMapDecorator(new LinkedHashMap<String, Object>());
+
+    private final Semaphore largeDecodes;
+
+    /** Sizes of renditions, by path and last modification. */
+    private final Cache<String, Dimension> sizes = CacheBuilder.newBuilder().maximumSize(MAX_CACHED_SIZES).build();
+
+    /**
+     * @param maxLargeDecodes the number of large images decoded at full size at the same time
+     */
+    SourceRenditionSelector(final int maxLargeDecodes) {
+        this.largeDecodes = new Semaphore(Math.max(1, maxLargeDecodes), true);
+    }
+
+    /**
+     * Decodes the smallest source of the image sufficient for the transforms.
+     *
+     * @param image the image
+     * @param resourceResolver the resolver to read the image with
+     * @param transforms the transforms and their params
+     * @return the decoded source and the transforms to apply to it, or null if the image has to be decoded as usual
+     * @throws IOException if the source could not be read
+     */
+    Source select(final Image image, final ResourceResolver resourceResolver, final ValueMap transforms)
+            throws IOException {
+        if (StringUtils.isNotBlank(image.get(Image.PN_IMAGE_CROP))
+                || PropertiesUtil.toInteger(image.get(Image.PN_IMAGE_ROTATE), 0) % 360 != 0) {
+            // Crop and rotation of the image are relative to the referenced rendition
+            return null;
+        }
+
+        final String reference = image.getFileReference();
+        final Resource resource = StringUtils.isBlank(reference) ? null : resourceResolver.getResource(reference);
+        final Asset asset = resource == null ? null : DamUtil.resolveToAsset(resource);
+        if (asset == null) {
+            return null;
+        }
+
+        final Rendition source = DamUtil.isRendition(resource)
+                ? asset.getRendition(resource.getName()) : asset.getOriginal();
+        final Dimension sourceSize = source == null ? null : readSize(source);
+        final Target target = sourceSize == null ? null : getTarget(transforms, sourceSize.width, sourceSize.height);
+        if (target == null) {
+            return null;
+        }
+
+        Rendition selected = source;
+        Dimension selectedSize = sourceSize;
+        for (final Rendition rendition : asset.getRenditions()) {
+            if (!CANDIDATE_RENDITIONS.matcher(rendition.getName()).matches()
+                    || StringUtils.equals(rendition.getName(), source.getName())) {
+                continue;
+            }
+
+            final Dimension size = readSize(rendition);
+            if (size != null && size.width >= target.width && size.height >= target.height
+                    && getPixels(size) < getPixels(selectedSize) && hasAspectRatio(size, sourceSize)) {
+                selected = rendition;
+                selectedSize = size;
+            }
+        }
+
+        final int subsampling = Math.min(selectedSize.width / target.width, selectedSize.height / target.height)
+                / MIN_SUBSAMPLING;
+        Layer layer = null;
+        if (subsampling >= MIN_SUBSAMPLING) {
+            layer = decodeSubsampled(selected, subsampling);
+        }
+        if (layer == null) {
+            layer = decode(selected, selectedSize);
+        }
+
+        log.debug("Transforming [ {} ] from [ {} ] with subsampling {}", reference, selected.getPath(),
+                layer.getWidth() < selectedSize.width ? subsampling : 1);
+        return new Source(layer, target.transforms);
+    }
+
+    /**
+     * Checks if decoding the image at full size needs a permit, as the image is large or its size unknown.
+     *
+     * @param image the image
+     * @param resourceResolver the resolver to read the image with
+     * @return true if the image has to be decoded with a permit
+     */
+    boolean isLargeDecode(final Image image, final ResourceResolver resourceResolver) {
+        final Dimension size = readSize(image, resourceResolver);
+        return size == null || getPixels(size) > LARGE_IMAGE_PIXELS;
+    }
+
+    /**
+     * Waits for a permit to decode a large image at full size, or an image of unknown size.
+     *
+     * @throws InterruptedIOException if interrupted while waiting
+     */
+    void acquireLargeDecode() throws InterruptedIOException {
+        try {
+            largeDecodes.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to decode an image");
+        }
+    }
+
+    /**
+     * Returns the permit taken by {@link #acquireLargeDecode()}.
+     */
+    void releaseLargeDecode() {
+        largeDecodes.release();
+    }
+
+    private Layer decode(final Rendition rendition, final Dimension size) throws IOException {
+        final boolean large = getPixels(size) > LARGE_IMAGE_PIXELS;
+        if (large) {
+            acquireLargeDecode();
+        }
+        try (InputStream in = rendition.getStream()) {
+            return new Layer(in);
+        } finally {
+            if (large) {
+                releaseLargeDecode();
+            }
+        }
+    }
+
+    private static Layer decodeSubsampled(final Rendition rendition, final int subsampling) {
+        try (InputStream in = rendition.getStream();
+             ImageInputStream input = new MemoryCacheImageInputStream(in)) {
+            final ImageReader reader = getReader(input);
+            if (reader == null) {
+                return null;
+            }
+            try {
+                final ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                return new Layer(reader.read(0, param));
+            } finally {
+                reader.dispose();
+            }
+        } catch (IOException | RuntimeException e) {
+            // e.g. CMYK JPEGs, which only the full decoding supports
+            log.debug("Could not decode [ {} ] with subsampling", rendition.getPath(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Reads the size of the image the layer of the image is decoded from.
+     *
+     * @return the size, or null if it is unknown
+     */
+    private Dimension readSize(final Image image, final ResourceResolver resourceResolver) {
+        final String reference = image.getFileReference();
+        if (StringUtils.isNotBlank(reference)) {
+            final Resource resource = resourceResolver.getResource(reference);
+            final Asset asset = resource == null ? null : DamUtil.resolveToAsset(resource);
+            final Rendition rendition = asset == null ? null
+                    : DamUtil.isRendition(resource) ? asset.getRendition(resource.getName()) : asset.getOriginal();
+            return rendition == null ? null : readSize(rendition);
+        }
+
+        Binary binary = null;
+        try {
+            final Property data = image.getData();
+            if (data == null) {
+                return null;
+            }
+            binary = data.getBinary();
+            try (InputStream in = binary.getStream()) {
+                return readSize(in, image.getPath());
+            }
+        } catch (IOException | RepositoryException e) {
+            log.debug("Could not read the size of [ {} ]", image.getPath(), e);
+            return null;
+        } finally {
+            if (binary != null) {
+                binary.dispose();
+            }
+        }
+    }
+
+    /**
+     * Gets the size of the rendition, reading it from the header unless it is known for the last modification.
+     *
+     * @return the size, or null if the rendition is no readable image
+     */
+    Dimension readSize(final Rendition rendition) {
+        final Resource content = rendition.getChild(JcrConstants.JCR_CONTENT);
+        final Calendar lastModified = content == null
+                ? null : content.getValueMap().get(JcrConstants.JCR_LASTMODIFIED, Calendar.class);
+        final String key = lastModified == null ? null : rendition.getPath() + '@' + lastModified.getTimeInMillis();
+
+        Dimension size = key == null ? null : sizes.getIfPresent(key);
+        if (size == null) {
+            try (InputStream in = rendition.getStream()) {
+                size = in == null ? null : readSize(in, rendition.getPath());
+            } catch (IOException e) {
+                log.debug("Could not read [ {} ]", rendition.getPath(), e);
+            }
+            if (size == null) {
+                return null;
+            }
+            if (key != null) {
+                sizes.put(key, size);
+            }
+        }
+        return new Dimension(size);
+    }
+
+    /**
+     * Reads the size of the image from its header.
+     *
+     * @return the size, or null if the stream is no readable image
+     */
+    private static Dimension readSize(final InputStream in, final String path) {
+        try (ImageInputStream input = new MemoryCacheImageInputStream(in)) {
+            final ImageReader reader = getReader(input);
+            if (reader == null) {
+                return null;
+            }
+            try {
+                return new Dimension(reader.getWidth(0), reader.getHeight(0));
+            } finally {
+                reader.dispose();
+            }
+        } catch (IOException | RuntimeException e) {
+            log.debug("Could not read the size of [ {} ]", path, e);
+            return null;
+        }
+    }
+
+    private static ImageReader getReader(final ImageInputStream input) {
+        final Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+        if (!readers.hasNext()) {
+            return null;
+        }
+        final ImageReader reader = readers.next();
+        reader.setInput(input, true, true);
+        return reader;
+    }
+
+    /**
+     * Gets the smallest source size the transforms can be applied to, for a source of the given size.
+     *
+     * @param transforms the transforms and their params
+     * @param width the width of the source
+     * @param height the height of the source
+     * @return the smallest size and the transforms to apply to a source of that size, or null if no smaller source
+     * would give the same image
+     */
+    static Target getTarget(final ValueMap transforms, final int width, final int height) {
+        for (final String type : transforms.keySet()) {
+            if (SIZE_INDEPENDENT_TYPES.contains(type)) {
+                continue;
+            }
+
+            // Only the first transform changing the size matters, all others work on its result
+            final ValueMap params = transforms.get(type, EMPTY_PARAMS);
+            final Dimension size = params == null || params.isEmpty()
+                    ? null : getTransformedSize(type, params, width, height);
+            if (size == null || size.width < 1 || size.height < 1
+                    || size.width >= width || size.height >= height) {
+                return null;
+            }
+
+            final ValueMap rewritten = replaceWithResize(transforms, type, size);
+            if (rewritten == null) {
+                return null;
+            }
+
+            // Keep the aspect ratio of the source, scaled by the larger of the two factors
+            if ((long) size.width * height >= (long) size.height * width) {
+                return new Target(size.width, divideRoundingUp((long) height * size.width, width), rewritten);
+            } else {
+                return new Target(divideRoundingUp((long) width * size.height, height), size.height, rewritten);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gets the size a transform resizes to, with the same arithmetic as the transformer.
+     *
+     * @return the size, or null if the transform is not known to only resize
+     */
+    private static Dimension getTransformedSize(final String type, final ValueMap params, final int width,
+                                                final int height) {
+        if (TYPE_RESIZE.equals(type)) {
+            int newWidth = params.get(KEY_WIDTH, params.get(KEY_WIDTH_ALIAS, 0));
+            int newHeight = params.get(KEY_HEIGHT, params.get(KEY_HEIGHT_ALIAS, 0));
+            if (newWidth < 1 && newHeight < 1) {
+                return new Dimension(width, height);
+            } else if (newWidth < 1) {
+                newWidth = Math.round(width * ((float) newHeight / height));
+            } else if (newHeight < 1) {
+                newHeight = Math.round(height * ((float) newWidth / width));
+            }
+            return new Dimension(newWidth, newHeight);
+        } else if (TYPE_BOUNDED_RESIZE.equals(type)) {
+            int newWidth = params.get(KEY_WIDTH, params.get(KEY_WIDTH_ALIAS, width));
+            int newHeight = params.get(KEY_HEIGHT, params.get(KEY_HEIGHT_ALIAS, height));
+            if ((float) newWidth / width < (float) newHeight / height) {
+                newHeight = Math.round(height * ((float) newWidth / width));
+            } else {
+                newWidth = Math.round(width * ((float) newHeight / height));
+            }
+            if (!params.get(KEY_UPSCALE, false) && (newWidth > width || newHeight > height)) {
+                return new Dimension(width, height);
+            }
+            return new Dimension(newWidth, newHeight);
+        } else if (TYPE_SCALE.equals(type)) {
+            final Double scale = params.get(KEY_SCALE, 1D);
+            if (scale == null || scale == 1D) {
+                return new Dimension(width, height);
+            }
+            final String round = StringUtils.trim(params.get(KEY_ROUND, String.class));
+            final double newWidth = scale * width;
+            final double newHeight = scale * height;
+            if (StringUtils.equals("up", round)) {
+                return new Dimension((int) Math.ceil(newWidth), (int) Math.ceil(newHeight));
+            } else if (StringUtils.equals("down", round)) {
+                return new Dimension((int) Math.floor(newWidth), (int) Math.floor(newHeight));
+            }
+            return new Dimension((int) Math.round(newWidth), (int) Math.round(newHeight));
+        }
+        return null;
+    }
+
+    /**
+     * Replaces a transform by a resize to the given size, keeping the order of the transforms.
+     *
+     * @return the new transforms, or null if they already contain another resize
+     */
+    private static ValueMap replaceWithResize(final ValueMap transforms, final String type, final Dimension size) {
+        final ValueMap resize = new ValueMapDecorator(new LinkedHashMap<String, Object>());
+        resize.put(KEY_WIDTH, size.width);
+        resize.put(KEY_HEIGHT, size.height);
+
+        final ValueMap rewritten = new ValueMapDecorator(new LinkedHashMap<String, Object>());
+        for (final Map.Entry<String, Object> transform : transforms.entrySet()) {
+            if (transform.getKey().equals(type)) {
+                rewritten.put(TYPE_RESIZE, resize);
+            } else if (TYPE_RESIZE.equals(transform.getKey())) {
+                return null;
+            } else {
+                rewritten.put(transform.getKey(), transform.getValue());
+            }
+        }
+        return rewritten;
+    }
+
+    private static boolean hasAspectRatio(final Dimension size, final Dimension source) {
+        final long difference = Math.abs((long) size.width * source.height - (long) size.height * source.width);
+        return difference * ASPECT_RATIO_TOLERANCE <= (long) size.height * source.width;
+    }
+
+    private static long getPixels(final Dimension size) {
+        return (long) size.width * size.height;
+    }
+
+    private static int divideRoundingUp(final long dividend, final int divisor) {
+        return (int) ((dividend + divisor - 1) / divisor);
+    }
+
+    /**
+     * Smallest source size sufficient for the transforms.
+     */
+    static final class Target {
+        private final int width;
+        private final int height;
+        private final ValueMap transforms;
+
+        private Target(final int width, final int height, final ValueMap transforms) {
+            this.width = width;
+            this.height = height;
+            this.transforms = transforms;
+        }
+
+        int getWidth() {
+            return width;
+        }
+
+        int getHeight() {
+            return height;
+        }
+
+        ValueMap getTransforms() {
+            return transforms;
+        }
+    }
+
+    /**
+     * Decoded source of an image, with the transforms to apply to it.
+     */
+    static final class Source {
+        private final Layer layer;
+        private final ValueMap transforms;
+
+        private Source(final Layer layer, final ValueMap transforms) {
+            this.layer = layer;
+            this.transforms = transforms;
+        }
+
+        Layer getLayer() {
+            return layer;
+        }
+
+        ValueMap getTransforms() {
+            return transforms;
+        }
+    }
+}
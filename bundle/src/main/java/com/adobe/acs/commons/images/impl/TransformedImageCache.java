@@ -0,0 +1,334 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2015 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.images.impl;
+
+import com.day.cq.commons.jcr.JcrConstants;
+import org.apache.commons.lang.StringUtils;
+import org.apache.sling.api.resource.observation.ExternalResourceChangeListener;
+import org.apache.sling.api.resource.observation.ResourceChange;
+import org.apache.sling.api.resource.observation.ResourceChangeListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Disk cache of transformed images.
+ * <p>
+ * Images are stored as files in a directory, and the least recently used ones
+ * are deleted once the files exceed the maximum size.  Requests for an image
+ * which is being rendered wait for that rendering instead of rendering the
+ * image again.
+ * <p>
+ * Every image is stored with the paths it was rendered from.  Changes to any
+ * of these paths, or to the asset or file containing them, drop the image.
+ * The index of cached images is only held in memory, so the directory is
+ * emptied when the cache is created.
+ */
+final class TransformedImageCache implements ResourceChangeListener, ExternalResourceChangeListener {
+
+    private static final Logger log = LoggerFactory.getLogger(TransformedImageCache.class);
+
+    private static final String FILE_SUFFIX = ".bin";
+
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+    /**
+     * Renders an image.
+     */
+    @FunctionalInterface
+    interface Renderer {
+        /**
+         * @param out the stream to write the image to
+         * @return false if there is no image to render
+         * @throws IOException if the image could not be rendered
+         */
+        boolean render(OutputStream out) throws IOException;
+    }
+
+    private final File directory;
+
+    private final long maxSize;
+
+    /* Cached images by key, in order of last access; guarded by this */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    private final ConcurrentMap<String, FutureTask<byte[]>> renderings = new ConcurrentHashMap<String, FutureTask<byte[]>>();
+
+    /* Total size of the cached images; guarded by this */
+    private long size = 0;
+
+    /**
+     * @param directory the directory to store images in, emptied first
+     * @param maxSize the maximum total size of the stored images in bytes
+     * @throws IOException if the directory could not be created
+     */
+    TransformedImageCache(final File directory, final long maxSize) throws IOException {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        Files.createDirectories(directory.toPath());
+        deleteFiles();
+    }
+
+    /**
+     * Gets an image, rendering and storing it if it is not cached.
+     *
+     * @param key the key of the image, covering everything the image is rendered from
+     * @param paths the paths the image is rendered from
+     * @param renderer renders the image if it is not cached
+     * @return the image, or null if the renderer reported there is no image
+     * @throws IOException if the image could not be rendered
+     */
+    InputStream open(final String key, final Collection<String> paths, final Renderer renderer) throws IOException {
+        final String name = getFileName(key);
+        final InputStream cached = openCached(name);
+        if (cached != null) {
+            return cached;
+        }
+
+        FutureTask<byte[]> rendering = new FutureTask<byte[]>(() -> render(name, paths, renderer));
+        final FutureTask<byte[]> running = renderings.putIfAbsent(name, rendering);
+        if (running == null) {
+            try {
+                rendering.run();
+            } finally {
+                renderings.remove(name, rendering);
+            }
+        } else {
+            rendering = running;
+        }
+
+        final byte[] image;
+        try {
+            image = rendering.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the image to render");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            } else if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            } else {
+                throw new IOException("Could not render image", e.getCause());
+            }
+        }
+        return image == null ? null : new ByteArrayInputStream(image);
+    }
+
+    /**
+     * Drops all images rendered from the given paths.
+     *
+     * @param changedPaths the changed paths
+     */
+    void invalidate(final Collection<String> changedPaths) {
+        final Set<String> owners = new LinkedHashSet<String>();
+        for (final String path : changedPaths) {
+            owners.add(getOwner(path));
+        }
+
+        synchronized (this) {
+            final Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+            while (iterator.hasNext()) {
+                final Map.Entry<String, Entry> entry = iterator.next();
+                if (isAffected(entry.getValue(), owners)) {
+                    iterator.remove();
+                    remove(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+    }
+
+    @Override
+    public void onChange(final List<ResourceChange> changes) {
+        final Set<String> paths = new LinkedHashSet<String>();
+        for (final ResourceChange change : changes) {
+            paths.add(change.getPath());
+        }
+        invalidate(paths);
+    }
+
+    /**
+     * Drops all images.
+     */
+    synchronized void clear() {
+        entries.clear();
+        size = 0;
+        deleteFiles();
+    }
+
+    synchronized long getSize() {
+        return size;
+    }
+
+    synchronized int getCount() {
+        return entries.size();
+    }
+
+    private synchronized InputStream openCached(final String name) {
+        final Entry entry = entries.get(name);
+        if (entry == null) {
+            return null;
+        }
+        try {
+            return new FileInputStream(new File(directory, name + FILE_SUFFIX));
+        } catch (FileNotFoundException e) {
+            log.warn("Cached image [ {} ] is missing, rendering it again", name);
+            entries.remove(name);
+            size -= entry.size;
+            return null;
+        }
+    }
+
+    private byte[] render(final String name, final Collection<String> paths, final Renderer renderer) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (!renderer.render(out)) {
+            return null;
+        }
+
+        final byte[] image = out.toByteArray();
+        if (image.length <= maxSize) {
+            store(name, paths, image);
+        }
+        return image;
+    }
+
+    private void store(final String name, final Collection<String> paths, final byte[] image) {
+        final File temp = new File(directory, name + TEMP_FILE_SUFFIX);
+        try {
+            Files.write(temp.toPath(), image);
+            synchronized (this) {
+                Files.move(temp.toPath(), new File(directory, name + FILE_SUFFIX).toPath(), StandardCopyOption.REPLACE_EXISTING);
+                final Set<String> owners = new LinkedHashSet<String>();
+                for (final String path : paths) {
+                    owners.add(getOwner(path));
+                }
+                final Entry previous = entries.put(name, new Entry(image.length, owners));
+                if (previous != null) {
+                    size -= previous.size;
+                }
+                size += image.length;
+                evict();
+            }
+        } catch (IOException e) {
+            // The image is still served, it just is not cached
+            log.warn("Could not cache transformed image [ {} ]", name, e);
+            temp.delete();
+        }
+    }
+
+    /* Called with the lock held */
+    private void evict() {
+        final Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (size > maxSize && iterator.hasNext()) {
+            final Map.Entry<String, Entry> eldest = iterator.next();
+            iterator.remove();
+            remove(eldest.getKey(), eldest.getValue());
+        }
+    }
+
+    /* Called with the lock held, after the entry was removed from the index */
+    private void remove(final String name, final Entry entry) {
+        size -= entry.size;
+        final File file = new File(directory, name + FILE_SUFFIX);
+        if (!file.delete() && file.exists()) {
+            log.warn("Could not delete cached image [ {} ]", file);
+        }
+    }
+
+    private void deleteFiles() {
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (final File file : files) {
+                if (!file.delete()) {
+                    log.warn("Could not delete cached image [ {} ]", file);
+                }
+            }
+        }
+    }
+
+    private static boolean isAffected(final Entry entry, final Set<String> changedOwners) {
+        for (final String owner : entry.owners) {
+            for (final String changed : changedOwners) {
+                if (owner.equals(changed) || owner.startsWith(changed + "/") || changed.startsWith(owner + "/")) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gets the path of the asset, file or page containing the path.  Images
+     * are rendered from renditions and properties deep inside an asset, while
+     * changes may be reported for any other part of it.
+     */
+    static String getOwner(final String path) {
+        return StringUtils.substringBefore(path, "/" + JcrConstants.JCR_CONTENT);
+    }
+
+    private static String getFileName(final String key) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            final StringBuilder name = new StringBuilder(digest.length * 2);
+            for (final byte b : digest) {
+                name.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return name.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform supports SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static final class Entry {
+        private final long size;
+        private final Set<String> owners;
+
+        private Entry(final long size, final Set<String> owners) {
+            this.size = size;
+            this.owners = owners;
+        }
+    }
+}
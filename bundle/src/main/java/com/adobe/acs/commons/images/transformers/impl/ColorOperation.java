@@ -0,0 +1,33 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2015 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.images.transformers.impl;
+
+/**
+ * Colour transform of single pixels, independent of all other pixels.
+ */
+@FunctionalInterface
+interface ColorOperation {
+
+    /**
+     * @param pixel the pixel, as INT_ARGB
+     * @return the transformed pixel, as INT_ARGB
+     */
+    int apply(int pixel);
+}
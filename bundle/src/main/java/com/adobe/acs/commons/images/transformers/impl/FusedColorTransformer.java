@@ -0,0 +1,108 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2015 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.images.transformers.impl;
+
+import com.adobe.acs.commons.images.ImageTransformer;
+import com.day.image.Layer;
+import org.apache.sling.api.resource.ValueMap;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs consecutive colour transforms in a single pass over the pixels of an image.
+ * <p>
+ * Chained, every RGB shift and multiply blend copies the whole image, and the
+ * multiply blend draws a full size filter image in addition.  Fused, all of
+ * them read the image once into one new raster and transform every pixel in
+ * place, with the same result.
+ * <p>
+ * Transforms are collected with {@link #add(ImageTransformer, ValueMap)} as long
+ * as they can be fused, and run by {@link #transform(Layer)}.  Instances are not
+ * thread safe.
+ */
+public final class FusedColorTransformer {
+
+    private final List<ColorOperation> operations = new ArrayList<ColorOperation>();
+
+    /**
+     * Adds a transform to run fused with the transforms added before.
+     *
+     * @param transformer the transformer
+     * @param properties the transform params
+     * @return true if the transform was added, false if it cannot be fused and has to run by itself
+     */
+    public boolean add(final ImageTransformer transformer, final ValueMap properties) {
+        final ColorOperation operation;
+        if (transformer instanceof RGBShiftImageTransformerImpl) {
+            operation = ((RGBShiftImageTransformerImpl) transformer).getColorOperation(properties);
+        } else if (transformer instanceof MultiplyBlendImageTransformerImpl) {
+            operation = ((MultiplyBlendImageTransformerImpl) transformer).getColorOperation(properties);
+        } else {
+            return false;
+        }
+
+        if (operation != null) {
+            operations.add(operation);
+        }
+        return true;
+    }
+
+    /**
+     * @return true if no transforms are waiting to run
+     */
+    public boolean isEmpty() {
+        return operations.isEmpty();
+    }
+
+    /**
+     * Runs the added transforms, and removes them.
+     *
+     * @param layer the image
+     * @return the transformed image, or the given layer if no transforms were added
+     */
+    public Layer transform(final Layer layer) {
+        if (operations.isEmpty()) {
+            return layer;
+        }
+
+        final ColorOperation[] fused = operations.toArray(new ColorOperation[operations.size()]);
+        operations.clear();
+
+        final BufferedImage original = layer.getImage();
+        final int width = original.getWidth();
+        final int height = original.getHeight();
+        final BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        final int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        original.getRGB(0, 0, width, height, pixels, 0, width);
+
+        for (int i = 0; i < pixels.length; i++) {
+            int pixel = pixels[i];
+            for (final ColorOperation operation : fused) {
+                pixel = operation.apply(pixel);
+            }
+            pixels[i] = pixel;
+        }
+
+        return new Layer(image);
+    }
+}
@@ -35,6 +35,7 @@ import org.slf4j.LoggerFactory;
 
 import com.adobe.acs.commons.images.ImageTransformer;
 import com.adobe.acs.commons.images.transformers.impl.composites.MultiplyBlendComposite;
+import com.adobe.acs.commons.images.transformers.impl.composites.contexts.MultiplyCompositeContext;
 import com.day.image.Layer;
 
 /**
@@ -92,6 +93,25 @@ public class MultiplyBlendImageTransformerImpl implements ImageTransformer {
         return result;
     }
 
+    /**
+     * Gets the blend as operation on single pixels, to run it fused with other colour transforms.
+     *
+     * @param properties the transform params
+     * @return the operation, or null if the transform does nothing
+     */
+    final ColorOperation getColorOperation(final ValueMap properties) {
+        if (properties == null || properties.isEmpty()) {
+            return null;
+        }
+
+        final float alpha = normalizeAlpha(properties.get(KEY_ALPHA, properties.get(KEY_ALPHA_ALIAS, 0.0))
+                .floatValue());
+        // The pixels of the opaque filter layer blended in by transform()
+        final int color = getColor(properties).getRGB() | 0xFF000000;
+        final MultiplyCompositeContext context = new MultiplyCompositeContext(alpha);
+        return pixel -> context.blend(color, pixel);
+    }
+
     private BufferedImage merge(final BufferedImage original, final BufferedImage colorBlend, float alpha) {
         BufferedImage image = new BufferedImage(original.getWidth(), original.getHeight(), BufferedImage.TYPE_INT_ARGB);
 
@@ -78,6 +78,37 @@ public class RGBShiftImageTransformerImpl implements ImageTransformer {
 
         log.debug("Transforming with [ {} ]", TYPE);
 
+        final int[] shifts = getShifts(properties);
+
+        BufferedImage image = shift(layer.getImage(), shifts[0], shifts[1], shifts[2]);
+
+        Layer result = new Layer(image);
+        return result;
+    }
+
+    /**
+     * Gets the shift as operation on single pixels, to run it fused with other colour transforms.
+     *
+     * @param properties the transform params
+     * @return the operation, or null if the transform does nothing
+     */
+    final ColorOperation getColorOperation(final ValueMap properties) {
+        if (properties == null || properties.isEmpty()) {
+            return null;
+        }
+
+        final int[] shifts = getShifts(properties);
+        final int redShift = shifts[0];
+        final int greenShift = shifts[1];
+        final int blueShift = shifts[2];
+        // Like shift(), the alpha of the pixel is dropped
+        return pixel -> 0xFF000000
+                | clamp(((pixel >> 16) & MAX_COLOR_VALUE) + redShift) << 16
+                | clamp(((pixel >> 8) & MAX_COLOR_VALUE) + greenShift) << 8
+                | clamp((pixel & MAX_COLOR_VALUE) + blueShift);
+    }
+
+    private int[] getShifts(final ValueMap properties) {
         float red = normalizeRGB(properties.get(KEY_RED, properties.get(KEY_RED_ALIAS, DEFAULT_SHIFT_VALUE))
                 .floatValue());
         float green = normalizeRGB(properties.get(KEY_GREEN, properties.get(KEY_GREEN_ALIAS, DEFAULT_SHIFT_VALUE))
@@ -89,10 +120,11 @@ public class RGBShiftImageTransformerImpl implements ImageTransformer {
         int greenShift = Math.round(green * MAX_COLOR_VALUE);
         int blueShift = Math.round(blue * MAX_COLOR_VALUE);
 
-        BufferedImage image = shift(layer.getImage(), redShift, greenShift, blueShift);
+        return new int[] { redShift, greenShift, blueShift };
+    }
 
-        Layer result = new Layer(image);
-        return result;
+    private static int clamp(final int color) {
+        return Math.max(MIN_COLOR_VALUE, Math.min(MAX_COLOR_VALUE, color));
     }
 
     private BufferedImage shift(final BufferedImage original, final int redShift, final int greenShift,
@@ -37,6 +37,7 @@ public class MultiplyCompositeContext implements CompositeContext {
 
     private static final int ALPHA_MASK = 24;
     private static final int BLEND_SHIFT = 8;
+    private static final ColorMask[] COLOR_MASKS = ColorMask.values();
 
     private final float alpha;
 
@@ -60,36 +61,43 @@ public class MultiplyCompositeContext implements CompositeContext {
 
             // Each pixel in the row
             for (int x = 0; x < width; x++) {
-
-                // pixels are stored as INT_ARGB
-                int srcPixel = srcPixels[x];
-                int destPixel = destPixels[x];
-                int result = 0;
-                int tmp = 0;
-
-                for (ColorMask mask : ColorMask.values()) {
-
-                    int srcColor = (srcPixel >> mask.getMask()) & ColorMask.MAX_DEPTH;
-                    int destColor = (destPixel >> mask.getMask()) & ColorMask.MAX_DEPTH;
-                    tmp = blendColor(srcColor, destColor);
-
-                    tmp = processColorOpacity(tmp, destColor);
-                    result = result | (tmp << mask.getMask());
-                }
-
-                int srcAlpha = (srcPixel >> ALPHA_MASK) & ColorMask.MAX_DEPTH;
-                int destAlpha = (destPixel >> ALPHA_MASK) & ColorMask.MAX_DEPTH;
-
-                tmp = blendAlpha(srcAlpha, destAlpha);
-                tmp = processAlphaOpacity(tmp, destAlpha);
-                result = result | (tmp << ALPHA_MASK);
-                destPixels[x] = result;
+                destPixels[x] = blend(srcPixels[x], destPixels[x]);
             }
             dstOut.setDataElements(0, y, width, 1, destPixels);
         }
 
     }
 
+    /**
+     * Blends a single pixel.
+     *
+     * @param srcPixel the source pixel, as INT_ARGB
+     * @param destPixel the destination pixel, as INT_ARGB
+     * @return the blended pixel, as INT_ARGB
+     */
+    public int blend(int srcPixel, int destPixel) {
+        int result = 0;
+        int tmp = 0;
+
+        for (ColorMask mask : COLOR_MASKS) {
+
+            int srcColor = (srcPixel >> mask.getMask()) & ColorMask.MAX_DEPTH;
+            int destColor = (destPixel >> mask.getMask()) & ColorMask.MAX_DEPTH;
+            tmp = blendColor(srcColor, destColor);
+
+            tmp = processColorOpacity(tmp, destColor);
+            result = result | (tmp << mask.getMask());
+        }
+
+        int srcAlpha = (srcPixel >> ALPHA_MASK) & ColorMask.MAX_DEPTH;
+        int destAlpha = (destPixel >> ALPHA_MASK) & ColorMask.MAX_DEPTH;
+
+        tmp = blendAlpha(srcAlpha, destAlpha);
+        tmp = processAlphaOpacity(tmp, destAlpha);
+        result = result | (tmp << ALPHA_MASK);
+        return result;
+    }
+
     private int blendColor(int src, int dest) {
         return (src * dest) >> BLEND_SHIFT;
 
@@ -45,4 +45,17 @@ public abstract class ProcessDefinition implements FormProcessor {
     public abstract void buildProcess(ProcessInstance instance, ResourceResolver rr) throws LoginException, RepositoryException;
 
     public abstract void storeReport(ProcessInstance instance, ResourceResolver rr) throws RepositoryException, PersistenceException;
+
+    /**
+     * Resumable processes are started again after they were interrupted, for example by a restart of the instance,
+     * using the same inputs.  Work already completed is recorded per step in a checkpoint, which the actions can
+     * check with {@link com.adobe.acs.commons.fam.ActionManager#isCompleted(String)} to skip it.  Only processes
+     * whose work can safely be repeated, and which keep no state between steps other than in the repository,
+     * should be resumable.
+     *
+     * @return true if interrupted instances of this process can be resumed, false by default
+     */
+    public boolean isResumable() {
+        return false;
+    }
 }
@@ -0,0 +1,345 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2015 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.mcp.impl;
+
+import com.adobe.acs.commons.fam.Checkpoint;
+import com.adobe.acs.commons.functions.CheckedConsumer;
+import org.apache.jackrabbit.JcrConstants;
+import org.apache.sling.api.resource.ModifiableValueMap;
+import org.apache.sling.api.resource.PersistenceException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceUtil;
+import org.apache.sling.api.resource.ValueMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Consumer;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Journal of the items completed by each step of a process instance, so that an interrupted process can be resumed
+ * without doing the same work again.
+ * <p>
+ * Completed items are buffered and written in segments of up to {@link #DEFAULT_BATCH_SIZE} items, each segment being
+ * one node below <code>jcr:content/checkpoints/step&lt;n&gt;</code> that is written once and never updated. A segment
+ * holds the sorted item names as one binary property, front coded (each name only stores what differs from the
+ * previous one) and deflated, so the many similar paths of an import take up only a few bytes each. Once a step has
+ * finished it is flagged as completed, and a resumed process skips it altogether.
+ * </p>
+ */
+public class CheckpointJournal {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CheckpointJournal.class);
+
+    public static final String CHECKPOINTS = "checkpoints";
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+    static final String ITEMS = "items";
+    static final String ITEM_COUNT = "itemCount";
+    static final String COMPLETED = "completed";
+    private static final int FORMAT_VERSION = 1;
+
+    private final String path;
+    private final int batchSize;
+    private final Consumer<CheckedConsumer<ResourceResolver>> writer;
+    private final Map<Integer, StepCheckpoint> steps = new HashMap<>();
+    private final Set<Integer> completedSteps = Collections.synchronizedSet(new HashSet<>());
+
+    /**
+     * @param instancePath path of the process instance
+     * @param batchSize number of items written per segment
+     * @param writer runs the given write operation with a resolver and saves its changes
+     */
+    public CheckpointJournal(String instancePath, int batchSize, Consumer<CheckedConsumer<ResourceResolver>> writer) {
+        this.path = instancePath + "/jcr:content/" + CHECKPOINTS;
+        this.batchSize = Math.max(batchSize, 1);
+        this.writer = writer;
+    }
+
+    /**
+     * @param step index of the step
+     * @return checkpoint for the action manager of the step
+     */
+    public synchronized Checkpoint forStep(int step) {
+        return steps.computeIfAbsent(step, StepCheckpoint::new);
+    }
+
+    public boolean isStepCompleted(int step) {
+        return completedSteps.contains(step);
+    }
+
+    /**
+     * Writes the remaining items of the step and flags it as completed.
+     *
+     * @param step index of the step
+     */
+    public void stepCompleted(int step) {
+        StepCheckpoint checkpoint = (StepCheckpoint) forStep(step);
+        checkpoint.flush();
+        completedSteps.add(step);
+        writer.accept(rr -> getOrCreate(rr, checkpoint.getPath()).put(COMPLETED, true));
+    }
+
+    /**
+     * Writes the buffered items of all steps.
+     */
+    public void flush() {
+        List<StepCheckpoint> all;
+        synchronized (this) {
+            all = new ArrayList<>(steps.values());
+        }
+        all.forEach(StepCheckpoint::flush);
+    }
+
+    /**
+     * Reads the items and steps completed by an earlier run.
+     *
+     * @param rr resolver to read with
+     * @throws IOException if a segment cannot be read
+     */
+    public void load(ResourceResolver rr) throws IOException {
+        Resource checkpoints = rr.getResource(path);
+        if (checkpoints == null) {
+            return;
+        }
+        for (Resource stepResource : checkpoints.getChildren()) {
+            if (!stepResource.getName().startsWith("step")) {
+                continue;
+            }
+            int step = getNumber(stepResource, "step") - 1;
+            if (step < 0) {
+                continue;
+            }
+            StepCheckpoint checkpoint = (StepCheckpoint) forStep(step);
+            if (stepResource.getValueMap().get(COMPLETED, false)) {
+                completedSteps.add(step);
+            }
+            for (Resource segment : stepResource.getChildren()) {
+                checkpoint.load(segment);
+            }
+        }
+    }
+
+    /**
+     * @return the number following the prefix in the name of the resource, or -1 if it is not numbered like that
+     */
+    static int getNumber(Resource resource, String prefix) {
+        try {
+            int number = Integer.parseInt(resource.getName().substring(prefix.length()));
+            if (number >= 0) {
+                return number;
+            }
+        } catch (NumberFormatException ex) {
+            // logged below
+        }
+        LOG.warn("Ignoring {}, it is not named {} followed by a number", resource.getPath(), prefix);
+        return -1;
+    }
+
+    private static ModifiableValueMap getOrCreate(ResourceResolver rr, String path) throws PersistenceException {
+        Map<String, Object> props = Collections.singletonMap(JcrConstants.JCR_PRIMARYTYPE, JcrConstants.NT_UNSTRUCTURED);
+        return ResourceUtil.getOrCreateResource(rr, path, props, null, false)
+                .adaptTo(ModifiableValueMap.class);
+    }
+
+    /**
+     * Encodes item names sorted, front coded and deflated.
+     *
+     * @param items the item names
+     * @return the encoded items
+     * @throws IOException if the items cannot be encoded
+     */
+    static byte[] encode(Collection<String> items) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try (DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes, deflater))) {
+            Set<String> sorted = new TreeSet<>(items);
+            out.writeByte(FORMAT_VERSION);
+            writeVarInt(out, sorted.size());
+            byte[] previous = new byte[0];
+            for (String item : sorted) {
+                byte[] current = item.getBytes(StandardCharsets.UTF_8);
+                int shared = 0;
+                int max = Math.min(previous.length, current.length);
+                while (shared < max && previous[shared] == current[shared]) {
+                    shared++;
+                }
+                writeVarInt(out, shared);
+                writeVarInt(out, current.length - shared);
+                out.write(current, shared, current.length - shared);
+                previous = current;
+            }
+        } finally {
+            deflater.end();
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @param encoded items encoded by {@link #encode(Collection)}
+     * @return the item names in sorted order
+     * @throws IOException if the items cannot be decoded
+     */
+    static List<String> decode(InputStream encoded) throws IOException {
+        try (DataInputStream in = new DataInputStream(new InflaterInputStream(encoded))) {
+            int version = in.readUnsignedByte();
+            if (version != FORMAT_VERSION) {
+                throw new IOException("Unsupported checkpoint format " + version);
+            }
+            int count = readVarInt(in);
+            List<String> items = new ArrayList<>(count);
+            byte[] previous = new byte[0];
+            for (int i = 0; i < count; i++) {
+                int shared = readVarInt(in);
+                int length = readVarInt(in);
+                if (shared > previous.length) {
+                    throw new IOException("Corrupt checkpoint segment");
+                }
+                byte[] current = new byte[shared + length];
+                System.arraycopy(previous, 0, current, 0, shared);
+                in.readFully(current, shared, length);
+                items.add(new String(current, StandardCharsets.UTF_8));
+                previous = current;
+            }
+            return items;
+        }
+    }
+
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        int remaining = value;
+        while ((remaining & ~0x7F) != 0) {
+            out.writeByte((remaining & 0x7F) | 0x80);
+            remaining >>>= 7;
+        }
+        out.writeByte(remaining);
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Corrupt checkpoint segment");
+    }
+
+    /**
+     * Items of one step: those completed by earlier runs, and those completed since the last segment was written.
+     */
+    private class StepCheckpoint implements Checkpoint {
+
+        private final int step;
+        private final Set<String> loaded = Collections.synchronizedSet(new HashSet<>());
+        private List<String> buffer = new ArrayList<>();
+        private int segments = 0;
+
+        StepCheckpoint(int step) {
+            this.step = step;
+        }
+
+        String getPath() {
+            return path + "/step" + (step + 1);
+        }
+
+        @Override
+        public boolean isCompleted(String item) {
+            return loaded.contains(item);
+        }
+
+        @Override
+        public void completed(String item) {
+            if (loaded.contains(item)) {
+                return;
+            }
+            List<String> full = null;
+            synchronized (this) {
+                buffer.add(item);
+                if (buffer.size() >= batchSize) {
+                    full = buffer;
+                    buffer = new ArrayList<>();
+                }
+            }
+            if (full != null) {
+                write(full);
+            }
+        }
+
+        void flush() {
+            List<String> remaining;
+            synchronized (this) {
+                remaining = buffer;
+                buffer = new ArrayList<>();
+            }
+            if (!remaining.isEmpty()) {
+                write(remaining);
+            }
+        }
+
+        private void write(List<String> items) {
+            String segmentPath;
+            synchronized (this) {
+                segmentPath = String.format("%s/seg%06d", getPath(), ++segments);
+            }
+            writer.accept(rr -> {
+                getOrCreate(rr, getPath());
+                Map<String, Object> props = new HashMap<>();
+                props.put(JcrConstants.JCR_PRIMARYTYPE, JcrConstants.NT_UNSTRUCTURED);
+                props.put(ITEM_COUNT, items.size());
+                props.put(ITEMS, new ByteArrayInputStream(encode(items)));
+                ResourceUtil.getOrCreateResource(rr, segmentPath, props, null, false);
+            });
+        }
+
+        synchronized void load(Resource segment) throws IOException {
+            ValueMap properties = segment.getValueMap();
+            try (InputStream items = properties.get(ITEMS, InputStream.class)) {
+                if (items != null) {
+                    loaded.addAll(decode(items));
+                }
+            }
+            // New segments are numbered after the ones written by earlier runs
+            String name = segment.getName();
+            if (name.startsWith("seg")) {
+                segments = Math.max(segments, getNumber(segment, "seg"));
+            }
+        }
+    }
+}
@@ -29,14 +29,17 @@ import com.adobe.acs.commons.util.visitors.TreeFilteringResourceVisitor;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import javax.management.openmbean.OpenDataException;
 import javax.management.openmbean.TabularDataSupport;
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
@@ -47,12 +50,14 @@ import org.apache.sling.api.resource.LoginException;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.slf4j.LoggerFactory;
 
 /**
  * Implementation of ControlProcessManager service
  */
-@Component
+@Component(metatype = true, label = "ACS AEM Commons - Manage Controlled Processes")
 @Service(ControlledProcessManager.class)
 @Property(name = "jmx.objectname", value = "com.adobe.acs.commons:type=Manage Controlled Processes")
 public class ControlledProcessManagerImpl implements ControlledProcessManager {
@@ -61,6 +66,13 @@ public class ControlledProcessManagerImpl implements ControlledProcessManager {
     private static final String SERVICE_NAME = "manage-controlled-processes";
     private static final Map<String, Object> AUTH_INFO;
 
+    private static final boolean DEFAULT_RESUME_INTERRUPTED_PROCESSES = false;
+    @Property(label = "Resume interrupted processes",
+            description = "Resume processes which support it after they were interrupted, e.g. by a restart. "
+            + "Completed work is skipped. Resumed processes run as the service user.",
+            boolValue = DEFAULT_RESUME_INTERRUPTED_PROCESSES)
+    public static final String PROP_RESUME_INTERRUPTED_PROCESSES = "resume.interrupted.processes";
+
     @Reference(cardinality = ReferenceCardinality.MANDATORY_MULTIPLE, bind = "bindDefinitionFactory", unbind = "unbindDefinitionFactory", referenceInterface = ProcessDefinitionFactory.class, policy = ReferencePolicy.DYNAMIC)
     private final List<ProcessDefinitionFactory> processDefinitionFactories = new CopyOnWriteArrayList<>();
 
@@ -70,12 +82,31 @@ public class ControlledProcessManagerImpl implements ControlledProcessManager {
 
     Map<String, ProcessInstance> activeProcesses = Collections.synchronizedMap(new LinkedHashMap<>());
 
+    /**
+     * Set on activation if interrupted processes are resumed; the factories of their definitions may be bound later.
+     */
+    private volatile boolean resumeEnabled;
+
+    /**
+     * Ids of the interrupted processes which have been resumed, or failed to, since the activation.
+     */
+    private final Set<String> resumedProcessIds = ConcurrentHashMap.newKeySet();
+
     @Reference
     ResourceResolverFactory resourceResolverFactory;
 
     @Reference
     ActionManagerFactory amf;
 
+    @Activate
+    protected void activate(Map<String, Object> properties) {
+        resumedProcessIds.clear();
+        resumeEnabled = PropertiesUtil.toBoolean(properties.get(PROP_RESUME_INTERRUPTED_PROCESSES), DEFAULT_RESUME_INTERRUPTED_PROCESSES);
+        if (resumeEnabled) {
+            resumeInterruptedProcesses();
+        }
+    }
+
     @Override
     public ActionManagerFactory getActionManagerFactory() {
         return amf;
@@ -83,6 +114,10 @@ public class ControlledProcessManagerImpl implements ControlledProcessManager {
 
     protected void bindDefinitionFactory(ProcessDefinitionFactory fac) {
         processDefinitionFactories.add(fac);
+        if (resumeEnabled) {
+            // processes of this factory's definition were skipped until now
+            resumeInterruptedProcesses();
+        }
     }
 
     protected void unbindDefinitionFactory(ProcessDefinitionFactory fac) {
@@ -172,6 +207,63 @@ public class ControlledProcessManagerImpl implements ControlledProcessManager {
         return activeProcesses.values();
     }
     
+    /**
+     * Resume the processes which were still running when they were interrupted, and which stored their inputs to be
+     * resumed. Processes whose definition factory is not bound yet are skipped, they are resumed once it is bound.
+     */
+    synchronized void resumeInterruptedProcesses() {
+        try (ResourceResolver rr = getServiceResourceResolver()) {
+            Resource instances = rr.getResource(ProcessInstanceImpl.BASE_PATH);
+            if (instances == null) {
+                return;
+            }
+            for (Resource instance : instances.getChildren()) {
+                Resource content = instance.getChild("jcr:content");
+                if (content != null && !activeProcesses.containsKey(instance.getName())
+                        && content.getValueMap().get("isRunning", false)
+                        && content.getValueMap().get(ProcessInstanceImpl.RESUMABLE, false)
+                        && !resumedProcessIds.contains(instance.getName())) {
+                    String definition = content.getValueMap().get(ProcessInstanceImpl.DEFINITION, String.class);
+                    if (isDefinitionBound(definition)) {
+                        resumedProcessIds.add(instance.getName());
+                        resumeProcess(rr, instance.getName(), content);
+                    } else {
+                        LOG.debug("Process {} is resumed once the factory of {} is bound", instance.getName(), definition);
+                    }
+                }
+            }
+        } catch (LoginException ex) {
+            LOG.error("Unable to resume interrupted processes", ex);
+        }
+    }
+
+    private boolean isDefinitionBound(String name) {
+        return name != null && processDefinitionFactories.stream().anyMatch(f -> name.equals(f.getName()));
+    }
+
+    private void resumeProcess(ResourceResolver rr, String id, Resource content) {
+        ValueMap properties = content.getValueMap();
+        try {
+            ProcessDefinition definition = findDefinitionByNameOrPath(properties.get(ProcessInstanceImpl.DEFINITION, String.class));
+            Map<String, Object> inputs = new HashMap<>();
+            Resource storedInputs = content.getChild(ProcessInstanceImpl.INPUTS);
+            if (storedInputs != null) {
+                storedInputs.getValueMap().forEach((name, value) -> {
+                    if (!name.startsWith("jcr:")) {
+                        inputs.put(name, value);
+                    }
+                });
+            }
+            ProcessInstanceImpl instance = new ProcessInstanceImpl(this, definition, properties.get("description", String.class), id);
+            activeProcesses.put(id, instance);
+            instance.init(rr, inputs);
+            instance.resume(rr);
+        } catch (Exception ex) {
+            activeProcesses.remove(id);
+            LOG.error("Unable to resume interrupted process " + id, ex);
+        }
+    }
+
     @Override
     public Collection<ProcessInstance> getInactiveProcesses() {
         ArrayList<ProcessInstance> processes = new ArrayList();
@@ -21,21 +21,7 @@ package com.adobe.acs.commons.mcp.impl;
 
 import com.adobe.acs.commons.mcp.model.GenericReport;
 import com.day.cq.commons.jcr.JcrUtil;
-import java.awt.Color;
-import org.apache.commons.lang3.StringUtils;
 import org.apache.felix.scr.annotations.sling.SlingServlet;
-import org.apache.poi.ss.usermodel.Sheet;
-import org.apache.poi.ss.usermodel.Workbook;
-import org.apache.poi.ss.usermodel.Row;
-import org.apache.poi.ss.usermodel.Cell;
-import org.apache.poi.ss.usermodel.CellStyle;
-import org.apache.poi.ss.usermodel.FillPatternType;
-import org.apache.poi.ss.usermodel.IndexedColors;
-import org.apache.poi.ss.util.CellRangeAddress;
-import org.apache.poi.xssf.usermodel.XSSFCellStyle;
-import org.apache.poi.xssf.usermodel.XSSFColor;
-import org.apache.poi.xssf.usermodel.XSSFFont;
-import org.apache.poi.xssf.usermodel.XSSFWorkbook;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.resource.ValueMap;
@@ -43,14 +29,17 @@ import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
 import org.slf4j.LoggerFactory;
 
 import javax.servlet.ServletException;
-import javax.servlet.ServletOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.stream.Stream;
 
 /**
- * Export a generic report as an excel spreadsheet
+ * Export a generic report as an excel spreadsheet, or as csv or jsonl (JSON Lines) file.
+ * Rows are read and written one at a time, so large reports do not have to fit in memory.
  */
-@SlingServlet(resourceTypes = GenericReport.GENERIC_REPORT_RESOURCE_TYPE, extensions = {"xlsx","xls"})
+@SlingServlet(resourceTypes = GenericReport.GENERIC_REPORT_RESOURCE_TYPE, extensions = {"xlsx", "xls", "csv", "jsonl"})
 public class GenericReportExcelServlet extends SlingSafeMethodsServlet {
     private static final org.slf4j.Logger LOG = LoggerFactory.getLogger(GenericReportExcelServlet.class);
 
@@ -58,18 +47,17 @@ public class GenericReportExcelServlet extends SlingSafeMethodsServlet {
     protected void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response) throws ServletException, IOException {
         GenericReport report = request.getResource().adaptTo(GenericReport.class);
         if (report != null) {
+            String extension = request.getRequestPathInfo().getExtension();
             String title = report.getName();
-            String fileName = JcrUtil.createValidName(title) + ".xlsx";
+            String fileName = JcrUtil.createValidName(title) + "." + ReportWriter.getFileExtension(extension);
 
-            Workbook workbook = createSpreadsheet(report);
-            response.setContentType("application/vnd.ms-excel");
+            response.setContentType(ReportWriter.getContentType(extension));
             response.setHeader("Expires", "0");
             response.setHeader("Cache-Control", "must-revalidate, post-check=0, pre-check=0");
             response.setHeader("Pragma", "public");
             response.setHeader("Content-Disposition", "attachment; filename=" + fileName);
-            try (ServletOutputStream out = response.getOutputStream()) {
-                workbook.write(out);
-                out.flush();
+            try (ReportWriter writer = ReportWriter.open(extension, response.getOutputStream(), title, report.getColumns(), report.getColumnNames())) {
+                writeRows(report, writer);
             } catch (Exception ex) {
                 LOG.error("Error generating excel export for "+request.getResource().getPath(), ex);
                 throw ex;
@@ -80,82 +68,17 @@ public class GenericReportExcelServlet extends SlingSafeMethodsServlet {
         }
     }
 
-    @SuppressWarnings("squid:S3776")
-    private Workbook createSpreadsheet(GenericReport report) {
-        Workbook wb = new XSSFWorkbook();
-
-        String name = report.getName();
-        for (char ch : new char[]{'\\','/','*','[',']',':','?'}) {
-            name = StringUtils.remove(name, ch);
-        }
-        Sheet sheet = wb.createSheet(name);
-        sheet.createFreezePane(0, 1, 0, 1);
-
-        Row headerRow = sheet.createRow(0);
-        CellStyle headerStyle = createHeaderStyle(wb);
-        for (int c = 0; c < report.getColumnNames().size(); c++) {
-            Cell headerCell = headerRow.createCell(c);
-            headerCell.setCellValue(report.getColumnNames().get(c));
-            headerCell.setCellStyle(headerStyle);
-        }
-
-        List<ValueMap> rows = report.getRows();
-        //make rows, don't forget the header row
-        for (int r = 0; r < rows.size(); r++) {
-            Row row = sheet.createRow(r+1);
-
-            //make columns
-            for (int c = 0; c < report.getColumns().size(); c++) {
-                String col = report.getColumns().get(c);
-                Cell cell = row.createCell(c);
-
-                if (rows.get(r).containsKey(col)) {
-                    Object val = rows.get(r).get(col);
-                    if (val instanceof Number) {
-                        Number n = (Number) val;
-                        cell.setCellValue(n.doubleValue());
-                    } else {
-                        String sval = String.valueOf(val);
-                        if (sval.startsWith("=")) {
-                            cell.setCellFormula(sval.substring(1));
-                        } else {
-                            cell.setCellValue(sval);
-                        }
-                    }
+    private void writeRows(GenericReport report, ReportWriter writer) throws IOException {
+        List<String> columns = report.getColumns();
+        List<Object> values = new ArrayList<>(columns.size());
+        try (Stream<ValueMap> rows = report.streamRows()) {
+            for (Iterator<ValueMap> rowIterator = rows.iterator(); rowIterator.hasNext();) {
+                ValueMap row = rowIterator.next();
+                values.clear();
+                for (String col : columns) {
+                    values.add(row.get(col));
                 }
-            }
-        }
-        int lastColumnIndex = report.getColumnNames().size();
-        autosize(sheet, lastColumnIndex);
-        sheet.setAutoFilter(new CellRangeAddress(0, 1 + rows.size(),0, lastColumnIndex - 1));
-        return wb;
-    }
-
-    CellStyle createHeaderStyle(Workbook wb){
-        XSSFCellStyle xstyle = (XSSFCellStyle)wb.createCellStyle();
-        XSSFColor header = new XSSFColor(new Color(79, 129, 189));
-        xstyle.setFillForegroundColor(header);
-        xstyle.setFillPattern(FillPatternType.SOLID_FOREGROUND);
-        XSSFFont font = (XSSFFont)wb.createFont();
-        font.setColor(IndexedColors.WHITE.index);
-        xstyle.setFont(font);
-        return xstyle;
-    }
-
-    void autosize(Sheet sheet, int lastColumnIndex){
-        for(int i = 0; i <= lastColumnIndex; i++ ) {
-            try {
-                sheet.autoSizeColumn(i);
-            } catch (Exception e){
-                // autosize depends on AWT stuff and can fail, but it should not be fatal
-                LOG.warn("autoSizeColumn(" + i + ") failed: " + e.getMessage());
-            }
-            int cw = sheet.getColumnWidth(i);
-            // increase width to accommodate drop-down arrow in the header
-            if (cw/256 < 20) {
-                sheet.setColumnWidth(i, 256*12);
-            } else if (cw/256 > 120) {
-                sheet.setColumnWidth(i, 256*120);
+                writer.writeRow(values);
             }
         }
     }
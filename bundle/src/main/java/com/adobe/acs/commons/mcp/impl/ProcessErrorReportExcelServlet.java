@@ -23,20 +23,8 @@ import com.adobe.acs.commons.mcp.ProcessInstance;
 import com.adobe.acs.commons.mcp.model.ManagedProcess;
 import com.adobe.acs.commons.mcp.model.impl.ArchivedProcessFailure;
 import com.day.cq.commons.jcr.JcrUtil;
-import java.awt.Color;
-import org.apache.commons.lang3.StringUtils;
 import org.apache.felix.scr.annotations.sling.SlingServlet;
-import org.apache.poi.ss.usermodel.Sheet;
 import org.apache.poi.ss.usermodel.Workbook;
-import org.apache.poi.ss.usermodel.Row;
-import org.apache.poi.ss.usermodel.Cell;
-import org.apache.poi.ss.usermodel.CellStyle;
-import org.apache.poi.ss.usermodel.FillPatternType;
-import org.apache.poi.ss.usermodel.IndexedColors;
-import org.apache.poi.ss.util.CellRangeAddress;
-import org.apache.poi.xssf.usermodel.XSSFCellStyle;
-import org.apache.poi.xssf.usermodel.XSSFColor;
-import org.apache.poi.xssf.usermodel.XSSFFont;
 import org.apache.poi.xssf.usermodel.XSSFWorkbook;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
@@ -44,36 +32,41 @@ import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
 import org.slf4j.LoggerFactory;
 
 import javax.servlet.ServletException;
-import javax.servlet.ServletOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.Arrays;
-import java.util.Collection;
-import org.apache.poi.ss.usermodel.CreationHelper;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Stream;
 
 /**
- * Export a generic report as an excel spreadsheet
+ * Export the errors of a process as an excel spreadsheet, or as csv or jsonl (JSON Lines) file.
+ * Errors are read and written one at a time, so large error reports do not have to fit in memory.
  */
-@SlingServlet(resourceTypes = ProcessInstance.RESOURCE_TYPE, selectors = "errors", extensions = {"xlsx", "xls"})
+@SlingServlet(resourceTypes = ProcessInstance.RESOURCE_TYPE, selectors = "errors", extensions = {"xlsx", "xls", "csv", "jsonl"})
 public class ProcessErrorReportExcelServlet extends SlingSafeMethodsServlet {
 
     private static final org.slf4j.Logger LOG = LoggerFactory.getLogger(ProcessErrorReportExcelServlet.class);
 
+    private static final List<String> COLUMN_KEYS = Arrays.asList("time", "nodePath", "error", "stackTrace");
+    private static final List<String> COLUMN_NAMES = Arrays.asList("Time", "Path", "Error", "Stack trace");
+
     @Override
     protected void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response) throws ServletException, IOException {
         ManagedProcess report = request.getResource().adaptTo(ManagedProcess.class);
         if (report != null) {
+            String extension = request.getRequestPathInfo().getExtension();
             String title = report.getName();
-            String fileName = JcrUtil.createValidName(title) + ".xlsx";
+            String fileName = JcrUtil.createValidName(title) + "." + ReportWriter.getFileExtension(extension);
 
-            Workbook workbook = createSpreadsheet(report);
-            response.setContentType("application/vnd.ms-excel");
+            response.setContentType(ReportWriter.getContentType(extension));
             response.setHeader("Expires", "0");
             response.setHeader("Cache-Control", "must-revalidate, post-check=0, pre-check=0");
             response.setHeader("Pragma", "public");
             response.setHeader("Content-Disposition", "attachment; filename=" + fileName);
-            try (ServletOutputStream out = response.getOutputStream()) {
-                workbook.write(out);
-                out.flush();
+            try (ReportWriter writer = ReportWriter.open(extension, response.getOutputStream(), title, COLUMN_KEYS, COLUMN_NAMES)) {
+                writeRows(report, writer);
             } catch (Exception ex) {
                 LOG.error("Error generating excel export for " + request.getResource().getPath(), ex);
                 throw ex;
@@ -84,75 +77,28 @@ public class ProcessErrorReportExcelServlet extends SlingSafeMethodsServlet {
         }
     }
 
-    @SuppressWarnings("squid:S3776")
-    protected Workbook createSpreadsheet(ManagedProcess report) {
-        Workbook wb = new XSSFWorkbook();
-
-        String name = report.getName();
-        for (char ch : new char[]{'\\', '/', '*', '[', ']', ':', '?'}) {
-            name = StringUtils.remove(name, ch);
-        }
-        Sheet sheet = wb.createSheet(name);
-        sheet.createFreezePane(0, 1, 0, 1);
-
-        Row headerRow = sheet.createRow(0);
-        CellStyle headerStyle = createHeaderStyle(wb);
-        CellStyle dateStyle = wb.createCellStyle();
-        CreationHelper createHelper = wb.getCreationHelper();
-        dateStyle.setDataFormat(createHelper.createDataFormat().getFormat("yyy/mm/dd h:mm:ss"));
-        
-        for (String columnName : Arrays.asList("Time", "Path", "Error", "Stack trace")) {
-            Cell headerCell = headerRow.createCell(headerRow.getPhysicalNumberOfCells());
-            headerCell.setCellValue(columnName);
-            headerCell.setCellStyle(headerStyle);
-        }
-
-        Collection<ArchivedProcessFailure> rows = report.getReportedErrorsList();
-        //make rows, don't forget the header row
-        for (ArchivedProcessFailure error : rows) {
-            Row row = sheet.createRow(sheet.getPhysicalNumberOfRows());
-            Cell c;
-
-            c = row.createCell(0);
-            c.setCellValue(error.time);
-            c.setCellStyle(dateStyle);
-            c = row.createCell(1);
-            c.setCellValue(error.nodePath);
-            c = row.createCell(2);
-            c.setCellValue(error.error);
-            c = row.createCell(3);
-            c.setCellValue(error.stackTrace);
+    /**
+     * Create a spreadsheet with the errors of a process.  The export itself is
+     * streamed by {@link #doGet}; this builds the whole workbook in memory instead.
+     * The streamed workbook is written and its temporary files deleted before
+     * the result is read back, so nothing has to be disposed by the caller.
+     * @param report Process to export the errors of
+     * @return Workbook holding all errors
+     * @throws IOException If the errors could not be read
+     */
+    protected Workbook createSpreadsheet(ManagedProcess report) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ReportWriter writer = new ReportWriter.SpreadsheetWriter(out, report.getName(), COLUMN_NAMES)) {
+            writeRows(report, writer);
         }
-        autosize(sheet, 4);
-        sheet.setAutoFilter(new CellRangeAddress(0, 1 + rows.size(), 0, 3));
-        return wb;
+        return new XSSFWorkbook(new ByteArrayInputStream(out.toByteArray()));
     }
 
-    CellStyle createHeaderStyle(Workbook wb) {
-        XSSFCellStyle xstyle = (XSSFCellStyle) wb.createCellStyle();
-        XSSFColor header = new XSSFColor(new Color(79, 129, 189));
-        xstyle.setFillForegroundColor(header);
-        xstyle.setFillPattern(FillPatternType.SOLID_FOREGROUND);
-        XSSFFont font = (XSSFFont) wb.createFont();
-        font.setColor(IndexedColors.WHITE.index);
-        xstyle.setFont(font);
-        return xstyle;
-    }
-
-    void autosize(Sheet sheet, int lastColumnIndex) {
-        for (int i = 0; i <= lastColumnIndex; i++) {
-            try {
-                sheet.autoSizeColumn(i);
-            } catch (Exception e) {
-                // autosize depends on AWT stuff and can fail, but it should not be fatal
-                LOG.warn("autoSizeColumn(" + i + ") failed: " + e.getMessage());
-            }
-            int cw = sheet.getColumnWidth(i);
-            // increase width to accommodate drop-down arrow in the header
-            if (cw / 256 < 20) {
-                sheet.setColumnWidth(i, 256 * 12);
-            } else if (cw / 256 > 120) {
-                sheet.setColumnWidth(i, 256 * 120);
+    private void writeRows(ManagedProcess report, ReportWriter writer) throws IOException {
+        try (Stream<ArchivedProcessFailure> errors = report.streamReportedErrors()) {
+            for (Iterator<ArchivedProcessFailure> errorIterator = errors.iterator(); errorIterator.hasNext();) {
+                ArchivedProcessFailure error = errorIterator.next();
+                writer.writeRow(Arrays.asList(error.time, error.nodePath, error.error, error.stackTrace));
             }
         }
     }
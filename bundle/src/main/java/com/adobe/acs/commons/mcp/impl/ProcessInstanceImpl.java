@@ -27,12 +27,16 @@ import com.adobe.acs.commons.functions.CheckedConsumer;
 import com.adobe.acs.commons.mcp.ControlledProcessManager;
 import com.adobe.acs.commons.mcp.ProcessDefinition;
 import com.adobe.acs.commons.mcp.ProcessInstance;
+import com.adobe.acs.commons.mcp.form.FormField;
+import com.adobe.acs.commons.mcp.form.PasswordComponent;
 import com.adobe.acs.commons.mcp.model.ManagedProcess;
 import com.adobe.acs.commons.mcp.model.Result;
 import com.adobe.acs.commons.mcp.model.impl.ArchivedProcessFailure;
 import com.adobe.acs.commons.mcp.util.DeserializeException;
 import com.adobe.acs.commons.mcp.util.ValueMapSerializer;
 import com.day.cq.commons.jcr.JcrUtil;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.reflect.FieldUtils;
 import org.apache.jackrabbit.JcrConstants;
 import org.apache.sling.api.resource.LoginException;
 import org.apache.sling.api.resource.ModifiableValueMap;
@@ -52,7 +56,9 @@ import javax.management.openmbean.OpenDataException;
 import javax.management.openmbean.OpenType;
 import javax.management.openmbean.SimpleType;
 import javax.management.openmbean.TabularType;
+import java.io.IOException;
 import java.io.Serializable;
+import java.lang.reflect.Field;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -78,6 +84,12 @@ public class ProcessInstanceImpl implements ProcessInstance, Serializable {
     private final transient ProcessDefinition definition;
     private transient boolean completedNormally = false;
     private static final transient Random RANDOM = new Random();
+    // Properties of interrupted instances which can be resumed, see ProcessDefinition.isResumable()
+    public static final transient String RESUMABLE = "resumable";
+    public static final transient String DEFINITION = "definition";
+    public static final transient String INPUTS = "inputs";
+    private transient Map<String, Object> resumableInputs = null;
+    private transient CheckpointJournal journal = null;
 
     @Override
     public String getId() {
@@ -118,6 +130,13 @@ public class ProcessInstanceImpl implements ProcessInstance, Serializable {
     }
 
     public ProcessInstanceImpl(ControlledProcessManager cpm, ProcessDefinition process, String description) {
+        this(cpm, process, description, String.format("%016X", Math.abs(RANDOM.nextLong())));
+    }
+
+    /**
+     * @param id identifier of an interrupted instance to resume
+     */
+    ProcessInstanceImpl(ControlledProcessManager cpm, ProcessDefinition process, String description, String id) {
         manager = cpm;
         infoBean = new ManagedProcess();
         infoBean.setStartTime(-1L);
@@ -127,7 +146,7 @@ public class ProcessInstanceImpl implements ProcessInstance, Serializable {
         infoBean.setName(process.getName());
         infoBean.setDescription(description == null ? "No description" : description);
         infoBean.setResult(new Result());
-        id = String.format("%016X", Math.abs(RANDOM.nextLong()));
+        this.id = id;
         path = BASE_PATH + "/" + id;
     }
 
@@ -154,6 +173,12 @@ public class ProcessInstanceImpl implements ProcessInstance, Serializable {
             ValueMap inputs = new ModifiableValueMapDecorator(parameterMap);
             infoBean.setRequestInputs(inputs);
             definition.parseInputs(inputs);
+            if (definition.isResumable()) {
+                resumableInputs = getResumableInputs(parameterMap);
+                if (resumableInputs != null) {
+                    journal = new CheckpointJournal(getPath(), CheckpointJournal.DEFAULT_BATCH_SIZE, this::asServiceUser);
+                }
+            }
         } catch (DeserializeException | RepositoryException ex) {
             LOG.error("Error starting managed process " + getName(), ex);
             Failure f = new Failure();
@@ -186,6 +211,9 @@ public class ProcessInstanceImpl implements ProcessInstance, Serializable {
         activityDefinition.name = name;
         activityDefinition.manager = getActionManagerFactory().createTaskManager(getName() + ": " + name, rr, 1);
         activityDefinition.critical = isCritical;
+        if (journal != null) {
+            activityDefinition.manager.setCheckpoint(journal.forStep(actions.size()));
+        }
         actions.add(activityDefinition);
         return activityDefinition.manager;
     }
@@ -197,6 +225,12 @@ public class ProcessInstanceImpl implements ProcessInstance, Serializable {
             infoBean.setStartTime(System.currentTimeMillis());
             definition.buildProcess(this, rr);
             infoBean.setIsRunning(true);
+            if (journal != null) {
+                asServiceUser(serviceResolver -> {
+                    persistStatus(serviceResolver);
+                    persistResumeState(serviceResolver);
+                });
+            }
             runStep(0);
         } catch (LoginException | RepositoryException | RuntimeException ex) {
             LOG.error("Error starting managed process " + getName(), ex);
@@ -211,17 +245,38 @@ public class ProcessInstanceImpl implements ProcessInstance, Serializable {
         }
     }
 
+    /**
+     * Resume an instance interrupted before it completed, skipping the steps and items which have been completed.
+     * The instance has to be initialized with the inputs stored by the interrupted run.
+     *
+     * @param rr resolver to run the process with
+     * @throws IOException if the checkpoints of the interrupted run cannot be read
+     */
+    void resume(ResourceResolver rr) throws IOException {
+        if (journal == null) {
+            throw new IllegalStateException("Process " + getName() + " cannot be resumed");
+        }
+        LOG.info("Resuming interrupted process {} ({})", getName(), getId());
+        journal.load(rr);
+        run(rr);
+    }
+
     private void runStep(int step) {
         if (step >= actions.size()) {
             completedNormally = true;
             halt();
+        } else if (journal != null && journal.isStepCompleted(step)) {
+            runStep(step + 1);
         } else {
             updateProgress();
             updateStatus(step);
             asServiceUser(this::persistStatus);
             ActivityDefinition action = actions.get(step);
             if (action.critical) {
-                action.manager.onSuccess(rr -> runStep(step + 1));
+                action.manager.onSuccess(rr -> {
+                    stepCompleted(step);
+                    runStep(step + 1);
+                });
                 action.manager.onFailure((failures, rr) -> {
                     asServiceUser(service -> recordErrors(step, failures, service));
                     halt();
@@ -230,12 +285,21 @@ public class ProcessInstanceImpl implements ProcessInstance, Serializable {
                 action.manager.onFailure((failures, rr) -> {
                     asServiceUser(service -> recordErrors(step, failures, service));
                 });
-                action.manager.onFinish(() -> runStep(step + 1));
+                action.manager.onFinish(() -> {
+                    stepCompleted(step);
+                    runStep(step + 1);
+                });
             }
             action.manager.deferredWithResolver(rr -> action.builder.accept(action.manager));
         }
     }
 
+    private void stepCompleted(int step) {
+        if (journal != null) {
+            journal.stepCompleted(step);
+        }
+    }
+
     public void recordErrors(int step, List<Failure> failures, ResourceResolver rr) {
         if (failures.isEmpty()) {
             return;
@@ -319,6 +383,45 @@ public class ProcessInstanceImpl implements ProcessInstance, Serializable {
         }
     }
 
+    /**
+     * Stores what is needed to resume the process if it is interrupted.
+     */
+    private void persistResumeState(ResourceResolver rr) throws PersistenceException {
+        ModifiableValueMap jcrContent = rr.getResource(getPath() + "/jcr:content").adaptTo(ModifiableValueMap.class);
+        jcrContent.put(RESUMABLE, true);
+        jcrContent.put(DEFINITION, definition.getName());
+        Map<String, Object> props = new HashMap<>(resumableInputs);
+        props.put(JcrConstants.JCR_PRIMARYTYPE, JcrConstants.NT_UNSTRUCTURED);
+        ResourceUtil.getOrCreateResource(rr, getPath() + "/jcr:content/" + INPUTS, props, null, false);
+    }
+
+    /**
+     * Inputs of the process definition form can be stored if they are simple values, but not if they are uploaded
+     * files or passwords.
+     *
+     * @return the inputs to store, or null if the process cannot be resumed with stored inputs
+     */
+    private Map<String, Object> getResumableInputs(Map<String, Object> parameterMap) {
+        Map<String, Object> stored = new HashMap<>();
+        for (Field field : FieldUtils.getFieldsListWithAnnotation(definition.getClass(), FormField.class)) {
+            Object value = parameterMap.get(field.getName());
+            if (value == null) {
+                continue;
+            }
+            boolean isPassword = field.getAnnotation(FormField.class).component() == PasswordComponent.class;
+            if (isPassword && StringUtils.isNotEmpty(value.toString())) {
+                LOG.info("Process {} cannot be resumed, its inputs include a password", getName());
+                return null;
+            } else if (value instanceof String || value instanceof String[] || value instanceof Number || value instanceof Boolean) {
+                stored.put(field.getName(), value);
+            } else {
+                LOG.info("Process {} cannot be resumed, input {} cannot be stored", getName(), field.getName());
+                return null;
+            }
+        }
+        return stored;
+    }
+
     @Override
     public ManagedProcess getInfo() {
         return infoBean;
@@ -335,6 +438,9 @@ public class ProcessInstanceImpl implements ProcessInstance, Serializable {
         } else {
             setStatusAborted();
         }
+        if (journal != null) {
+            journal.flush();
+        }
         asServiceUser(rr -> {
             persistStatus(rr);
             definition.storeReport(this, rr);
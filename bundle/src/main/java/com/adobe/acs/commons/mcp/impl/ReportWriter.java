@@ -0,0 +1,356 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2015 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.mcp.impl;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import java.awt.Color;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.format.DateTimeFormatter;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.FillPatternType;
+import org.apache.poi.ss.usermodel.IndexedColors;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.ss.util.CellRangeAddress;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+import org.apache.poi.xssf.usermodel.XSSFCellStyle;
+import org.apache.poi.xssf.usermodel.XSSFColor;
+import org.apache.poi.xssf.usermodel.XSSFFont;
+
+/**
+ * Writes report rows to an output stream one at a time, so that the memory used
+ * does not depend on the size of the report.  The format is picked by request
+ * extension: xlsx (also used for xls), csv or jsonl (JSON Lines).
+ */
+abstract class ReportWriter implements Closeable {
+
+    static final String XLSX = "xlsx";
+    static final String CSV = "csv";
+    static final String JSON_LINES = "jsonl";
+
+    /**
+     * Number of spreadsheet rows kept in memory, older rows are flushed to a temporary file.
+     */
+    static final int ROW_ACCESS_WINDOW = 100;
+
+    private static final int MIN_COLUMN_WIDTH = 12;
+    private static final int AUTOSIZE_COLUMN_WIDTH = 20;
+    private static final int MAX_COLUMN_WIDTH = 120;
+
+    /**
+     * @param extension Request extension
+     * @return Extension of the file written for that request extension
+     */
+    static String getFileExtension(String extension) {
+        if (CSV.equals(extension) || JSON_LINES.equals(extension)) {
+            return extension;
+        } else {
+            return XLSX;
+        }
+    }
+
+    /**
+     * @param extension Request extension
+     * @return Content type of the file written for that request extension
+     */
+    static String getContentType(String extension) {
+        switch (getFileExtension(extension)) {
+            case CSV:
+                return "text/csv;charset=UTF-8";
+            case JSON_LINES:
+                return "application/x-ndjson;charset=UTF-8";
+            default:
+                return "application/vnd.ms-excel";
+        }
+    }
+
+    /**
+     * Start writing a report.
+     * @param extension Request extension, see {@link #getFileExtension(String)}
+     * @param out Stream to write to, it is closed along with the writer
+     * @param title Report title, used as sheet name
+     * @param keys Column keys, used as property names of JSON lines
+     * @param columnNames Column names, used as header row
+     * @return Report writer
+     */
+    static ReportWriter open(String extension, OutputStream out, String title, List<String> keys, List<String> columnNames) throws IOException {
+        switch (getFileExtension(extension)) {
+            case CSV:
+                return new CsvWriter(out, columnNames);
+            case JSON_LINES:
+                return new JsonLinesWriter(out, keys);
+            default:
+                return new SpreadsheetWriter(out, title, columnNames);
+        }
+    }
+
+    /**
+     * Write one row of the report.
+     * @param values Cell values in column order, null for empty cells
+     * @throws IOException If the row could not be written
+     */
+    abstract void writeRow(List<?> values) throws IOException;
+
+    static String formatDate(Object value) {
+        Calendar cal;
+        if (value instanceof Calendar) {
+            cal = (Calendar) value;
+        } else {
+            cal = Calendar.getInstance();
+            cal.setTime((Date) value);
+        }
+        return DateTimeFormatter.ISO_OFFSET_DATE_TIME.format(cal.toInstant().atZone(cal.getTimeZone().toZoneId()));
+    }
+
+    static String format(Object value) {
+        if (value instanceof Calendar || value instanceof Date) {
+            return formatDate(value);
+        } else if (value instanceof Object[]) {
+            return StringUtils.join((Object[]) value, ", ");
+        } else {
+            return String.valueOf(value);
+        }
+    }
+
+    /**
+     * Fills a sliding window SXSSF workbook, which is written out when closed.
+     */
+    static class SpreadsheetWriter extends ReportWriter {
+        private final OutputStream out;
+        private final SXSSFWorkbook workbook;
+        private final Sheet sheet;
+        private final CellStyle dateStyle;
+        private final int[] columnWidths;
+        private int rowCount = 0;
+        private boolean finished = false;
+
+        /**
+         * @param out Stream to write the workbook to when closed, or null to only fill the workbook
+         * @param title Sheet name
+         * @param columnNames Header row
+         */
+        SpreadsheetWriter(OutputStream out, String title, List<String> columnNames) {
+            this.out = out;
+            workbook = new SXSSFWorkbook(ROW_ACCESS_WINDOW);
+            workbook.setCompressTempFiles(true);
+
+            String name = title;
+            for (char ch : new char[]{'\\', '/', '*', '[', ']', ':', '?'}) {
+                name = StringUtils.remove(name, ch);
+            }
+            sheet = workbook.createSheet(name);
+            sheet.createFreezePane(0, 1, 0, 1);
+
+            dateStyle = workbook.createCellStyle();
+            dateStyle.setDataFormat(workbook.getCreationHelper().createDataFormat().getFormat("yyy/mm/dd h:mm:ss"));
+
+            columnWidths = new int[columnNames.size()];
+            Row headerRow = sheet.createRow(0);
+            CellStyle headerStyle = createHeaderStyle(workbook);
+            for (int c = 0; c < columnNames.size(); c++) {
+                Cell headerCell = headerRow.createCell(c);
+                headerCell.setCellValue(columnNames.get(c));
+                headerCell.setCellStyle(headerStyle);
+                measure(c, columnNames.get(c));
+            }
+        }
+
+        @Override
+        void writeRow(List<?> values) {
+            rowCount++;
+            Row row = sheet.createRow(rowCount);
+            for (int c = 0; c < values.size() && c < columnWidths.length; c++) {
+                Object val = values.get(c);
+                if (val == null) {
+                    continue;
+                }
+                Cell cell = row.createCell(c);
+                if (val instanceof Number) {
+                    cell.setCellValue(((Number) val).doubleValue());
+                } else if (val instanceof Date) {
+                    cell.setCellValue((Date) val);
+                    cell.setCellStyle(dateStyle);
+                } else if (val instanceof Calendar) {
+                    cell.setCellValue((Calendar) val);
+                    cell.setCellStyle(dateStyle);
+                } else {
+                    String sval = format(val);
+                    if (sval.startsWith("=")) {
+                        cell.setCellFormula(sval.substring(1));
+                    } else {
+                        cell.setCellValue(sval);
+                    }
+                    measure(c, sval);
+                }
+            }
+        }
+
+        /**
+         * Size the columns and add the auto filter.  No rows can be added afterwards.
+         * @return The workbook, not written yet
+         */
+        Workbook finish() {
+            if (!finished) {
+                finished = true;
+                // Autosizing would need all rows in memory, so widths are measured while writing
+                for (int c = 0; c < columnWidths.length; c++) {
+                    int width = columnWidths[c];
+                    // increase width to accommodate drop-down arrow in the header
+                    if (width < AUTOSIZE_COLUMN_WIDTH) {
+                        width = MIN_COLUMN_WIDTH;
+                    } else if (width > MAX_COLUMN_WIDTH) {
+                        width = MAX_COLUMN_WIDTH;
+                    }
+                    sheet.setColumnWidth(c, 256 * width);
+                }
+                if (columnWidths.length > 0) {
+                    sheet.setAutoFilter(new CellRangeAddress(0, 1 + rowCount, 0, columnWidths.length - 1));
+                }
+            }
+            return workbook;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                finish();
+                if (out != null) {
+                    workbook.write(out);
+                    out.close();
+                }
+            } finally {
+                // deletes the temporary files holding the flushed rows
+                workbook.dispose();
+            }
+        }
+
+        private void measure(int column, String value) {
+            int length = value.indexOf('\n') >= 0 ? value.indexOf('\n') : value.length();
+            columnWidths[column] = Math.max(columnWidths[column], Math.min(length, MAX_COLUMN_WIDTH));
+        }
+
+        private static CellStyle createHeaderStyle(Workbook wb) {
+            XSSFCellStyle xstyle = (XSSFCellStyle) wb.createCellStyle();
+            XSSFColor header = new XSSFColor(new Color(79, 129, 189));
+            xstyle.setFillForegroundColor(header);
+            xstyle.setFillPattern(FillPatternType.SOLID_FOREGROUND);
+            XSSFFont font = (XSSFFont) wb.createFont();
+            font.setColor(IndexedColors.WHITE.index);
+            xstyle.setFont(font);
+            return xstyle;
+        }
+    }
+
+    /**
+     * Writes RFC 4180 comma separated values, starting with a header row.
+     */
+    static class CsvWriter extends ReportWriter {
+        private final Writer out;
+
+        CsvWriter(OutputStream out, List<String> columnNames) throws IOException {
+            this.out = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+            writeRow(columnNames);
+        }
+
+        @Override
+        void writeRow(List<?> values) throws IOException {
+            for (int c = 0; c < values.size(); c++) {
+                if (c > 0) {
+                    out.write(',');
+                }
+                Object val = values.get(c);
+                if (val != null) {
+                    writeField(format(val));
+                }
+            }
+            out.write("\r\n");
+        }
+
+        private void writeField(String value) throws IOException {
+            if (StringUtils.containsAny(value, ',', '"', '\r', '\n')) {
+                out.write('"');
+                out.write(StringUtils.replace(value, "\"", "\"\""));
+                out.write('"');
+            } else {
+                out.write(value);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    /**
+     * Writes one JSON object per row and line, keyed by column key.  Empty cells are left out.
+     */
+    static class JsonLinesWriter extends ReportWriter {
+        private final Writer out;
+        private final List<String> keys;
+
+        JsonLinesWriter(OutputStream out, List<String> keys) {
+            this.out = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+            this.keys = keys;
+        }
+
+        @Override
+        void writeRow(List<?> values) throws IOException {
+            JsonObject json = new JsonObject();
+            for (int c = 0; c < values.size() && c < keys.size(); c++) {
+                Object val = values.get(c);
+                if (val instanceof Number) {
+                    json.addProperty(keys.get(c), (Number) val);
+                } else if (val instanceof Boolean) {
+                    json.addProperty(keys.get(c), (Boolean) val);
+                } else if (val instanceof Object[]) {
+                    JsonArray array = new JsonArray();
+                    for (Object item : (Object[]) val) {
+                        array.add(new JsonPrimitive(String.valueOf(item)));
+                    }
+                    json.add(keys.get(c), array);
+                } else if (val != null) {
+                    json.addProperty(keys.get(c), format(val));
+                }
+            }
+            out.write(json.toString());
+            out.write('\n');
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+}
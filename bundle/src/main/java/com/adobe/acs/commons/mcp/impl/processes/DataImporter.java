@@ -35,9 +35,11 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import javax.jcr.RepositoryException;
 
 import com.day.crx.JcrConstants;
@@ -145,7 +147,8 @@ public class DataImporter extends ProcessDefinition {
 
     @FormField(
             name = "Import in sorted order",
-            description = "If checked, nodes will be imported in the order determined by their paths",
+            description = "If checked, nodes will be imported in the order determined by their paths. "
+                    + "Sorting reads the whole spreadsheet into memory, uncheck for very large spreadsheets",
             component = CheckboxComponent.class,
             options = "checked"
     )
@@ -166,7 +169,20 @@ public class DataImporter extends ProcessDefinition {
         item, action, count
     }
 
+    /**
+     * Rows read and imported by one task.
+     */
+    static final int IMPORT_BATCH_SIZE = 100;
+
+    /**
+     * Batches read ahead of the ones being imported.  More rows are only read
+     * as batches complete, so unsorted imports hold a bounded number of rows.
+     */
+    static final int IMPORT_BATCHES_IN_FLIGHT = 8;
+
     Spreadsheet data;
+    private transient Stream<Map<String, CompositeVariant>> streamedRows;
+    private transient Iterator<Map<String, CompositeVariant>> pendingRows;
     List<EnumMap<ReportColumns, Object>> reportRows;
 
     protected synchronized EnumMap<ReportColumns, Object> trackActivity(String item, String action, Integer count) {
@@ -181,6 +197,27 @@ public class DataImporter extends ProcessDefinition {
         return reportRow;
     }
 
+    /**
+     * What has been done with a row; it is counted once the row has been saved,
+     * so that a row which is imported again after a failure is counted once.
+     */
+    private static final class RowOutcome {
+        private final EnumMap<ReportColumns, Object> total;
+        private final String action;
+
+        private RowOutcome(EnumMap<ReportColumns, Object> total, String action) {
+            this.total = total;
+            this.action = action;
+        }
+    }
+
+    private void recordOutcome(String path, RowOutcome outcome) {
+        incrementCount(outcome.total, 1);
+        if (detailedReport) {
+            trackActivity(path, outcome.action, null);
+        }
+    }
+
     @SuppressWarnings("squid:S2445")
     protected void incrementCount(EnumMap<ReportColumns, Object> row, int amt) {
         synchronized (row) {
@@ -197,9 +234,13 @@ public class DataImporter extends ProcessDefinition {
     public void buildProcess(ProcessInstance instance, ResourceResolver rr) throws LoginException, RepositoryException {
         if (data == null && importFile != null) {
             try {
-                data = new Spreadsheet(enableHeaderNameConversion, importFile, PATH).buildSpreadsheet();
+                data = new Spreadsheet(enableHeaderNameConversion, importFile, PATH);
                 if (presortData) {
+                    data.buildSpreadsheet();
                     Collections.sort(data.getDataRowsAsCompositeVariants(), (a, b) -> b.get(PATH).toString().compareTo(a.get(PATH).toString()));
+                } else {
+                    // The upload is gone once the request completes, streaming keeps a copy until all rows are read
+                    streamedRows = data.streamDataRows();
                 }
                 instance.getInfo().setDescription("Import " + data.getFileName() + " (" + data.getRowCount() + " rows)");
             } catch (IOException ex) {
@@ -220,38 +261,86 @@ public class DataImporter extends ProcessDefinition {
     }
 
     private void importData(ActionManager manager) {
-        data.getDataRowsAsCompositeVariants().forEach((row) -> {
-            manager.deferredWithResolver(rr -> {
-                String path = row.get(PATH).toString();
-                Resource r = rr.getResource(path);
-                if (r == null) {
-                    handleMissingNode(path, rr, row);
-                } else if (mergeMode.update) {
-                    updateMetadata(path, rr, row);
-                } else {
-                    incrementCount(skippedNodes, 1);
-                    if (detailedReport) {
-                        trackActivity(path, "Skipped", null);
-                    }
-                }
-            });
-        });
+        if (streamedRows != null) {
+            pendingRows = streamedRows.iterator();
+            manager.onFinish(this::closeRows);
+        } else {
+            pendingRows = data.getDataRowsAsCompositeVariants().iterator();
+        }
+        for (int i = 0; i < IMPORT_BATCHES_IN_FLIGHT; i++) {
+            manager.deferredWithResolver(rr -> importNextBatch(manager, rr));
+        }
+    }
+
+    private synchronized List<Map<String, CompositeVariant>> readBatch() {
+        List<Map<String, CompositeVariant>> batch = new ArrayList<>(IMPORT_BATCH_SIZE);
+        while (pendingRows != null && batch.size() < IMPORT_BATCH_SIZE && pendingRows.hasNext()) {
+            batch.add(pendingRows.next());
+        }
+        return batch;
     }
 
-    public void handleMissingNode(String path, ResourceResolver rr, Map<String, CompositeVariant> row) throws PersistenceException {
+    private synchronized void closeRows() {
+        pendingRows = null;
+        if (streamedRows != null) {
+            streamedRows.close();
+            streamedRows = null;
+        }
+    }
+
+    /**
+     * Import the next batch of rows, then schedule the batch after it.  Every
+     * row is saved on its own as before; a row which fails is imported again
+     * in a task of its own, so that its failure is reported for that row.
+     * Rows are counted in the report once saved, so a failed attempt is not
+     * counted.
+     */
+    private void importNextBatch(ActionManager manager, ResourceResolver rr) {
+        List<Map<String, CompositeVariant>> batch = readBatch();
+        if (batch.isEmpty()) {
+            return;
+        }
+        for (Map<String, CompositeVariant> row : batch) {
+            try {
+                importAndSaveRow(manager, rr, row);
+            } catch (Exception ex) {
+                LOG.debug("Retrying import of row {} on its own", row.get(ROW_NUMBER), ex);
+                rr.revert();
+                manager.deferredWithResolver(r -> importAndSaveRow(manager, r, row));
+            }
+        }
+        manager.deferredWithResolver(r -> importNextBatch(manager, r));
+    }
+
+    private void importAndSaveRow(ActionManager manager, ResourceResolver rr, Map<String, CompositeVariant> row) throws PersistenceException {
+        String path = row.get(PATH).toString();
+        RowOutcome outcome = importRow(manager, rr, path, row);
+        if (rr.hasChanges()) {
+            rr.commit();
+        }
+        recordOutcome(path, outcome);
+    }
+
+    private RowOutcome importRow(ActionManager manager, ResourceResolver rr, String path, Map<String, CompositeVariant> row) throws PersistenceException {
+        manager.setCurrentItem(path);
+        Resource r = rr.getResource(path);
+        if (r == null) {
+            return handleMissingNode(path, rr, row);
+        } else if (mergeMode.update) {
+            return updateMetadata(path, rr, row);
+        } else {
+            return new RowOutcome(skippedNodes, "Skipped");
+        }
+    }
+
+    private RowOutcome handleMissingNode(String path, ResourceResolver rr, Map<String, CompositeVariant> row) throws PersistenceException {
         if (mergeMode.create) {
             if (!dryRunMode) {
                 createMissingNode(path, rr, row);
             }
-            incrementCount(createdNodes, 1);
-            if (detailedReport) {
-                trackActivity(path, "Created", null);
-            }
+            return new RowOutcome(createdNodes, "Created");
         } else {
-            incrementCount(skippedNodes, 1);
-            if (detailedReport) {
-                trackActivity(path, "Skipped missing", null);
-            }
+            return new RowOutcome(skippedNodes, "Skipped missing");
         }
     }
 
@@ -300,9 +389,10 @@ public class DataImporter extends ProcessDefinition {
      * @param path     Path of node.
      * @param rr       ResourceResolver
      * @param nodeInfo Map of properties from the row.
+     * @return whether the properties changed
      * @throws PersistenceException PersistenceException
      */
-    private void updateMetadata(String path, ResourceResolver rr, Map<String, CompositeVariant> nodeInfo) throws PersistenceException {
+    private RowOutcome updateMetadata(String path, ResourceResolver rr, Map<String, CompositeVariant> nodeInfo) throws PersistenceException {
         LOG.debug("Start of updateMetaData");
 
         Resource node = rr.getResource(path);
@@ -323,23 +413,19 @@ public class DataImporter extends ProcessDefinition {
             }
         }
 
+        RowOutcome outcome;
         if (rr.hasChanges()) {
-            incrementCount(updatedNodes, 1);
-            if (detailedReport) {
-                trackActivity(path, "Updated Properties", null);
-            }
             if (!dryRunMode) {
                 rr.commit();
             }
             rr.refresh();
+            outcome = new RowOutcome(updatedNodes, "Updated Properties");
         } else {
-            if (detailedReport) {
-                trackActivity(path, "No Change", null);
-            }
-            incrementCount(noChangeNodes, 1);
+            outcome = new RowOutcome(noChangeNodes, "No Change");
         }
 
         LOG.debug("End of updateMetadata");
+        return outcome;
     }
 
     /**
@@ -441,6 +441,10 @@ public abstract class AssetIngestor extends ProcessDefinition {
         return (ResourceResolver r) -> {
             HierarchicalElement el = source.getElement();
             if (null != el) {
+                if (actionManager.isCompleted(el.getSourcePath())) {
+                    // Imported before this process was interrupted
+                    return;
+                }
                 createFolderNode(el.getParent(), r);
                 actionManager.setCurrentItem(el.getSourcePath());
 
@@ -502,6 +506,15 @@ public abstract class AssetIngestor extends ProcessDefinition {
 
     private transient GenericReport report = new GenericReport();
 
+    /**
+     * Imports can be resumed, assets imported before the interruption are skipped.  Folders are created again, which
+     * leaves existing folders alone.
+     */
+    @Override
+    public boolean isResumable() {
+        return true;
+    }
+
     @Override
     public void storeReport(ProcessInstance instance, ResourceResolver rr) throws RepositoryException, PersistenceException {
         report.setRows(reportRows, ReportColumns.class);
@@ -0,0 +1,291 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2015 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.mcp.impl.processes.asset;
+
+import com.adobe.acs.commons.fam.ActionManager;
+import com.adobe.acs.commons.fam.actions.Actions;
+import com.adobe.acs.commons.functions.CheckedConsumer;
+import com.adobe.acs.commons.functions.CheckedFunction;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.io.IOUtils;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Imports assets while downloading the next ones.  Sources are downloaded to
+ * temporary files ahead of the import, so network transfers overlap with
+ * writes to the DAM.  Large sources which can be read in byte ranges are
+ * downloaded in parts at the same time.
+ * <p>
+ * Downloads, parts and imports all run as tasks of the action manager.  Only a
+ * limited number of files are downloaded or waiting for import at any time;
+ * more sources are taken as imports complete, so the sources may be read
+ * lazily, e.g. page by page from a remote listing.
+ */
+final class DownloadPipeline {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DownloadPipeline.class);
+
+    static final long DEFAULT_PART_SIZE = 8L * 1024 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final String TEMP_FILE_PREFIX = "asset-import";
+
+    private final AssetIngestor ingestor;
+    private final ActionManager manager;
+    private final Iterator<? extends Source> sources;
+    private final CheckedFunction<Source, Boolean> filter;
+    private final int maxFilesInFlight;
+    private long partSize = DEFAULT_PART_SIZE;
+    private int filesInFlight = 0;
+
+    /**
+     * @param ingestor Ingestor importing the downloaded files
+     * @param manager Action manager running the downloads and imports
+     * @param sources Sources to import, read as files are imported
+     * @param filter Check performed before downloading a source, false skips the source
+     * @param maxFilesInFlight Maximum number of files downloaded or waiting for import
+     */
+    DownloadPipeline(AssetIngestor ingestor, ActionManager manager, Iterator<? extends Source> sources,
+            CheckedFunction<Source, Boolean> filter, int maxFilesInFlight) {
+        this.ingestor = ingestor;
+        this.manager = manager;
+        this.sources = sources;
+        this.filter = filter;
+        this.maxFilesInFlight = Math.max(maxFilesInFlight, 1);
+    }
+
+    /**
+     * @param partSize Sources larger than this are downloaded in parts of this size, if they can be read in ranges
+     */
+    void setPartSize(long partSize) {
+        this.partSize = Math.max(partSize, 1);
+    }
+
+    /**
+     * Start downloading.  Has to be called from a task of the action manager, so
+     * the manager keeps running until all sources are imported.
+     */
+    void start() {
+        fill();
+    }
+
+    private void fill() {
+        while (true) {
+            Source source;
+            synchronized (this) {
+                if (filesInFlight >= maxFilesInFlight || !sources.hasNext()) {
+                    return;
+                }
+                source = sources.next();
+                filesInFlight++;
+            }
+            manager.deferredWithResolver(rr -> download(rr, source));
+        }
+    }
+
+    private void release() {
+        synchronized (this) {
+            filesInFlight--;
+        }
+        fill();
+    }
+
+    private void download(ResourceResolver rr, Source source) throws Exception {
+        boolean handedOver = false;
+        File file = null;
+        try {
+            String item = source.getElement().getSourcePath();
+            if (manager.isCompleted(item)) {
+                return;
+            }
+            manager.setCurrentItem(item);
+            if (!filter.apply(source)) {
+                return;
+            }
+            file = File.createTempFile(TEMP_FILE_PREFIX, null);
+            SpooledSource spooled = new SpooledSource(source, file);
+            long length = source.getLength();
+            if (length > partSize && source instanceof RangedSource && ((RangedSource) source).canReadRanges()) {
+                // Free the connection used to check the source before opening the ranges
+                source.close();
+                downloadParts((RangedSource) source, spooled, length);
+            } else {
+                File target = file;
+                Actions.retry(ingestor.retries, ingestor.retryPause, r -> copy(source, target)).accept(rr);
+                importSpooled(spooled);
+            }
+            handedOver = true;
+        } finally {
+            source.close();
+            if (!handedOver) {
+                delete(file);
+                release();
+            }
+        }
+    }
+
+    private void copy(Source source, File file) throws IOException {
+        try (InputStream in = source.getStream(); OutputStream out = new FileOutputStream(file)) {
+            IOUtils.copyLarge(in, out, new byte[BUFFER_SIZE]);
+        } finally {
+            source.close();
+        }
+    }
+
+    private void downloadParts(RangedSource source, SpooledSource spooled, long length) throws IOException {
+        int parts = (int) ((length + partSize - 1) / partSize);
+        FileChannel channel = FileChannel.open(spooled.file.toPath(), StandardOpenOption.WRITE);
+        AtomicInteger remaining = new AtomicInteger(parts);
+        AtomicBoolean failed = new AtomicBoolean();
+        for (int i = 0; i < parts; i++) {
+            long first = i * partSize;
+            long last = Math.min(first + partSize, length) - 1;
+            CheckedConsumer<ResourceResolver> part = Actions.retry(ingestor.retries, ingestor.retryPause, rr -> writeRange(source, channel, first, last));
+            manager.deferredWithResolver(rr -> {
+                try {
+                    if (!failed.get()) {
+                        part.accept(rr);
+                    }
+                } catch (Exception | Error e) {
+                    failed.set(true);
+                    throw e;
+                } finally {
+                    if (remaining.decrementAndGet() == 0) {
+                        finishParts(spooled, channel, failed.get());
+                    }
+                }
+            });
+        }
+    }
+
+    private void writeRange(RangedSource source, FileChannel channel, long first, long last) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long position = first;
+        try (InputStream in = source.getRange(first, last)) {
+            int read;
+            while (position <= last && (read = in.read(buffer, 0, (int) Math.min(buffer.length, last + 1 - position))) >= 0) {
+                ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, read);
+                while (bytes.hasRemaining()) {
+                    position += channel.write(bytes, position);
+                }
+            }
+        }
+        if (position <= last) {
+            throw new IOException("Download of " + source.getElement().getSourcePath() + " ended at byte " + position
+                    + " instead of " + (last + 1));
+        }
+    }
+
+    private void finishParts(SpooledSource spooled, FileChannel channel, boolean failed) {
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            LOG.warn("Unable to close {}", spooled.file, ex);
+            failed = true;
+        }
+        if (failed) {
+            delete(spooled.file);
+            release();
+        } else {
+            importSpooled(spooled);
+        }
+    }
+
+    private void importSpooled(SpooledSource spooled) {
+        CheckedConsumer<ResourceResolver> importAsset = Actions.retry(ingestor.retries, ingestor.retryPause, ingestor.importAsset(spooled, manager));
+        manager.deferredWithResolver(rr -> {
+            try {
+                importAsset.accept(rr);
+            } finally {
+                spooled.close();
+                delete(spooled.file);
+                release();
+            }
+        });
+    }
+
+    private static void delete(File file) {
+        if (file != null) {
+            try {
+                Files.deleteIfExists(file.toPath());
+            } catch (IOException ex) {
+                LOG.warn("Unable to delete temporary file {}", file, ex);
+            }
+        }
+    }
+
+    /**
+     * Downloaded copy of a source
+     */
+    static class SpooledSource implements Source {
+
+        private final Source original;
+        private final File file;
+        private InputStream lastOpenStream;
+
+        SpooledSource(Source original, File file) {
+            this.original = original;
+            this.file = file;
+        }
+
+        @Override
+        public String getName() {
+            return original.getName();
+        }
+
+        @Override
+        public InputStream getStream() throws IOException {
+            close();
+            lastOpenStream = new FileInputStream(file);
+            return lastOpenStream;
+        }
+
+        @Override
+        public long getLength() {
+            return file.length();
+        }
+
+        @Override
+        public HierarchicalElement getElement() {
+            return original.getElement();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (lastOpenStream != null) {
+                lastOpenStream.close();
+            }
+            lastOpenStream = null;
+        }
+    }
+}
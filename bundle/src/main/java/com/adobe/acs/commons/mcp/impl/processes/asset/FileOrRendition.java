@@ -41,7 +41,10 @@ import java.util.TreeMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Stream;
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
 import org.apache.http.client.methods.HttpGet;
 
 import static com.adobe.acs.commons.mcp.impl.processes.asset.HierarchicalElement.UriHelper.decodeUriParts;
@@ -225,7 +228,7 @@ public class FileOrRendition implements HierarchicalElement {
         }
     }
 
-    public class HttpConnectionSource implements Source {
+    public class HttpConnectionSource implements RangedSource {
 
         final FileOrRendition thizz;
         private HttpGet lastRequest;
@@ -270,6 +273,25 @@ public class FileOrRendition implements HierarchicalElement {
             return size;
         }
 
+        @Override
+        public boolean canReadRanges() throws IOException {
+            Header acceptRanges = initiateDownload().getFirstHeader(HttpHeaders.ACCEPT_RANGES);
+            return acceptRanges != null && "bytes".equalsIgnoreCase(acceptRanges.getValue());
+        }
+
+        @Override
+        public InputStream getRange(long first, long last) throws IOException {
+            HttpGet request = new HttpGet(url);
+            request.setHeader(HttpHeaders.RANGE, "bytes=" + first + "-" + last);
+            HttpResponse response = clientProvider.getHttpClientSupplier().get().execute(request);
+            int status = response.getStatusLine().getStatusCode();
+            if (status != HttpStatus.SC_PARTIAL_CONTENT) {
+                request.abort();
+                throw new IOException("Error with URL " + url + ": expected bytes " + first + "-" + last + " but got status " + status);
+            }
+            return response.getEntity().getContent();
+        }
+
         @Override
         public HierarchicalElement getElement() {
             return thizz;
@@ -0,0 +1,47 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2015 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.mcp.impl.processes.asset;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Source of an asset which can also be read in byte ranges, allowing large
+ * files to be downloaded in several parts at the same time
+ */
+public interface RangedSource extends Source {
+
+    /**
+     * @return True if the source can be read in byte ranges
+     * @throws IOException if the source could not be reached
+     */
+    boolean canReadRanges() throws IOException;
+
+    /**
+     * Open a byte range of the source.  Unlike {@link #getStream()}, every
+     * range is read through its own stream which has to be closed by the caller.
+     *
+     * @param first Position of the first byte
+     * @param last Position of the last byte, inclusive
+     * @return Stream of the bytes in the range
+     * @throws IOException if the range could not be read
+     */
+    InputStream getRange(long first, long last) throws IOException;
+}
@@ -23,11 +23,13 @@ import com.adobe.acs.commons.fam.ActionManager;
 import com.adobe.acs.commons.fam.Failure;
 import com.adobe.acs.commons.fam.actions.Actions;
 import com.adobe.acs.commons.mcp.ProcessInstance;
+import com.adobe.acs.commons.mcp.form.CheckboxComponent;
 import com.adobe.acs.commons.mcp.form.FormField;
 import com.adobe.acs.commons.mcp.form.PasswordComponent;
 import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.GetObjectRequest;
 import com.amazonaws.services.s3.model.ObjectListing;
 import com.amazonaws.services.s3.model.S3ObjectInputStream;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
@@ -39,9 +41,20 @@ import org.apache.sling.commons.mime.MimeTypeService;
 
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class S3AssetIngestor extends AssetIngestor {
 
@@ -82,6 +95,22 @@ public class S3AssetIngestor extends AssetIngestor {
     )
     String endpointUrl;
 
+    @FormField(
+            name = "Streaming import",
+            description = "If checked, objects are downloaded to temporary files while earlier objects are imported, "
+                    + "listing pages are fetched ahead and large objects are downloaded in parts at the same time",
+            component = CheckboxComponent.class
+    )
+    boolean streamingImport = false;
+
+    @FormField(
+            name = "Objects in flight",
+            description = "Maximum number of objects downloaded ahead of the import when streaming",
+            required = false,
+            options = {"default=16"}
+    )
+    int objectsInFlight = 16;
+
     transient AmazonS3 s3Client;
 
     transient String baseItemName;
@@ -141,20 +170,45 @@ public class S3AssetIngestor extends AssetIngestor {
             JcrUtil.createPath(jcrBasePath, DEFAULT_FOLDER_TYPE, DEFAULT_FOLDER_TYPE, rr.adaptTo(Session.class), true);
             manager.setCurrentItem(baseItemName);
             ObjectListing listing = s3Client.listObjects(bucket, s3BasePath);
-            importAssets(manager, listing);
+            if (streamingImport) {
+                Stream<Source> sources = streamSources(listing);
+                manager.onFinish(sources::close);
+                new DownloadPipeline(this, manager, sources.iterator(), this::canImportOrSkip, objectsInFlight).start();
+            } else {
+                importAssets(manager, listing);
+            }
         });
     }
 
+    /**
+     * Stream the files of a listing, the stream has to be closed to stop listing the bucket.
+     */
+    Stream<Source> streamSources(ObjectListing listing) {
+        PrefetchingListing summaries = new PrefetchingListing(listing);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(summaries, Spliterator.ORDERED), false)
+                .map(S3HierarchicalElement::new)
+                .filter(S3HierarchicalElement::isFile).filter(this::canImportContainingFolder)
+                .map(S3HierarchicalElement::getSource)
+                .onClose(summaries::close);
+    }
+
+    private boolean canImportOrSkip(Source ss) throws IOException {
+        if (canImportFile(ss)) {
+            return true;
+        } else {
+            incrementCount(skippedFiles, 1);
+            trackDetailedActivity(ss.getName(), "Skip", "Skipping file", 0L);
+            return false;
+        }
+    }
+
     private void importAssets(ActionManager manager, ObjectListing listing) {
         listing.getObjectSummaries().stream().map(S3HierarchicalElement::new)
                 .filter(S3HierarchicalElement::isFile).filter(this::canImportContainingFolder)
                 .map(S3HierarchicalElement::getSource).forEach(ss -> {
             try {
-                if (canImportFile(ss)) {
+                if (canImportOrSkip(ss)) {
                     manager.deferredWithResolver(Actions.retry(retries, retryPause, importAsset(ss, manager)));
-                } else {
-                    incrementCount(skippedFiles, 1);
-                    trackDetailedActivity(ss.getName(), "Skip", "Skipping file", 0L);
                 }
             } catch (IOException ex) {
                 Failure failure = new Failure();
@@ -177,7 +231,77 @@ public class S3AssetIngestor extends AssetIngestor {
         }
     }
 
-    private class S3Source implements Source {
+    /**
+     * Object summaries of a listing, fetching the next page of the listing in
+     * the background while the current page is being read.  Closing it stops
+     * the background listing, also if not all pages have been read.
+     */
+    private class PrefetchingListing implements Iterator<S3ObjectSummary>, Closeable {
+
+        private final ExecutorService lister = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "S3 listing " + bucket);
+            thread.setDaemon(true);
+            return thread;
+        });
+        private Iterator<S3ObjectSummary> page;
+        private Future<ObjectListing> nextListing;
+        private volatile boolean closed;
+
+        PrefetchingListing(ObjectListing listing) {
+            accept(listing);
+        }
+
+        private void accept(ObjectListing listing) {
+            page = listing.getObjectSummaries().iterator();
+            if (listing.isTruncated() && !closed) {
+                try {
+                    nextListing = lister.submit(() -> s3Client.listNextBatchOfObjects(listing));
+                } catch (RejectedExecutionException ex) {
+                    // closed meanwhile
+                    nextListing = null;
+                }
+            } else {
+                nextListing = null;
+                lister.shutdown();
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (!closed && !page.hasNext() && nextListing != null) {
+                try {
+                    accept(nextListing.get());
+                } catch (InterruptedException ex) {
+                    lister.shutdownNow();
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while listing bucket " + bucket, ex);
+                } catch (ExecutionException ex) {
+                    lister.shutdown();
+                    if (closed) {
+                        return false;
+                    }
+                    throw new IllegalStateException("Unable to list bucket " + bucket, ex.getCause());
+                }
+            }
+            return !closed && page.hasNext();
+        }
+
+        @Override
+        public S3ObjectSummary next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return page.next();
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            lister.shutdownNow();
+        }
+    }
+
+    private class S3Source implements RangedSource {
 
         final S3ObjectSummary s3ObjectSummary;
         private S3ObjectInputStream lastOpenStream;
@@ -200,6 +324,16 @@ public class S3AssetIngestor extends AssetIngestor {
             return lastOpenStream;
         }
 
+        @Override
+        public boolean canReadRanges() {
+            return true;
+        }
+
+        @Override
+        public InputStream getRange(long first, long last) {
+            return s3Client.getObject(new GetObjectRequest(bucket, s3ObjectSummary.getKey()).withRange(first, last)).getObjectContent();
+        }
+
         @Override
         public String getName() {
             return element.getName();
@@ -25,6 +25,7 @@ import com.adobe.acs.commons.fam.ActionManager;
 import com.adobe.acs.commons.fam.actions.Actions;
 import com.adobe.acs.commons.functions.CheckedConsumer;
 import com.adobe.acs.commons.mcp.ProcessInstance;
+import com.adobe.acs.commons.mcp.form.CheckboxComponent;
 import com.adobe.acs.commons.mcp.form.FileUploadComponent;
 import com.adobe.acs.commons.mcp.form.FormField;
 import com.adobe.acs.commons.mcp.form.PasswordComponent;
@@ -124,6 +125,22 @@ public class UrlAssetImport extends AssetIngestor {
     )
     private String password = null;
 
+    @FormField(
+            name = "Streaming import",
+            description = "If checked, files are downloaded to temporary files while earlier files are imported, "
+                    + "and large files are downloaded in parts at the same time if the server supports byte ranges",
+            component = CheckboxComponent.class
+    )
+    boolean streamingImport = false;
+
+    @FormField(
+            name = "Files in flight",
+            description = "Maximum number of files downloaded ahead of the import when streaming",
+            required = false,
+            options = {"default=16"}
+    )
+    int filesInFlight = 16;
+
     transient Set<FileOrRendition> files;
     transient Map<String, Folder> folders = new TreeMap<>((a, b) -> b.compareTo(a));
     
@@ -148,6 +165,11 @@ public class UrlAssetImport extends AssetIngestor {
                             .setConnectTimeout(timeout)
                             .build()
             );
+            if (streamingImport) {
+                // Parallel downloads from the same server would otherwise wait for the few default connections
+                clientBuilder.setMaxConnPerRoute(filesInFlight);
+                clientBuilder.setMaxConnTotal(filesInFlight);
+            }
             httpClient = clientBuilder.build();
             clientProvider.setHttpClientSupplier(this::getHttpClient);
             clientProvider.setUsername(username);
@@ -233,23 +255,20 @@ public class UrlAssetImport extends AssetIngestor {
 
     protected void importAssets(ActionManager manager) throws IOException {
         manager.setCurrentItem(jcrBasePath);
+        if (streamingImport) {
+            manager.deferredWithResolver(rr -> new DownloadPipeline(this, manager,
+                    files.stream().filter(this::canImportContainingFolder).map(FileOrRendition::getSource).iterator(),
+                    this::canImportOrSkip, filesInFlight).start());
+            return;
+        }
         files.stream().filter(this::canImportContainingFolder).forEach(file -> {
             // Check the file using the deferral method so that any failures at retrieving file size can be retried.
             manager.deferredWithResolver(rr -> {
                 long lineNumber = fileData.getRowNum(file.getProperties());
                 manager.setCurrentItem(String.format("Asset %s (line %s)", file.getItemName(), lineNumber));
                 try {
-                    if (canImportFile(file.getSource())) {
+                    if (canImportOrSkip(file.getSource())) {
                         manager.deferredWithResolver(Actions.retry(retries, retryPause, importAsset(file.getSource(), manager)));
-                    } else if (file.getSource().getLength() < 0) {
-                        incrementCount(skippedFiles, 1);
-                        throw new IOException("Unable to download " + file.getSourcePath());
-                    } else {
-                        incrementBytes(
-                                trackDetailedActivity(file.getNodePath(preserveFileName), ACTION_SKIPPED, "Skipped file of either file size or extension", 0L),
-                                file.getSource().getLength()
-                        );
-                        incrementCount(skippedFiles, 1);
                     }
                 } finally {
                     file.getSource().close();
@@ -258,6 +277,22 @@ public class UrlAssetImport extends AssetIngestor {
         });
     }
 
+    private boolean canImportOrSkip(Source source) throws IOException {
+        if (canImportFile(source)) {
+            return true;
+        } else if (source.getLength() < 0) {
+            incrementCount(skippedFiles, 1);
+            throw new IOException("Unable to download " + source.getElement().getSourcePath());
+        } else {
+            incrementBytes(
+                    trackDetailedActivity(source.getElement().getNodePath(preserveFileName), ACTION_SKIPPED, "Skipped file of either file size or extension", 0L),
+                    source.getLength()
+            );
+            incrementCount(skippedFiles, 1);
+            return false;
+        }
+    }
+
     protected void importRenditions(ActionManager manager) throws IOException {
         manager.setCurrentItem(jcrBasePath);
         files.stream().filter(this::canImportContainingFolder).forEach(file -> importRenditions(file, manager));
@@ -0,0 +1,98 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2015 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.mcp.impl.processes.renovator;
+
+import com.adobe.acs.commons.fam.ActionManager;
+import com.adobe.acs.commons.functions.CheckedConsumer;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import org.apache.sling.api.resource.ResourceResolver;
+
+/**
+ * One stage of a pipelined move.  Work submitted to a stage runs as a task of
+ * the action manager, but no more than a given number of tasks of the same
+ * stage run at the same time; the rest wait in the stage until a running task
+ * completes.  Nothing blocks while waiting, so stages cannot starve each other
+ * of worker threads.
+ * <p>
+ * Work which succeeds has its changes saved before the follow-up work is
+ * started, so later stages always see the result of earlier ones.  Work which
+ * fails is reported by the action manager and its follow-up never starts.
+ */
+final class PipelineStage {
+
+    private final int maxConcurrent;
+    private final Queue<Runnable> waiting = new ArrayDeque<>();
+    private int running = 0;
+
+    PipelineStage(int maxConcurrent) {
+        this.maxConcurrent = Math.max(maxConcurrent, 1);
+    }
+
+    /**
+     * Run work as part of this stage.
+     *
+     * @param manager Action manager running the tasks
+     * @param work Work to perform
+     * @param next Follow-up started once the work succeeded and was saved, may be null
+     */
+    void submit(ActionManager manager, CheckedConsumer<ResourceResolver> work, Runnable next) {
+        Runnable task = () -> manager.deferredWithResolver(rr -> {
+            try {
+                work.accept(rr);
+                if (rr.hasChanges()) {
+                    rr.commit();
+                }
+            } finally {
+                release();
+            }
+            if (next != null) {
+                next.run();
+            }
+        });
+        if (acquire(task)) {
+            task.run();
+        }
+    }
+
+    private synchronized boolean acquire(Runnable task) {
+        if (running < maxConcurrent) {
+            running++;
+            return true;
+        } else {
+            waiting.add(task);
+            return false;
+        }
+    }
+
+    private void release() {
+        Runnable task;
+        synchronized (this) {
+            task = waiting.poll();
+            if (task == null) {
+                running--;
+            }
+        }
+        // The slot passes on to the waiting task, which is scheduled before this task completes
+        if (task != null) {
+            task.run();
+        }
+    }
+}
@@ -47,11 +47,13 @@ import com.day.cq.wcm.api.PageManagerFactory;
 
 import java.io.IOException;
 import java.text.MessageFormat;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
@@ -173,6 +175,19 @@ public class Renovator extends ProcessDefinition {
             options = {"checked"})
     private boolean dryRun = true;
 
+    @FormField(name = "Pipelined",
+            description = "Each source moves as soon as its own checks have passed, and moved content is published while other content is still being checked or moved. "
+                    + "A failed check only holds back the source it belongs to.",
+            component = CheckboxComponent.class)
+    private boolean pipelined = false;
+
+    @FormField(name = "Pipeline concurrency",
+            description = "Maximum number of tasks running at the same time in each stage of a pipelined move",
+            component = TextfieldComponent.class,
+            required = false,
+            options = {"default=4"})
+    private int pipelineConcurrency = 4;
+
     @FormField(name = "Detailed report",
             description = "Record extra details in the report, can be rather extensive.  Not recommended for large jobs.",
             component = CheckboxComponent.class)
@@ -205,6 +220,7 @@ public class Renovator extends ProcessDefinition {
     private final Set<MovingNode> moves = Collections.synchronizedSet(new HashSet<>());
     private final Set<String> additionalTargetFolders = Collections.synchronizedSet(new TreeSet<>());
     final Map<String, String> movePaths = Collections.synchronizedMap(new HashMap<>());
+    private final Set<String> activatedPaths = Collections.synchronizedSet(new HashSet<>());
 
     @Override
     public void init() throws RepositoryException {
@@ -306,6 +322,10 @@ public class Renovator extends ProcessDefinition {
         requiredMovePrivileges = getPrivilegesFromNames(rr, requiredMovePrivilegeNames);
         requiredUpdatePrivileges = getPrivilegesFromNames(rr, requiredUpdatePrivilegeNames);
         requiredPublishPrivileges = getPrivilegesFromNames(rr, requiredPublishPrivilegeNames);
+        if (pipelined) {
+            buildPipelinedProcess(instance, rr);
+            return;
+        }
         instance.defineCriticalAction("Eval Struct", rr, this::identifyStructure);
         instance.defineCriticalAction("Eval Refs", rr, this::identifyReferences);
         instance.defineCriticalAction("Check ACLs", rr, this::validateAllAcls);
@@ -322,6 +342,181 @@ public class Renovator extends ProcessDefinition {
         }
     }
 
+    private void buildPipelinedProcess(ProcessInstance instance, ResourceResolver rr) throws RepositoryException {
+        instance.defineCriticalAction("Pipelined Move", rr, this::runPipeline);
+        if (!dryRun) {
+            if (publishMethod != PublishMethod.NONE) {
+                instance.defineAction("Activate New", rr, this::activateNew);
+                instance.defineAction("Activate References", rr, this::activateReferences);
+                instance.defineAction("Deactivate Old", rr, this::deactivateOld);
+            }
+            instance.defineAction("Remove source", rr, this::removeSource);
+        }
+    }
+
+    /**
+     * Run the evaluation, checks, build, move and publishing of the tree
+     * structure as one pipeline, in which every source goes through the
+     * stages on its own.
+     */
+    protected void runPipeline(ActionManager manager) {
+        int concurrency = Math.max(pipelineConcurrency, 1);
+        Pipeline pipeline = new Pipeline(manager, concurrency);
+        manager.onFinish(() -> {
+            note("All discovered references", Report.misc, "Discovered " + pipeline.discoveredReferences.get() + " references.");
+        });
+        movePaths.forEach((source, dest) -> new PipelinedMove(pipeline, source, dest).start());
+    }
+
+    /**
+     * Stages shared by all sources of a pipelined move.
+     */
+    private static class Pipeline {
+        private final ActionManager manager;
+        private final PipelineStage structure;
+        private final PipelineStage references;
+        private final PipelineStage acls;
+        private final PipelineStage build;
+        private final PipelineStage move;
+        private final PipelineStage activate;
+        private final AtomicInteger visitedSourceNodes = new AtomicInteger();
+        private final AtomicInteger discoveredReferences = new AtomicInteger();
+
+        Pipeline(ActionManager manager, int concurrency) {
+            this.manager = manager;
+            structure = new PipelineStage(concurrency);
+            references = new PipelineStage(concurrency);
+            acls = new PipelineStage(concurrency);
+            build = new PipelineStage(concurrency);
+            move = new PipelineStage(concurrency);
+            activate = new PipelineStage(concurrency);
+        }
+    }
+
+    /**
+     * One source going through a pipelined move.  The references and ACLs of
+     * every node are checked as soon as the structure is known, the destination
+     * structure is built once all checks of this source have passed, and nodes
+     * are moved once the structure is complete.  Moved nodes are published
+     * right away if the move queued their activation; pages referencing them
+     * are published at the end as before, since they may reference other nodes
+     * which have not moved yet.
+     */
+    private class PipelinedMove {
+        private final Pipeline pipeline;
+        private final String source;
+        private final String destination;
+        private final AtomicInteger pending = new AtomicInteger();
+        private MovingNode root;
+
+        PipelinedMove(Pipeline pipeline, String source, String destination) {
+            this.pipeline = pipeline;
+            this.source = source;
+            this.destination = destination;
+        }
+
+        void start() {
+            pipeline.structure.submit(pipeline.manager, rr -> {
+                Resource res = rr.getResource(source);
+                Optional<MovingNode> rootNode = buildMoveNode(res);
+                if (rootNode.isPresent()) {
+                    identifyStructureFromRoot(pipeline.visitedSourceNodes, source, destination, rr, res, rootNode.get());
+                    root = rootNode.get();
+                }
+            }, this::check);
+        }
+
+        private void check() {
+            if (root == null) {
+                return;
+            }
+            List<MovingNode> nodes = new ArrayList<>();
+            root.visit(nodes::add);
+            pending.set(nodes.size());
+            for (MovingNode node : nodes) {
+                pipeline.references.submit(pipeline.manager, rr -> {
+                    if (node.isSupposedToBeReferenced()) {
+                        Actions.setCurrentItem("Looking for references to " + node.getSourcePath());
+                        findReferences(rr, node);
+                        pipeline.discoveredReferences.addAndGet(node.getAllReferences().size());
+                        if (detailedReport) {
+                            note(node.getSourcePath(), Report.all_references, node.getAllReferences().size());
+                            note(node.getSourcePath(), Report.published_references, node.getPublishedReferences().size());
+                        }
+                    }
+                }, () -> pipeline.acls.submit(pipeline.manager, rr -> validateAcls(node, rr), () -> countDown(this::build)));
+            }
+        }
+
+        private void build() {
+            if (dryRun) {
+                return;
+            }
+            List<MovingNode> folders = new ArrayList<>();
+            root.visit(folders::add, null, MovingNode::isCopiedBeforeMove);
+            String additionalFolder = StringUtils.substringBeforeLast(destination, "/");
+            boolean buildAdditionalFolder = root instanceof MovingAsset && additionalTargetFolders.contains(additionalFolder);
+            pending.set(folders.size() + (buildAdditionalFolder ? 1 : 0));
+            if (pending.get() == 0) {
+                move();
+                return;
+            }
+            for (MovingNode folder : folders) {
+                pipeline.build.submit(pipeline.manager, rr -> {
+                    Actions.setCurrentItem("Building structure for " + folder.getSourcePath());
+                    folder.move(replicatorQueue, rr);
+                }, () -> {
+                    if (publishMethod != PublishMethod.NONE) {
+                        activate(folder.getDestinationPath());
+                    }
+                    countDown(this::move);
+                });
+            }
+            if (buildAdditionalFolder) {
+                pipeline.build.submit(pipeline.manager, rr -> {
+                    // Sources moving into the same folder must not create it at the same time
+                    synchronized (additionalTargetFolders) {
+                        buildAdditionalTargetFolder(rr, additionalFolder);
+                        rr.commit();
+                    }
+                }, () -> countDown(this::move));
+            }
+        }
+
+        private void move() {
+            List<MovingNode> nodes = new ArrayList<>();
+            root.visit(nodes::add);
+            for (MovingNode node : nodes) {
+                pipeline.move.submit(pipeline.manager, rr -> {
+                    if (!node.isCopiedBeforeMove() || !resourceExists(rr, node.getDestinationPath())) {
+                        Actions.setCurrentItem("Moving " + node.getSourcePath());
+                        node.move(replicatorQueue, rr);
+                    }
+                }, () -> {
+                    String path = node.getDestinationPath();
+                    if (publishMethod != PublishMethod.NONE && !node.isCopiedBeforeMove()
+                            && replicatorQueue.getActivateOperations().containsKey(path) && isActivationPath(path)) {
+                        activate(path);
+                    }
+                });
+            }
+        }
+
+        private void activate(String path) {
+            pipeline.activate.submit(pipeline.manager, rr -> {
+                Actions.setCurrentItem("Replicating " + path);
+                performNecessaryReplication(rr, path);
+                activatedPaths.add(path);
+            }, null);
+        }
+
+        private void countDown(Runnable whenDone) {
+            if (pending.decrementAndGet() == 0) {
+                whenDone.run();
+            }
+        }
+    }
+
     protected void identifyStructure(ActionManager manager) {
         manager.deferredWithResolver(rr -> {
             AtomicInteger visitedSourceNodes = new AtomicInteger();
@@ -509,18 +704,20 @@ public class Renovator extends ProcessDefinition {
                 });
             });
             additionalTargetFolders.forEach(path -> {
-                manager.deferredWithResolver(rr2 -> {
-                    Actions.setCurrentItem("Building structure for " + path);
-                    performNecessaryReplicationOnAncestors(rr2, path);
-                    ResourceUtil.getOrCreateResource(rr2, path, Collections.EMPTY_MAP, "sling:Folder", false);
-                    if (detailedReport) {
-                        note(path, Report.misc, "Created additional destination folder");
-                    }
-                });
+                manager.deferredWithResolver(rr2 -> buildAdditionalTargetFolder(rr2, path));
             });
         });
     }
 
+    private void buildAdditionalTargetFolder(ResourceResolver rr, String path) throws ReplicationException, PersistenceException {
+        Actions.setCurrentItem("Building structure for " + path);
+        performNecessaryReplicationOnAncestors(rr, path);
+        ResourceUtil.getOrCreateResource(rr, path, Collections.EMPTY_MAP, "sling:Folder", false);
+        if (detailedReport) {
+            note(path, Report.misc, "Created additional destination folder");
+        }
+    }
+
     // Move assets and pages, and in some cases folders that were not already moved in the previous step
     protected void moveTree(ActionManager manager) {
         manager.deferredWithResolver(rr -> {
@@ -557,6 +754,7 @@ public class Renovator extends ProcessDefinition {
     protected void activateNew(ActionManager step3) {
         step3.deferredWithResolver(rr -> {
             getAllActivationPaths().filter(this::isActivationPath)
+                    .filter(path -> !activatedPaths.contains(path))
                     .forEach(path -> {
                         step3.deferredWithResolver(rr2 -> {
                             Actions.setCurrentItem("Replicating " + path);
@@ -21,20 +21,32 @@ package com.adobe.acs.commons.mcp.model;
 
 import org.osgi.annotation.versioning.ProviderType;
 import com.adobe.acs.commons.mcp.ProcessInstance;
-import com.day.cq.commons.jcr.JcrUtil;
+import com.adobe.acs.commons.mcp.model.impl.ColumnarReportFormat;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Calendar;
 import java.util.EnumMap;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 import javax.inject.Inject;
 import javax.jcr.RepositoryException;
-import javax.jcr.Session;
 import com.adobe.acs.commons.mcp.util.StringUtil;
 import java.util.HashMap;
-import java.util.Map.Entry;
+import org.apache.jackrabbit.JcrConstants;
 import org.apache.sling.api.resource.ModifiableValueMap;
 import org.apache.sling.api.resource.PersistenceException;
 import org.apache.sling.api.resource.Resource;
@@ -44,15 +56,29 @@ import org.apache.sling.api.resource.ValueMap;
 import org.apache.sling.api.wrappers.ValueMapDecorator;
 import org.apache.sling.models.annotations.DefaultInjectionStrategy;
 import org.apache.sling.models.annotations.Model;
+import org.apache.sling.models.annotations.injectorspecific.Self;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Describes a very simple table, which is up to the process definition to
  * outline.
+ * <p>
+ * The rows are persisted as a single file in a compressed columnar format (see
+ * {@link ColumnarReportFormat}) rather than as one node per row, and read back
+ * while they are processed with {@link #streamRows()} or a page at a time with
+ * {@link #getRows(long, int)}, which is how {@link GenericReportPage} shows
+ * them.  Reports persisted with one node per row by earlier versions can still
+ * be read.
+ * </p>
  */
 @ProviderType
 @Model(adaptables = Resource.class, defaultInjectionStrategy = DefaultInjectionStrategy.OPTIONAL)
 public class GenericReport {
     public static final String GENERIC_REPORT_RESOURCE_TYPE = ProcessInstance.RESOURCE_TYPE + "/process-generic-report";
+    public static final String ROWS_FILE = "rows.bin";
+    public static final String ROW_COUNT = "rowCount";
+    private static final Logger LOG = LoggerFactory.getLogger(GenericReport.class);
 
     @Inject
     private List<String> columns;
@@ -63,29 +89,153 @@ public class GenericReport {
     @Inject
     private String name = "report";
 
+    @Self
+    private Resource resource;
+
     public String getResourceType() {
         return GENERIC_REPORT_RESOURCE_TYPE;
     }
     
     public void persist(ResourceResolver rr, String path) throws PersistenceException, RepositoryException {
-        ModifiableValueMap jcrContent = ResourceUtil.getOrCreateResource(rr, path, getResourceType(), null, false).adaptTo(ModifiableValueMap.class);
-        jcrContent.put("jcr:primaryType", "nt:unstructured");
-        jcrContent.put("columns", getColumns().toArray(new String[0]));
-        jcrContent.put("name", name);
-        rr.commit();
-        rr.refresh();
-        JcrUtil.createPath(path + "/rows", "nt:unstructured", rr.adaptTo(Session.class));
-        int rowCounter = 0;
-        for (Map<String, Object> row : rows) {
-            // First strip out null values
-            Map<String, Object> properties = row.entrySet().stream().filter(e -> e.getValue() != null).collect(Collectors.toMap(Entry::getKey, Entry::getValue));
-            rowCounter++;
-            ResourceUtil.getOrCreateResource(rr, path + "/rows/row-" + rowCounter, properties, null, true);
+        File data = null;
+        try {
+            // Write the rows before touching the report, so a failure keeps the rows persisted before
+            data = File.createTempFile("report", ".bin");
+            writeRows(data);
+
+            ModifiableValueMap jcrContent = ResourceUtil.getOrCreateResource(rr, path, getResourceType(), null, false).adaptTo(ModifiableValueMap.class);
+            jcrContent.put("jcr:primaryType", "nt:unstructured");
+            jcrContent.put("columns", getColumns().toArray(new String[0]));
+            jcrContent.put("name", name);
+            jcrContent.put(ROW_COUNT, (long) getRows().size());
+            // Replace the rows of a report persisted before, in the same commit as the new rows
+            for (String previousRows : new String[]{"rows", ROWS_FILE}) {
+                Resource previous = rr.getResource(path + "/" + previousRows);
+                if (previous != null) {
+                    rr.delete(previous);
+                }
+            }
+            try (InputStream in = new FileInputStream(data)) {
+                Map<String, Object> fileProperties = new HashMap<>();
+                fileProperties.put(JcrConstants.JCR_PRIMARYTYPE, JcrConstants.NT_FILE);
+                Resource file = rr.create(rr.getResource(path), ROWS_FILE, fileProperties);
+                Map<String, Object> contentProperties = new HashMap<>();
+                contentProperties.put(JcrConstants.JCR_PRIMARYTYPE, JcrConstants.NT_RESOURCE);
+                contentProperties.put(JcrConstants.JCR_MIMETYPE, ColumnarReportFormat.MIME_TYPE);
+                contentProperties.put(JcrConstants.JCR_LASTMODIFIED, Calendar.getInstance());
+                contentProperties.put(JcrConstants.JCR_DATA, in);
+                rr.create(file, JcrConstants.JCR_CONTENT, contentProperties);
+                rr.commit();
+            }
+        } catch (IOException ex) {
+            rr.revert();
+            throw new PersistenceException("Unable to store rows of report " + path, ex);
+        } finally {
+            if (data != null && !data.delete()) {
+                data.deleteOnExit();
+            }
         }
-        rr.commit();
         rr.refresh();
     }
 
+    private void writeRows(File data) throws IOException {
+        // Rows may hold values of columns which have not been declared
+        Set<String> allColumns = new LinkedHashSet<>(getColumns());
+        getRows().forEach(row -> allColumns.addAll(row.keySet()));
+        try (ColumnarReportFormat.Writer writer = new ColumnarReportFormat.Writer(
+                new BufferedOutputStream(new FileOutputStream(data)), new ArrayList<>(allColumns))) {
+            for (Map<String, Object> row : getRows()) {
+                writer.write(row);
+            }
+        }
+    }
+
+    /**
+     * Stream the rows of the report.  Persisted rows are read while the stream
+     * is consumed, so the stream has to be closed once done.
+     *
+     * @return the rows
+     */
+    public Stream<ValueMap> streamRows() {
+        Resource data = getRowsData();
+        if (rows != null || data == null) {
+            return getRows().stream();
+        }
+        ColumnarReportFormat.Reader reader = openRows(data);
+        if (reader == null) {
+            return Stream.empty();
+        }
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(reader, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(() -> close(reader));
+    }
+
+    /**
+     * Get a page of rows, reading only the persisted rows needed.
+     *
+     * @param offset number of rows to skip
+     * @param limit maximum number of rows to return
+     * @return the rows
+     */
+    public List<ValueMap> getRows(long offset, int limit) {
+        Resource data = getRowsData();
+        if (rows != null || data == null) {
+            return getRows().stream().skip(offset).limit(limit).collect(Collectors.toList());
+        }
+        List<ValueMap> page = new ArrayList<>(Math.min(limit, ColumnarReportFormat.ROWS_PER_GROUP));
+        ColumnarReportFormat.Reader reader = openRows(data);
+        if (reader != null) {
+            try {
+                reader.skip(offset);
+                while (page.size() < limit && reader.hasNext()) {
+                    page.add(reader.next());
+                }
+            } catch (IOException | IllegalStateException ex) {
+                LOG.error("Unable to read rows of report {}", data.getPath(), ex);
+            } finally {
+                close(reader);
+            }
+        }
+        return page;
+    }
+
+    /**
+     * @return the number of rows
+     */
+    public long getRowCount() {
+        if (rows == null && getRowsData() != null) {
+            return resource.getValueMap().get(ROW_COUNT, 0L);
+        }
+        return getRows().size();
+    }
+
+    private Resource getRowsData() {
+        return resource == null ? null : resource.getChild(ROWS_FILE);
+    }
+
+    private static ColumnarReportFormat.Reader openRows(Resource data) {
+        Resource content = data.getChild(JcrConstants.JCR_CONTENT);
+        InputStream in = content == null ? null : content.getValueMap().get(JcrConstants.JCR_DATA, InputStream.class);
+        if (in == null) {
+            LOG.error("No rows stored for report {}", data.getPath());
+            return null;
+        }
+        try {
+            return new ColumnarReportFormat.Reader(in);
+        } catch (IOException ex) {
+            LOG.error("Unable to read rows of report {}", data.getPath(), ex);
+            close(in);
+            return null;
+        }
+    }
+
+    private static void close(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException ex) {
+            LOG.warn("Unable to close report rows", ex);
+        }
+    }
+
     public <E extends Enum<E>, V> void setRows(Map<String, EnumMap<E, V>> reportData, String keyName, Class<E> enumClass) throws PersistenceException, RepositoryException {
         getColumns().clear();
         getColumns().add(keyName);
@@ -151,11 +301,23 @@ public class GenericReport {
     }
 
     /**
+     * Get all rows, to build a report.  The rows of a persisted report are all
+     * read into memory by this, so read them with {@link #streamRows()} or
+     * {@link #getRows(long, int)} instead.
+     *
      * @return the rows
      */
     public List<ValueMap> getRows() {
         if (rows == null) {
-            rows = new ArrayList<>();
+            List<ValueMap> stored = new ArrayList<>();
+            if (getRowsData() != null) {
+                try (Stream<ValueMap> rowStream = streamRows()) {
+                    rowStream.forEach(stored::add);
+                } catch (IllegalStateException ex) {
+                    LOG.error("Unable to read rows of report {}", resource.getPath(), ex);
+                }
+            }
+            rows = stored;
         }
         return rows;
     }
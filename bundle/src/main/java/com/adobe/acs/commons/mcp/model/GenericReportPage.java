@@ -0,0 +1,115 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2019 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.mcp.model;
+
+import java.util.Collections;
+import java.util.List;
+import javax.annotation.PostConstruct;
+import org.apache.commons.lang.math.NumberUtils;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.models.annotations.DefaultInjectionStrategy;
+import org.apache.sling.models.annotations.Model;
+import org.apache.sling.models.annotations.injectorspecific.Self;
+import org.osgi.annotation.versioning.ProviderType;
+
+/**
+ * One page of the rows of a {@link GenericReport}, as shown by the report view.
+ * Only the rows of the requested page are read, so large reports can be viewed
+ * without loading all of their rows.
+ */
+@ProviderType
+@Model(adaptables = SlingHttpServletRequest.class, defaultInjectionStrategy = DefaultInjectionStrategy.OPTIONAL)
+public class GenericReportPage {
+    public static final String PAGE_PARAMETER = "page";
+    public static final int PAGE_SIZE = 500;
+
+    @Self
+    private SlingHttpServletRequest request;
+
+    private GenericReport report;
+
+    private int page;
+
+    private int pageCount;
+
+    private List<ValueMap> rows;
+
+    @PostConstruct
+    protected void init() {
+        report = request.getResource().adaptTo(GenericReport.class);
+        if (report == null) {
+            report = new GenericReport();
+        }
+        pageCount = (int) Math.max(1, (report.getRowCount() + PAGE_SIZE - 1) / PAGE_SIZE);
+        page = Math.min(Math.max(NumberUtils.toInt(request.getParameter(PAGE_PARAMETER), 1), 1), pageCount);
+    }
+
+    public String getName() {
+        return report.getName();
+    }
+
+    public List<String> getColumns() {
+        return report.getColumns();
+    }
+
+    public List<String> getColumnNames() {
+        return report.getColumns().isEmpty() ? Collections.emptyList() : report.getColumnNames();
+    }
+
+    /**
+     * @return the rows of the current page
+     */
+    public List<ValueMap> getRows() {
+        if (rows == null) {
+            rows = report.getRows((long) (page - 1) * PAGE_SIZE, PAGE_SIZE);
+        }
+        return rows;
+    }
+
+    public long getRowCount() {
+        return report.getRowCount();
+    }
+
+    /**
+     * @return the current page, starting at 1
+     */
+    public int getPage() {
+        return page;
+    }
+
+    public int getPageCount() {
+        return pageCount;
+    }
+
+    /**
+     * @return the previous page, or 0 if this is the first one
+     */
+    public int getPreviousPage() {
+        return page > 1 ? page - 1 : 0;
+    }
+
+    /**
+     * @return the next page, or 0 if this is the last one
+     */
+    public int getNextPage() {
+        return page < pageCount ? page + 1 : 0;
+    }
+}
@@ -29,8 +29,13 @@ import java.util.Calendar;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
+import java.util.Iterator;
 import java.util.List;
-import javax.annotation.PostConstruct;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 import javax.inject.Inject;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ValueMap;
@@ -77,6 +82,7 @@ public class ManagedProcess implements Serializable {
      * @return the reportedErrors
      */
     public int getReportedErrors() {
+        readErrors();
         return reportedErrors;
     }
     
@@ -84,6 +90,7 @@ public class ManagedProcess implements Serializable {
      * @return the reportedErrorsList
      */
     public Collection<ArchivedProcessFailure> getReportedErrorsList() {
+        readErrors();
         if (reportedErrorsList == null) {
             return Collections.EMPTY_LIST;
         } else {
@@ -91,6 +98,42 @@ public class ManagedProcess implements Serializable {
         }
     }    
 
+    /**
+     * Read the reported errors one at a time, without holding all of them in
+     * memory like {@link #getReportedErrorsList()} does.
+     * @return the reported errors, the stream should be closed when done
+     */
+    public Stream<ArchivedProcessFailure> streamReportedErrors() {
+        if (reportedErrorsList != null || resource == null) {
+            return getReportedErrorsList().stream();
+        }
+        Resource failuresRoot = resource.getChild("failures");
+        if (failuresRoot == null) {
+            return Stream.empty();
+        }
+        Iterator<Resource> steps = failuresRoot.listChildren();
+        Iterator<ArchivedProcessFailure> failures = new Iterator<ArchivedProcessFailure>() {
+            private Iterator<Resource> stepFailures = Collections.emptyIterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!stepFailures.hasNext() && steps.hasNext()) {
+                    stepFailures = steps.next().listChildren();
+                }
+                return stepFailures.hasNext();
+            }
+
+            @Override
+            public ArchivedProcessFailure next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return stepFailures.next().adaptTo(ArchivedProcessFailure.class);
+            }
+        };
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(failures, Spliterator.ORDERED), false);
+    }
+
     /**
      * @param reportedErrors the reportedErrors to set
      */
@@ -251,10 +294,14 @@ public class ManagedProcess implements Serializable {
         this.name = name;
     }
     
-    @PostConstruct
     private void readErrors() {
+        if (reportedErrorsList != null || resource == null) {
+            return;
+        }
         Resource failuresRoot = resource.getChild("failures");
-        if (failuresRoot != null && failuresRoot.hasChildren()) {
+        if (failuresRoot == null || !failuresRoot.hasChildren()) {
+            reportedErrorsList = Collections.emptyList();
+        } else {
             List<ArchivedProcessFailure> failures = new ArrayList<>();
             failuresRoot.getChildren().forEach(step->
                     step.getChildren().forEach(f -> 
@@ -0,0 +1,483 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2015 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.mcp.model.impl;
+
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.api.wrappers.ValueMapDecorator;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TimeZone;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Binary storage format for the rows of a report.
+ * <p>
+ * Rows are stored in groups of up to {@link #ROWS_PER_GROUP} rows. Within a group the values are stored column by
+ * column: all values of a column are much alike (the same type, often the same strings), so each column holds a
+ * dictionary of its distinct strings, one type tag per row and the values, which then deflate very well. Every group
+ * is deflated on its own and prefixed with its row count and length, so a reader only ever holds one group in memory
+ * and can skip groups without inflating them.
+ * </p>
+ * <p>
+ * Strings, whole and decimal numbers, booleans, dates and string arrays keep their type, any other value is stored as
+ * its string representation. Rows are read as value maps holding the non-null values of the row, like rows stored as
+ * nodes.
+ * </p>
+ */
+public final class ColumnarReportFormat {
+
+    public static final String MIME_TYPE = "application/vnd.adobe.acs-commons.report-rows";
+    public static final int ROWS_PER_GROUP = 4096;
+
+    private static final int MAGIC = 0x41435352;
+    private static final int VERSION = 1;
+
+    private static final byte TAG_NULL = 0;
+    private static final byte TAG_STRING = 1;
+    private static final byte TAG_LONG = 2;
+    private static final byte TAG_DOUBLE = 3;
+    private static final byte TAG_TRUE = 4;
+    private static final byte TAG_FALSE = 5;
+    private static final byte TAG_CALENDAR = 6;
+    private static final byte TAG_DECIMAL = 7;
+    private static final byte TAG_STRING_ARRAY = 8;
+
+    private ColumnarReportFormat() {
+        // Static access only
+    }
+
+    /**
+     * Writes rows to a stream. The stream is complete only once the writer is closed.
+     */
+    public static final class Writer implements Closeable {
+        private final DataOutputStream out;
+        private final List<String> columns;
+        private final List<Map<String, Object>> group = new ArrayList<>(ROWS_PER_GROUP);
+        private final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        private long rowCount = 0;
+        private boolean closed = false;
+
+        public Writer(OutputStream out, List<String> columns) throws IOException {
+            this.out = new DataOutputStream(out);
+            this.columns = new ArrayList<>(columns);
+            this.out.writeInt(MAGIC);
+            this.out.writeByte(VERSION);
+            writeVarInt(this.out, this.columns.size());
+            for (String column : this.columns) {
+                writeString(this.out, column);
+            }
+        }
+
+        /**
+         * @param row the row, values of keys which are not report columns are not stored
+         * @throws IOException if the row cannot be written
+         */
+        public void write(Map<String, Object> row) throws IOException {
+            group.add(row);
+            rowCount++;
+            if (group.size() >= ROWS_PER_GROUP) {
+                writeGroup();
+            }
+        }
+
+        public long getRowCount() {
+            return rowCount;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                writeGroup();
+                // An empty group ends the rows
+                writeVarInt(out, 0);
+                out.flush();
+            } finally {
+                deflater.end();
+                out.close();
+            }
+        }
+
+        private void writeGroup() throws IOException {
+            if (group.isEmpty()) {
+                return;
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream data = new DataOutputStream(bytes);
+            for (String column : columns) {
+                writeColumn(data, column);
+            }
+            data.flush();
+            byte[] raw = bytes.toByteArray();
+
+            deflater.reset();
+            deflater.setInput(raw);
+            deflater.finish();
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(raw.length / 4 + 16);
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                int length = deflater.deflate(buffer);
+                compressed.write(buffer, 0, length);
+            }
+
+            writeVarInt(out, group.size());
+            writeVarInt(out, raw.length);
+            writeVarInt(out, compressed.size());
+            compressed.writeTo(out);
+            group.clear();
+        }
+
+        private void writeColumn(DataOutputStream data, String column) throws IOException {
+            Map<String, Integer> dictionary = new LinkedHashMap<>();
+            byte[] tags = new byte[group.size()];
+            ByteArrayOutputStream values = new ByteArrayOutputStream();
+            DataOutputStream valueData = new DataOutputStream(values);
+            for (int i = 0; i < tags.length; i++) {
+                tags[i] = writeValue(valueData, dictionary, group.get(i).get(column));
+            }
+            valueData.flush();
+
+            writeVarInt(data, dictionary.size());
+            for (String entry : dictionary.keySet()) {
+                writeString(data, entry);
+            }
+            data.write(tags);
+            values.writeTo(data);
+        }
+
+        private static byte writeValue(DataOutputStream data, Map<String, Integer> dictionary, Object value) throws IOException {
+            if (value == null) {
+                return TAG_NULL;
+            } else if (value instanceof String) {
+                writeVarInt(data, lookup(dictionary, (String) value));
+                return TAG_STRING;
+            } else if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+                writeVarLong(data, zigZag(((Number) value).longValue()));
+                return TAG_LONG;
+            } else if (value instanceof Double || value instanceof Float) {
+                data.writeDouble(((Number) value).doubleValue());
+                return TAG_DOUBLE;
+            } else if (value instanceof BigDecimal) {
+                writeVarInt(data, lookup(dictionary, value.toString()));
+                return TAG_DECIMAL;
+            } else if (value instanceof Boolean) {
+                return (Boolean) value ? TAG_TRUE : TAG_FALSE;
+            } else if (value instanceof Calendar || value instanceof Date) {
+                Calendar calendar = value instanceof Calendar ? (Calendar) value : toCalendar((Date) value);
+                writeVarLong(data, zigZag(calendar.getTimeInMillis()));
+                writeVarInt(data, lookup(dictionary, calendar.getTimeZone().getID()));
+                return TAG_CALENDAR;
+            } else if (value instanceof Object[]) {
+                Object[] array = (Object[]) value;
+                writeVarInt(data, array.length);
+                for (Object element : array) {
+                    writeVarInt(data, lookup(dictionary, String.valueOf(element)));
+                }
+                return TAG_STRING_ARRAY;
+            } else {
+                writeVarInt(data, lookup(dictionary, String.valueOf(value)));
+                return TAG_STRING;
+            }
+        }
+
+        private static int lookup(Map<String, Integer> dictionary, String value) {
+            Integer index = dictionary.get(value);
+            if (index == null) {
+                index = dictionary.size();
+                dictionary.put(value, index);
+            }
+            return index;
+        }
+
+        private static Calendar toCalendar(Date date) {
+            Calendar calendar = Calendar.getInstance();
+            calendar.setTime(date);
+            return calendar;
+        }
+    }
+
+    /**
+     * Reads rows from a stream, one group at a time.
+     */
+    public static final class Reader implements Iterator<ValueMap>, Closeable {
+        private final DataInputStream in;
+        private final List<String> columns;
+        private final Inflater inflater = new Inflater();
+        private final Map<String, TimeZone> timeZones = new HashMap<>();
+        private Object[][] group = new Object[0][];
+        private int position = 0;
+        private boolean finished = false;
+
+        public Reader(InputStream in) throws IOException {
+            this.in = new DataInputStream(in);
+            if (this.in.readInt() != MAGIC) {
+                throw new IOException("Not a report rows stream");
+            }
+            int version = this.in.readUnsignedByte();
+            if (version != VERSION) {
+                throw new IOException("Unsupported report rows version " + version);
+            }
+            int columnCount = readVarInt(this.in);
+            List<String> names = new ArrayList<>(columnCount);
+            for (int i = 0; i < columnCount; i++) {
+                names.add(readString(this.in));
+            }
+            columns = Collections.unmodifiableList(names);
+        }
+
+        public List<String> getColumns() {
+            return columns;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (position < group.length) {
+                return true;
+            }
+            try {
+                return readGroup();
+            } catch (IOException ex) {
+                throw new IllegalStateException("Unable to read report rows", ex);
+            }
+        }
+
+        @Override
+        public ValueMap next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Object[] values = group[position++];
+            Map<String, Object> row = new LinkedHashMap<>();
+            for (int c = 0; c < values.length; c++) {
+                if (values[c] != null) {
+                    row.put(columns.get(c), values[c]);
+                }
+            }
+            return new ValueMapDecorator(row);
+        }
+
+        /**
+         * Skip rows, without decoding the groups skipped entirely.
+         *
+         * @param rows number of rows to skip
+         * @return the number of rows skipped, less than requested only at the end of the rows
+         * @throws IOException if the rows cannot be read
+         */
+        public long skip(long rows) throws IOException {
+            long skipped = Math.min(rows, (long) group.length - position);
+            position += (int) skipped;
+            while (skipped < rows && !finished) {
+                int rowCount = readVarInt(in);
+                if (rowCount == 0) {
+                    finished = true;
+                } else if (skipped + rowCount <= rows) {
+                    readVarInt(in);
+                    skipFully(readVarInt(in));
+                    skipped += rowCount;
+                } else {
+                    decodeGroup(rowCount);
+                    position = (int) (rows - skipped);
+                    skipped = rows;
+                }
+            }
+            return skipped;
+        }
+
+        @Override
+        public void close() throws IOException {
+            inflater.end();
+            in.close();
+        }
+
+        private boolean readGroup() throws IOException {
+            while (!finished && position >= group.length) {
+                int rowCount = readVarInt(in);
+                if (rowCount == 0) {
+                    finished = true;
+                } else {
+                    decodeGroup(rowCount);
+                }
+            }
+            return position < group.length;
+        }
+
+        private void decodeGroup(int rowCount) throws IOException {
+            byte[] raw = new byte[readVarInt(in)];
+            byte[] compressed = new byte[readVarInt(in)];
+            in.readFully(compressed);
+            inflater.reset();
+            inflater.setInput(compressed);
+            try {
+                int length = 0;
+                while (length < raw.length && !inflater.finished()) {
+                    length += inflater.inflate(raw, length, raw.length - length);
+                    if (inflater.needsInput() && length < raw.length) {
+                        throw new EOFException("Truncated report rows");
+                    }
+                }
+            } catch (DataFormatException ex) {
+                throw new IOException("Corrupt report rows", ex);
+            }
+
+            DataInputStream data = new DataInputStream(new ByteArrayInputStream(raw));
+            Object[][] rows = new Object[rowCount][columns.size()];
+            for (int c = 0; c < columns.size(); c++) {
+                readColumn(data, rows, c);
+            }
+            group = rows;
+            position = 0;
+        }
+
+        private void readColumn(DataInputStream data, Object[][] rows, int column) throws IOException {
+            String[] dictionary = new String[readVarInt(data)];
+            for (int i = 0; i < dictionary.length; i++) {
+                dictionary[i] = readString(data);
+            }
+            byte[] tags = new byte[rows.length];
+            data.readFully(tags);
+            for (int r = 0; r < rows.length; r++) {
+                rows[r][column] = readValue(data, dictionary, tags[r]);
+            }
+        }
+
+        private Object readValue(DataInputStream data, String[] dictionary, byte tag) throws IOException {
+            switch (tag) {
+                case TAG_NULL:
+                    return null;
+                case TAG_STRING:
+                    return dictionary[readVarInt(data)];
+                case TAG_LONG:
+                    return unZigZag(readVarLong(data));
+                case TAG_DOUBLE:
+                    return data.readDouble();
+                case TAG_DECIMAL:
+                    return new BigDecimal(dictionary[readVarInt(data)]);
+                case TAG_TRUE:
+                    return Boolean.TRUE;
+                case TAG_FALSE:
+                    return Boolean.FALSE;
+                case TAG_CALENDAR:
+                    long millis = unZigZag(readVarLong(data));
+                    Calendar calendar = new GregorianCalendar(timeZones.computeIfAbsent(dictionary[readVarInt(data)], TimeZone::getTimeZone));
+                    calendar.setTimeInMillis(millis);
+                    return calendar;
+                case TAG_STRING_ARRAY:
+                    String[] array = new String[readVarInt(data)];
+                    for (int i = 0; i < array.length; i++) {
+                        array[i] = dictionary[readVarInt(data)];
+                    }
+                    return array;
+                default:
+                    throw new IOException("Unknown value type " + tag);
+            }
+        }
+
+        private void skipFully(int length) throws IOException {
+            int remaining = length;
+            while (remaining > 0) {
+                int skipped = in.skipBytes(remaining);
+                if (skipped <= 0) {
+                    in.readByte();
+                    skipped = 1;
+                }
+                remaining -= skipped;
+            }
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[readVarInt(in)];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        writeVarLong(out, value & 0xFFFFFFFFL);
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        long remaining = value;
+        while ((remaining & ~0x7FL) != 0) {
+            out.writeByte((int) ((remaining & 0x7F) | 0x80));
+            remaining >>>= 7;
+        }
+        out.writeByte((int) remaining);
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        long value = readVarLong(in);
+        if (value > Integer.MAX_VALUE) {
+            throw new IOException("Corrupt report rows");
+        }
+        return (int) value;
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Corrupt report rows");
+    }
+}
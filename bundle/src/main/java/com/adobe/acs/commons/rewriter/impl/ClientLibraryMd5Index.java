@@ -0,0 +1,187 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2015 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.rewriter.impl;
+
+import com.adobe.granite.ui.clientlibs.HtmlLibrary;
+import com.adobe.granite.ui.clientlibs.LibraryType;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Index of client library md5s, kept in a file so they survive restarts.
+ * <p>
+ * Every md5 is stored with the last modification of its library, and only
+ * used as long as the library was not modified since.  The index also keeps
+ * the configuration of the library manager the md5s were computed with, and
+ * starts empty when that changed, as libraries may then be processed
+ * differently.  The file is only written by {@link #save()}.
+ */
+final class ClientLibraryMd5Index {
+
+    private static final Logger log = LoggerFactory.getLogger(ClientLibraryMd5Index.class);
+
+    private static final String MIN_SUFFIX = ".min";
+
+    private static final char SEPARATOR = ':';
+
+    /** Key of the configuration, which cannot collide with the library paths. */
+    private static final String CONFIGURATION_KEY = "configuration";
+
+    private final File file;
+
+    private final String configuration;
+
+    private final ConcurrentMap<String, String> entries = new ConcurrentHashMap<String, String>();
+
+    private final AtomicBoolean modified = new AtomicBoolean();
+
+    /**
+     * Loads the index from the file, if it exists and was written for the same configuration.
+     *
+     * @param file the file
+     * @param configuration the configuration of the library manager
+     */
+    ClientLibraryMd5Index(final File file, final String configuration) {
+        this.file = file;
+        this.configuration = configuration;
+        if (file.isFile()) {
+            final Properties properties = new Properties();
+            try (InputStream in = new FileInputStream(file)) {
+                properties.load(in);
+            } catch (IOException | IllegalArgumentException e) {
+                log.warn("Could not load the client library md5 index [ {} ], starting empty", file, e);
+                return;
+            }
+            if (!StringUtils.equals(configuration, properties.getProperty(CONFIGURATION_KEY))) {
+                log.info("Not using the client library md5 index [ {} ], as the library manager configuration changed", file);
+                modified.set(true);
+                return;
+            }
+            for (final String key : properties.stringPropertyNames()) {
+                if (!CONFIGURATION_KEY.equals(key)) {
+                    entries.put(key, properties.getProperty(key));
+                }
+            }
+        }
+    }
+
+    /**
+     * @param htmlLibrary the library
+     * @param minified true for the minified library
+     * @return the md5 of the library, or null if it is not known for the last modification of the library
+     */
+    String get(final HtmlLibrary htmlLibrary, final boolean minified) {
+        final String entry = entries.get(getKey(htmlLibrary, minified));
+        final String lastModified = Long.toString(htmlLibrary.getLastModified());
+        if (entry == null || !lastModified.equals(StringUtils.substringBefore(entry, String.valueOf(SEPARATOR)))) {
+            return null;
+        }
+        return StringUtils.substringAfter(entry, String.valueOf(SEPARATOR));
+    }
+
+    /**
+     * @param htmlLibrary the library
+     * @param minified true for the minified library
+     * @param md5 the md5 of the library at its current last modification
+     */
+    void put(final HtmlLibrary htmlLibrary, final boolean minified, final String md5) {
+        final String entry = Long.toString(htmlLibrary.getLastModified()) + SEPARATOR + md5;
+        if (!entry.equals(entries.put(getKey(htmlLibrary, minified), entry))) {
+            modified.set(true);
+        }
+    }
+
+    /**
+     * Removes the md5s of all types of a library.
+     *
+     * @param path the library path
+     */
+    void remove(final String path) {
+        for (final LibraryType type : LibraryType.values()) {
+            final String key = getKey(path, type, false);
+            boolean removed = entries.remove(key) != null;
+            removed |= entries.remove(key + MIN_SUFFIX) != null;
+            if (removed) {
+                modified.set(true);
+            }
+        }
+    }
+
+    /**
+     * @return the number of md5s in the index
+     */
+    int size() {
+        return entries.size();
+    }
+
+    /**
+     * Writes the index to its file, if it was modified since it was loaded or last written.
+     *
+     * @throws IOException if the file could not be written
+     */
+    synchronized void save() throws IOException {
+        if (!modified.getAndSet(false)) {
+            return;
+        }
+
+        final Properties properties = new Properties();
+        for (final Map.Entry<String, String> entry : entries.entrySet()) {
+            properties.setProperty(entry.getKey(), entry.getValue());
+        }
+        properties.setProperty(CONFIGURATION_KEY, configuration);
+
+        final File temp = new File(file.getPath() + ".tmp");
+        try {
+            try (OutputStream out = new FileOutputStream(temp)) {
+                properties.store(out, "md5 of client libraries, as <last modified>:<md5>");
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // Try again with the next save
+            modified.set(true);
+            throw e;
+        }
+    }
+
+    private static String getKey(final HtmlLibrary htmlLibrary, final boolean minified) {
+        return getKey(htmlLibrary.getLibraryPath(), htmlLibrary.getType(), minified);
+    }
+
+    private static String getKey(final String path, final LibraryType type, final boolean minified) {
+        final String key = new VersionedClientLibraryMd5CacheKey(path, type).toString();
+        return minified ? key + MIN_SUFFIX : key;
+    }
+}
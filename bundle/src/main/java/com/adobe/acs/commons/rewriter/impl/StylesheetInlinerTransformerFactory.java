@@ -22,21 +22,33 @@ package com.adobe.acs.commons.rewriter.impl;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.api.SlingConstants;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceMetadata;
+import org.apache.sling.api.resource.ResourceUtil;
+import org.apache.sling.api.resource.observation.ExternalResourceChangeListener;
+import org.apache.sling.api.resource.observation.ResourceChange;
+import org.apache.sling.api.resource.observation.ResourceChangeListener;
+import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.apache.sling.rewriter.ProcessingComponentConfiguration;
 import org.apache.sling.rewriter.ProcessingContext;
 import org.apache.sling.rewriter.Transformer;
 import org.apache.sling.rewriter.TransformerFactory;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xml.sax.Attributes;
@@ -49,32 +61,105 @@ import com.adobe.acs.commons.rewriter.DelegatingTransformer;
 import com.adobe.granite.ui.clientlibs.HtmlLibrary;
 import com.adobe.granite.ui.clientlibs.HtmlLibraryManager;
 import com.adobe.granite.ui.clientlibs.LibraryType;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 
 /**
  * ACS AEM Commons - Stylesheet inliner removes stylesheet links the output adds
  * them as <style> elements. Links found in <head> are added to the beginning of
  * <body>, whereas those in <body> are included where they're found.
+ *
+ * The contents of inlined stylesheets are cached by path and last modification,
+ * up to a configured number of bytes, and dropped when the stylesheet or a
+ * resource below it changes under /apps, /libs or /etc.
  */
 @Component(
-        metatype = false,
+        metatype = true,
         label = "Stylesheet Inliner Transformer Factory",
         description = "Sling Rewriter Transformer Factory which inlines CSS references")
 @Properties({
-    @Property(name = "pipeline.type", value = "inline-css", propertyPrivate = true)})
-@Service(value = {TransformerFactory.class})
-public final class StylesheetInlinerTransformerFactory implements TransformerFactory {
+    @Property(name = "pipeline.type", value = "inline-css", propertyPrivate = true),
+    @Property(name = EventConstants.EVENT_TOPIC,
+        value = "com/adobe/granite/ui/librarymanager/INVALIDATED", propertyPrivate = true),
+    @Property(name = ResourceChangeListener.PATHS, value = {"/apps", "/libs", "/etc"}, propertyPrivate = true),
+    @Property(name = ResourceChangeListener.CHANGES, value = {"CHANGED", "REMOVED"}, propertyPrivate = true)})
+@Service(value = {TransformerFactory.class, EventHandler.class, ResourceChangeListener.class})
+public final class StylesheetInlinerTransformerFactory implements TransformerFactory, EventHandler,
+        ResourceChangeListener, ExternalResourceChangeListener {
 
     private static final Logger log = LoggerFactory.getLogger(StylesheetInlinerTransformerFactory.class);
 
     private static final char[] NEWLINE = new char[]{'\n'};
 
+    private static final long DEFAULT_CACHE_SIZE = 10L * 1024 * 1024;
+
+    private static final boolean DEFAULT_MINIFY = false;
+
+    @Property(label = "Stylesheet Cache Size", description = "Maximum number of bytes of stylesheet contents kept in memory."
+            + " 0 disables caching.", longValue = DEFAULT_CACHE_SIZE)
+    private static final String PROP_CACHE_SIZE = "cache.size";
+
+    @Property(label = "Minify", description = "Inline the minified contents of client libraries.", boolValue = DEFAULT_MINIFY)
+    private static final String PROP_MINIFY = "minify";
+
     @Reference
     private HtmlLibraryManager htmlLibraryManager;
 
+    private volatile Cache<String, CachedStylesheet> stylesheetCache = buildCache(DEFAULT_CACHE_SIZE);
+
+    private boolean minify = DEFAULT_MINIFY;
+
+    @Activate
+    protected void activate(final Map<String, Object> config) {
+        stylesheetCache = buildCache(PropertiesUtil.toLong(config.get(PROP_CACHE_SIZE), DEFAULT_CACHE_SIZE));
+        minify = PropertiesUtil.toBoolean(config.get(PROP_MINIFY), DEFAULT_MINIFY);
+    }
+
     public Transformer createTransformer() {
         return new SelectorAwareCssInlinerTransformer();
     }
 
+    @Override
+    public void handleEvent(final Event event) {
+        final String path = (String) event.getProperty(SlingConstants.PROPERTY_PATH);
+        if (path == null) {
+            stylesheetCache.invalidateAll();
+        } else {
+            invalidate(path);
+        }
+    }
+
+    @Override
+    public void onChange(final List<ResourceChange> changes) {
+        for (final ResourceChange change : changes) {
+            invalidate(change.getPath());
+        }
+    }
+
+    /**
+     * Drops the stylesheet at the path or above it, e.g. of a changed jcr:content or file of a client library.
+     * Stylesheets below a removed resource are not looked up, as they are no longer found and so never served.
+     */
+    private void invalidate(final String path) {
+        final Cache<String, CachedStylesheet> cache = stylesheetCache;
+        String current = path;
+        while (current != null && !"/".equals(current)) {
+            cache.invalidate(current);
+            current = ResourceUtil.getParent(current);
+        }
+    }
+
+    Cache<String, CachedStylesheet> getCache() {
+        return stylesheetCache;
+    }
+
+    private static Cache<String, CachedStylesheet> buildCache(final long maxBytes) {
+        return CacheBuilder.newBuilder()
+                .maximumWeight(maxBytes)
+                .weigher((String path, CachedStylesheet stylesheet) -> 2 * (path.length() + stylesheet.content.length))
+                .build();
+    }
+
     private final class CssInlinerTransformer extends ContentHandlerBasedTransformer {
 
         private static final String HEAD = "head";
@@ -143,26 +228,42 @@ public final class StylesheetInlinerTransformerFactory implements TransformerFac
         }
 
         private Optional<char[]> readSheetContent(final String sheet) throws IOException, SAXException {
-            InputStream inputStream = null;
-
+            // the library or resource is still looked up for every request, so that access control applies
             final String withoutExtension = sheet.substring(0, sheet.indexOf(LibraryType.CSS.extension));
             final HtmlLibrary library = htmlLibraryManager.getLibrary(LibraryType.CSS, withoutExtension);
             if (library != null) {
-                inputStream = library.getInputStream();
-            } else {
-                final Resource resource = slingRequest.getResourceResolver().getResource(sheet);
-                if (resource != null) {
-                    inputStream = resource.adaptTo(InputStream.class);
-                }
+                return readSheetContent(withoutExtension, library.getLastModified(),
+                        () -> minify ? library.getInputStream(true) : library.getInputStream());
             }
 
-            if (inputStream != null) {
-                return Optional.of(IOUtils.toCharArray(inputStream, "UTF-8"));
+            final Resource resource = slingRequest.getResourceResolver().getResource(sheet);
+            if (resource != null) {
+                final ResourceMetadata metadata = resource.getResourceMetadata();
+                final long lastModified = metadata != null ? metadata.getModificationTime() : -1;
+                return readSheetContent(sheet, lastModified, () -> resource.adaptTo(InputStream.class));
             }
 
             return Optional.empty();
         }
 
+        private Optional<char[]> readSheetContent(final String path, final long lastModified,
+                                                  final StylesheetSource source) throws IOException {
+            final Cache<String, CachedStylesheet> cache = stylesheetCache;
+            final CachedStylesheet cached = cache.getIfPresent(path);
+            if (cached != null && cached.lastModified == lastModified) {
+                return Optional.of(cached.content);
+            }
+
+            try (InputStream inputStream = source.open()) {
+                if (inputStream == null) {
+                    return Optional.empty();
+                }
+                final char[] content = IOUtils.toCharArray(inputStream, "UTF-8");
+                cache.put(path, new CachedStylesheet(lastModified, content));
+                return Optional.of(content);
+            }
+        }
+
         private boolean inlineSheet(final String namespaceURI, final char[] content) throws SAXException {
             if (content != null) {
                 final ContentHandler contentHandler = getContentHandler();
@@ -182,6 +283,25 @@ public final class StylesheetInlinerTransformerFactory implements TransformerFac
         }
     }
 
+    @FunctionalInterface
+    private interface StylesheetSource {
+        InputStream open() throws IOException;
+    }
+
+    /**
+     * Contents of a stylesheet, valid as long as its last modification is unchanged.
+     */
+    static final class CachedStylesheet {
+
+        private final long lastModified;
+        private final char[] content;
+
+        CachedStylesheet(final long lastModified, final char[] content) {
+            this.lastModified = lastModified;
+            this.content = content;
+        }
+    }
+
     final class SelectorAwareCssInlinerTransformer extends DelegatingTransformer {
 
         @Override
@@ -30,6 +30,7 @@ import com.adobe.granite.ui.clientlibs.LibraryType;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.lang.ArrayUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
@@ -47,7 +48,10 @@ import org.apache.sling.rewriter.ProcessingComponentConfiguration;
 import org.apache.sling.rewriter.ProcessingContext;
 import org.apache.sling.rewriter.Transformer;
 import org.apache.sling.rewriter.TransformerFactory;
+import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceReference;
 import org.osgi.framework.ServiceRegistration;
 import org.osgi.service.component.ComponentContext;
 import org.osgi.service.event.Event;
@@ -74,15 +78,26 @@ import javax.servlet.ServletException;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletResponse;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.Charset;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.Dictionary;
+import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -123,6 +138,25 @@ public final class VersionedClientlibsTransformerFactory extends AbstractGuavaCa
         boolValue = DEFAULT_ENFORCE_MD5)
     private static final String PROP_ENFORCE_MD5 = "enforce.md5";
 
+    private static final int DEFAULT_MD5_WARMUP_THREADS = 0;
+
+    private static final boolean DEFAULT_MD5_INDEX = false;
+
+    private static final String MD5_INDEX_FILE = "versioned-clientlibs-md5.properties";
+
+    /** Properties of the library manager service which do not change how libraries are processed. */
+    private static final Set<String> NON_CONFIGURATION_PROPERTIES = new HashSet<String>(Arrays.asList(
+            Constants.SERVICE_ID, Constants.OBJECTCLASS, "service.bundleid", "service.scope", "component.id"));
+
+    @Property(label="MD5 Warm-up Threads", description="Number of threads computing the md5 of all client libraries in the background after activation,"
+        + " and of every changed client library, so that page requests do not have to. The MD5 cache should be large enough to hold all libraries. 0 disables the warm-up.",
+        intValue = DEFAULT_MD5_WARMUP_THREADS)
+    private static final String PROP_MD5_WARMUP_THREADS = "md5.warmup.threads";
+
+    @Property(label="Persist MD5 Index", description="Store the md5 of every client library on disk, so it is not computed again after a restart."
+        + " A stored md5 is used as long as the last modification of its library is unchanged.", boolValue = DEFAULT_MD5_INDEX)
+    private static final String PROP_MD5_INDEX = "md5.index.enabled";
+
     private static final String ATTR_JS_PATH = "src";
     private static final String ATTR_CSS_PATH = "href";
 
@@ -139,6 +173,12 @@ public final class VersionedClientlibsTransformerFactory extends AbstractGuavaCa
 
     private volatile Map<String, ClientLibrary> clientLibrariesCache;
 
+    private final Set<String> invalidatedClientLibraries = ConcurrentHashMap.newKeySet();
+
+    private volatile ClientLibraryMd5Index md5Index;
+
+    private volatile ExecutorService warmUpExecutor;
+
     private boolean disableVersioning;
 
     private boolean enforceMd5;
@@ -169,6 +209,19 @@ public final class VersionedClientlibsTransformerFactory extends AbstractGuavaCa
             filterReg = bundleContext.registerService(Filter.class.getName(),
                     new BadMd5VersionedClientLibsFilter(), filterProps);
         }
+        if (PropertiesUtil.toBoolean(props.get(PROP_MD5_INDEX), DEFAULT_MD5_INDEX)) {
+            final File indexFile = bundleContext.getDataFile(MD5_INDEX_FILE);
+            if (indexFile != null) {
+                this.md5Index = new ClientLibraryMd5Index(indexFile, getLibraryManagerConfiguration(bundleContext));
+                log.info("Loaded {} client library md5s from [ {} ]", md5Index.size(), indexFile);
+            } else {
+                log.warn("Client library md5s are not persisted, as there is no file system support for bundle data");
+            }
+        }
+        final int warmUpThreads = PropertiesUtil.toInteger(props.get(PROP_MD5_WARMUP_THREADS), DEFAULT_MD5_WARMUP_THREADS);
+        if (warmUpThreads > 0) {
+            startWarmUp(warmUpThreads);
+        }
     }
 
     @Deactivate
@@ -177,10 +230,93 @@ public final class VersionedClientlibsTransformerFactory extends AbstractGuavaCa
             filterReg.unregister();;
             filterReg = null;
         }
+        if (warmUpExecutor != null) {
+            warmUpExecutor.shutdownNow();
+            warmUpExecutor = null;
+        }
+        saveMd5Index();
+        this.md5Index = null;
         this.md5Cache = null;
         this.clientLibrariesCache = null;
     }
 
+    /**
+     * Computes the md5 of all client libraries with a bounded number of threads, which are kept to compute the md5 of
+     * changed libraries later on.
+     */
+    private void startWarmUp(final int threads) {
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.MINUTES,
+                new LinkedBlockingQueue<Runnable>(), runnable -> {
+                    final Thread thread = new Thread(runnable, "ACS AEM Commons - Versioned Clientlibs - MD5 warm-up");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+        warmUpExecutor = executor;
+
+        final long start = System.currentTimeMillis();
+        CompletableFuture.supplyAsync(() -> htmlLibraryManager.getLibraries().values(), executor)
+                .thenCompose(libraries -> CompletableFuture.allOf(libraries.stream()
+                        .map(library -> CompletableFuture.runAsync(() -> warmUp(library), executor))
+                        .toArray(CompletableFuture[]::new)))
+                .whenComplete((result, error) -> {
+                    if (error != null) {
+                        log.warn("Could not compute the md5 of all client libraries", error);
+                    } else {
+                        log.info("Computed the md5 of all client libraries in {} ms", System.currentTimeMillis() - start);
+                    }
+                    saveMd5Index();
+                });
+    }
+
+    private void warmUp(final ClientLibrary clientLibrary) {
+        for (final LibraryType type : clientLibrary.getTypes()) {
+            if (type != LibraryType.JS && type != LibraryType.CSS) {
+                continue;
+            }
+            final HtmlLibrary htmlLibrary = htmlLibraryManager.getLibrary(type, clientLibrary.getPath());
+            if (htmlLibrary != null) {
+                try {
+                    getMd5(htmlLibrary);
+                } catch (IOException | ExecutionException | RuntimeException e) {
+                    log.debug("Could not compute the md5 of [ {} ]", clientLibrary.getPath(), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets a digest of the configuration and version of the library manager, which decide how libraries are
+     * processed, and so their md5s.
+     */
+    private String getLibraryManagerConfiguration(final BundleContext bundleContext) {
+        final Map<String, String> configuration = new TreeMap<String, String>();
+        final ServiceReference reference = bundleContext.getServiceReference(HtmlLibraryManager.class.getName());
+        if (reference != null) {
+            for (final String key : reference.getPropertyKeys()) {
+                if (!NON_CONFIGURATION_PROPERTIES.contains(key)) {
+                    configuration.put(key, ArrayUtils.toString(reference.getProperty(key)));
+                }
+            }
+            final Bundle bundle = reference.getBundle();
+            if (bundle != null) {
+                configuration.put(Constants.BUNDLE_VERSION, String.valueOf(bundle.getVersion()));
+            }
+        }
+        return DigestUtils.md5Hex(configuration.toString());
+    }
+
+    private void saveMd5Index() {
+        final ClientLibraryMd5Index index = md5Index;
+        if (index != null) {
+            try {
+                index.save();
+            } catch (IOException e) {
+                log.warn("Could not save the client library md5 index", e);
+            }
+        }
+    }
+
     public Transformer createTransformer() {
         return new VersionableClientlibsTransformer();
     }
@@ -298,10 +434,22 @@ public final class VersionedClientlibsTransformerFactory extends AbstractGuavaCa
     }
 
     private ClientLibrary getClientLibrary(String path) {
-        if (clientLibrariesCache == null) {
-            clientLibrariesCache = Collections.unmodifiableMap(htmlLibraryManager.getLibraries());
+        Map<String, ClientLibrary> libraries = clientLibrariesCache;
+        if (libraries == null) {
+            invalidatedClientLibraries.clear();
+            libraries = new ConcurrentHashMap<String, ClientLibrary>(htmlLibraryManager.getLibraries());
+            clientLibrariesCache = libraries;
+        } else if (invalidatedClientLibraries.remove(path)) {
+            // only the changed library is replaced by its current instance, as its proxy setting and types may have
+            // changed; libraries which appeared are found by refreshing the cache
+            final ClientLibrary clientLibrary = htmlLibraryManager.getLibraries().get(path);
+            if (clientLibrary != null) {
+                libraries.put(path, clientLibrary);
+            } else {
+                libraries.remove(path);
+            }
         }
-        return clientLibrariesCache.get(path);
+        return libraries.get(path);
     }
 
     @Nonnull private String getMd5(@Nonnull final HtmlLibrary htmlLibrary) throws IOException, ExecutionException {
@@ -309,7 +457,16 @@ public final class VersionedClientlibsTransformerFactory extends AbstractGuavaCa
 
             @Override
             public String call() throws Exception {
-                return calculateMd5(htmlLibrary, htmlLibraryManager.isMinifyEnabled());
+                final boolean minified = htmlLibraryManager.isMinifyEnabled();
+                final ClientLibraryMd5Index index = md5Index;
+                String md5 = index == null ? null : index.get(htmlLibrary, minified);
+                if (md5 == null) {
+                    md5 = calculateMd5(htmlLibrary, minified);
+                    if (index != null) {
+                        index.put(htmlLibrary, minified, md5);
+                    }
+                }
+                return md5;
             }
         });
     }
@@ -350,7 +507,29 @@ public final class VersionedClientlibsTransformerFactory extends AbstractGuavaCa
         String path = (String) event.getProperty(SlingConstants.PROPERTY_PATH);
         md5Cache.invalidate(new VersionedClientLibraryMd5CacheKey(path, LibraryType.JS));
         md5Cache.invalidate(new VersionedClientLibraryMd5CacheKey(path, LibraryType.CSS));
-        clientLibrariesCache = null;
+        final ClientLibraryMd5Index index = md5Index;
+        if (index != null) {
+            index.remove(path);
+        }
+        if (path == null) {
+            clientLibrariesCache = null;
+            return;
+        }
+        invalidatedClientLibraries.add(path);
+
+        final ExecutorService executor = warmUpExecutor;
+        if (executor != null) {
+            try {
+                CompletableFuture.runAsync(() -> {
+                    final ClientLibrary clientLibrary = getClientLibrary(path);
+                    if (clientLibrary != null) {
+                        warmUp(clientLibrary);
+                    }
+                }, executor).whenComplete((result, error) -> saveMd5Index());
+            } catch (RejectedExecutionException e) {
+                log.debug("Not computing the md5 of [ {} ], as the component is deactivated", path);
+            }
+        }
     }
 
     @Override
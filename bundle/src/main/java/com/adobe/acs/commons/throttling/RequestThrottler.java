@@ -22,10 +22,17 @@ package com.adobe.acs.commons.throttling;
 import java.io.IOException;
 import java.time.Clock;
 import java.util.Arrays;
+import java.util.Dictionary;
+import java.util.Hashtable;
 import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
+import javax.management.DynamicMBean;
+import javax.management.NotCompliantMBeanException;
+import javax.management.ObjectName;
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
@@ -33,15 +40,22 @@ import javax.servlet.ServletException;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
 
+import org.apache.commons.lang.StringUtils;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.service.component.ComponentConstants;
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.ConfigurationPolicy;
+import org.osgi.service.component.annotations.Deactivate;
 import org.osgi.service.component.annotations.Modified;
 import org.osgi.service.metatype.annotations.AttributeDefinition;
 import org.osgi.service.metatype.annotations.Designate;
 import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.osgi.service.metatype.annotations.Option;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -115,9 +129,27 @@ import org.slf4j.LoggerFactory;
  * used in cases when the client is able to handle this case.</li>
  * <li>Or blocking the request unless it can be handled. This is transparent for
  * the client (the request might time out, though!), but it blocks this requests
- * for the complete time, which might lead to a shortage of threads.</li>
+ * for the complete time, which might lead to a shortage of threads. Blocked
+ * requests are handled in the order they arrived; a request waits at most until
+ * the oldest counted request expires.</li>
  * </ul>
  * 
+ * By default all filtered requests share one budget. With a throttling key
+ * configured, each client IP, user ID, value of a request header or first
+ * capture group of the matching filtered path gets a budget of its own, so a
+ * single crawler cannot use up the budget of all other clients. The CPU load
+ * reduces the budget of all keys alike. Requests without a key share the
+ * common budget. On top, all keyed and unkeyed requests together are limited by
+ * 
+ * <pre>
+ * throttling_key_total_max_requests_per_minute
+ * </pre>
+ * 
+ * , so that the load does not grow with the number of keys.
+ * 
+ * The decisions are logged to the request progress tracker and counted in an
+ * MBean per throttler.
+ * 
  * 
  *
  */
@@ -144,10 +176,47 @@ public class RequestThrottler implements Filter {
         @AttributeDefinition(name = "Filtered paths", description = "The paths (regular expressions) which are considered for this service")
         String[] filtered_paths();
 
+        @AttributeDefinition(name = "Throttling key", description = "Gives each client or path group a budget of its own", options = {
+                @Option(label = "None (one budget for all requests)", value = KEY_NONE),
+                @Option(label = "Client IP", value = KEY_CLIENT_IP),
+                @Option(label = "User ID", value = KEY_USER_ID),
+                @Option(label = "Request header value", value = KEY_HEADER),
+                @Option(label = "First capture group of the matching filtered path", value = KEY_PATH_GROUP) })
+        String throttling_key() default KEY_NONE;
+
+        @AttributeDefinition(name = "Throttling key header", description = "The request header holding the throttling key, if throttling by request header (e.g. X-Forwarded-For); only its first comma separated value is used")
+        String throttling_key_header() default "";
+
+        @AttributeDefinition(name = "Maximum number of throttling keys", description = "The number of throttling keys tracked at most; beyond, the least recently seen keys start over with a full budget")
+        int throttling_key_max_count() default DEFAULT_MAX_KEYS;
+
+        @AttributeDefinition(name = "Maximum number of requests per minute over all throttling keys", description = "The maximum number of requests allowed for all keys together if the CPU usage exceeds the configured value; 0 for " + DEFAULT_TOTAL_FACTOR + " times the maximum number of requests per minute")
+        int throttling_key_total_max_requests_per_minute() default 0;
+
         String webconsole_configurationFactory_nameHint() default "{filtered.paths}";
 
     }
 
+    static final String KEY_NONE = "none";
+    static final String KEY_CLIENT_IP = "client_ip";
+    static final String KEY_USER_ID = "user_id";
+    static final String KEY_HEADER = "header";
+    static final String KEY_PATH_GROUP = "path_group";
+
+    static final int DEFAULT_MAX_KEYS = 10000;
+
+    /**
+     * Unless configured, all keys together get this many times the budget of a single key.
+     */
+    static final int DEFAULT_TOTAL_FACTOR = 10;
+
+    /**
+     * Longer keys are cut, so that clients cannot fill the memory with huge header values.
+     */
+    static final int MAX_KEY_LENGTH = 256;
+
+    private static final String JMX_OBJECTNAME = "com.adobe.acs.commons:type=Request Throttler,name=";
+
     private static final Logger LOG = LoggerFactory.getLogger(RequestThrottler.class);
 
     ThrottlingState state;
@@ -159,9 +228,26 @@ public class RequestThrottler implements Filter {
 
     Clock clock;
 
+    String throttlingKey;
+
+    /**
+     * The states per throttling key, null if all requests share {@link #state}.
+     */
+    KeyedThrottlingState keyedState;
+
+    /**
+     * The budget of all requests together, null if all requests share {@link #state}.
+     */
+    ThrottlingState totalState;
+
+    RequestThrottlerStats stats;
+
+    private ServiceRegistration<?> statsRegistration;
+
     @Activate
     @Modified
-    protected void activate(Config c) {
+    protected void activate(BundleContext bundleContext, Config c, Map<String, Object> properties)
+            throws NotCompliantMBeanException {
         this.config = c;
         ThrottlingConfiguration tc = new ThrottlingConfiguration(c.max_requests_per_minute(),
                 c.start_throttling_percentage());
@@ -169,10 +255,57 @@ public class RequestThrottler implements Filter {
         clock = Clock.systemUTC();
         this.state = new ThrottlingState(clock, loadEstimator);
 
+        throttlingKey = StringUtils.defaultIfBlank(c.throttling_key(), KEY_NONE);
+        if (KEY_NONE.equals(throttlingKey)) {
+            keyedState = null;
+            totalState = null;
+        } else {
+            int maxKeys = c.throttling_key_max_count() > 0 ? c.throttling_key_max_count() : DEFAULT_MAX_KEYS;
+            keyedState = new KeyedThrottlingState(clock, loadEstimator, maxKeys);
+            int totalMax = c.throttling_key_total_max_requests_per_minute() > 0
+                    ? c.throttling_key_total_max_requests_per_minute()
+                    : c.max_requests_per_minute() * DEFAULT_TOTAL_FACTOR;
+            totalState = new ThrottlingState(clock,
+                    new CpuLoadEstimator(new ThrottlingConfiguration(totalMax, c.start_throttling_percentage())));
+        }
+
         // precompile all patterns
         filteredPaths = Arrays.asList(config.filtered_paths()).stream().map(s -> Pattern.compile(s))
                 .collect(Collectors.toList());
 
+        registerStats(bundleContext, getServiceId(properties));
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        unregisterStats();
+    }
+
+    /**
+     * The filtered paths of two factory configurations can be the same, so the PID tells their MBeans apart.
+     */
+    private static String getServiceId(Map<String, Object> properties) {
+        Object pid = properties == null ? null : properties.get(Constants.SERVICE_PID);
+        if (pid == null && properties != null) {
+            pid = properties.get(ComponentConstants.COMPONENT_ID);
+        }
+        return String.valueOf(pid);
+    }
+
+    private void registerStats(BundleContext bundleContext, String serviceId) throws NotCompliantMBeanException {
+        unregisterStats();
+        stats = new RequestThrottlerStats(loadEstimator, keyedState);
+        Dictionary<String, Object> serviceProps = new Hashtable<>();
+        serviceProps.put("jmx.objectname", JMX_OBJECTNAME + ObjectName.quote(String.join(",", config.filtered_paths()))
+                + ",pid=" + ObjectName.quote(serviceId));
+        statsRegistration = bundleContext.registerService(DynamicMBean.class.getName(), stats, serviceProps);
+    }
+
+    private void unregisterStats() {
+        if (statsRegistration != null) {
+            statsRegistration.unregister();
+            statsRegistration = null;
+        }
     }
 
     @Override
@@ -192,26 +325,93 @@ public class RequestThrottler implements Filter {
 
     protected void doFilterInternal(SlingHttpServletRequest req, SlingHttpServletResponse res) throws IOException {
 
-        ThrottlingDecision decision = state.evaluateThrottling();
-        if (decision.getState().equals(ThrottlingDecision.State.THROTTLE)) {
+        String key = getThrottlingKey(req);
+        ThrottlingState keyState = key == null ? state : keyedState.get(key);
+        String forKey = key == null ? "" : " for key " + key;
+
+        // the key first, so that a single key which exceeds its budget does not use up the total budget
+        ThrottlingDecision keyDecision = keyState.evaluateThrottling();
+        boolean throttled = throttle(req, res, keyState, keyDecision, forKey);
+        if (totalState != null && !(throttled && config.reject_on_throttle())) {
+            boolean totalThrottled = throttle(req, res, totalState, totalState.evaluateThrottling(), " for all keys");
+            if (totalThrottled && config.reject_on_throttle()) {
+                // rejected requests must not use up the budget of their key
+                keyState.release(keyDecision);
+            }
+            throttled |= totalThrottled;
+        }
+
+        if (throttled) {
+            stats.throttled(config.reject_on_throttle());
+        } else {
+            stats.passed();
+            req.getRequestProgressTracker().log("Request not throttled" + forKey);
+        }
+    }
 
-            if (this.config.reject_on_throttle()) {
-                String msg = "Request rejected because of throttling: " + decision.message;
-                req.getRequestProgressTracker().log(msg);
-                LOG.info(msg);
-                res.sendError(config.http_status_on_reject(), decision.message);
-            } else {
-                String msg = "Throttling request (" + decision.message + ")";
-                req.getRequestProgressTracker().log(msg);
-                LOG.info(msg);
-                delay(decision.delay);
+    /**
+     * Rejects or delays the request if the decision of the given state requires throttling.
+     *
+     * @return true if the request has been throttled
+     */
+    private boolean throttle(SlingHttpServletRequest req, SlingHttpServletResponse res, ThrottlingState throttlingState,
+            ThrottlingDecision decision, String forKey) throws IOException {
+        if (!decision.getState().equals(ThrottlingDecision.State.THROTTLE)) {
+            return false;
+        }
 
+        if (this.config.reject_on_throttle()) {
+            String msg = "Request rejected because of throttling" + forKey + ": " + decision.message;
+            req.getRequestProgressTracker().log(msg);
+            LOG.info(msg);
+            res.sendError(config.http_status_on_reject(), decision.message);
+        } else {
+            String msg = "Throttling request" + forKey + " (" + decision.message + ")";
+            req.getRequestProgressTracker().log(msg);
+            LOG.info(msg);
+            if (!delay(throttlingState, decision.delay)) {
+                req.getRequestProgressTracker().log("Throttling delay passed, request not counted");
             }
+        }
+        return true;
+    }
 
-        } else {
-            // not throttled
-            req.getRequestProgressTracker().log("Request not throttled");
+    /**
+     * Determines the throttling key of a request.
+     *
+     * @param req the request
+     * @return the key, or null if all requests are throttled together or the
+     *         request does not have a key
+     */
+    protected String getThrottlingKey(SlingHttpServletRequest req) {
+        String key;
+        switch (throttlingKey) {
+        case KEY_CLIENT_IP:
+            key = req.getRemoteAddr();
+            break;
+        case KEY_USER_ID:
+            key = req.getResourceResolver().getUserID();
+            break;
+        case KEY_HEADER:
+            key = StringUtils.trim(StringUtils.substringBefore(req.getHeader(config.throttling_key_header()), ","));
+            break;
+        case KEY_PATH_GROUP:
+            key = getPathGroup(req.getResource().getPath());
+            break;
+        default:
+            return null;
+        }
+        return StringUtils.isEmpty(key) ? null : StringUtils.left(key, MAX_KEY_LENGTH);
+    }
+
+    private String getPathGroup(String path) {
+        for (Pattern p : filteredPaths) {
+            Matcher m = p.matcher(path);
+            if (m.matches() && m.groupCount() > 0) {
+                return m.group(1);
+            }
         }
+        return null;
     }
 
     protected boolean needsFiltering(String path) {
@@ -220,12 +420,15 @@ public class RequestThrottler implements Filter {
 
     }
 
-    protected void delay(long ms) {
-        try {
-            Thread.sleep(ms);
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-        }
+    /**
+     * Blocks until the request can pass, but at most for the given time.
+     *
+     * @param keyState the state the request is throttled by
+     * @param ms the maximum delay
+     * @return true if the request has been counted as passed
+     */
+    protected boolean delay(ThrottlingState keyState, long ms) {
+        return keyState.await(ms);
     }
 
     // obsolete stuff
@@ -0,0 +1,53 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2015 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.throttling;
+
+import javax.management.openmbean.OpenDataException;
+import javax.management.openmbean.TabularData;
+
+import com.adobe.granite.jmx.annotation.Description;
+
+/**
+ * JMX MBean for a request throttler.
+ */
+@Description("ACS AEM Commons - Request Throttler")
+public interface RequestThrottlerMBean {
+
+    @Description("Number of filtered requests which passed without throttling")
+    long getPassedRequestCount();
+
+    @Description("Number of filtered requests which were throttled (rejected or delayed)")
+    long getThrottledRequestCount();
+
+    @Description("Number of filtered requests which were rejected")
+    long getRejectedRequestCount();
+
+    @Description("Number of requests per minute currently permitted by the CPU load, for each throttling key")
+    int getMaxRequestsPerMinute();
+
+    @Description("Number of throttling keys currently tracked")
+    long getKeyCount();
+
+    @Description("The throttling keys with the most throttled requests")
+    TabularData getMostThrottledKeys() throws OpenDataException;
+
+    @Description("Reset the request statistics to 0")
+    void resetStatistics();
+}
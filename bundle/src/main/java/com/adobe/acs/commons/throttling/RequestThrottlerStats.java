@@ -0,0 +1,143 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2015 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.throttling;
+
+import java.util.AbstractMap;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+import javax.management.NotCompliantMBeanException;
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenDataException;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
+import javax.management.openmbean.TabularData;
+import javax.management.openmbean.TabularDataSupport;
+import javax.management.openmbean.TabularType;
+
+import com.adobe.granite.jmx.annotation.AnnotatedStandardMBean;
+
+/**
+ * Counts the throttling decisions of a {@link RequestThrottler} and exposes them via JMX.
+ */
+class RequestThrottlerStats extends AnnotatedStandardMBean implements RequestThrottlerMBean {
+
+    private static final int MOST_THROTTLED_KEYS = 25;
+
+    private static final String JMX_PN_KEY = "Key";
+    private static final String JMX_PN_REQUESTS = "Requests in last minute";
+    private static final String JMX_PN_THROTTLED = "Throttled requests";
+
+    private final LongAdder passed = new LongAdder();
+    private final LongAdder throttled = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    private final LoadEstimator loadEstimator;
+
+    /**
+     * The states per key, null if the throttler does not throttle by key.
+     */
+    private final KeyedThrottlingState keyedState;
+
+    RequestThrottlerStats(LoadEstimator le, KeyedThrottlingState keyedState) throws NotCompliantMBeanException {
+        super(RequestThrottlerMBean.class);
+        this.loadEstimator = le;
+        this.keyedState = keyedState;
+    }
+
+    void passed() {
+        passed.increment();
+    }
+
+    void throttled(boolean reject) {
+        throttled.increment();
+        if (reject) {
+            rejected.increment();
+        }
+    }
+
+    @Override
+    public long getPassedRequestCount() {
+        return passed.sum();
+    }
+
+    @Override
+    public long getThrottledRequestCount() {
+        return throttled.sum();
+    }
+
+    @Override
+    public long getRejectedRequestCount() {
+        return rejected.sum();
+    }
+
+    @Override
+    public int getMaxRequestsPerMinute() {
+        return loadEstimator.getMaxRequestPerMinute();
+    }
+
+    @Override
+    public long getKeyCount() {
+        return keyedState == null ? 0 : keyedState.size();
+    }
+
+    @Override
+    public TabularData getMostThrottledKeys() throws OpenDataException {
+        final CompositeType keyType = new CompositeType(JMX_PN_KEY, JMX_PN_KEY,
+                new String[] { JMX_PN_KEY, JMX_PN_REQUESTS, JMX_PN_THROTTLED },
+                new String[] { JMX_PN_KEY, JMX_PN_REQUESTS, JMX_PN_THROTTLED },
+                new OpenType[] { SimpleType.STRING, SimpleType.LONG, SimpleType.LONG });
+        final TabularDataSupport tabularData = new TabularDataSupport(
+                new TabularType("Throttling Keys", "Throttling Keys", keyType, new String[] { JMX_PN_KEY }));
+        if (keyedState == null) {
+            return tabularData;
+        }
+
+        // sort by a snapshot of the counts, they keep changing while sorting
+        final Map<String, ThrottlingState> states = new HashMap<>(keyedState.asMap());
+        List<Map.Entry<String, Long>> mostThrottled = states.entrySet().stream()
+                .map(e -> new AbstractMap.SimpleImmutableEntry<>(e.getKey(), e.getValue().getThrottledCount()))
+                .filter(e -> e.getValue() > 0)
+                .sorted(Map.Entry.<String, Long>comparingByValue(Comparator.reverseOrder()))
+                .limit(MOST_THROTTLED_KEYS)
+                .collect(Collectors.toList());
+        for (Map.Entry<String, Long> entry : mostThrottled) {
+            final Map<String, Object> data = new HashMap<>();
+            data.put(JMX_PN_KEY, entry.getKey());
+            data.put(JMX_PN_REQUESTS, states.get(entry.getKey()).getRequestCount());
+            data.put(JMX_PN_THROTTLED, entry.getValue());
+            tabularData.put(new CompositeDataSupport(keyType, data));
+        }
+        return tabularData;
+    }
+
+    @Override
+    public void resetStatistics() {
+        passed.reset();
+        throttled.reset();
+        rejected.reset();
+    }
+
+}
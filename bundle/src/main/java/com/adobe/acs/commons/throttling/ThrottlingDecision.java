@@ -25,6 +25,11 @@ public class ThrottlingDecision {
     protected long delay;
     String message;
 
+    /**
+     * The timestamp the request has been counted at, -1 if it has not been counted.
+     */
+    long passed = -1;
+
     public ThrottlingDecision(State s) {
         this.state = s;
     }
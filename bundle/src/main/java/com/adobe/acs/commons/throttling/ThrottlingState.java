@@ -20,11 +20,12 @@
 package com.adobe.acs.commons.throttling;
 
 import java.time.Clock;
-import java.time.Instant;
-import java.util.concurrent.atomic.AtomicInteger;
-
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 
 /*
  * This class does the decision if a requests needs to be throttled or not, and holds all
@@ -32,168 +33,288 @@ import org.slf4j.LoggerFactory;
  * 
  * The basic unit is "requests per minute".
  * 
- * Internally it holds an array of "slots", and the value in the slot designates when the
- * next request can be scheduled. The size of the array is determined dynamically by the
- * LoadEstimator, the adjustment is made on every request evaluated by this class.
+ * Internally it counts the passed requests in a ring of one-second buckets, which together
+ * form a sliding window of one minute. A request passes if the buckets within the window hold
+ * less requests than the LoadEstimator currently permits; as the window does not depend on that
+ * number, nothing needs to be resized when the load changes.
  * 
+ * No lock is involved: a request is counted by a compare-and-set on the bucket of the current
+ * second, which also checks the limit, and the other buckets are only read. Throttled requests
+ * do not write at all. By default each bucket lives on a cache line of its own, so threads counting
+ * in the current bucket do not slow down threads reading the others.
  * 
  * It works best if the LoadEstimator returns streamlined values which do not jump too much, otherwise
  * you might get a stop-and-go behavior.
  * 
- * 
- * 
  */
 public class ThrottlingState {
 
-    private static final Logger LOG = LoggerFactory.getLogger(ThrottlingState.class);
+    private static final long ONE_MINUTE = 1000 * 60;
+
+    private static final long BUCKET_MILLIS = 1000;
 
     /**
-     * This array holds the timestamps when requests have reached the system; in
-     * case the timestamp has already expired, Instant.EPOCH is stored. Access
-     * to this array should be guarded by the lock.
+     * Number of buckets, a power of 2 spanning more than a minute: a bucket is reused only after all
+     * requests counted in it have expired.
      */
-    protected Instant[] timestamps;
+    private static final int BUCKETS = 64;
 
     /**
-     * The clock to get the current timestamps from.
+     * Number of longs per bucket, so that each bucket has a cache line of its own.
      */
-    private Clock clock;
+    private static final int PADDED_STRIDE = 8;
 
-    protected LoadEstimator loadEstimator;
+    private static final int COUNT = 0;
+    private static final int LATEST = 1;
 
-    private static final long ONE_MINUTE = 1000 * 60;
+    private static final long COUNT_MASK = 0xFFFFFFFFL;
 
-    protected AtomicInteger currentIndex = new AtomicInteger();
+    /**
+     * Per bucket: the second of the bucket (upper 32 bits) and the number of requests passed in it
+     * (lower 32 bits) at <code>COUNT</code>, and the timestamp of the latest request passed in it at
+     * <code>LATEST</code>. A bucket expires with its latest request.
+     */
+    private final AtomicLongArray buckets;
 
-    protected ThrottlingState(Clock clock, LoadEstimator le) {
-        int queueLen = le.getMaxRequestPerMinute();
-        this.clock = clock;
-        this.loadEstimator = le;
-        timestamps = new Instant[queueLen];
-        for (int i = 0; i < queueLen; i++) {
-            timestamps[i] = Instant.EPOCH;
-        }
-        currentIndex.set(0);
-    }
+    /**
+     * Number of longs per bucket.
+     */
+    private final int stride;
 
     /**
-     * @return
+     * The threads blocked by {@link #await(long)}, in order of arrival.
      */
-    protected synchronized ThrottlingDecision evaluateThrottling() {
+    private final Queue<Thread> waiters = new ConcurrentLinkedQueue<>();
 
-        ThrottlingDecision result = null;
-        purgeExpiredEntries();
-        resize(loadEstimator.getMaxRequestPerMinute());
+    private final LongAdder throttled = new LongAdder();
 
-        int idx = currentIndex.get();
-        if (isSlotEmpty(idx)) {
-            // 1 minute already passed, reuse that slot
+    /**
+     * The clock to get the current timestamps from.
+     */
+    private Clock clock;
 
-            timestamps[idx] = clock.instant();
-            currentIndex.updateAndGet(index -> (index == this.timestamps.length - 1) ? 0 : index+1);
-            result = new ThrottlingDecision(ThrottlingDecision.State.NOTHROTTLE);
+    protected LoadEstimator loadEstimator;
 
-        } else {
-            // time has not yet passed, we need some throttling
+    protected ThrottlingState(Clock clock, LoadEstimator le) {
+        this(clock, le, true);
+    }
 
-            long diff = timestamps[idx].toEpochMilli() + ONE_MINUTE - clock.instant().toEpochMilli();
-            result = new ThrottlingDecision(ThrottlingDecision.State.THROTTLE).withDelay(diff)
-                    .withMessage("throttling required (at least " + diff + " ms)");
+    /**
+     * @param clock the clock
+     * @param le the estimator of the permitted requests per minute
+     * @param padded true to give each bucket a cache line of its own, for states used by many threads at
+     *        once; otherwise the state takes 1 KB instead of 4 KB
+     */
+    protected ThrottlingState(Clock clock, LoadEstimator le, boolean padded) {
+        this.clock = clock;
+        this.loadEstimator = le;
+        this.stride = padded ? PADDED_STRIDE : LATEST + 1;
+        this.buckets = new AtomicLongArray(BUCKETS * stride);
+    }
 
+    /**
+     * Decides if a request can pass, and counts it if so. Requests do not overtake requests which are
+     * already waiting in {@link #await(long)}.
+     * 
+     * @return the decision
+     */
+    protected ThrottlingDecision evaluateThrottling() {
+        long now = now();
+        if (waiters.isEmpty() && tryPass(now)) {
+            ThrottlingDecision decision = new ThrottlingDecision(ThrottlingDecision.State.NOTHROTTLE);
+            decision.passed = now;
+            return decision;
         }
-        return result;
 
+        // time has not yet passed, we need some throttling
+        throttled.increment();
+        long diff = getDelay(now);
+        return new ThrottlingDecision(ThrottlingDecision.State.THROTTLE).withDelay(diff)
+                .withMessage("throttling required (at least " + diff + " ms)");
     }
 
     /**
-     * cleanup the timestamps array and replace all expired entries with
-     * Instant.EPOCH;
-     *
-     * @return the number of emptied slots
+     * Takes back a request counted by {@link #evaluateThrottling()}, for a request which did not pass after all.
+     * A request counted in a bucket which has been reused since is not taken back.
+     * 
+     * @param decision the decision which let the request pass
      */
-    private int purgeExpiredEntries() {
-        int result = 0;
-
-        // the array is expected to be small; therefor we can iterate through all
-        // entries without a huge performance impact (although it would be possible
-        // to reduce the number of array accesses by a more efficient and complex
-        // algorithm
-        for (int i = 0; i < timestamps.length; i++) {
-            long now = clock.instant().toEpochMilli();
-            if (now - timestamps[i].toEpochMilli() > ONE_MINUTE) {
-                timestamps[i] = Instant.EPOCH;
-                result++;
+    protected void release(ThrottlingDecision decision) {
+        if (decision.passed < 0) {
+            return;
+        }
+        long second = decision.passed / BUCKET_MILLIS;
+        int index = (int) (second & (BUCKETS - 1));
+        while (true) {
+            long bucket = buckets.get(index * stride + COUNT);
+            long count = bucket & COUNT_MASK;
+            if (bucket >>> 32 != second || count == 0) {
+                return;
+            }
+            if (buckets.compareAndSet(index * stride + COUNT, bucket, bucket - 1)) {
+                return;
             }
         }
-        return result;
     }
 
     /**
-     * resize the queue
-     *
-     * @param newSize new size of queue
-     * @return the number of free entries in the array
+     * Blocks the calling thread until a request can pass, and counts it. Blocked threads are parked in
+     * order of arrival; only the first one checks whether a request can pass, and it hands over to the
+     * next one when it leaves.
+     * 
+     * @param maxWait the maximum time to wait in ms
+     * @return true if the request was counted, false if the time was over or the thread was
+     *         interrupted before
      */
-    protected int resize(int newSize) {
-
-        if (newSize != timestamps.length) {
-
-            LOG.debug("Resizing throttling queue from {} to {}", timestamps.length, newSize);
-            Instant[] newQueue = new Instant[newSize];
-            int result = 0;
-
-            if (timestamps.length - newSize > 0) { // queue got smaller
-                result = reduceSize(newQueue);
-
-            } else { // queue got larger, just resize the timestamps array and ignore the purge till
-                // next cycle
-                result = increaseSize(newQueue);
+    protected boolean await(long maxWait) {
+        final Thread current = Thread.currentThread();
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWait);
+        waiters.add(current);
+        try {
+            while (true) {
+                final boolean first = waiters.peek() == current;
+                if (first && tryPass(now())) {
+                    return true;
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0 || current.isInterrupted()) {
+                    return false;
+                }
+                if (first) {
+                    // at least 1ms, the delay is 0 while the oldest bucket is about to expire
+                    remaining = Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(Math.max(getDelay(now()), 1)));
+                }
+                LockSupport.parkNanos(this, remaining);
             }
+        } finally {
+            waiters.remove(current);
+            Thread next = waiters.peek();
+            if (next != null) {
+                LockSupport.unpark(next);
+            }
+        }
+    }
 
-            timestamps = newQueue;
+    /**
+     * @return the number of requests passed within the last minute
+     */
+    protected long getRequestCount() {
+        long now = now();
+        long second = now / BUCKET_MILLIS;
+        long result = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            long bucket = buckets.get(i * stride + COUNT);
+            if (isAlive(i, bucket, second, now)) {
+                result += bucket & COUNT_MASK;
+            }
+        }
+        return result;
+    }
 
-            return result;
+    /**
+     * @return the number of requests throttled by {@link #evaluateThrottling()} so far
+     */
+    protected long getThrottledCount() {
+        return throttled.sum();
+    }
 
-        } else {
-            // Do not resize
-            LOG.debug("No resizing required");
+    /**
+     * @return the number of threads blocked in {@link #await(long)}
+     */
+    protected int getWaiting() {
+        return waiters.size();
+    }
 
+    /**
+     * Counts a request in the bucket of the current second, if the limit permits.
+     */
+    private boolean tryPass(long now) {
+        long limit = loadEstimator.getMaxRequestPerMinute();
+        if (limit <= 0) {
+            return false;
+        }
+        long second = now / BUCKET_MILLIS;
+        int index = (int) (second & (BUCKETS - 1));
+        while (true) {
+            long bucket = buckets.get(index * stride + COUNT);
+            long bucketSecond = bucket >>> 32;
+            long count;
+            if (bucketSecond >= second) {
+                // the current bucket; or the clock read by this thread is already behind
+                second = bucketSecond;
+                count = bucket & COUNT_MASK;
+            } else {
+                // a bucket of an expired second, start it over
+                count = 0;
+            }
+            if (count + countOthers(index, second, now) >= limit || count == COUNT_MASK) {
+                return false;
+            }
+            if (buckets.compareAndSet(index * stride + COUNT, bucket, (second << 32) | (count + 1))) {
+                // the bucket only moves forward, so the maximum is the latest request
+                long latest;
+                do {
+                    latest = buckets.get(index * stride + LATEST);
+                } while (latest < now && !buckets.compareAndSet(index * stride + LATEST, latest, now));
+                return true;
+            }
         }
-
-        return 0;
     }
 
-    private int increaseSize(Instant[] newQueue) {
-        // copy all data and fill the rest with default value
-        for (int i = 0; i < timestamps.length; i++) {
-            newQueue[i] = timestamps[i];
-        }
-        for (int i = timestamps.length; i < newQueue.length; i++) {
-            newQueue[i] = Instant.EPOCH;
+    /**
+     * Sums up the requests of all alive buckets except the one of the current second. Those buckets
+     * only change by expiring, so the sum cannot get too small.
+     */
+    private long countOthers(int index, long second, long now) {
+        long result = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            if (i != index) {
+                long bucket = buckets.get(i * stride + COUNT);
+                if (isAlive(i, bucket, second, now)) {
+                    result += bucket & COUNT_MASK;
+                }
+            }
         }
-        // we just got some free slots, so let's put currentIndex there
-        currentIndex.set(timestamps.length);
-        return newQueue.length - timestamps.length; // we have some free slots now        
+        return result;
     }
 
-    private int reduceSize(Instant[] newQueue) {
-        int newIndex = 0;
-        // step 1: first copy all entries with a smaller index than currentIndex
-        for (int i = currentIndex.get() - 1; i >= 0 && newIndex < newQueue.length; i--, newIndex++) {
-            newQueue[newIndex] = timestamps[i];
+    /**
+     * @return the time in ms until the oldest alive bucket expires
+     */
+    private long getDelay(long now) {
+        long second = now / BUCKET_MILLIS;
+        long oldest = Long.MAX_VALUE;
+        for (int i = 0; i < BUCKETS; i++) {
+            long bucket = buckets.get(i * stride + COUNT);
+            if (isAlive(i, bucket, second, now)) {
+                oldest = Math.min(oldest, getLatest(i, bucket));
+            }
         }
-        // step 2: and then copy from the highest index down to currentIndex
-        for (int i = timestamps.length - 1; i > currentIndex.get() && newIndex < newQueue.length; i--, newIndex++) {
-            newQueue[newIndex] = timestamps[i];
+        if (oldest == Long.MAX_VALUE) {
+            // nothing will expire (the load does not permit any request), check again later
+            return BUCKET_MILLIS;
         }
-        // step 3: reset currentIndex, as we start again from 0
-        currentIndex.set(0);
+        return Math.max(oldest + ONE_MINUTE - now, 0);
+    }
 
-        return 0; // no free slot
+    private boolean isAlive(int index, long bucket, long second, long now) {
+        long count = bucket & COUNT_MASK;
+        long bucketSecond = bucket >>> 32;
+        return count > 0 && second - bucketSecond < BUCKETS && now - getLatest(index, bucket) <= ONE_MINUTE;
+    }
+
+    /**
+     * The timestamp of the latest request in the bucket. It is written right after the count, so until
+     * then the end of the bucket's second is assumed.
+     */
+    private long getLatest(int index, long bucket) {
+        long bucketSecond = bucket >>> 32;
+        long latest = buckets.get(index * stride + LATEST);
+        return latest / BUCKET_MILLIS == bucketSecond ? latest : (bucketSecond + 1) * BUCKET_MILLIS - 1;
     }
 
-    private boolean isSlotEmpty(int index) {
-        return (timestamps[index] == Instant.EPOCH);
+    private long now() {
+        return clock.instant().toEpochMilli();
     }
 
 }
@@ -29,6 +29,8 @@ import java.util.Date;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import org.apache.poi.ss.usermodel.CellStyle;
 import org.apache.poi.xssf.usermodel.XSSFCell;
 import org.apache.poi.xssf.usermodel.XSSFRow;
@@ -261,6 +263,78 @@ public class SpreadsheetTest {
         assertEquals("test:camelcase", spreadsheet.convertHeaderName("test:camelCase"));
     }
 
+    @Test
+    public void testStreamDataRows() throws IOException {
+        Spreadsheet instance = new Spreadsheet(true, new ByteArrayInputStream(workbookData.toByteArray()));
+        List<Map<String, CompositeVariant>> result;
+        try (Stream<Map<String, CompositeVariant>> rows = instance.streamDataRows()) {
+            result = rows.collect(Collectors.toList());
+        }
+        assertEquals(5, instance.getRowCount());
+        assertEquals(Arrays.asList("path", "title", "someothercol", "int-val", "string-list1", "string-list2",
+                "double-val", "array", "array", "array", "date-val"), instance.getHeaderRow());
+        assertEquals(5, result.size());
+        assertEquals("/test/a1", result.get(0).get("path").toPropertyValue());
+        assertEquals("/test/a3/a3a", result.get(3).get("path").toString());
+        assertEquals(4L, (long) instance.getRowNum(result.get(3)));
+
+        Map<String, CompositeVariant> values = result.get(4);
+        assertEquals((Integer) 12345, values.get("int-val").toPropertyValue());
+        assertArrayEquals(new String[]{"one", "two", "three"}, (Object[]) values.get("string-list1").toPropertyValue());
+        assertArrayEquals(new String[]{"four", "five", "six"}, (Object[]) values.get("string-list2").toPropertyValue());
+        assertArrayEquals(new String[]{"One Value", "Another Value"}, (Object[]) values.get("array").toPropertyValue());
+        assertEquals(12.345, (Double) values.get("double-val").toPropertyValue(), 0.000001);
+        assertEquals(testDate, values.get("date-val").toPropertyValue());
+    }
+
+    @Test
+    public void testStreamDataRowsInfersColumnTypes() throws IOException {
+        XSSFWorkbook workbook = new XSSFWorkbook();
+        XSSFSheet sheet = workbook.createSheet("sheet 1");
+        createRow(sheet, "path", "number", "text");
+        XSSFRow row = createRow(sheet, "/test/a1");
+        row.createCell(1).setCellValue(1);
+        row.createCell(2).setCellValue(2);
+        row = createRow(sheet, "/test/a2", null, "two");
+        row.createCell(1).setCellValue(2.5);
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        workbook.write(data);
+
+        Spreadsheet instance = new Spreadsheet(new ByteArrayInputStream(data.toByteArray()), "path");
+        List<Map<String, CompositeVariant>> result;
+        try (Stream<Map<String, CompositeVariant>> rows = instance.streamDataRows(Locale.US)) {
+            result = rows.collect(Collectors.toList());
+        }
+        assertEquals(2, result.size());
+        assertEquals(1.0, result.get(0).get("number").toPropertyValue());
+        assertEquals(2.5, result.get(1).get("number").toPropertyValue());
+        assertEquals("2", result.get(0).get("text").toPropertyValue());
+        assertEquals("two", result.get(1).get("text").toPropertyValue());
+    }
+
+    @Test
+    public void testStreamDataRowsWidensInferredTypes() throws IOException {
+        XSSFWorkbook workbook = new XSSFWorkbook();
+        XSSFSheet sheet = workbook.createSheet("sheet 1");
+        createRow(sheet, "path", "number");
+        for (int i = 0; i < Spreadsheet.TYPE_SAMPLE_SIZE; i++) {
+            createRow(sheet, "/test/a" + i).createCell(1).setCellValue(i);
+        }
+        createRow(sheet, "/test/decimal").createCell(1).setCellValue(2.5);
+        createRow(sheet, "/test/text", "n/a");
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        workbook.write(data);
+
+        Spreadsheet instance = new Spreadsheet(new ByteArrayInputStream(data.toByteArray()), "path");
+        List<Map<String, CompositeVariant>> result;
+        try (Stream<Map<String, CompositeVariant>> rows = instance.streamDataRows(Locale.US)) {
+            result = rows.collect(Collectors.toList());
+        }
+        assertEquals(Spreadsheet.TYPE_SAMPLE_SIZE + 2, result.size());
+        assertEquals(2.5, result.get(Spreadsheet.TYPE_SAMPLE_SIZE).get("number").toPropertyValue());
+        assertEquals("n/a", result.get(Spreadsheet.TYPE_SAMPLE_SIZE + 1).get("number").toPropertyValue());
+    }
+
     private static XSSFRow createRow(XSSFSheet sheet, String... values) {
         int rowNum = sheet.getPhysicalNumberOfRows();
         XSSFRow row = sheet.createRow(rowNum);
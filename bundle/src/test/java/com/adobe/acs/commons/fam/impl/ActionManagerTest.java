@@ -21,19 +21,33 @@ package com.adobe.acs.commons.fam.impl;
 
 import com.adobe.acs.commons.fam.ActionManager;
 import com.adobe.acs.commons.fam.CancelHandler;
+import com.adobe.acs.commons.fam.Checkpoint;
 import com.adobe.acs.commons.fam.ThrottledTaskRunner;
 import com.adobe.acs.commons.mcp.form.AbstractResourceImpl;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Workspace;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryManager;
+import javax.jcr.query.QueryResult;
+import javax.management.openmbean.CompositeData;
+import org.apache.jackrabbit.commons.iterator.NodeIteratorAdapter;
 import org.apache.sling.api.resource.LoginException;
 import org.apache.sling.api.resource.PersistenceException;
 import org.apache.sling.api.resource.Resource;
@@ -154,6 +168,25 @@ public class ActionManagerTest {
         assertTrue(manager.isComplete());
     }
 
+    @Test
+    public void latencyStatisticsTest() throws LoginException, Exception {
+        ActionManager manager = getActionManager();
+        for (int i = 0; i < 3; i++) {
+            manager.deferredWithResolver(resolver -> Thread.sleep(20));
+        }
+
+        List<CompositeData> statistics = manager.getLatencyStatistics();
+        assertEquals(3, statistics.size());
+        for (CompositeData row : statistics) {
+            assertEquals("test", row.get("_taskName"));
+            assertEquals(3L, row.get("count"));
+        }
+        CompositeData execution = statistics.get(1);
+        assertEquals("Execution time", execution.get("attribute"));
+        assertTrue((Long) execution.get("p50") >= 20);
+        assertTrue((Long) statistics.get(2).get("p99") >= (Long) execution.get("p99"));
+    }
+
     @Test
     public void deferredStatsCounterErrorTest() throws LoginException, Exception {
         final ResourceResolver rr = getMockResolver();
@@ -242,4 +275,142 @@ public class ActionManagerTest {
       inOrder.verify(rr, times(2)).close();   // We expect one call for the one background resolver opened, and one for the base resolver.
       inOrder.verifyNoMoreInteractions();
     }
+
+    @Test
+    public void streamedQueryResultsTest() throws Exception {
+        final ResourceResolver rr = getFreshMockResolver();
+        mockQueryResults(rr, 25);
+        ActionManager manager = new ActionManagerImpl("test", getTaskRunner(), rr, 100);
+
+        List<String> processed = Collections.synchronizedList(new ArrayList<>());
+        int added = manager.withStreamedQueryResults("query", "JCR-SQL2", 10, (resolver, path) -> processed.add(path),
+                (resolver, path) -> !path.endsWith("/3"));
+
+        assertEquals(25, added);
+        assertEquals(24, processed.size());
+        assertEquals(25, manager.getAddedCount());
+        assertEquals(25, manager.getSuccessCount());
+        assertEquals(0, manager.getRemainingCount());
+        assertTrue(manager.isComplete());
+        // One save per batch
+        verify(rr, atLeast(3)).commit();
+    }
+
+    @Test
+    public void streamedQueryResultsErrorTest() throws Exception {
+        final ResourceResolver rr = getFreshMockResolver();
+        mockQueryResults(rr, 5);
+        ActionManager manager = new ActionManagerImpl("test", getTaskRunner(), rr, 100);
+
+        manager.withStreamedQueryResults("query", "JCR-SQL2", 2, (resolver, path) -> {
+            if (path.endsWith("/2")) {
+                throw new Exception("Bad things");
+            }
+        });
+
+        assertEquals(5, manager.getAddedCount());
+        assertEquals(4, manager.getSuccessCount());
+        assertEquals(1, manager.getErrorCount());
+        assertEquals("/content/item/2", manager.getFailureList().get(0).getNodePath());
+        assertTrue(manager.isComplete());
+    }
+
+    @Test
+    public void streamedQueryResultsBackpressureTest() throws Exception {
+        final ResourceResolver rr = getFreshMockResolver();
+        mockQueryResults(rr, 1000);
+
+        Queue<Runnable> taskQueue = new LinkedList<>();
+        ThrottledTaskRunner runner = mock(ThrottledTaskRunner.class);
+        when(runner.getMaxThreads()).thenReturn(1);
+        doAnswer(i -> taskQueue.add(i.getArgumentAt(0, Runnable.class)))
+                .when(runner).scheduleWork(any(Runnable.class), any(CancelHandler.class), anyInt());
+        doAnswer(i -> taskQueue.add(i.getArgumentAt(0, Runnable.class)))
+                .when(runner).scheduleWork(any(Runnable.class), anyInt());
+
+        ActionManager manager = new ActionManagerImpl("test", runner, rr, 100);
+        int added = manager.withStreamedQueryResults("query", "JCR-SQL2", 10, (resolver, path) -> { });
+
+        // Reading stops at the high water mark...
+        assertEquals(ActionManagerImpl.STREAMING_HIGH_WATER_MARK * 10, added);
+        assertEquals(ActionManagerImpl.STREAMING_HIGH_WATER_MARK, taskQueue.size());
+
+        // ...and resumes once the queue is down to the low water mark
+        for (int i = ActionManagerImpl.STREAMING_HIGH_WATER_MARK; i > ActionManagerImpl.STREAMING_LOW_WATER_MARK; i--) {
+            taskQueue.remove().run();
+        }
+        assertEquals(ActionManagerImpl.STREAMING_HIGH_WATER_MARK, taskQueue.size());
+        assertFalse(manager.isComplete());
+
+        while (!taskQueue.isEmpty()) {
+            assertTrue(taskQueue.size() <= ActionManagerImpl.STREAMING_HIGH_WATER_MARK + 1);
+            taskQueue.remove().run();
+        }
+        assertEquals(1000, manager.getAddedCount());
+        assertEquals(1000, manager.getSuccessCount());
+        assertTrue(manager.isComplete());
+    }
+
+    @Test
+    public void checkpointTest() throws Exception {
+        final ResourceResolver rr = getFreshMockResolver();
+        mockQueryResults(rr, 5);
+        Set<String> completed = ConcurrentHashMap.newKeySet();
+        completed.add("/content/item/1");
+        ActionManager manager = new ActionManagerImpl("test", getTaskRunner(), rr, 1);
+        manager.setCheckpoint(new Checkpoint() {
+            @Override
+            public boolean isCompleted(String item) {
+                return completed.contains(item);
+            }
+
+            @Override
+            public void completed(String item) {
+                completed.add(item);
+            }
+        });
+
+        List<String> processed = Collections.synchronizedList(new ArrayList<>());
+        manager.withQueryResults("query", "JCR-SQL2", (resolver, path) -> {
+            if (path.endsWith("/3")) {
+                throw new Exception("Bad things");
+            }
+            processed.add(path);
+        });
+
+        // Completed results are skipped, failed ones are not recorded
+        Collections.sort(processed);
+        assertEquals(Arrays.asList("/content/item/0", "/content/item/2", "/content/item/4"), processed);
+        assertEquals(4, manager.getAddedCount());
+        assertTrue(manager.isCompleted("/content/item/4"));
+        assertFalse(manager.isCompleted("/content/item/3"));
+
+        // Only the work scheduled by a task is recorded, not the task itself
+        manager.deferredWithResolver(resolver -> {
+            manager.setCurrentItem("/content/folder");
+            manager.deferredWithResolver(r -> manager.setCurrentItem("/content/folder/asset"));
+        });
+        assertFalse(manager.isCompleted("/content/folder"));
+        assertTrue(manager.isCompleted("/content/folder/asset"));
+    }
+
+    private static void mockQueryResults(ResourceResolver rr, int count) throws RepositoryException {
+        List<Node> nodes = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Node node = mock(Node.class);
+            when(node.getPath()).thenReturn("/content/item/" + i);
+            nodes.add(node);
+        }
+        Session session = mock(Session.class);
+        Workspace workspace = mock(Workspace.class);
+        QueryManager queryManager = mock(QueryManager.class);
+        Query query = mock(Query.class);
+        QueryResult result = mock(QueryResult.class);
+        when(rr.adaptTo(Session.class)).thenReturn(session);
+        when(session.getWorkspace()).thenReturn(workspace);
+        when(workspace.getQueryManager()).thenReturn(queryManager);
+        when(queryManager.createQuery(anyString(), anyString())).thenReturn(query);
+        when(query.execute()).thenReturn(result);
+        when(result.getNodes()).thenReturn(new NodeIteratorAdapter(nodes));
+    }
 }
@@ -0,0 +1,124 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2015 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.fam.impl;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AdaptiveConcurrencyTest {
+
+    @Test
+    public void increasesWhileSaturated() {
+        AdaptiveConcurrency controller = new AdaptiveConcurrency(1, 4, 2, 2.0);
+
+        assertEquals(3, controller.update(0.1, 0.75, 0.1, 0.85, true));
+        assertEquals("increase", controller.getState());
+        assertEquals(4, controller.update(0.1, 0.75, 0.1, 0.85, true));
+        assertEquals("capped by max threads", 4, controller.update(0.1, 0.75, 0.1, 0.85, true));
+        assertEquals("steady", controller.getState());
+        assertEquals("no queued work", 4, controller.update(0.1, 0.75, 0.1, 0.85, false));
+    }
+
+    @Test
+    public void decreasesOnCpuAndHeap() {
+        AdaptiveConcurrency controller = new AdaptiveConcurrency(2, 16, 16, 2.0);
+
+        assertEquals(12, controller.update(0.8, 0.75, 0.1, 0.85, true));
+        assertEquals("decrease (cpu)", controller.getState());
+        assertEquals(9, controller.update(0.1, 0.75, 0.9, 0.85, true));
+        assertEquals("decrease (heap)", controller.getState());
+        assertEquals("checks are disabled", 10, controller.update(0.8, -1, 0.9, -1, true));
+
+        for (int i = 0; i < 10; i++) {
+            controller.update(1, 0.75, 0.1, 0.85, true);
+        }
+        assertEquals("never below min threads", 2, controller.getLimit());
+    }
+
+    @Test
+    public void decreasesOnLatency() {
+        AdaptiveConcurrency controller = new AdaptiveConcurrency(1, 8, 8, 2.0);
+
+        interval(controller, 20, 0);
+        assertEquals(20, controller.getTaskLatencyBaseline(), 0);
+        interval(controller, 35, 0);
+        assertEquals("within tolerance", "steady", controller.getState());
+
+        assertEquals(6, interval(controller, 100, 0));
+        assertEquals("decrease (task latency)", controller.getState());
+        assertEquals(100, controller.getTaskLatency(), 0);
+
+        interval(controller, 0, 5);
+        assertEquals(4, interval(controller, 0, 50));
+        assertEquals("decrease (commit latency)", controller.getState());
+    }
+
+    @Test
+    public void ignoresJitterOfShortTasks() {
+        AdaptiveConcurrency controller = new AdaptiveConcurrency(1, 8, 8, 2.0);
+
+        interval(controller, 1, 1);
+        assertEquals(8, interval(controller, 8, 8));
+        assertEquals("steady", controller.getState());
+    }
+
+    @Test
+    public void baselineFollowsLastingLatency() {
+        AdaptiveConcurrency controller = new AdaptiveConcurrency(1, 8, 8, 2.0);
+
+        interval(controller, 20, 0);
+        int decreases = 0;
+        interval(controller, 100, 0);
+        while (controller.getState().startsWith("decrease") && decreases < 100) {
+            decreases++;
+            interval(controller, 100, 0);
+        }
+        assertEquals("steady", controller.getState());
+        assertTrue(controller.getTaskLatencyBaseline() >= 50);
+        assertTrue("slower tasks do not keep the limit down forever", decreases < 20);
+    }
+
+    @Test
+    public void maxLimitChange() {
+        AdaptiveConcurrency controller = new AdaptiveConcurrency(1, 8, 8, 2.0);
+
+        controller.setMaxLimit(4);
+        assertEquals(4, controller.getLimit());
+        assertEquals(4, controller.update(-1, -1, -1, -1, true));
+
+        controller.setMaxLimit(6);
+        assertEquals(4, controller.getLimit());
+        assertEquals(5, controller.update(-1, -1, -1, -1, true));
+    }
+
+    private static int interval(AdaptiveConcurrency controller, long taskLatency, long commitLatency) {
+        for (int i = 0; i < 10; i++) {
+            if (taskLatency > 0) {
+                controller.recordTaskLatency(taskLatency);
+            }
+            if (commitLatency > 0) {
+                controller.recordCommitLatency(commitLatency);
+            }
+        }
+        return controller.update(-1, -1, -1, -1, false);
+    }
+}
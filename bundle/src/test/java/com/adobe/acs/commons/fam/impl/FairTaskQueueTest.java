@@ -0,0 +1,165 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2015 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.fam.impl;
+
+import com.adobe.acs.commons.fam.ActionManager;
+import com.adobe.acs.commons.fam.CancelHandler;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularDataSupport;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class FairTaskQueueTest {
+
+    private final List<String> executed = new ArrayList<>();
+
+    @Test
+    public void tenantsTakeTurns() {
+        FairTaskQueue queue = new FairTaskQueue(Collections.emptyMap());
+        CancelHandler large = new CancelHandler();
+        CancelHandler small = new CancelHandler();
+        for (int i = 0; i < 100; i++) {
+            queue.offer(task("large", large, 0));
+        }
+        for (int i = 0; i < 3; i++) {
+            queue.offer(task("small", small, 0));
+        }
+        queue.offer(task("cache", null, 0));
+
+        runAll(queue);
+
+        assertEquals(104, executed.size());
+        assertEquals("small and default work does not wait for the large job",
+                "[large, small, cache, large, small, large, small, large, large]", executed.subList(0, 9).toString());
+    }
+
+    @Test
+    public void weights() {
+        Map<String, Integer> weights = new HashMap<>();
+        weights.put("Process", 3);
+        weights.put("Process: slow", 1);
+        FairTaskQueue queue = new FairTaskQueue(weights);
+        CancelHandler fast = manager("Process: fast");
+        CancelHandler slow = manager("Process: slow step");
+        for (int i = 0; i < 10; i++) {
+            queue.offer(task("fast", fast, 0));
+            queue.offer(task("slow", slow, 0));
+        }
+
+        runAll(queue);
+
+        assertEquals("[fast, fast, fast, slow, fast, fast, fast, slow]", executed.subList(0, 8).toString());
+    }
+
+    @Test
+    public void priorityWithinTenant() {
+        FairTaskQueue queue = new FairTaskQueue(Collections.emptyMap());
+        CancelHandler tenant = new CancelHandler();
+        queue.offer(task("low 1", tenant, 1));
+        queue.offer(task("high", tenant, 5));
+        queue.offer(task("low 2", tenant, 1));
+        queue.offer(new TimedRunnableFuture(task("default high", null, 10), null));
+
+        runAll(queue);
+
+        assertEquals("[high, default high, low 1, low 2]", executed.toString());
+    }
+
+    @Test
+    public void blockingQueueOperations() throws Exception {
+        FairTaskQueue queue = new FairTaskQueue(Collections.emptyMap());
+        assertNull(queue.poll(10, TimeUnit.MILLISECONDS));
+        assertTrue(queue.isEmpty());
+
+        CancelHandler tenant = new CancelHandler();
+        TimedRunnable first = task("first", tenant, 0);
+        queue.offer(first);
+        queue.offer(task("second", tenant, 0));
+        queue.offer(task("third", null, 0));
+        assertEquals(3, queue.size());
+        assertEquals(first, queue.peek());
+
+        assertTrue(queue.remove(first));
+        assertFalse(queue.remove(first));
+        assertEquals(2, queue.size());
+
+        List<Runnable> drained = new ArrayList<>();
+        assertEquals(2, queue.drainTo(drained));
+        assertTrue(queue.isEmpty());
+        drained.forEach(work -> ((TimedRunnable) work).work.run());
+        assertEquals("[second, third]", executed.toString());
+    }
+
+    @Test
+    public void tenantStatistics() {
+        FairTaskQueue queue = new FairTaskQueue(Collections.singletonMap("Process", 2));
+        CancelHandler tenant = manager("Process: step");
+        queue.offer(task("a", tenant, 0));
+        queue.offer(task("b", tenant, 0));
+        queue.offer(task("c", null, 0));
+        queue.poll();
+
+        TabularDataSupport stats = queue.getTenantStatistics();
+        assertEquals(2, stats.size());
+        CompositeData process = stats.get(new Object[]{"Process: step"});
+        assertEquals(2, process.get("weight"));
+        assertEquals(1, process.get("queued"));
+        assertEquals(1L, process.get("dispatched"));
+        CompositeData defaultTenant = stats.get(new Object[]{FairTaskQueue.DEFAULT_TENANT});
+        assertEquals(1, defaultTenant.get("queued"));
+        assertEquals(0L, defaultTenant.get("dispatched"));
+    }
+
+    private TimedRunnable task(String name, CancelHandler handler, int priority) {
+        Runnable work = () -> executed.add(name);
+        return handler == null
+                ? new TimedRunnable(work, null, 0, TimeUnit.MILLISECONDS, priority)
+                : new TimedRunnable(work, null, 0, TimeUnit.MILLISECONDS, handler, priority);
+    }
+
+    private static CancelHandler manager(String name) {
+        ActionManagerImpl manager = mock(ActionManagerImpl.class);
+        when(manager.getName()).thenReturn(name);
+        return manager;
+    }
+
+    private static void runAll(FairTaskQueue queue) {
+        Runnable next;
+        while ((next = queue.poll()) != null) {
+            ((TimedRunnable) unwrap(next)).work.run();
+        }
+    }
+
+    private static Runnable unwrap(Runnable work) {
+        return work instanceof TimedRunnableFuture ? ((TimedRunnableFuture) work).getTimedRunnable().get() : work;
+    }
+}
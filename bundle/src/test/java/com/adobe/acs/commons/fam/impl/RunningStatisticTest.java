@@ -0,0 +1,136 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2015 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.fam.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularDataSupport;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RunningStatisticTest {
+
+    @Test
+    public void bucketsCoverAllValues() {
+        int previous = -1;
+        for (long value = 0; value < 100000; value++) {
+            int bucket = RunningStatistic.bucket(value);
+            assertTrue("buckets are contiguous", bucket == previous || bucket == previous + 1);
+            assertTrue("value " + value + " within its bucket", value <= RunningStatistic.highestValue(bucket));
+            assertTrue("bucket error below 1/16", RunningStatistic.highestValue(bucket) - value <= value / 16);
+            previous = bucket;
+        }
+        assertEquals(0, RunningStatistic.bucket(-5));
+        assertEquals(RunningStatistic.bucket(Long.MAX_VALUE), RunningStatistic.bucket((1L << 40) - 1));
+    }
+
+    @Test
+    public void percentiles() throws Exception {
+        RunningStatistic stat = new RunningStatistic("test");
+        assertEquals(0, stat.getPercentile(0.99));
+
+        for (int i = 1; i <= 1000; i++) {
+            stat.log(i);
+        }
+
+        assertEquals(1000, stat.getCount());
+        assertEquals(1, stat.getMin());
+        assertEquals(1000, stat.getMax());
+        assertEquals(500.5, stat.getMean(), 0.001);
+        assertEquals(990.5, stat.getRollingMean(), 0.001);
+        assertApproximately(500, stat.getPercentile(0.5));
+        assertApproximately(900, stat.getPercentile(0.9));
+        assertApproximately(990, stat.getPercentile(0.99));
+        assertEquals("capped at the maximum", 1000, stat.getPercentile(0.999));
+
+        CompositeData row = stat.getStatistics();
+        assertEquals("test", row.get("attribute"));
+        assertEquals(1000L, row.get("count"));
+        assertEquals(stat.getPercentile(0.99), row.get("p99"));
+
+        stat.reset();
+        assertEquals(0, stat.getCount());
+        assertEquals(0, stat.getPercentile(0.5));
+        assertEquals(0, stat.getRollingMean(), 0);
+    }
+
+    @Test
+    public void tail() {
+        RunningStatistic stat = new RunningStatistic("tail");
+        for (int i = 0; i < 9985; i++) {
+            stat.log(5);
+        }
+        for (int i = 0; i < 15; i++) {
+            stat.log(60000);
+        }
+
+        assertEquals(5, stat.getPercentile(0.5));
+        assertEquals(5, stat.getPercentile(0.99));
+        assertEquals(60000, stat.getPercentile(0.999));
+    }
+
+    @Test
+    public void concurrentLogging() throws Exception {
+        RunningStatistic stat = new RunningStatistic("concurrent");
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 10000; i++) {
+                    stat.log(i % 100);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(80000, stat.getCount());
+        assertEquals(0, stat.getMin());
+        assertEquals(99, stat.getMax());
+        assertEquals(49.5, stat.getMean(), 0.001);
+        assertApproximately(49, stat.getPercentile(0.5));
+    }
+
+    @Test
+    public void taskStatistics() throws Exception {
+        RunningStatistic wait = new RunningStatistic("wait");
+        RunningStatistic run = new RunningStatistic("run");
+        wait.log(10);
+        run.log(20);
+
+        TabularDataSupport table = new TabularDataSupport(RunningStatistic.getTaskStatisticsTableType());
+        table.put(wait.getStatistics("task 1"));
+        table.put(run.getStatistics("task 1"));
+        table.put(wait.getStatistics("task 2"));
+
+        assertEquals(3, table.size());
+        assertEquals(20L, table.get(new Object[]{"task 1", "run"}).get("p50"));
+    }
+
+    private static void assertApproximately(long expected, long actual) {
+        assertTrue("expected about " + expected + " but was " + actual,
+                actual >= expected && actual <= expected + expected / 16);
+    }
+}
@@ -19,10 +19,15 @@
  */
 package com.adobe.acs.commons.fam.impl;
 
+import com.adobe.acs.commons.fam.CancelHandler;
 import com.adobe.acs.commons.fam.ThrottledTaskRunner;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import javax.management.NotCompliantMBeanException;
 import org.apache.sling.testing.mock.osgi.junit.OsgiContext;
 import org.junit.Rule;
@@ -31,6 +36,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 public class ThrottledTaskRunnerTest {
 
@@ -162,4 +168,77 @@ public class ThrottledTaskRunnerTest {
         }
 
     }
+
+    @Test
+    public void fairScheduling() throws NotCompliantMBeanException, InterruptedException {
+        ThrottledTaskRunner ttr = osgiContext.registerInjectActivateService(new ThrottledTaskRunnerImpl(),
+                Collections.singletonMap("fair.scheduling", true));
+
+        List<String> executions = Collections.synchronizedList(new ArrayList<>());
+        CancelHandler largeJob = new CancelHandler();
+        CancelHandler smallJob = new CancelHandler();
+
+        ttr.setThreadPoolSize(1);
+        ttr.pauseExecution();
+
+        for (int i = 0; i < 100; i++) {
+            ttr.scheduleWork(() -> run(executions, "large"), largeJob, Integer.MAX_VALUE);
+        }
+        for (int i = 0; i < 10; i++) {
+            ttr.scheduleWork(() -> run(executions, "small"), smallJob, Integer.MIN_VALUE);
+        }
+
+        ttr.resumeExecution();
+
+        for (int i = 0; i < 100 && executions.size() < 110; i++) {
+            Thread.sleep(100);
+        }
+
+        assertEquals("wrong number of items executed", 110, executions.size());
+        assertTrue("small job takes turns with the large one, despite its lower priority",
+                executions.lastIndexOf("small") < 50);
+        assertEquals("default queue and one per job", 3, ttr.getTenantStatistics().size());
+    }
+
+    private static void run(List<String> executions, String job) {
+        try {
+            Thread.sleep(1);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        executions.add(job);
+    }
+
+    @Test
+    public void adaptiveConcurrency() throws NotCompliantMBeanException, InterruptedException {
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("max.threads", 8);
+        properties.put("max.cpu", -1);
+        properties.put("max.heap", -1);
+        properties.put("adaptive.concurrency", true);
+        properties.put("adaptive.interval", 0);
+        ThrottledTaskRunner ttr = osgiContext.registerInjectActivateService(new ThrottledTaskRunnerImpl(), properties);
+
+        assertTrue(ttr.isAdaptiveConcurrency());
+        assertTrue(ttr.getConcurrencyLimit() <= 8);
+
+        CountDownLatch finished = new CountDownLatch(200);
+        for (int i = 0; i < 200; i++) {
+            ttr.scheduleWork(() -> {
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                finished.countDown();
+            });
+        }
+
+        assertTrue("all work done", finished.await(30, TimeUnit.SECONDS));
+        assertEquals("grows to max threads while work is queued", 8, ttr.getConcurrencyLimit());
+        assertTrue(ttr.getTaskLatency() >= 5);
+
+        ttr.setThreadPoolSize(2);
+        assertEquals("max threads still apply", 2, ttr.getConcurrencyLimit());
+    }
 }
@@ -0,0 +1,111 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2019 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.httpcache.config.impl;
+
+import com.adobe.acs.commons.httpcache.config.HttpCacheConfig;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import static com.adobe.acs.commons.httpcache.config.impl.HttpCacheConfigImpl.PROP_BLACKLISTED_REQUEST_URI_PATTERNS;
+import static com.adobe.acs.commons.httpcache.config.impl.HttpCacheConfigImpl.PROP_CACHE_INVALIDATION_PATH_PATTERNS;
+import static com.adobe.acs.commons.httpcache.config.impl.HttpCacheConfigImpl.PROP_ORDER;
+import static com.adobe.acs.commons.httpcache.config.impl.HttpCacheConfigImpl.PROP_REQUEST_URI_PATTERNS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class HttpCacheConfigMatcherTest {
+
+    @Test
+    public void test_literal_prefix() {
+        assertEquals("/content/site/", prefix("/content/site/.*\\.html"));
+        assertEquals("/content/site/", prefix("^/content/site/(.*)"));
+        assertEquals("/content/my-site.html", prefix("/content/my-site\\.html"));
+        assertEquals("/content/site", prefix("/content/sites?/.*"));
+        assertEquals("/content/dam/", prefix("/content/dam/\\d+/.*"));
+        assertEquals("/etc/", prefix("/etc/(clientlibs|designs)/.*"));
+        assertEquals("", prefix("/content/a/.*|/content/b/.*"));
+        assertEquals("", prefix("(?i)/content/.*"));
+        assertEquals("", prefix(".*\\.json"));
+        assertEquals("", HttpCacheConfigMatcher.literalPrefix(Pattern.compile("/content/.*", Pattern.CASE_INSENSITIVE)));
+    }
+
+    @Test
+    public void test_request_uri_candidates() {
+        HttpCacheConfig products = config(10, new String[] { "/content/site/products/.*" },
+                new String[] { "/content/site/products/private/.*" }, new String[0]);
+        HttpCacheConfig site = config(20, new String[] { "/content/site/.*\\.html" }, new String[0], new String[0]);
+        HttpCacheConfig json = config(5, new String[] { ".*\\.json" }, new String[0], new String[0]);
+        HttpCacheConfig custom = mock(HttpCacheConfig.class);
+        when(custom.getOrder()).thenReturn(15);
+
+        HttpCacheConfigMatcher matcher = HttpCacheConfigMatcher.compile(Arrays.asList(site, custom, products, json));
+
+        assertEquals(Arrays.asList(products, custom, site),
+                matcher.getRequestUriCandidates("/content/site/products/shoes.html"));
+        assertEquals(Arrays.asList(custom, site),
+                matcher.getRequestUriCandidates("/content/site/products/private/shoes.html"));
+        assertEquals(Arrays.asList(json, products, custom),
+                matcher.getRequestUriCandidates("/content/site/products/shoes.json"));
+        assertEquals(Collections.singletonList(custom), matcher.getRequestUriCandidates("/content/other.html"));
+        assertEquals(Arrays.asList(json, products, custom, site), matcher.getRequestUriCandidates(null));
+    }
+
+    @Test
+    public void test_invalidation_configs() {
+        HttpCacheConfig site = config(10, new String[] { "/content/site/.*" }, new String[0],
+                new String[] { "/content/site(/.*)?" });
+        HttpCacheConfig sites = config(20, new String[] { "/content/.*" }, new String[0],
+                new String[] { "/content/site.*", "/etc/designs/.*" });
+        HttpCacheConfig custom = mock(HttpCacheConfig.class);
+        when(custom.getOrder()).thenReturn(30);
+        when(custom.canInvalidate("/etc/designs/site")).thenReturn(true);
+
+        HttpCacheConfigMatcher matcher = HttpCacheConfigMatcher.compile(Arrays.asList(custom, sites, site));
+
+        assertEquals(Arrays.asList(site, sites), matcher.getInvalidationConfigs("/content/site/en/jcr:content"));
+        assertEquals(Collections.singletonList(sites), matcher.getInvalidationConfigs("/content/site2"));
+        assertEquals(Arrays.asList(sites, custom), matcher.getInvalidationConfigs("/etc/designs/site"));
+        assertTrue(matcher.getInvalidationConfigs("/var/audit").isEmpty());
+    }
+
+    private static String prefix(String regex) {
+        return HttpCacheConfigMatcher.literalPrefix(Pattern.compile(regex));
+    }
+
+    private static HttpCacheConfig config(int order, String[] requestUriPatterns, String[] blacklistedPatterns,
+                                          String[] invalidationPatterns) {
+        Map<String, Object> properties = new HashMap<>();
+        properties.put(PROP_ORDER, order);
+        properties.put(PROP_REQUEST_URI_PATTERNS, requestUriPatterns);
+        properties.put(PROP_BLACKLISTED_REQUEST_URI_PATTERNS, blacklistedPatterns);
+        properties.put(PROP_CACHE_INVALIDATION_PATH_PATTERNS, invalidationPatterns);
+
+        HttpCacheConfigImpl config = new HttpCacheConfigImpl();
+        config.activate(properties);
+        return config;
+    }
+}
@@ -28,12 +28,16 @@ import com.adobe.acs.commons.httpcache.keys.CacheKey;
 import com.adobe.acs.commons.httpcache.store.HttpCacheStore;
 import com.adobe.acs.commons.httpcache.store.mem.impl.MemTempSinkImpl;
 import com.day.cq.commons.feed.StringResponseWrapper;
+import com.day.cq.contentsync.handler.util.RequestResponseFactory;
 import org.apache.commons.collections.map.SingletonMap;
 import org.apache.commons.io.IOUtils;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
 import org.apache.sling.commons.testing.sling.MockSlingHttpServletRequest;
 import org.apache.sling.commons.testing.sling.MockSlingHttpServletResponse;
+import org.apache.sling.engine.SlingRequestProcessor;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -46,8 +50,15 @@ import org.mockito.runners.MockitoJUnitRunner;
 import org.mockito.stubbing.Answer;
 
 import javax.management.NotCompliantMBeanException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintWriter;
 import java.nio.charset.StandardCharsets;
 import java.util.Collections;
@@ -55,8 +66,16 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.List;
 import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import static com.adobe.acs.commons.httpcache.engine.impl.HttpCacheEngineImpl.PROP_GLOBAL_RESPONSE_COOKIE_EXCLUSIONS;
 import static com.adobe.acs.commons.httpcache.engine.impl.HttpCacheEngineImpl.PROP_GLOBAL_RESPONSE_HEADER_EXCLUSIONS;
@@ -85,6 +104,15 @@ public class HttpCacheEngineImplTest {
     @Mock
     ThrottledTaskRunner throttledTaskRunner;
 
+    @Mock
+    ResourceResolverFactory resourceResolverFactory;
+
+    @Mock
+    RequestResponseFactory requestResponseFactory;
+
+    @Mock
+    SlingRequestProcessor slingRequestProcessor;
+
     @InjectMocks
     HttpCacheEngineImpl systemUnderTest;
 
@@ -305,4 +333,372 @@ public class HttpCacheEngineImplTest {
         assertEquals("rendered-html", cachedHTML);
     }
 
+    @Test
+    public void test_request_coalescing() throws Exception {
+        SlingHttpServletRequest leader = mockRequestWithAttributes();
+        SlingHttpServletRequest waiter = mockRequestWithAttributes();
+        CacheKey mockedCacheKey = mock(CacheKey.class);
+
+        when(memCacheConfig.isRequestCoalescingEnabled()).thenReturn(true);
+        when(memCacheConfig.getRequestCoalescingTimeout()).thenReturn(10000L);
+        when(memCacheConfig.buildCacheKey(any(SlingHttpServletRequest.class))).thenReturn(mockedCacheKey);
+        when(memCacheStore.createTempSink()).thenReturn(new MemTempSinkImpl());
+
+        AtomicBoolean stored = new AtomicBoolean();
+        when(memCacheStore.contains(mockedCacheKey)).thenAnswer(invocationOnMock -> stored.get());
+        doAnswer(invocationOnMock -> {
+            stored.set(true);
+            return null;
+        }).when(memCacheStore).put(eq(mockedCacheKey), any(CacheContent.class));
+
+        // The first miss renders the response.
+        assertFalse(systemUnderTest.isCacheHit(leader, memCacheConfig));
+        assertEquals(1, systemUnderTest.getInFlightRequestCount());
+
+        // A concurrent miss waits for it.
+        AtomicReference<Thread> waiterThread = new AtomicReference<>();
+        ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+            waiterThread.set(new Thread(runnable));
+            return waiterThread.get();
+        });
+        try {
+            Future<Boolean> waiterHit = executor.submit(() -> systemUnderTest.isCacheHit(waiter, memCacheConfig));
+            while (waiterThread.get() == null || waiterThread.get().getState() != Thread.State.TIMED_WAITING) {
+                Thread.sleep(1);
+            }
+
+            SlingHttpServletResponse response = mock(SlingHttpServletResponse.class);
+            when(response.getStatus()).thenReturn(200);
+            when(response.getWriter()).thenReturn(new PrintWriter(new ByteArrayOutputStream()));
+            HttpCacheServletResponseWrapper wrappedResponse = systemUnderTest.wrapResponse(leader, response, memCacheConfig);
+            wrappedResponse.getWriter().write("rendered-html");
+            systemUnderTest.cacheResponse(leader, wrappedResponse, memCacheConfig);
+
+            assertTrue(waiterHit.get(10, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(1, systemUnderTest.getCoalescedRequestCount());
+        assertEquals(0, systemUnderTest.getCoalescingTimeoutCount());
+        assertEquals(0, systemUnderTest.getInFlightRequestCount());
+    }
+
+    @Test
+    public void test_request_coalescing_timeout() throws Exception {
+        SlingHttpServletRequest leader = mockRequestWithAttributes();
+        SlingHttpServletRequest waiter = mockRequestWithAttributes();
+        CacheKey mockedCacheKey = mock(CacheKey.class);
+
+        when(memCacheConfig.isRequestCoalescingEnabled()).thenReturn(true);
+        when(memCacheConfig.getRequestCoalescingTimeout()).thenReturn(10L);
+        when(memCacheConfig.buildCacheKey(any(SlingHttpServletRequest.class))).thenReturn(mockedCacheKey);
+
+        assertFalse(systemUnderTest.isCacheHit(leader, memCacheConfig));
+        // The leader never caches its response; the waiter gives up and takes over.
+        assertFalse(systemUnderTest.isCacheHit(waiter, memCacheConfig));
+
+        assertEquals(0, systemUnderTest.getCoalescedRequestCount());
+        assertEquals(1, systemUnderTest.getCoalescingTimeoutCount());
+        assertEquals(0, systemUnderTest.getInFlightRequestCount());
+    }
+
+    @Test
+    public void test_request_coalescing_leader_fails() throws Exception {
+        SlingHttpServletRequest leader = mockRequestWithAttributes();
+        SlingHttpServletRequest waiter = mockRequestWithAttributes();
+        CacheKey mockedCacheKey = mock(CacheKey.class);
+
+        when(memCacheConfig.isRequestCoalescingEnabled()).thenReturn(true);
+        when(memCacheConfig.getRequestCoalescingTimeout()).thenReturn(10000L);
+        when(memCacheConfig.buildCacheKey(any(SlingHttpServletRequest.class))).thenReturn(mockedCacheKey);
+
+        assertFalse(systemUnderTest.isCacheHit(leader, memCacheConfig));
+
+        AtomicReference<Thread> waiterThread = new AtomicReference<>();
+        ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+            waiterThread.set(new Thread(runnable));
+            return waiterThread.get();
+        });
+        try {
+            Future<Boolean> waiterHit = executor.submit(() -> systemUnderTest.isCacheHit(waiter, memCacheConfig));
+            while (waiterThread.get() == null || waiterThread.get().getState() != Thread.State.TIMED_WAITING) {
+                Thread.sleep(1);
+            }
+
+            // The leader's filter chain failed, so cacheResponse is never called.
+            systemUnderTest.releaseInFlight(leader, memCacheConfig);
+
+            // The waiter renders the response itself, well before the coalescing timeout.
+            assertFalse(waiterHit.get(5, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // Nothing was served from the leader's response, so the waiter does not count as coalesced.
+        assertEquals(0, systemUnderTest.getCoalescedRequestCount());
+        assertEquals(0, systemUnderTest.getCoalescingTimeoutCount());
+        assertEquals(0, systemUnderTest.getInFlightRequestCount());
+    }
+
+    @Test
+    public void test_deliver_stale_cache_content() throws Exception {
+        SlingHttpServletRequest request = mockRequestWithAttributes();
+        mockUser(request, "anonymous");
+        when(request.getRequestURI()).thenReturn("/content/acs-commons/home.html");
+        CacheKey mockedCacheKey = mock(CacheKey.class);
+        CacheContent mockedCacheContent = mock(CacheContent.class);
+
+        when(mockedCacheContent.getWriteMethod()).thenReturn(HttpCacheServletResponseWrapper.ResponseWriteMethod.PRINTWRITER);
+        // Stores hand out new streams on every lookup, the engine closes them once used.
+        when(mockedCacheContent.getInputDataStream()).thenAnswer(invocationOnMock -> getClass().getResourceAsStream("cachecontent.html"));
+        when(memCacheConfig.isServeStaleEnabled()).thenReturn(true);
+        when(memCacheConfig.buildCacheKey(request)).thenReturn(mockedCacheKey);
+        when(memCacheStore.contains(mockedCacheKey)).thenReturn(false);
+        when(memCacheStore.getStaleIfPresent(mockedCacheKey)).thenReturn(mockedCacheContent);
+
+        HttpServletRequest refreshRequest = mockRequestWithAttributes(HttpServletRequest.class);
+        HttpServletResponse refreshResponse = mock(HttpServletResponse.class);
+        when(requestResponseFactory.createRequest(eq("GET"), eq("/content/acs-commons/home.html"), anyMap())).thenReturn(refreshRequest);
+        when(requestResponseFactory.createResponse(any(java.io.OutputStream.class))).thenReturn(refreshResponse);
+        // The internal request passes the http cache filter, which caches its response.
+        doAnswer(invocationOnMock -> {
+            cacheRefreshResponse(invocationOnMock.getArgumentAt(0, HttpServletRequest.class));
+            return null;
+        }).when(slingRequestProcessor).processRequest(any(HttpServletRequest.class), eq(refreshResponse), any());
+        when(memCacheStore.createTempSink()).thenReturn(new MemTempSinkImpl());
+
+        assertTrue(systemUnderTest.isCacheHit(request, memCacheConfig));
+
+        MockSlingHttpServletResponse response = new MockSlingHttpServletResponse();
+        assertTrue(systemUnderTest.deliverCacheContent(request, response, memCacheConfig));
+        assertEquals(IOUtils.toString(getClass().getResourceAsStream("cachecontent.html"), StandardCharsets.UTF_8), response.getOutput().toString());
+
+        // The stale entry is refreshed through an internal request.
+        verify(slingRequestProcessor).processRequest(any(HttpServletRequest.class), eq(refreshResponse), any());
+        verify(refreshRequest).setAttribute(anyString(), eq(mockedCacheKey));
+        verify(memCacheStore).put(eq(mockedCacheKey), any(CacheContent.class));
+        assertEquals(1, systemUnderTest.getStaleDeliveredCount());
+        assertEquals(1, systemUnderTest.getStaleRefreshCount());
+    }
+
+    @Test
+    public void test_refresh_stale_cache_content_keyed_by_header_and_cookie() throws Exception {
+        SlingHttpServletRequest request = mockRequestWithAttributes();
+        mockUser(request, "anonymous");
+        when(request.getRequestURI()).thenReturn("/content/acs-commons/home.html");
+        when(request.getHeaderNames()).thenReturn(Collections.enumeration(Collections.singletonList("X-Variant")));
+        when(request.getHeaders("X-Variant")).thenReturn(Collections.enumeration(Collections.singletonList("mobile")));
+        when(request.getCookies()).thenReturn(new Cookie[]{new Cookie("region", "emea")});
+
+        // The key depends on a request header and a cookie, as for header and cookie keyed configs.
+        CacheKey variantKey = mock(CacheKey.class);
+        CacheKey otherKey = mock(CacheKey.class);
+        when(memCacheConfig.isServeStaleEnabled()).thenReturn(true);
+        when(memCacheConfig.buildCacheKey(any(SlingHttpServletRequest.class))).thenAnswer(invocationOnMock -> {
+            SlingHttpServletRequest keyed = invocationOnMock.getArgumentAt(0, SlingHttpServletRequest.class);
+            boolean region = keyed.getCookies() != null && Arrays.stream(keyed.getCookies())
+                    .anyMatch(cookie -> "region".equals(cookie.getName()) && "emea".equals(cookie.getValue()));
+            return "mobile".equals(keyed.getHeader("x-variant")) && region ? variantKey : otherKey;
+        });
+
+        CacheContent staleContent = mock(CacheContent.class);
+        when(staleContent.getWriteMethod()).thenReturn(HttpCacheServletResponseWrapper.ResponseWriteMethod.PRINTWRITER);
+        when(staleContent.getInputDataStream()).thenAnswer(invocationOnMock -> getClass().getResourceAsStream("cachecontent.html"));
+        AtomicBoolean refreshed = new AtomicBoolean();
+        when(memCacheStore.contains(variantKey)).thenAnswer(invocationOnMock -> refreshed.get());
+        when(memCacheStore.getStaleIfPresent(variantKey)).thenReturn(staleContent);
+        when(memCacheStore.createTempSink()).thenReturn(new MemTempSinkImpl());
+        doAnswer(invocationOnMock -> {
+            refreshed.set(true);
+            return null;
+        }).when(memCacheStore).put(eq(variantKey), any(CacheContent.class));
+
+        when(requestResponseFactory.createRequest(eq("GET"), eq("/content/acs-commons/home.html"), anyMap()))
+                .thenReturn(mockRequestWithAttributes(HttpServletRequest.class));
+        HttpServletResponse refreshResponse = mock(HttpServletResponse.class);
+        when(requestResponseFactory.createResponse(any(java.io.OutputStream.class))).thenReturn(refreshResponse);
+        doAnswer(invocationOnMock -> {
+            cacheRefreshResponse(invocationOnMock.getArgumentAt(0, HttpServletRequest.class));
+            return null;
+        }).when(slingRequestProcessor).processRequest(any(HttpServletRequest.class), eq(refreshResponse), any());
+
+        assertTrue(systemUnderTest.isCacheHit(request, memCacheConfig));
+        assertTrue(systemUnderTest.deliverCacheContent(request, new MockSlingHttpServletResponse(), memCacheConfig));
+
+        // The refresh rendered with the header and cookie of the request, so it replaced the stale entry.
+        verify(memCacheStore).put(eq(variantKey), any(CacheContent.class));
+        verify(memCacheStore, never()).put(eq(otherKey), any(CacheContent.class));
+        assertEquals(1, systemUnderTest.getStaleRefreshCount());
+        assertTrue(systemUnderTest.isCacheHit(request, memCacheConfig));
+    }
+
+    @Test
+    public void test_stale_cache_content_not_served_when_refresh_does_not_cache_it() throws Exception {
+        SlingHttpServletRequest request = mockRequestWithAttributes();
+        mockUser(request, "anonymous");
+        when(request.getRequestURI()).thenReturn("/content/acs-commons/home.html");
+        CacheKey mockedCacheKey = mock(CacheKey.class);
+        CacheContent staleContent = mock(CacheContent.class);
+        when(staleContent.getWriteMethod()).thenReturn(HttpCacheServletResponseWrapper.ResponseWriteMethod.PRINTWRITER);
+        when(staleContent.getInputDataStream()).thenAnswer(invocationOnMock -> getClass().getResourceAsStream("cachecontent.html"));
+        when(memCacheConfig.isServeStaleEnabled()).thenReturn(true);
+        when(memCacheConfig.buildCacheKey(request)).thenReturn(mockedCacheKey);
+        when(memCacheStore.contains(mockedCacheKey)).thenReturn(false);
+        when(memCacheStore.getStaleIfPresent(mockedCacheKey)).thenReturn(staleContent);
+        when(requestResponseFactory.createRequest(eq("GET"), eq("/content/acs-commons/home.html"), anyMap()))
+                .thenReturn(mockRequestWithAttributes(HttpServletRequest.class));
+        when(requestResponseFactory.createResponse(any(java.io.OutputStream.class))).thenReturn(mock(HttpServletResponse.class));
+
+        // The internal request renders, but its response is not cached under the stale entry's key.
+        assertTrue(systemUnderTest.isCacheHit(request, memCacheConfig));
+        assertTrue(systemUnderTest.deliverCacheContent(request, new MockSlingHttpServletResponse(), memCacheConfig));
+        assertEquals(0, systemUnderTest.getStaleRefreshCount());
+
+        // So the entry is no longer served stale, and no further refresh is scheduled.
+        assertFalse(systemUnderTest.isCacheHit(request, memCacheConfig));
+        assertFalse(systemUnderTest.deliverCacheContent(request, new MockSlingHttpServletResponse(), memCacheConfig));
+        verify(throttledTaskRunner, times(1)).scheduleWork(any(Runnable.class));
+        assertEquals(1, systemUnderTest.getStaleDeliveredCount());
+    }
+
+    @Test
+    public void test_stale_cache_content_not_served_to_authenticated_requests() throws Exception {
+        SlingHttpServletRequest request = mockRequestWithAttributes();
+        mockUser(request, "admin");
+        CacheKey mockedCacheKey = mock(CacheKey.class);
+
+        when(memCacheConfig.isServeStaleEnabled()).thenReturn(true);
+        when(memCacheConfig.buildCacheKey(request)).thenReturn(mockedCacheKey);
+        when(memCacheStore.contains(mockedCacheKey)).thenReturn(false);
+        when(memCacheStore.getStaleIfPresent(mockedCacheKey)).thenReturn(mock(CacheContent.class));
+
+        assertFalse(systemUnderTest.isCacheHit(request, memCacheConfig));
+        assertFalse(systemUnderTest.deliverCacheContent(request, new MockSlingHttpServletResponse(), memCacheConfig));
+        verify(throttledTaskRunner, never()).scheduleWork(any(Runnable.class));
+    }
+
+    @Test
+    public void test_stale_cache_content_not_served_when_disabled() throws Exception {
+        SlingHttpServletRequest request = mockRequestWithAttributes();
+        CacheKey mockedCacheKey = mock(CacheKey.class);
+
+        when(memCacheConfig.buildCacheKey(request)).thenReturn(mockedCacheKey);
+        when(memCacheStore.contains(mockedCacheKey)).thenReturn(false);
+        when(memCacheStore.getStaleIfPresent(mockedCacheKey)).thenReturn(mock(CacheContent.class));
+
+        assertFalse(systemUnderTest.isCacheHit(request, memCacheConfig));
+        assertFalse(systemUnderTest.deliverCacheContent(request, new MockSlingHttpServletResponse(), memCacheConfig));
+        verify(throttledTaskRunner, never()).scheduleWork(any(Runnable.class));
+    }
+
+    @Test
+    public void test_deliver_gzip_cache_content() throws Exception {
+        byte[] html = IOUtils.toByteArray(getClass().getResourceAsStream("cachecontent.html"));
+        ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzipOut = new GZIPOutputStream(gzipped)) {
+            gzipOut.write(html);
+        }
+
+        SlingHttpServletRequest request = mock(SlingHttpServletRequest.class);
+        when(request.getHeader("Accept-Encoding")).thenReturn("deflate, gzip;q=0.8");
+        CacheKey mockedCacheKey = mock(CacheKey.class);
+        CacheContent mockedCacheContent = mock(CacheContent.class);
+        InputStream dataStream = mock(InputStream.class);
+        when(mockedCacheContent.getStatus()).thenReturn(200);
+        when(mockedCacheContent.getHeaders()).thenReturn(Collections.singletonMap("Content-Length",
+                Collections.singletonList(String.valueOf(html.length))));
+        when(mockedCacheContent.getInputDataStream()).thenReturn(dataStream);
+        when(mockedCacheContent.getGzipInputDataStream()).thenReturn(new ByteArrayInputStream(gzipped.toByteArray()));
+        when(memCacheConfig.buildCacheKey(request)).thenReturn(mockedCacheKey);
+        when(memCacheStore.getIfPresent(mockedCacheKey)).thenReturn(mockedCacheContent);
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        SlingHttpServletResponse response = mock(SlingHttpServletResponse.class);
+        when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+            @Override
+            public void write(int b) {
+                output.write(b);
+            }
+
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(WriteListener writeListener) {
+                // No need to do anything
+            }
+        });
+
+        assertTrue(systemUnderTest.deliverCacheContent(request, response, memCacheConfig));
+
+        verify(response).setHeader("Content-Encoding", "gzip");
+        verify(response).addHeader("Vary", "Accept-Encoding");
+        verify(response, never()).setHeader(eq("Content-Length"), anyString());
+        verify(response, never()).getWriter();
+        verify(dataStream).close();
+        assertArrayEquals(html, IOUtils.toByteArray(new GZIPInputStream(new ByteArrayInputStream(output.toByteArray()))));
+    }
+
+    @Test
+    public void test_accepts_gzip() {
+        SlingHttpServletRequest request = mock(SlingHttpServletRequest.class);
+        assertFalse(HttpCacheEngineImpl.acceptsGzip(request));
+
+        when(request.getHeader("Accept-Encoding")).thenReturn("gzip, deflate, br");
+        assertTrue(HttpCacheEngineImpl.acceptsGzip(request));
+
+        when(request.getHeader("Accept-Encoding")).thenReturn("deflate, *");
+        assertTrue(HttpCacheEngineImpl.acceptsGzip(request));
+
+        when(request.getHeader("Accept-Encoding")).thenReturn("br, gzip;q=0");
+        assertFalse(HttpCacheEngineImpl.acceptsGzip(request));
+
+        when(request.getHeader("Accept-Encoding")).thenReturn("identity");
+        assertFalse(HttpCacheEngineImpl.acceptsGzip(request));
+    }
+
+    /**
+     * Passes an internal request through the cache like the http cache filter, caching a rendered response.
+     */
+    private void cacheRefreshResponse(HttpServletRequest internalRequest) throws Exception {
+        SlingHttpServletRequest request = mock(SlingHttpServletRequest.class);
+        when(request.getAttribute(anyString())).thenAnswer(invocationOnMock -> internalRequest.getAttribute(invocationOnMock.getArgumentAt(0, String.class)));
+        doAnswer(invocationOnMock -> {
+            internalRequest.setAttribute(invocationOnMock.getArgumentAt(0, String.class), invocationOnMock.getArgumentAt(1, Object.class));
+            return null;
+        }).when(request).setAttribute(anyString(), any());
+        when(request.getHeader(anyString())).thenAnswer(invocationOnMock -> internalRequest.getHeader(invocationOnMock.getArgumentAt(0, String.class)));
+        when(request.getCookies()).thenAnswer(invocationOnMock -> internalRequest.getCookies());
+        mockUser(request, "anonymous");
+
+        SlingHttpServletResponse response = mock(SlingHttpServletResponse.class);
+        when(response.getStatus()).thenReturn(200);
+        when(response.getWriter()).thenReturn(new PrintWriter(new ByteArrayOutputStream()));
+        HttpCacheServletResponseWrapper wrappedResponse = systemUnderTest.wrapResponse(request, response, memCacheConfig);
+        wrappedResponse.getWriter().write("rendered-html");
+        systemUnderTest.cacheResponse(request, wrappedResponse, memCacheConfig);
+    }
+
+    private static void mockUser(SlingHttpServletRequest request, String userId) {
+        ResourceResolver resourceResolver = mock(ResourceResolver.class);
+        when(resourceResolver.getUserID()).thenReturn(userId);
+        when(request.getResourceResolver()).thenReturn(resourceResolver);
+    }
+
+    private SlingHttpServletRequest mockRequestWithAttributes() {
+        return mockRequestWithAttributes(SlingHttpServletRequest.class);
+    }
+
+    private <T extends HttpServletRequest> T mockRequestWithAttributes(Class<T> type) {
+        T request = mock(type);
+        Map<String, Object> attributes = new HashMap<>();
+        when(request.getAttribute(anyString())).thenAnswer(invocationOnMock -> attributes.get(invocationOnMock.getArgumentAt(0, String.class)));
+        doAnswer(invocationOnMock -> attributes.put(invocationOnMock.getArgumentAt(0, String.class), invocationOnMock.getArgumentAt(1, Object.class)))
+                .when(request).setAttribute(anyString(), any());
+        return request;
+    }
+
 }
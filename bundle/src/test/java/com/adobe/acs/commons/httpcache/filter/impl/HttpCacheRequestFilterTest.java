@@ -0,0 +1,112 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2019 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.httpcache.filter.impl;
+
+import com.adobe.acs.commons.httpcache.config.HttpCacheConfig;
+import com.adobe.acs.commons.httpcache.engine.HttpCacheEngine;
+import com.adobe.acs.commons.httpcache.engine.HttpCacheServletResponseWrapper;
+import junitx.util.PrivateAccessor;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class HttpCacheRequestFilterTest {
+
+    @Mock
+    private HttpCacheEngine cacheEngine;
+
+    @Mock
+    private HttpCacheConfig cacheConfig;
+
+    @Mock
+    private SlingHttpServletRequest request;
+
+    @Mock
+    private SlingHttpServletResponse response;
+
+    @Mock
+    private HttpCacheServletResponseWrapper wrappedResponse;
+
+    @Mock
+    private FilterChain chain;
+
+    private final HttpCacheRequestFilter filter = new HttpCacheRequestFilter();
+
+    @Before
+    public void setUp() throws Exception {
+        PrivateAccessor.setField(filter, "cacheEngine", cacheEngine);
+        when(cacheEngine.getCacheConfig(request, HttpCacheConfig.FilterScope.REQUEST)).thenReturn(cacheConfig);
+        when(cacheEngine.isRequestCacheable(request, cacheConfig)).thenReturn(true);
+        when(cacheEngine.wrapResponse(request, response, cacheConfig)).thenReturn(wrappedResponse);
+    }
+
+    @Test
+    public void test_in_flight_request_released_when_chain_fails() throws Exception {
+        doThrow(new ServletException("rendering failed")).when(chain).doFilter(eq(request), eq(wrappedResponse));
+
+        try {
+            filter.doFilter(request, response, chain);
+            fail("The exception of the filter chain is expected to propagate");
+        } catch (ServletException e) {
+            // expected
+        }
+
+        verify(cacheEngine, never()).cacheResponse(any(SlingHttpServletRequest.class),
+                any(SlingHttpServletResponse.class), any(HttpCacheConfig.class));
+        verify(cacheEngine).releaseInFlight(request, cacheConfig);
+    }
+
+    @Test
+    public void test_in_flight_request_released_after_caching() throws Exception {
+        filter.doFilter(request, response, chain);
+
+        verify(chain).doFilter(any(ServletRequest.class), any(ServletResponse.class));
+        verify(cacheEngine).cacheResponse(request, wrappedResponse, cacheConfig);
+        verify(cacheEngine).releaseInFlight(request, cacheConfig);
+    }
+
+    @Test
+    public void test_cache_hit_does_not_release() throws Exception {
+        when(cacheEngine.isCacheHit(request, cacheConfig)).thenReturn(true);
+        when(cacheEngine.deliverCacheContent(request, response, cacheConfig)).thenReturn(true);
+
+        filter.doFilter(request, response, chain);
+
+        verify(cacheEngine, never()).releaseInFlight(request, cacheConfig);
+    }
+}
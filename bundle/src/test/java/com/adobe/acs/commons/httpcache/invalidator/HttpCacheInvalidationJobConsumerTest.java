@@ -0,0 +1,184 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2015 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.httpcache.invalidator;
+
+import com.adobe.acs.commons.httpcache.engine.HttpCacheEngine;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.event.jobs.Job;
+import org.apache.sling.event.jobs.consumer.JobConsumer;
+import org.apache.sling.event.jobs.consumer.JobConsumer.AsyncHandler;
+import org.apache.sling.event.jobs.consumer.JobConsumer.JobResult;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class HttpCacheInvalidationJobConsumerTest {
+
+    private static final long LONG_WINDOW = 60000L;
+
+    @Mock
+    private HttpCacheEngine httpCacheEngine;
+
+    @Mock
+    private ResourceResolverFactory resolverFactory;
+
+    @InjectMocks
+    private HttpCacheInvalidationJobConsumer consumer;
+
+    @Before
+    public void setUp() {
+        when(httpCacheEngine.isPathPotentialToInvalidate(anyString())).thenReturn(true);
+    }
+
+    @After
+    public void tearDown() {
+        consumer.deactivate();
+    }
+
+    @Test
+    public void test_jobs_are_batched() throws Exception {
+        activate(LONG_WINDOW, 1000);
+        AsyncHandler first = mock(AsyncHandler.class);
+        AsyncHandler second = mock(AsyncHandler.class);
+
+        assertEquals(JobResult.ASYNC, consumer.process(job(first, "/content/a")));
+        assertEquals(JobResult.ASYNC, consumer.process(job(second, null, "/content/a", "/content/b")));
+        assertEquals(2, consumer.getQueuedJobCount());
+        assertEquals(3, consumer.getQueuedPathCount());
+        verify(httpCacheEngine, never()).invalidateCache(anyCollectionOf(String.class));
+
+        consumer.flush();
+
+        verify(httpCacheEngine).invalidateCache(Arrays.asList("/content/a", "/content/b"));
+        verify(first).ok();
+        verify(second).ok();
+        assertEquals(0, consumer.getQueuedJobCount());
+        assertEquals(0, consumer.getQueuedPathCount());
+        assertEquals(1, consumer.getBatchCount());
+        assertEquals(2, consumer.getBatchedJobCount());
+        assertEquals(2, consumer.getLastBatchSize());
+        assertEquals(2.0, consumer.getAverageBatchSize(), 0.0);
+    }
+
+    @Test
+    public void test_full_batch_is_processed_right_away() throws Exception {
+        activate(LONG_WINDOW, 2);
+        AsyncHandler handler = mock(AsyncHandler.class);
+
+        consumer.process(job(handler, "/content/a"));
+        consumer.process(job(handler, "/content/b"));
+
+        verify(httpCacheEngine, timeout(5000)).invalidateCache(Arrays.asList("/content/a", "/content/b"));
+        verify(handler, timeout(5000).times(2)).ok();
+        assertEquals(2, consumer.getMaxBatchSize());
+    }
+
+    @Test
+    public void test_deactivate_processes_queued_jobs() throws Exception {
+        activate(LONG_WINDOW, 1000);
+        AsyncHandler handler = mock(AsyncHandler.class);
+        consumer.process(job(handler, "/content/a"));
+
+        consumer.deactivate();
+
+        verify(httpCacheEngine).invalidateCache(Collections.singletonList("/content/a"));
+        verify(handler).ok();
+    }
+
+    @Test
+    public void test_failed_batch_is_retried() throws Exception {
+        activate(LONG_WINDOW, 1000);
+        doThrow(new IllegalStateException("store unavailable"))
+                .when(httpCacheEngine).invalidateCache(anyCollectionOf(String.class));
+        AsyncHandler handler = mock(AsyncHandler.class);
+        consumer.process(job(handler, "/content/a"));
+
+        consumer.flush();
+
+        verify(handler).failed();
+        verify(handler, never()).ok();
+    }
+
+    @Test
+    public void test_without_batching() throws Exception {
+        activate(0L, 1000);
+        AsyncHandler handler = mock(AsyncHandler.class);
+
+        assertEquals(JobResult.OK, consumer.process(job(handler, "/content/a")));
+
+        verify(httpCacheEngine).invalidateCache(Collections.singletonList("/content/a"));
+        assertEquals(1, consumer.getBatchCount());
+    }
+
+    @Test
+    public void test_paths_not_of_interest_are_skipped() throws Exception {
+        activate(0L, 1000);
+        when(httpCacheEngine.isPathPotentialToInvalidate("/var/audit")).thenReturn(false);
+
+        assertEquals(JobResult.OK, consumer.process(job(null, "/var/audit")));
+
+        verify(httpCacheEngine, never()).invalidateCache(anyCollectionOf(String.class));
+    }
+
+    @Test
+    public void test_job_without_path() {
+        activate(LONG_WINDOW, 1000);
+
+        assertEquals(JobResult.CANCEL, consumer.process(job(mock(AsyncHandler.class), null)));
+    }
+
+    private void activate(long batchWindow, int maxBatchSize) {
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("httpcache.config.invalidation.batch.window", batchWindow);
+        properties.put("httpcache.config.invalidation.batch.maxsize", maxBatchSize);
+        consumer.activate(properties);
+    }
+
+    private static Job job(AsyncHandler handler, String path, String... paths) {
+        Job job = mock(Job.class);
+        when(job.getProperty(CacheInvalidationJobConstants.PAYLOAD_KEY_DATA_CHANGE_PATH, String.class)).thenReturn(path);
+        if (paths.length > 0) {
+            when(job.getProperty(CacheInvalidationJobConstants.PAYLOAD_KEY_DATA_CHANGE_PATHS, String[].class))
+                    .thenReturn(paths);
+        }
+        when(job.getProperty(JobConsumer.PROPERTY_JOB_ASYNC_HANDLER, AsyncHandler.class)).thenReturn(handler);
+        return job;
+    }
+}
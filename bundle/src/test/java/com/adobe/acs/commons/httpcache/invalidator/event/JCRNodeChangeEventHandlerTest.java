@@ -22,6 +22,7 @@ package com.adobe.acs.commons.httpcache.invalidator.event;
 import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
 
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Map;
 
@@ -35,6 +36,7 @@ import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 import org.osgi.service.event.Event;
@@ -99,4 +101,20 @@ public class JCRNodeChangeEventHandlerTest {
     verify(jobManager).addJob(CacheInvalidationJobConstants.TOPIC_HTTP_CACHE_INVALIDATION_JOB, expectedPayload);
   }
 
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testObservationOfSeveralPaths() {
+    aemContext.registerInjectActivateService(eventHandler, ResourceChangeListener.PATHS, new String[] {"/content", "/etc"});
+
+    eventHandler.onChange(Arrays.asList(
+        new ResourceChange(ChangeType.CHANGED, DUMMY_PATH, false, null, null, null),
+        new ResourceChange(ChangeType.ADDED, DUMMY_PATH + "/child", false, null, null, null),
+        new ResourceChange(ChangeType.CHANGED, DUMMY_PATH, false, null, null, null)));
+
+    ArgumentCaptor<Map> payload = ArgumentCaptor.forClass(Map.class);
+    verify(jobManager).addJob(eq(CacheInvalidationJobConstants.TOPIC_HTTP_CACHE_INVALIDATION_JOB), payload.capture());
+    assertArrayEquals(new String[] {DUMMY_PATH, DUMMY_PATH + "/child"},
+        (String[]) payload.getValue().get(CacheInvalidationJobConstants.PAYLOAD_KEY_DATA_CHANGE_PATHS));
+  }
+
 }
@@ -0,0 +1,330 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2019 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.httpcache.store.disk.impl;
+
+import com.adobe.acs.commons.httpcache.engine.CacheContent;
+import com.adobe.acs.commons.httpcache.engine.HttpCacheServletResponseWrapper;
+import com.adobe.acs.commons.httpcache.keys.CacheKey;
+import com.adobe.acs.commons.httpcache.store.TempSink;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DiskHttpCacheStoreImplTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Map<String, Object> properties = new HashMap<>();
+    private DiskHttpCacheStoreImpl systemUnderTest;
+
+    @Before
+    public void init() throws Exception {
+        properties.put("httpcache.cachestore.diskcache.path", folder.getRoot().getAbsolutePath());
+        properties.put("httpcache.cachestore.diskcache.maxsize", 1L);
+        systemUnderTest = activate();
+    }
+
+    @After
+    public void tearDown() {
+        systemUnderTest.deactivate();
+    }
+
+    @Test
+    public void test_put_and_get() throws Exception {
+        TestCacheKey key = new TestCacheKey("/content/page.html", "/content/page");
+        systemUnderTest.put(key, content("<html>hello</html>"));
+
+        assertTrue(systemUnderTest.contains(key));
+        assertEquals(1, systemUnderTest.size());
+
+        CacheContent retrieved = systemUnderTest.getIfPresent(key);
+        assertEquals(201, retrieved.getStatus());
+        assertEquals("text/html", retrieved.getContentType());
+        assertEquals("UTF-8", retrieved.getCharEncoding());
+        assertEquals(HttpCacheServletResponseWrapper.ResponseWriteMethod.OUTPUTSTREAM, retrieved.getWriteMethod());
+        assertEquals(Collections.singletonList("bar"), retrieved.getHeaders().get("X-Foo"));
+        assertEquals("<html>hello</html>", IOUtils.toString(retrieved.getInputDataStream(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void test_entries_survive_restart() throws Exception {
+        TestCacheKey kept = new TestCacheKey("/content/kept.html", "/content/kept");
+        TestCacheKey removed = new TestCacheKey("/content/removed.html", "/content/removed");
+        systemUnderTest.put(kept, content("kept"));
+        systemUnderTest.put(removed, content("removed"));
+        systemUnderTest.put(kept, content("kept again"));
+
+        systemUnderTest.invalidate(new TestCacheKey("/content/removed.html", "/content/removed"));
+        assertFalse(systemUnderTest.contains(removed));
+
+        systemUnderTest.deactivate();
+        systemUnderTest = activate();
+
+        assertEquals(1, systemUnderTest.size());
+        assertFalse(systemUnderTest.contains(removed));
+        assertEquals("kept again", IOUtils.toString(systemUnderTest.getIfPresent(kept).getInputDataStream(),
+                StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void test_expired_entries_are_not_served() throws Exception {
+        TestCacheKey key = new TestCacheKey("/content/page.html", "/content/page");
+        key.expiry = 1L;
+        systemUnderTest.put(key, content("short lived"));
+
+        Thread.sleep(5L);
+
+        assertNull(systemUnderTest.getIfPresent(key));
+        assertEquals(0, systemUnderTest.size());
+    }
+
+    @Test
+    public void test_oldest_segments_are_evicted() throws Exception {
+        String body = StringUtils.repeat("x", 100 * 1024);
+        for (int i = 0; i < 20; i++) {
+            systemUnderTest.put(new TestCacheKey("/content/page" + i + ".html", "/content/page" + i), content(body));
+        }
+
+        assertTrue(systemUnderTest.size() < 20);
+        assertTrue(systemUnderTest.contains(new TestCacheKey("/content/page19.html", "/content/page19")));
+        assertFalse(systemUnderTest.contains(new TestCacheKey("/content/page0.html", "/content/page0")));
+    }
+
+    @Test
+    public void test_compaction_keeps_live_entries() throws Exception {
+        String body = StringUtils.repeat("x", 100 * 1024);
+        for (int i = 0; i < 6; i++) {
+            systemUnderTest.put(new TestCacheKey("/content/page" + i + ".html", "/content/page" + i), content(body));
+        }
+        int segmentsBefore = systemUnderTest.getSegmentCount();
+        for (int i = 0; i < 5; i++) {
+            systemUnderTest.invalidate(new TestCacheKey("/content/page" + i + ".html", "/content/page" + i));
+        }
+
+        systemUnderTest.compactSegments();
+
+        assertTrue(systemUnderTest.getSegmentCount() <= segmentsBefore);
+        TestCacheKey survivor = new TestCacheKey("/content/page5.html", "/content/page5");
+        assertEquals(body, IOUtils.toString(systemUnderTest.getIfPresent(survivor).getInputDataStream(),
+                StandardCharsets.UTF_8));
+
+        systemUnderTest.deactivate();
+        systemUnderTest = activate();
+        assertEquals(1, systemUnderTest.size());
+        assertTrue(systemUnderTest.contains(survivor));
+    }
+
+    @Test
+    public void test_invalidate_all() throws Exception {
+        systemUnderTest.put(new TestCacheKey("/content/a.html", "/content/a"), content("a"));
+        systemUnderTest.put(new TestCacheKey("/content/b.html", "/content/b"), content("b"));
+
+        systemUnderTest.invalidateAll();
+        assertEquals(0, systemUnderTest.size());
+
+        systemUnderTest.deactivate();
+        systemUnderTest = activate();
+        assertEquals(0, systemUnderTest.size());
+    }
+
+    @Test
+    public void test_slow_put_does_not_block_other_puts() throws Exception {
+        final CountDownLatch reading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final InputStream slowBody = new ByteArrayInputStream("slow".getBytes(StandardCharsets.UTF_8)) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                reading.countDown();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.read(b, off, len);
+            }
+        };
+        final TestCacheKey slowKey = new TestCacheKey("/content/slow.html", "/content/slow");
+        final TestCacheKey fastKey = new TestCacheKey("/content/fast.html", "/content/fast");
+
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final Future<?> slowPut = executor.submit(() -> {
+                systemUnderTest.put(slowKey, new CacheContent(200, "UTF-8", "text/html",
+                        Collections.<String, List<String>>emptyMap(), slowBody,
+                        HttpCacheServletResponseWrapper.ResponseWriteMethod.OUTPUTSTREAM));
+                return null;
+            });
+            assertTrue(reading.await(5, TimeUnit.SECONDS));
+
+            executor.submit(() -> {
+                systemUnderTest.put(fastKey, content("fast"));
+                return null;
+            }).get(5, TimeUnit.SECONDS);
+            assertTrue(systemUnderTest.contains(fastKey));
+            assertFalse(systemUnderTest.contains(slowKey));
+
+            release.countDown();
+            slowPut.get(5, TimeUnit.SECONDS);
+            assertEquals("slow", IOUtils.toString(systemUnderTest.getIfPresent(slowKey).getInputDataStream(),
+                    StandardCharsets.UTF_8));
+        } finally {
+            release.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void test_deleted_segments_are_released_after_their_last_reader() throws Exception {
+        String body = StringUtils.repeat("x", 100 * 1024);
+        for (int i = 0; i < 4; i++) {
+            systemUnderTest.put(new TestCacheKey("/content/page" + i + ".html", "/content/page" + i), content(body));
+        }
+        File firstSegment = new File(new File(folder.getRoot(), "segments"), DiskCacheSegment.fileName(0));
+        InputStream reader = systemUnderTest.getIfPresent(new TestCacheKey("/content/page0.html", "/content/page0"))
+                .getInputDataStream();
+
+        systemUnderTest.invalidateAll();
+
+        // the mapping stays readable for the reader which was already streaming it
+        assertTrue(firstSegment.exists());
+        assertEquals(body, IOUtils.toString(reader, StandardCharsets.UTF_8));
+        assertFalse(firstSegment.exists());
+    }
+
+    @Test
+    public void test_streams_of_the_active_segment_survive_invalidation_and_close() throws Exception {
+        String body = StringUtils.repeat("x", 10 * 1024);
+        TestCacheKey first = new TestCacheKey("/content/first.html", "/content/first");
+        TestCacheKey second = new TestCacheKey("/content/second.html", "/content/second");
+        systemUnderTest.put(first, content(body));
+        systemUnderTest.put(second, content(body));
+        File activeSegment = new File(new File(folder.getRoot(), "segments"), DiskCacheSegment.fileName(0));
+
+        InputStream invalidated = systemUnderTest.getIfPresent(first).getInputDataStream();
+        assertEquals('x', invalidated.read());
+        systemUnderTest.invalidateAll();
+        assertTrue(activeSegment.exists());
+        assertEquals(body.substring(1), IOUtils.toString(invalidated, StandardCharsets.UTF_8));
+        assertFalse(activeSegment.exists());
+
+        systemUnderTest.put(second, content(body));
+        InputStream closed = systemUnderTest.getIfPresent(second).getInputDataStream();
+        systemUnderTest.deactivate();
+        assertEquals(body, IOUtils.toString(closed, StandardCharsets.UTF_8));
+        systemUnderTest = activate();
+    }
+
+    @Test
+    public void test_temp_sink() throws Exception {
+        TempSink sink = systemUnderTest.createTempSink();
+        try (OutputStream out = sink.createOutputStream()) {
+            out.write("spooled".getBytes(StandardCharsets.UTF_8));
+        }
+
+        assertEquals("spooled", IOUtils.toString(sink.createInputStream(), StandardCharsets.UTF_8));
+        assertEquals(7, sink.length());
+    }
+
+    private DiskHttpCacheStoreImpl activate() throws Exception {
+        DiskHttpCacheStoreImpl store = new DiskHttpCacheStoreImpl();
+        store.activate(null, properties);
+        return store;
+    }
+
+    private CacheContent content(String body) {
+        Map<String, List<String>> headers = new HashMap<>();
+        headers.put("X-Foo", Collections.singletonList("bar"));
+        return new CacheContent(201, "UTF-8", "text/html", headers,
+                new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)),
+                HttpCacheServletResponseWrapper.ResponseWriteMethod.OUTPUTSTREAM);
+    }
+
+    private static class TestCacheKey implements CacheKey {
+        private final String uri;
+        private final String hierarchyResourcePath;
+        private long expiry = -1L;
+
+        TestCacheKey(String uri, String hierarchyResourcePath) {
+            this.uri = uri;
+            this.hierarchyResourcePath = hierarchyResourcePath;
+        }
+
+        @Override
+        public String getUri() {
+            return uri;
+        }
+
+        @Override
+        public String getHierarchyResourcePath() {
+            return hierarchyResourcePath;
+        }
+
+        @Override
+        public long getExpiryForCreation() {
+            return expiry;
+        }
+
+        @Override
+        public boolean isInvalidatedBy(CacheKey cacheKey) {
+            return StringUtils.equals(hierarchyResourcePath, cacheKey.getHierarchyResourcePath());
+        }
+
+        @Override
+        public int hashCode() {
+            return uri.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof TestCacheKey && uri.equals(((TestCacheKey) o).uri);
+        }
+
+        @Override
+        public String toString() {
+            return uri;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2015 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.httpcache.store.mem.impl;
+
+import com.adobe.acs.commons.httpcache.keys.CacheKey;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class CacheKeyInvalidationBatchTest {
+
+    @Test
+    public void test_invalidates_keys_on_the_same_path() {
+        CacheKeyInvalidationBatch batch = new CacheKeyInvalidationBatch(Arrays.asList(
+                key("/content/site/page"), key("/content/other/")));
+
+        assertTrue(batch.invalidates(key("/content/site/page")));
+        assertTrue("paths are normalized", batch.invalidates(key("/content/other")));
+        assertFalse(batch.invalidates(key("/content/site")));
+        assertFalse(batch.invalidates(key("/content/site/page/child")));
+        assertFalse(batch.invalidates(key(null)));
+    }
+
+    @Test
+    public void test_checks_related_invalidation_keys() {
+        CacheKeyInvalidationBatch batch = new CacheKeyInvalidationBatch(Arrays.asList(
+                key("/content/site"), key("/content/other/page")));
+
+        // Keys invalidated by any invalidation key, as far as the index relates them.
+        assertTrue("ancestor", batch.invalidates(greedyKey("/content/site/page")));
+        assertTrue("descendant", batch.invalidates(greedyKey("/content/other")));
+        assertTrue("root", batch.invalidates(greedyKey("/")));
+        assertTrue("no path", batch.invalidates(greedyKey(null)));
+        assertFalse("unrelated", batch.invalidates(greedyKey("/content/sites")));
+    }
+
+    @Test
+    public void test_invalidation_key_without_path() {
+        CacheKey invalidationKey = key(null);
+        CacheKey cachedKey = key("/content/site/page");
+        when(cachedKey.isInvalidatedBy(invalidationKey)).thenReturn(true);
+
+        assertTrue(new CacheKeyInvalidationBatch(Collections.singletonList(invalidationKey)).invalidates(cachedKey));
+    }
+
+    /**
+     * Key invalidated by a key of the same hierarchy resource path, like the default cache keys.
+     */
+    private static CacheKey key(String path) {
+        CacheKey key = mock(CacheKey.class);
+        when(key.getHierarchyResourcePath()).thenReturn(path);
+        when(key.isInvalidatedBy(any(CacheKey.class))).thenAnswer(invocation -> {
+            String invalidatedPath = ((CacheKey) invocation.getArguments()[0]).getHierarchyResourcePath();
+            return path != null && invalidatedPath != null
+                    && CacheKeyPathIndex.normalize(path).equals(CacheKeyPathIndex.normalize(invalidatedPath));
+        });
+        return key;
+    }
+
+    /**
+     * Key invalidated by any key.
+     */
+    private static CacheKey greedyKey(String path) {
+        CacheKey key = mock(CacheKey.class);
+        when(key.getHierarchyResourcePath()).thenReturn(path);
+        when(key.isInvalidatedBy(any(CacheKey.class))).thenReturn(true);
+        return key;
+    }
+}
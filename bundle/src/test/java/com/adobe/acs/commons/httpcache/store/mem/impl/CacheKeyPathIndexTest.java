@@ -0,0 +1,135 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2019 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.httpcache.store.mem.impl;
+
+import com.adobe.acs.commons.httpcache.keys.CacheKey;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class CacheKeyPathIndexTest {
+
+    private final CacheKeyPathIndex index = new CacheKeyPathIndex();
+
+    @Test
+    public void test_candidates() {
+        CacheKey content = key("/content");
+        CacheKey page = key("/content/site/page");
+        CacheKey child = key("/content/site/page/jcr:content/par");
+        CacheKey sibling = key("/content/site/other");
+        CacheKey unindexed = key(null);
+
+        index.add(content, k -> true);
+        index.add(page, k -> true);
+        index.add(child, k -> true);
+        index.add(sibling, k -> true);
+        index.add(unindexed, k -> true);
+        assertEquals(5, index.size());
+
+        Collection<CacheKey> candidates = index.getCandidates(key("/content/site/page"));
+        assertEquals(4, candidates.size());
+        assertTrue(candidates.contains(content));
+        assertTrue(candidates.contains(page));
+        assertTrue(candidates.contains(child));
+        assertTrue(candidates.contains(unindexed));
+        assertFalse(candidates.contains(sibling));
+
+        candidates = index.getCandidates(key("/etc/unknown"));
+        assertEquals(1, candidates.size());
+        assertTrue(candidates.contains(unindexed));
+
+        assertNull("no path means every key is a candidate", index.getCandidates(key(null)));
+    }
+
+    @Test
+    public void test_batch_candidates() {
+        CacheKey content = key("/content");
+        CacheKey page = key("/content/site/page");
+        CacheKey child = key("/content/site/page/child");
+        CacheKey sibling = key("/content/site/other");
+        CacheKey unrelated = key("/etc/designs");
+        CacheKey unindexed = key(null);
+        for (CacheKey key : Arrays.asList(content, page, child, sibling, unrelated, unindexed)) {
+            index.add(key, k -> true);
+        }
+
+        Collection<CacheKey> candidates = index.getCandidates(Arrays.asList(key("/content/site/page"),
+                key("/content/site/page/child"), key("/content/site/other")));
+        assertEquals(new HashSet<>(Arrays.asList(content, page, child, sibling, unindexed)),
+                new HashSet<>(candidates));
+        assertEquals("each candidate once", 5, candidates.size());
+
+        assertNull("no path means every key is a candidate",
+                index.getCandidates(Arrays.asList(key("/content/site/page"), key(null))));
+    }
+
+    @Test
+    public void test_add_skips_keys_no_longer_cached() {
+        index.add(key("/content/page"), k -> false);
+
+        assertEquals(0, index.size());
+        assertTrue(index.getCandidates(key("/content/page")).isEmpty());
+    }
+
+    @Test
+    public void test_remove() {
+        CacheKey page = key("/content/site/page");
+        CacheKey child = key("/content/site/page/child");
+        index.add(page, k -> true);
+        index.add(child, k -> true);
+
+        index.remove(child, k -> true);
+        assertEquals("key cached again is kept", 2, index.size());
+
+        index.remove(child, k -> false);
+        assertEquals(1, index.size());
+        assertFalse(index.getCandidates(key("/content/site/page/child")).contains(child));
+
+        index.remove(page, k -> false);
+        assertEquals(0, index.size());
+        assertTrue(index.getCandidates(key("/content")).isEmpty());
+    }
+
+    @Test
+    public void test_clear() {
+        index.add(key("/content/page"), k -> true);
+        index.add(key(null), k -> true);
+
+        index.clear();
+
+        assertEquals(0, index.size());
+        assertTrue(index.getCandidates(key("/content")).isEmpty());
+    }
+
+    private static CacheKey key(String path) {
+        CacheKey key = mock(CacheKey.class);
+        when(key.getHierarchyResourcePath()).thenReturn(path);
+        return key;
+    }
+}
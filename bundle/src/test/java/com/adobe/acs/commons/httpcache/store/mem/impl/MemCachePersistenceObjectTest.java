@@ -0,0 +1,139 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2019 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.httpcache.store.mem.impl;
+
+import com.adobe.acs.commons.httpcache.engine.HttpCacheServletResponseWrapper;
+import com.adobe.acs.commons.httpcache.exception.HttpCacheDataStreamException;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class MemCachePersistenceObjectTest {
+
+    private final MemSlabPool pool = new MemSlabPool(MemSlabPool.BLOCK_SIZE * MemSlabPool.BLOCKS_PER_SLAB);
+
+    @Test
+    public void test_off_heap_body() throws Exception {
+        byte[] body = body(3 * MemSlabPool.BLOCK_SIZE + 17);
+        MemCachePersistenceObject value = build(body, "application/octet-stream", Collections.emptyMap(), false);
+
+        assertTrue(value.isOffHeap());
+        assertFalse(value.isGzipped());
+        assertEquals(body.length, value.getBodySize());
+        assertArrayEquals(body, value.getBytes());
+        assertArrayEquals(body, IOUtils.toByteArray(value.getInputStream()));
+        assertEquals(MemCachePersistenceObject.ENTRY_OVERHEAD + 4L * MemSlabPool.BLOCK_SIZE, value.getWeight());
+        assertEquals("all but the 4 blocks in use are free", MemSlabPool.BLOCKS_PER_SLAB - 4, pool.getFreeBlockCount());
+    }
+
+    @Test
+    public void test_release_waits_for_open_streams() throws Exception {
+        byte[] body = body(MemSlabPool.BLOCK_SIZE + 1);
+        MemCachePersistenceObject value = build(body, "application/octet-stream", Collections.emptyMap(), false);
+        int freeBlocks = pool.getFreeBlockCount();
+
+        InputStream delivering = value.getInputStream();
+        value.release();
+        assertEquals("blocks in use by a stream are not recycled", freeBlocks, pool.getFreeBlockCount());
+        assertArrayEquals(body, IOUtils.toByteArray(delivering));
+
+        // Fully reading the stream hands the blocks back, closing it again is harmless.
+        assertEquals(freeBlocks + 2, pool.getFreeBlockCount());
+        delivering.close();
+        assertEquals(freeBlocks + 2, pool.getFreeBlockCount());
+        assertNull("released body cannot be opened again", value.getInputStream());
+    }
+
+    @Test
+    public void test_gzip_body() throws Exception {
+        byte[] body = text(4096);
+        MemCachePersistenceObject value = build(body, "text/html", Collections.emptyMap(), true);
+
+        assertTrue(value.isGzipped());
+        assertTrue(value.isOffHeap());
+        assertTrue(value.getBodySize() < body.length);
+        assertArrayEquals(body, value.getBytes());
+        assertArrayEquals(body, IOUtils.toByteArray(new GZIPInputStream(value.getGzipInputStream())));
+    }
+
+    @Test
+    public void test_gzip_skipped() throws Exception {
+        assertFalse("binary content", build(text(4096), "image/png", Collections.emptyMap(), true).isGzipped());
+        assertFalse("too small", build(text(100), "text/html", Collections.emptyMap(), true).isGzipped());
+        assertFalse("already encoded", build(text(4096), "text/html",
+                Collections.singletonMap("content-encoding", Collections.singletonList("br")), true).isGzipped());
+
+        MemCachePersistenceObject value = build(text(4096), "text/html", Collections.emptyMap(), false);
+        assertFalse(value.isGzipped());
+        assertNull(value.getGzipInputStream());
+    }
+
+    @Test
+    public void test_headers_interned() throws Exception {
+        Map<String, List<String>> headers = Collections.singletonMap(new String("Cache-Control"),
+                Arrays.asList(new String("max-age=300"), "public"));
+
+        MemCachePersistenceObject first = build(text(10), "text/html", headers, false);
+        MemCachePersistenceObject second = build(text(10), "text/html", headers, false);
+
+        assertEquals(2, first.getHeaders().get("Cache-Control").size());
+        assertSame(first.headers.keySet().iterator().next(), second.headers.keySet().iterator().next());
+        assertEquals(MemCachePersistenceObject.ENTRY_OVERHEAD + MemSlabPool.BLOCK_SIZE
+                + 2 * MemCachePersistenceObject.HEADER_OVERHEAD, first.getWeight());
+    }
+
+    private MemCachePersistenceObject build(byte[] body, String contentType, Map<String, List<String>> headers,
+                                            boolean gzip) throws HttpCacheDataStreamException {
+        return new MemCachePersistenceObject().buildForCaching(200, "utf-8", contentType, headers,
+                new ByteArrayInputStream(body), HttpCacheServletResponseWrapper.ResponseWriteMethod.OUTPUTSTREAM,
+                pool, gzip);
+    }
+
+    private static byte[] body(int length) {
+        byte[] body = new byte[length];
+        for (int i = 0; i < length; i++) {
+            body[i] = (byte) (i * 31);
+        }
+        return body;
+    }
+
+    private static byte[] text(int length) {
+        StringBuilder text = new StringBuilder();
+        while (text.length() < length) {
+            text.append("<p>cached content</p>");
+        }
+        return text.substring(0, length).getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -45,6 +45,8 @@ import java.util.Map;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
@@ -154,4 +156,40 @@ public class MemHttpCacheStoreImplTest {
         TabularData data = systemUnderTest.getCacheStats();
         assertEquals(12, data.size());
     }
+
+    @Test
+    public void test_invalidate_with_stale_grace_period() throws HttpCacheDataStreamException {
+        properties.put("httpcache.cachestore.memcache.stale.grace", 60L);
+        systemUnderTest.activate(properties);
+
+        CacheKey key = mock(CacheKey.class);
+        when(key.isInvalidatedBy(key)).thenReturn(true);
+        CacheContent content = mock(CacheContent.class);
+        when(content.getInputDataStream()).thenReturn(getClass().getResourceAsStream("cachecontent.html"));
+        systemUnderTest.put(key, content);
+
+        systemUnderTest.invalidate(key);
+
+        assertFalse("invalidated entry is no hit", systemUnderTest.contains(key));
+        assertNull(systemUnderTest.getIfPresent(key));
+        assertNotNull("invalidated entry is served stale", systemUnderTest.getStaleIfPresent(key));
+
+        when(content.getInputDataStream()).thenReturn(getClass().getResourceAsStream("cachecontent.html"));
+        systemUnderTest.put(key, content);
+        assertTrue("refreshed entry is a hit again", systemUnderTest.contains(key));
+    }
+
+    @Test
+    public void test_invalidate_without_stale_grace_period() throws HttpCacheDataStreamException {
+        CacheKey key = mock(CacheKey.class);
+        when(key.isInvalidatedBy(key)).thenReturn(true);
+        CacheContent content = mock(CacheContent.class);
+        when(content.getInputDataStream()).thenReturn(getClass().getResourceAsStream("cachecontent.html"));
+        systemUnderTest.put(key, content);
+
+        systemUnderTest.invalidate(key);
+
+        assertEquals(0, systemUnderTest.size());
+        assertNull(systemUnderTest.getStaleIfPresent(key));
+    }
 }
@@ -0,0 +1,165 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2015 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.images.impl;
+
+import com.day.cq.dam.api.Asset;
+import com.day.cq.wcm.foundation.Image;
+import io.wcm.testing.mock.aem.junit.AemContext;
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.api.wrappers.ValueMapDecorator;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SourceRenditionSelectorTest {
+
+    private static final String ASSET_PATH = "/content/dam/image.png";
+
+    private static final String IMAGE_PATH = "/content/page/jcr:content/image";
+
+    @Rule
+    public final AemContext context = new AemContext();
+
+    private final SourceRenditionSelector selector = new SourceRenditionSelector(1);
+
+    private Asset asset;
+
+    @Before
+    public void setUp() {
+        asset = context.create().asset(ASSET_PATH, 2000, 1000, "image/png");
+    }
+
+    @Test
+    public void testTargetOfResize() {
+        SourceRenditionSelector.Target target = SourceRenditionSelector.getTarget(
+                transforms("resize", params("width", 300)), 2000, 1000);
+
+        assertEquals(300, target.getWidth());
+        assertEquals(150, target.getHeight());
+        assertEquals(300, (int) target.getTransforms().get("resize", ValueMap.class).get("width", Integer.class));
+        assertEquals(150, (int) target.getTransforms().get("resize", ValueMap.class).get("height", Integer.class));
+    }
+
+    @Test
+    public void testTargetOfScaleKeepsOrder() {
+        ValueMap transforms = transforms("greyscale", params(), "scale", params("scale", "0.25"),
+                "sharpen", params());
+        SourceRenditionSelector.Target target = SourceRenditionSelector.getTarget(transforms, 2000, 1000);
+
+        assertEquals(500, target.getWidth());
+        assertEquals(250, target.getHeight());
+        assertEquals(Arrays.asList("greyscale", "resize", "sharpen"),
+                new ArrayList<>(target.getTransforms().keySet()));
+    }
+
+    @Test
+    public void testTargetOfChangedAspectRatio() {
+        SourceRenditionSelector.Target target = SourceRenditionSelector.getTarget(
+                transforms("resize", params("width", 300, "height", 300)), 2000, 1000);
+
+        assertEquals(600, target.getWidth());
+        assertEquals(300, target.getHeight());
+    }
+
+    @Test
+    public void testNoTarget() {
+        // Crop depends on the size of the source
+        assertNull(SourceRenditionSelector.getTarget(
+                transforms("crop", params("bounds", "0,0,100,100"), "resize", params("width", 50)), 2000, 1000));
+        // Bounded resize does not upscale
+        assertNull(SourceRenditionSelector.getTarget(
+                transforms("bounded-resize", params("width", 3000, "height", 3000)), 2000, 1000));
+        // The resize replacing the bounded resize would collide with the later resize
+        assertNull(SourceRenditionSelector.getTarget(transforms("bounded-resize", params("width", 300),
+                "resize", params("width", 100)), 2000, 1000));
+        // Nothing resizes
+        assertNull(SourceRenditionSelector.getTarget(transforms("greyscale", params()), 2000, 1000));
+    }
+
+    @Test
+    public void testSelectSmallestSufficientRendition() throws Exception {
+        context.create().assetRendition(asset, "cq5dam.web.1280.1280.png", 1280, 640, "image/png");
+        context.create().assetRendition(asset, "cq5dam.thumbnail.319.319.png", 319, 160, "image/png");
+        context.create().assetRendition(asset, "cq5dam.thumbnail.48.48.png", 48, 24, "image/png");
+        context.create().assetRendition(asset, "custom.300.png", 300, 150, "image/png");
+
+        SourceRenditionSelector.Source source = selector.select(image(), context.resourceResolver(),
+                transforms("resize", params("width", 300)));
+
+        assertEquals(319, source.getLayer().getWidth());
+        assertEquals(160, source.getLayer().getHeight());
+        assertEquals(150, (int) source.getTransforms().get("resize", ValueMap.class).get("height", Integer.class));
+    }
+
+    @Test
+    public void testSelectSubsampledOriginal() throws Exception {
+        SourceRenditionSelector.Source source = selector.select(image(), context.resourceResolver(),
+                transforms("resize", params("width", 200)));
+
+        assertEquals(400, source.getLayer().getWidth());
+        assertEquals(200, source.getLayer().getHeight());
+    }
+
+    @Test
+    public void testSelectNothingForCroppedImage() throws Exception {
+        Image image = new Image(context.create().resource(IMAGE_PATH,
+                Image.PN_REFERENCE, ASSET_PATH, Image.PN_IMAGE_CROP, "0,0,100,100"));
+
+        assertNull(selector.select(image, context.resourceResolver(), transforms("resize", params("width", 200))));
+    }
+
+    @Test
+    public void testLargeDecodeOnlyForLargeOrUnknownImages() {
+        assertFalse(selector.isLargeDecode(image(), context.resourceResolver()));
+
+        context.create().asset("/content/dam/large.png", 3000, 2000, "image/png");
+        Image large = new Image(context.create().resource("/content/page/jcr:content/large",
+                Image.PN_REFERENCE, "/content/dam/large.png"));
+        assertTrue(selector.isLargeDecode(large, context.resourceResolver()));
+
+        Image unknown = new Image(context.create().resource("/content/page/jcr:content/unknown"));
+        assertTrue(selector.isLargeDecode(unknown, context.resourceResolver()));
+    }
+
+    private Image image() {
+        return new Image(context.create().resource(IMAGE_PATH, Image.PN_REFERENCE, ASSET_PATH));
+    }
+
+    private static ValueMap transforms(Object... typesAndParams) {
+        return params(typesAndParams);
+    }
+
+    private static ValueMap params(Object... namesAndValues) {
+        ValueMap params = new ValueMapDecorator(new LinkedHashMap<String, Object>());
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            params.put((String) namesAndValues[i], namesAndValues[i + 1]);
+        }
+        return params;
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2015 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.images.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TransformedImageCacheTest {
+
+    private static final String ASSET = "/content/dam/image.jpg";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final AtomicInteger renderings = new AtomicInteger();
+
+    private TransformedImageCache cache;
+
+    @Before
+    public void setUp() throws IOException {
+        cache = new TransformedImageCache(folder.newFolder("cache"), 10);
+    }
+
+    @Test
+    public void testRenderOnce() throws IOException {
+        assertEquals("abcd", read("a", ASSET, "abcd"));
+        assertEquals("abcd", read("a", ASSET, "other"));
+        assertEquals(1, renderings.get());
+        assertEquals(4, cache.getSize());
+    }
+
+    @Test
+    public void testNoImage() throws IOException {
+        assertNull(cache.open("a", Collections.singleton(ASSET), out -> false));
+        assertEquals(0, cache.getCount());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedImagesAreEvicted() throws IOException {
+        read("a", ASSET, "aaaa");
+        read("b", ASSET, "bbbb");
+        read("a", ASSET, "aaaa");
+        read("c", ASSET, "cccc");
+
+        assertEquals(2, cache.getCount());
+        assertEquals(8, cache.getSize());
+        assertEquals("aaaa", read("a", ASSET, "new"));
+        assertEquals("new", read("b", ASSET, "new"));
+    }
+
+    @Test
+    public void testLargeImagesAreServedButNotCached() throws IOException {
+        assertEquals("0123456789ab", read("a", ASSET, "0123456789ab"));
+        assertEquals(0, cache.getCount());
+    }
+
+    @Test
+    public void testInvalidation() throws IOException {
+        read("a", ASSET + "/jcr:content/renditions/original", "aaaa");
+        read("b", "/content/dam/other.jpg", "bbbb");
+        read("c", "/content/site/page/jcr:content/image", "cccc");
+
+        cache.invalidate(Collections.singleton(ASSET + "/jcr:content/metadata"));
+        assertEquals(2, cache.getCount());
+
+        cache.invalidate(Collections.singleton("/content/site"));
+        assertEquals(1, cache.getCount());
+        assertEquals("bbbb", read("b", "/content/dam/other.jpg", "new"));
+    }
+
+    @Test
+    public void testConcurrentRequestsRenderOnce() throws Exception {
+        final CountDownLatch rendering = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicReference<String> first = new AtomicReference<>();
+        final AtomicReference<String> second = new AtomicReference<>();
+
+        final Thread renderer = new Thread(() -> first.set(readQuietly(cache, () -> {
+            rendering.countDown();
+            release.await();
+        })));
+        renderer.start();
+        rendering.await();
+
+        final Thread waiter = new Thread(() -> second.set(readQuietly(cache, () -> {
+            throw new AssertionError("Image should be rendered only once");
+        })));
+        waiter.start();
+        while (waiter.getState() != Thread.State.WAITING && waiter.isAlive()) {
+            Thread.yield();
+        }
+        release.countDown();
+        renderer.join();
+        waiter.join();
+
+        assertEquals("abcd", first.get());
+        assertEquals("abcd", second.get());
+    }
+
+    @Test
+    public void testFailedRenderingIsNotCached() throws IOException {
+        try {
+            cache.open("a", Collections.singleton(ASSET), out -> {
+                throw new IOException("broken");
+            });
+            fail("Rendering error should be thrown");
+        } catch (IOException e) {
+            assertEquals("broken", e.getMessage());
+        }
+        assertEquals("abcd", read("a", ASSET, "abcd"));
+    }
+
+    private String read(final String key, final String path, final String image) throws IOException {
+        try (InputStream in = cache.open(key, Collections.singleton(path), out -> {
+            renderings.incrementAndGet();
+            out.write(image.getBytes(StandardCharsets.UTF_8));
+            return true;
+        })) {
+            return IOUtils.toString(in, StandardCharsets.UTF_8);
+        }
+    }
+
+    private interface Pause {
+        void await() throws InterruptedException;
+    }
+
+    private static String readQuietly(final TransformedImageCache cache, final Pause pause) {
+        try (InputStream in = cache.open("key", Collections.singleton(ASSET), out -> {
+            try {
+                pause.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            out.write("abcd".getBytes(StandardCharsets.UTF_8));
+            return true;
+        })) {
+            final byte[] image = IOUtils.toByteArray(in);
+            assertArrayEquals("abcd".getBytes(StandardCharsets.UTF_8), image);
+            return new String(image, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2015 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.images.transformers.impl;
+
+import com.day.image.Layer;
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.api.wrappers.ValueMapDecorator;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.util.HashMap;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class FusedColorTransformerTest {
+
+    private static final int WIDTH = 32;
+    private static final int HEIGHT = 16;
+
+    private final RGBShiftImageTransformerImpl rgbShift = new RGBShiftImageTransformerImpl();
+
+    private final MultiplyBlendImageTransformerImpl multiply = new MultiplyBlendImageTransformerImpl();
+
+    private BufferedImage image;
+
+    @Before
+    public void setUp() {
+        final Random random = new Random(42);
+        image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_ARGB);
+        for (int x = 0; x < WIDTH; x++) {
+            for (int y = 0; y < HEIGHT; y++) {
+                image.setRGB(x, y, random.nextInt());
+            }
+        }
+    }
+
+    @Test
+    public void testSameAsChained() {
+        final ValueMap shift = params("red", 0.2, "green", -0.4, "blue", 0.1);
+        final ValueMap blend = params("color", "3399cc", "alpha", 0.6);
+
+        final Layer chained = multiply.transform(rgbShift.transform(new Layer(image), shift), blend);
+
+        final FusedColorTransformer fused = new FusedColorTransformer();
+        assertTrue(fused.add(rgbShift, shift));
+        assertTrue(fused.add(multiply, blend));
+
+        assertArrayEquals(getRGB(chained), getRGB(fused.transform(new Layer(image))));
+        assertTrue(fused.isEmpty());
+    }
+
+    @Test
+    public void testMultiplySameAsChained() {
+        final ValueMap blend = params("red", 200, "green", 10, "blue", 90, "alpha", 0.3);
+
+        final Layer chained = multiply.transform(new Layer(image), blend);
+
+        final FusedColorTransformer fused = new FusedColorTransformer();
+        fused.add(multiply, blend);
+
+        assertArrayEquals(getRGB(chained), getRGB(fused.transform(new Layer(image))));
+    }
+
+    @Test
+    public void testNotFused() {
+        final FusedColorTransformer fused = new FusedColorTransformer();
+
+        assertFalse(fused.add(new GreyscaleImageTransformerImpl(), params()));
+        // Like the transformers themselves, nothing is done without params
+        assertTrue(fused.add(rgbShift, params()));
+        assertTrue(fused.isEmpty());
+
+        final Layer layer = new Layer(image);
+        assertSame(layer, fused.transform(layer));
+    }
+
+    private static int[] getRGB(Layer layer) {
+        return layer.getImage().getRGB(0, 0, WIDTH, HEIGHT, null, 0, WIDTH);
+    }
+
+    private static ValueMap params(Object... namesAndValues) {
+        final ValueMap params = new ValueMapDecorator(new HashMap<String, Object>());
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            params.put((String) namesAndValues[i], namesAndValues[i + 1]);
+        }
+        return params;
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2015 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.mcp.impl;
+
+import com.adobe.acs.commons.fam.Checkpoint;
+import com.adobe.acs.commons.functions.CheckedConsumer;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.testing.mock.sling.ResourceResolverType;
+import org.apache.sling.testing.mock.sling.junit.SlingContext;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class CheckpointJournalTest {
+
+    private static final String INSTANCE = ProcessInstanceImpl.BASE_PATH + "/0123456789ABCDEF";
+
+    @Rule
+    public final SlingContext context = new SlingContext(ResourceResolverType.JCR_MOCK);
+
+    private final AtomicInteger writes = new AtomicInteger();
+
+    @Before
+    public void setup() {
+        context.create().resource(INSTANCE + "/jcr:content");
+    }
+
+    @Test
+    public void encodingRoundTrip() throws Exception {
+        List<String> items = Arrays.asList("/content/dam/b/2.jpg", "/content/dam/b/10.jpg", "/content/dam/a.jpg",
+                "/content/dam/b", "/content/dam/b/10.jpg", "/content/dam/\u00e4\u00f6\u00fc/\u65e5\u672c.png", "");
+
+        List<String> decoded = CheckpointJournal.decode(new ByteArrayInputStream(CheckpointJournal.encode(items)));
+
+        assertEquals(Arrays.asList("", "/content/dam/a.jpg", "/content/dam/b", "/content/dam/b/10.jpg",
+                "/content/dam/b/2.jpg", "/content/dam/\u00e4\u00f6\u00fc/\u65e5\u672c.png"), decoded);
+    }
+
+    @Test
+    public void encodingIsCompact() throws Exception {
+        List<String> items = new ArrayList<>();
+        int rawSize = 0;
+        for (int i = 0; i < 1000; i++) {
+            String item = "/mnt/import/campaigns/2019/summer/images/IMG_" + (100000 + i * 7) + ".jpg";
+            items.add(item);
+            rawSize += item.getBytes(StandardCharsets.UTF_8).length;
+        }
+
+        byte[] encoded = CheckpointJournal.encode(items);
+
+        assertTrue("Encoded size " + encoded.length, encoded.length * 10 < rawSize);
+        assertEquals(1000, CheckpointJournal.decode(new ByteArrayInputStream(encoded)).size());
+    }
+
+    @Test
+    public void itemsAreWrittenInBatches() throws Exception {
+        CheckpointJournal journal = new CheckpointJournal(INSTANCE, 10, this::write);
+        Checkpoint checkpoint = journal.forStep(0);
+        for (int i = 0; i < 25; i++) {
+            checkpoint.completed("/content/item/" + i);
+        }
+        assertEquals(2, writes.get());
+        assertEquals(2, getSegments(0).size());
+
+        journal.stepCompleted(0);
+        journal.forStep(1).completed("/content/other");
+        journal.flush();
+
+        assertEquals(3, getSegments(0).size());
+        assertEquals(1, getSegments(1).size());
+        Resource segment = getSegments(0).get(0);
+        assertEquals("seg000001", segment.getName());
+        assertEquals(Integer.valueOf(10), segment.getValueMap().get(CheckpointJournal.ITEM_COUNT, Integer.class));
+        assertTrue(getStep(0).getValueMap().get(CheckpointJournal.COMPLETED, false));
+        assertFalse(getStep(1).getValueMap().get(CheckpointJournal.COMPLETED, false));
+    }
+
+    @Test
+    public void resumedJournalSkipsCompletedWork() throws Exception {
+        CheckpointJournal journal = new CheckpointJournal(INSTANCE, 10, this::write);
+        for (int i = 0; i < 15; i++) {
+            journal.forStep(0).completed("/content/item/" + i);
+        }
+        journal.stepCompleted(0);
+        journal.forStep(1).completed("/content/item/0");
+        journal.flush();
+
+        CheckpointJournal resumed = new CheckpointJournal(INSTANCE, 10, this::write);
+        resumed.load(context.resourceResolver());
+
+        assertTrue(resumed.isStepCompleted(0));
+        assertFalse(resumed.isStepCompleted(1));
+        assertTrue(resumed.forStep(0).isCompleted("/content/item/14"));
+        assertTrue(resumed.forStep(1).isCompleted("/content/item/0"));
+        assertFalse(resumed.forStep(1).isCompleted("/content/item/1"));
+
+        // Items completed before are not written again, new ones are appended after the existing segments
+        writes.set(0);
+        resumed.forStep(1).completed("/content/item/0");
+        resumed.forStep(1).completed("/content/item/1");
+        resumed.flush();
+        assertEquals(1, writes.get());
+        assertEquals(Arrays.asList("seg000001", "seg000002"), getSegmentNames(1));
+    }
+
+    @Test
+    public void unnumberedNodesAreSkipped() throws Exception {
+        CheckpointJournal journal = new CheckpointJournal(INSTANCE, 10, this::write);
+        journal.forStep(0).completed("/content/item/0");
+        journal.flush();
+        String checkpoints = INSTANCE + "/jcr:content/" + CheckpointJournal.CHECKPOINTS;
+        context.create().resource(checkpoints + "/stepX", CheckpointJournal.COMPLETED, true);
+        context.create().resource(checkpoints + "/step1/segX");
+
+        CheckpointJournal resumed = new CheckpointJournal(INSTANCE, 10, this::write);
+        resumed.load(context.resourceResolver());
+
+        assertTrue(resumed.forStep(0).isCompleted("/content/item/0"));
+        resumed.forStep(0).completed("/content/item/1");
+        resumed.flush();
+        assertTrue(getSegmentNames(0).contains("seg000002"));
+    }
+
+    private void write(CheckedConsumer<ResourceResolver> action) {
+        ResourceResolver rr = context.resourceResolver();
+        try {
+            action.accept(rr);
+            rr.commit();
+            writes.incrementAndGet();
+        } catch (Exception ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private Resource getStep(int step) {
+        Resource resource = context.resourceResolver().getResource(INSTANCE + "/jcr:content/"
+                + CheckpointJournal.CHECKPOINTS + "/step" + (step + 1));
+        assertNotNull(resource);
+        return resource;
+    }
+
+    private List<Resource> getSegments(int step) {
+        List<Resource> segments = new ArrayList<>();
+        getStep(step).getChildren().forEach(segments::add);
+        return segments;
+    }
+
+    private List<String> getSegmentNames(int step) {
+        List<String> names = new ArrayList<>();
+        getSegments(step).forEach(segment -> names.add(segment.getName()));
+        return names;
+    }
+}
@@ -50,6 +50,7 @@ public class ProcessErrorReportExcelServletTest {
         failures = new ArrayList<>();
         process = mock(ManagedProcess.class);
         when(process.getReportedErrorsList()).thenReturn(failures);
+        when(process.streamReportedErrors()).thenAnswer(invocation -> failures.stream());
         when(process.getName()).thenReturn("Test Report");
     }
 
@@ -24,9 +24,11 @@ import org.apache.poi.ss.usermodel.Row;
 import org.apache.poi.ss.usermodel.Sheet;
 import org.apache.poi.ss.usermodel.Workbook;
 import org.apache.poi.ss.usermodel.WorkbookFactory;
+import org.apache.sling.api.resource.ModifiableValueMap;
 import org.apache.sling.resourcebuilder.api.ResourceBuilder;
 import org.apache.sling.testing.mock.sling.ResourceResolverType;
 import org.apache.sling.testing.mock.sling.junit.SlingContext;
+import org.apache.sling.testing.mock.sling.servlet.MockRequestPathInfo;
 import org.apache.sling.testing.mock.sling.servlet.MockSlingHttpServletRequest;
 import org.apache.sling.testing.mock.sling.servlet.MockSlingHttpServletResponse;
 import org.junit.Rule;
@@ -37,6 +39,8 @@ import java.io.ByteArrayInputStream;
 import static org.junit.Assert.assertEquals;
 
 public class TestGenericReportExcelServlet {
+    private static final String REPORT_PATH = "/var/acs-commons/mcp/instances/junit/jcr:content/report";
+
     @Rule
     public final SlingContext slingContext = new SlingContext(ResourceResolverType.RESOURCERESOLVER_MOCK);
     
@@ -80,4 +84,55 @@ public class TestGenericReportExcelServlet {
         }
 
     }
+
+    @Test
+    public void testCsvReport() throws Exception {
+        createReport(2);
+        slingContext.resourceResolver().getResource(REPORT_PATH + "/rows/row-1").adaptTo(ModifiableValueMap.class)
+                .put("ColumnA", "a,\"b\"\nc");
+        MockSlingHttpServletResponse response = export("csv");
+
+        assertEquals("text/csv;charset=UTF-8", response.getContentType());
+        assertEquals("Column A,Column B\r\n"
+                + "\"a,\"\"b\"\"\nc\",qwerty-1\r\n"
+                + "abcdef-2,qwerty-2\r\n", response.getOutputAsString());
+    }
+
+    @Test
+    public void testJsonLinesReport() throws Exception {
+        createReport(2);
+        MockSlingHttpServletResponse response = export("jsonl");
+
+        assertEquals("application/x-ndjson;charset=UTF-8", response.getContentType());
+        assertEquals("{\"ColumnA\":\"abcdef-1\",\"ColumnB\":\"qwerty-1\"}\n"
+                + "{\"ColumnA\":\"abcdef-2\",\"ColumnB\":\"qwerty-2\"}\n", response.getOutputAsString());
+    }
+
+    private void createReport(int numRows) {
+        ResourceBuilder rb = slingContext.build()
+                .resource(REPORT_PATH,
+                        "columns", new String[]{"ColumnA", "ColumnB"},
+                        "name", "report",
+                        "sling:resourceType", "acs-commons/components/utilities/process-instance/process-generic-report")
+                .resource("rows");
+        rb.siblingsMode();
+        for (int i = 1; i <= numRows; i++) {
+            rb.resource("row-" + i,
+                    "ColumnA", "abcdef-" + i, "ColumnB", "qwerty-" + i);
+        }
+    }
+
+    private MockSlingHttpServletResponse export(String extension) throws Exception {
+        MockSlingHttpServletRequest request = slingContext.request();
+        request.setResource(slingContext.resourceResolver().getResource(REPORT_PATH));
+        ((MockRequestPathInfo) request.getRequestPathInfo()).setExtension(extension);
+        MockSlingHttpServletResponse response = slingContext.response();
+
+        slingContext.addModelsForClasses(GenericReport.class);
+
+        GenericReportExcelServlet servlet = new GenericReportExcelServlet();
+
+        servlet.doGet(request, response);
+        return response;
+    }
 }
@@ -30,6 +30,10 @@ import com.adobe.acs.commons.mcp.impl.ProcessInstanceImpl;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Calendar;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 import javax.jcr.RepositoryException;
 import javax.management.NotCompliantMBeanException;
 import org.apache.sling.api.resource.LoginException;
@@ -46,6 +50,7 @@ import org.mockito.invocation.InvocationOnMock;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyInt;
 import static org.mockito.Mockito.doAnswer;
@@ -156,4 +161,29 @@ public class DataImporterTest {
         assertEquals(0, cal.get(Calendar.SECOND));
     }
 
+    @Test
+    public void assertRetriedRowsAreCountedOnce() throws LoginException, RepositoryException, PersistenceException {
+        // saving node1 fails once, the row is imported again
+        AtomicBoolean failed = new AtomicBoolean();
+        doAnswer(invocation -> {
+            if (rr.getResource("/tmp/node1") != null && failed.compareAndSet(false, true)) {
+                throw new PersistenceException("conflict");
+            }
+            return invocation.callRealMethod();
+        }).when(rr).commit();
+
+        importer.buildProcess(process, rr);
+        process.run(rr);
+
+        assertTrue(failed.get());
+        assertNotNull("Node1 wasn't created", rr.getResource("/tmp/node1"));
+        Set<Object> createdPaths = new HashSet<>();
+        for (EnumMap<DataImporter.ReportColumns, Object> row : importer.reportRows) {
+            if ("Created".equals(row.get(DataImporter.ReportColumns.action))) {
+                assertTrue("Counted twice: " + row, createdPaths.add(row.get(DataImporter.ReportColumns.item)));
+            }
+        }
+        assertEquals(createdPaths.size(), importer.createdNodes.get(DataImporter.ReportColumns.count));
+    }
+
 }
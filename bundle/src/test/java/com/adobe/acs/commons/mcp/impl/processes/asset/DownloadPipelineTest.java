@@ -0,0 +1,227 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2015 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.mcp.impl.processes.asset;
+
+import com.adobe.acs.commons.fam.ActionManager;
+import com.adobe.acs.commons.functions.CheckedConsumer;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.io.IOUtils;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class DownloadPipelineTest {
+
+    private static final int FILE_SIZE = 100000;
+
+    private final Deque<CheckedConsumer<ResourceResolver>> tasks = new ArrayDeque<>();
+    private final List<Exception> failures = new ArrayList<>();
+    private final Map<String, byte[]> imported = Collections.synchronizedMap(new HashMap<>());
+    private final byte[] content = new byte[FILE_SIZE];
+    private final AtomicInteger rangeRequests = new AtomicInteger();
+    private ActionManager manager;
+    private AssetIngestor ingestor;
+    private HttpServer server;
+    private CloseableHttpClient httpClient;
+    private ClientProvider clientProvider;
+
+    @Before
+    public void setUp() throws IOException {
+        new Random(42).nextBytes(content);
+
+        manager = mock(ActionManager.class);
+        doAnswer(invocation -> tasks.add((CheckedConsumer<ResourceResolver>) invocation.getArguments()[0]))
+                .when(manager).deferredWithResolver(any(CheckedConsumer.class));
+
+        ingestor = mock(AssetIngestor.class);
+        ingestor.retries = 1;
+        when(ingestor.importAsset(any(Source.class), any(ActionManager.class))).thenAnswer(invocation -> {
+            Source source = (Source) invocation.getArguments()[0];
+            return (CheckedConsumer<ResourceResolver>) rr -> {
+                try (InputStream in = source.getStream()) {
+                    imported.put(source.getName(), IOUtils.toByteArray(in));
+                }
+            };
+        });
+
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", exchange -> {
+            byte[] body = content;
+            int status = 200;
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            if (range != null) {
+                String[] bounds = range.substring("bytes=".length()).split("-");
+                body = Arrays.copyOfRange(content, Integer.parseInt(bounds[0]), Integer.parseInt(bounds[1]) + 1);
+                status = 206;
+                rangeRequests.incrementAndGet();
+            }
+            exchange.getResponseHeaders().add("Accept-Ranges", "bytes");
+            exchange.sendResponseHeaders(status, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+
+        httpClient = HttpClients.createDefault();
+        clientProvider = new ClientProvider();
+        clientProvider.setHttpClientSupplier(() -> httpClient);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        httpClient.close();
+        server.stop(0);
+    }
+
+    private void runTasks() {
+        while (!tasks.isEmpty()) {
+            try {
+                tasks.poll().accept(mock(ResourceResolver.class));
+            } catch (Exception ex) {
+                failures.add(ex);
+            }
+        }
+    }
+
+    private Source httpSource(String name) {
+        String url = "http://localhost:" + server.getAddress().getPort() + "/" + name;
+        return new FileOrRendition(clientProvider, name, url, new Folder("test", "/", ""), Collections.emptyMap()).getSource();
+    }
+
+    @Test
+    public void testDownloadInParts() {
+        DownloadPipeline pipeline = new DownloadPipeline(ingestor, manager,
+                Arrays.asList(httpSource("a.png"), httpSource("b.png")).iterator(), source -> true, 2);
+        pipeline.setPartSize(30000);
+        tasks.add(rr -> pipeline.start());
+        runTasks();
+
+        assertTrue(failures.isEmpty());
+        assertEquals(8, rangeRequests.get());
+        assertArrayEquals(content, imported.get("a.png"));
+        assertArrayEquals(content, imported.get("b.png"));
+    }
+
+    @Test
+    public void testDownloadInOnePiece() {
+        DownloadPipeline pipeline = new DownloadPipeline(ingestor, manager,
+                Collections.singletonList(httpSource("a.png")).iterator(), source -> true, 2);
+        tasks.add(rr -> pipeline.start());
+        runTasks();
+
+        assertTrue(failures.isEmpty());
+        assertEquals(0, rangeRequests.get());
+        assertArrayEquals(content, imported.get("a.png"));
+    }
+
+    @Test
+    public void testFilesInFlightAreLimited() {
+        List<Source> sources = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            sources.add(memorySource("file" + i));
+        }
+        AtomicInteger checked = new AtomicInteger();
+        DownloadPipeline pipeline = new DownloadPipeline(ingestor, manager, sources.iterator(), source -> {
+            checked.incrementAndGet();
+            return true;
+        }, 2);
+        pipeline.start();
+
+        // Only two downloads start, the next one waits until an import completes
+        assertEquals(2, tasks.size());
+        runTasks();
+        assertEquals(5, checked.get());
+        assertEquals(5, imported.size());
+    }
+
+    @Test
+    public void testSkippedAndFailedSourcesAreReleased() {
+        Source failing = mock(Source.class);
+        HierarchicalElement element = mock(HierarchicalElement.class);
+        when(failing.getElement()).thenReturn(element);
+        when(element.getSourcePath()).thenReturn("failing");
+        DownloadPipeline pipeline = new DownloadPipeline(ingestor, manager,
+                Arrays.asList(memorySource("skipped"), failing, memorySource("imported")).iterator(),
+                source -> !"skipped".equals(source.getName()), 1);
+        pipeline.start();
+        runTasks();
+
+        assertEquals(1, failures.size());
+        assertEquals(Collections.singleton("imported"), imported.keySet());
+    }
+
+    private Source memorySource(String name) {
+        HierarchicalElement element = mock(HierarchicalElement.class);
+        when(element.getSourcePath()).thenReturn(name);
+        return new Source() {
+            @Override
+            public String getName() {
+                return name;
+            }
+
+            @Override
+            public InputStream getStream() {
+                return new ByteArrayInputStream(content);
+            }
+
+            @Override
+            public long getLength() {
+                return content.length;
+            }
+
+            @Override
+            public HierarchicalElement getElement() {
+                return element;
+            }
+
+            @Override
+            public void close() {
+                // Nothing to release
+            }
+        };
+    }
+}
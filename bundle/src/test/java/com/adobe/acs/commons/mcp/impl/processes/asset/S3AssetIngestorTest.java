@@ -205,6 +205,28 @@ public class S3AssetIngestorTest {
         assertEquals(Arrays.asList("testbucket", "testbucket:folder1/image.png", "testbucket:folder2/folder3/image.png", "testbucket:image.png"), currentItemCaptor.getAllValues());
     }
 
+    @Test
+    public void testStreamingImportAssets() throws Exception {
+        ingestor.streamingImport = true;
+        ingestor.objectsInFlight = 1;
+        ingestor.init();
+        s3Client.putObject(TEST_BUCKET, "image.png", getClass().getResourceAsStream("/img/test.png"), new ObjectMetadata());
+        s3Client.putObject(TEST_BUCKET, "folder1/", new ByteArrayInputStream(new byte[0]), new ObjectMetadata());
+        s3Client.putObject(TEST_BUCKET, "folder1/image.png", getClass().getResourceAsStream("/img/test.png"), new ObjectMetadata());
+        s3Client.putObject(TEST_BUCKET, "folder2/folder3/image.png", getClass().getResourceAsStream("/img/test.png"), new ObjectMetadata());
+        when(assetManager.createAsset(anyString(), any(), anyString(), any(Boolean.class))).thenReturn(createdAsset);
+
+        ingestor.importAssets(actionManager);
+
+        assertFalse(context.resourceResolver().hasChanges());
+        assertEquals(3, ingestor.getCount(ingestor.importedAssets));
+        assertEquals(FILE_SIZE * 3, (long) ingestor.importedData.get(ReportColumns.bytes));
+        verify(assetManager, times(3)).createAsset(assetPathCaptor.capture(), any(), any(), eq(false));
+        assertEquals(Arrays.asList("/content/dam/folder1/image.png", "/content/dam/folder2/folder3/image.png", "/content/dam/image.png"), assetPathCaptor.getAllValues());
+        // the listing is closed once the import has finished
+        verify(actionManager).onFinish(any(Runnable.class));
+    }
+
     @Test(expected = AssetIngestorException.class)
     public void testImportAssetsWithException() throws Exception {
         ingestor.init();
@@ -198,6 +198,42 @@ public class RenovatorTest {
         assertTrue("Should publish new folders", queue.getActivateOperations().containsKey("/content/dam/folderC/subfolder"));
     }
 
+    @Test
+    public void pipelinedRepublishTest() throws Exception {
+        Map<String, Object> values = new HashMap<>();
+        values.put("sourceJcrPath", "/content/dam/folderA");
+        values.put("destinationJcrPath", "/content/dam/republishA");
+        values.put("dryRun", "false");
+        values.put("pipelined", "true");
+
+        instance.init(rr, values);
+        instance.run(rr);
+        assertEquals(1.0, instance.updateProgress(), 0.00001);
+        assertTrue("Should unpublish the source folder", queue.getDeactivateOperations().containsKey("/content/dam/folderA"));
+        assertTrue("Should publish the moved source folder", queue.getActivateOperations().containsKey("/content/dam/republishA"));
+    }
+
+    @Test
+    public void testPipelinedMoveManyAssets() throws DeserializeException, RepositoryException {
+        Map<String, Object> values = new HashMap<>();
+        values.put("dryRun", "false");
+        values.put("pipelined", "true");
+        values.put("pipelineConcurrency", "1");
+        values.put("sourceJcrPath", "/content/dam/folderB");
+        values.put("destinationJcrPath", "/content/dam/ignoreFolderB");
+        tool.movePaths.put("/content/dam/folderA/asset1", "/content/dam/folderC/subfolder/asset1-renamed");
+        tool.movePaths.put("/content/dam/folderA/asset2", "/content/dam/folderC/subfolder/asset2-renamed");
+
+        instance.init(rr, values);
+
+        instance.run(rr);
+        assertNotNull(rr.getResource("/content/dam/folderC"));
+        assertNotNull(rr.getResource("/content/dam/folderC/subfolder"));
+        assertEquals(1.0, instance.updateProgress(), 0.00001);
+        assertTrue("Should publish new folders", queue.getActivateOperations().containsKey("/content/dam/folderC"));
+        assertTrue("Should publish new folders", queue.getActivateOperations().containsKey("/content/dam/folderC/subfolder"));
+    }
+
     Map<String, String> testNodes = new TreeMap<String, String>() {
         {
             put("/content", JcrResourceConstants.NT_SLING_FOLDER);
@@ -0,0 +1,172 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2015 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.mcp.model;
+
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.api.wrappers.ValueMapDecorator;
+import org.apache.sling.testing.mock.sling.ResourceResolverType;
+import org.apache.sling.testing.mock.sling.junit.SlingContext;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Persisting and reading back generic reports
+ */
+public class GenericReportTest {
+
+    private static final String REPORT_PATH = "/var/acs-commons/mcp/instances/junit/jcr:content/report";
+    private static final int ROW_COUNT = 5000;
+
+    @Rule
+    public final SlingContext context = new SlingContext(ResourceResolverType.JCR_MOCK);
+
+    enum Columns {
+        path, size, comment
+    }
+
+    @Before
+    public void setup() throws Exception {
+        context.addModelsForClasses(GenericReport.class, GenericReportPage.class);
+        List<EnumMap<Columns, Object>> rows = new ArrayList<>();
+        for (int i = 0; i < ROW_COUNT; i++) {
+            EnumMap<Columns, Object> row = new EnumMap<>(Columns.class);
+            row.put(Columns.path, "/content/dam/folder/asset-" + i + ".jpg");
+            row.put(Columns.size, (long) i * 1024);
+            if (i % 10 == 0) {
+                row.put(Columns.comment, "Every tenth");
+            }
+            rows.add(row);
+        }
+        GenericReport report = new GenericReport();
+        report.setName("Test report");
+        report.setRows(rows, Columns.class);
+        report.persist(context.resourceResolver(), REPORT_PATH);
+    }
+
+    @Test
+    public void rowsAreStoredAsOneFile() {
+        ResourceResolver rr = context.resourceResolver();
+        Resource report = rr.getResource(REPORT_PATH);
+        assertNull(report.getChild("rows"));
+        assertNotNull(report.getChild(GenericReport.ROWS_FILE + "/jcr:content"));
+        assertEquals(Long.valueOf(ROW_COUNT), report.getValueMap().get(GenericReport.ROW_COUNT, Long.class));
+    }
+
+    @Test
+    public void streamRows() {
+        GenericReport report = context.resourceResolver().getResource(REPORT_PATH).adaptTo(GenericReport.class);
+        assertEquals("Test report", report.getName());
+        assertEquals(ROW_COUNT, report.getRowCount());
+
+        List<ValueMap> rows;
+        try (Stream<ValueMap> rowStream = report.streamRows()) {
+            rows = rowStream.collect(Collectors.toList());
+        }
+        assertEquals(ROW_COUNT, rows.size());
+        ValueMap row = rows.get(10);
+        assertEquals("/content/dam/folder/asset-10.jpg", row.get("path", String.class));
+        assertEquals(Long.valueOf(10240), row.get("size", Long.class));
+        assertEquals("Every tenth", row.get("comment", String.class));
+        assertFalse(rows.get(11).containsKey("comment"));
+    }
+
+    @Test
+    public void getPageOfRows() {
+        GenericReport report = context.resourceResolver().getResource(REPORT_PATH).adaptTo(GenericReport.class);
+
+        List<ValueMap> page = report.getRows(4090, 20);
+
+        assertEquals(20, page.size());
+        assertEquals("/content/dam/folder/asset-4090.jpg", page.get(0).get("path", String.class));
+        assertEquals("/content/dam/folder/asset-4109.jpg", page.get(19).get("path", String.class));
+        assertEquals(10, report.getRows(ROW_COUNT - 10, 20).size());
+        assertTrue(report.getRows(ROW_COUNT, 20).isEmpty());
+    }
+
+    @Test
+    public void viewShowsOnePage() {
+        context.request().setResource(context.resourceResolver().getResource(REPORT_PATH));
+        context.request().setParameterMap(Collections.singletonMap(GenericReportPage.PAGE_PARAMETER, "2"));
+
+        GenericReportPage page = context.request().adaptTo(GenericReportPage.class);
+
+        assertEquals(10, page.getPageCount());
+        assertEquals(2, page.getPage());
+        assertEquals(1, page.getPreviousPage());
+        assertEquals(3, page.getNextPage());
+        assertEquals(GenericReportPage.PAGE_SIZE, page.getRows().size());
+        assertEquals("/content/dam/folder/asset-500.jpg", page.getRows().get(0).get("path", String.class));
+        assertEquals(Arrays.asList("path", "size", "comment"), page.getColumns());
+    }
+
+    @Test
+    public void persistAgainReplacesRows() throws Exception {
+        GenericReport report = context.resourceResolver().getResource(REPORT_PATH).adaptTo(GenericReport.class);
+        List<ValueMap> rows = report.getRows();
+        assertEquals(ROW_COUNT, rows.size());
+        rows.subList(2, rows.size()).clear();
+
+        report.persist(context.resourceResolver(), REPORT_PATH);
+
+        GenericReport reread = context.resourceResolver().getResource(REPORT_PATH).adaptTo(GenericReport.class);
+        assertEquals(2, reread.getRowCount());
+        assertEquals("/content/dam/folder/asset-1.jpg", reread.getRows().get(1).get("path", String.class));
+    }
+
+    @Test
+    public void failedPersistKeepsPreviousRows() throws Exception {
+        GenericReport report = context.resourceResolver().getResource(REPORT_PATH).adaptTo(GenericReport.class);
+        report.getRows().add(new ValueMapDecorator(Collections.singletonMap("path", new Object() {
+            @Override
+            public String toString() {
+                throw new IllegalStateException("Unwritable value");
+            }
+        })));
+
+        try {
+            report.persist(context.resourceResolver(), REPORT_PATH);
+            fail("Rows with an unwritable value must not be persisted");
+        } catch (IllegalStateException expected) {
+            // the rows persisted before are kept
+        }
+
+        GenericReport reread = context.resourceResolver().getResource(REPORT_PATH).adaptTo(GenericReport.class);
+        assertEquals(ROW_COUNT, reread.getRowCount());
+        assertEquals(ROW_COUNT, reread.getRows().size());
+    }
+}
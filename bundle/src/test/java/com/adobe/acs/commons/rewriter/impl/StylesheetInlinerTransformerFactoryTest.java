@@ -24,16 +24,21 @@ import static org.mockito.AdditionalMatchers.not;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Matchers.isNull;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Collections;
 
+import org.apache.sling.api.SlingConstants;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.request.RequestPathInfo;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.observation.ResourceChange;
+import org.apache.sling.api.resource.observation.ResourceChange.ChangeType;
 import org.apache.sling.rewriter.ProcessingContext;
 import org.apache.sling.rewriter.Transformer;
 import org.junit.Assert;
@@ -42,6 +47,7 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.osgi.service.event.Event;
 import org.xml.sax.Attributes;
 import org.xml.sax.ContentHandler;
 import org.xml.sax.SAXException;
@@ -230,6 +236,67 @@ public final class StylesheetInlinerTransformerFactoryTest {
         verify(handler).startElement(isNull(String.class), eq(LINK), isNull(String.class), any(Attributes.class));
     }
 
+    @Test
+    public void testCachedStylesheet() throws Exception {
+        startHeadSection();
+        startBodySection();
+        addStylesheetLink(CLIENTLIB_PATH);
+
+        final Transformer secondTransformer = factory.createTransformer();
+        secondTransformer.init(processingContext, null);
+        secondTransformer.setContentHandler(handler);
+        addStylesheetLink(secondTransformer, CLIENTLIB_PATH);
+
+        verify(htmlLibrary, times(1)).getInputStream();
+        verify(handler, times(2)).characters(CSS_CONTENTS.toCharArray(), 0, CSS_CONTENTS.length());
+    }
+
+    @Test
+    public void testModifiedStylesheet() throws Exception {
+        startHeadSection();
+        startBodySection();
+        addStylesheetLink(CLIENTLIB_PATH);
+
+        when(htmlLibrary.getLastModified()).thenReturn(1000L);
+        when(htmlLibrary.getInputStream()).thenReturn(new java.io.ByteArrayInputStream(TEST_DATA.getBytes()));
+        addStylesheetLink(CLIENTLIB_PATH);
+
+        verify(htmlLibrary, times(2)).getInputStream();
+        verify(handler).characters(TEST_DATA.toCharArray(), 0, TEST_DATA.length());
+    }
+
+    @Test
+    public void testInvalidatedStylesheet() throws Exception {
+        startHeadSection();
+        startBodySection();
+        addStylesheetLink(CSS_RESOURCE_PATH);
+        Assert.assertEquals(1, factory.getCache().size());
+
+        factory.onChange(Collections.singletonList(new ResourceChange(ChangeType.CHANGED,
+                "/etc/assets/other.css/jcr:content", false, null, null, null)));
+        Assert.assertEquals(1, factory.getCache().size());
+
+        factory.onChange(Collections.singletonList(new ResourceChange(ChangeType.CHANGED,
+                CSS_RESOURCE_PATH + ".css/jcr:content", false, null, null, null)));
+        Assert.assertEquals(0, factory.getCache().size());
+
+        when(resource.adaptTo(eq(InputStream.class))).thenReturn(new java.io.ByteArrayInputStream(TEST_DATA.getBytes()));
+        addStylesheetLink(CSS_RESOURCE_PATH);
+        verify(handler).characters(TEST_DATA.toCharArray(), 0, TEST_DATA.length());
+    }
+
+    @Test
+    public void testInvalidatedClientLibrary() throws Exception {
+        startHeadSection();
+        startBodySection();
+        addStylesheetLink(CLIENTLIB_PATH);
+        Assert.assertEquals(1, factory.getCache().size());
+
+        factory.handleEvent(new Event("com/adobe/granite/ui/librarymanager/INVALIDATED",
+                Collections.singletonMap(SlingConstants.PROPERTY_PATH, CLIENTLIB_PATH)));
+        Assert.assertEquals(0, factory.getCache().size());
+    }
+
     @Test
     public void testDefaultTransformer() throws IOException {
         when(requestPathInfo.getSelectors()).thenReturn(new String[] { });
@@ -289,6 +356,10 @@ public final class StylesheetInlinerTransformerFactoryTest {
     }
 
     private void addStylesheetLink(final String path) throws SAXException {
+        addStylesheetLink(transformer, path);
+    }
+
+    private void addStylesheetLink(final Transformer transformer, final String path) throws SAXException {
         final AttributesImpl in = new AttributesImpl();
         in.addAttribute("", "href", "", CDATA, path + ".css");
         in.addAttribute("", "type", "", CDATA, "text/css");
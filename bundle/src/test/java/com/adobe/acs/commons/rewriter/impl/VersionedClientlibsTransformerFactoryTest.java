@@ -36,12 +36,15 @@ import org.apache.sling.rewriter.ProcessingContext;
 import org.apache.sling.rewriter.Transformer;
 import org.junit.After;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceReference;
 import org.osgi.service.component.ComponentContext;
 import org.osgi.service.event.Event;
 import org.xml.sax.Attributes;
@@ -58,6 +61,7 @@ import static org.mockito.Matchers.*;
 import static org.mockito.Mockito.*;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.util.Collections;
@@ -105,6 +109,9 @@ public class VersionedClientlibsTransformerFactoryTest {
     @Mock
     private ResourceResolver resourceResolver;
 
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
     private static final String PATH = "/etc/clientlibs/test";
     private static final String FAKE_STREAM_CHECKSUM="fcadcfb01c1367e9e5b7f2e6d455ba8f"; // md5 of "I love strings"
     private static final String PROXIED_FAKE_STREAM_CHECKSUM="669a712c318596cd7e7520e3e2000cfb"; // md5 of "I love strings when they are proxied"
@@ -400,7 +407,46 @@ public class VersionedClientlibsTransformerFactoryTest {
 
         transformer.startElement(null, "script", null, in);
 
+        // the changed library is looked up again, once for its client library and once for its md5
         verify(htmlLibraryManager, times(2)).getLibraries();
+        verify(htmlLibraryManager, times(2)).getLibrary(LibraryType.JS, PROXIED_PATH);
+    }
+
+    @Test
+    public void testEventHandling_proxyDisallowed() throws Exception {
+        ClientLibrary clientLibrary = mock(ClientLibrary.class);
+        when(clientLibrary.getTypes()).thenReturn(Collections.singleton(LibraryType.JS));
+        when(clientLibrary.allowProxy()).thenReturn(true);
+        when(htmlLibraryManager.getLibraries()).thenReturn(Collections.singletonMap(PROXIED_PATH, clientLibrary));
+        when(htmlLibraryManager.getLibrary(eq(LibraryType.JS), eq(PROXIED_PATH))).thenReturn(proxiedHtmlLibrary);
+
+        assertEquals(PROXY_PATH + "." + PROXIED_FAKE_STREAM_CHECKSUM + ".js", rewriteScript(PROXY_PATH + ".js"));
+
+        // the library manager hands out a new client library once the library changed
+        ClientLibrary changedClientLibrary = mock(ClientLibrary.class);
+        when(changedClientLibrary.getTypes()).thenReturn(Collections.singleton(LibraryType.JS));
+        when(changedClientLibrary.allowProxy()).thenReturn(false);
+        when(htmlLibraryManager.getLibraries()).thenReturn(Collections.singletonMap(PROXIED_PATH, changedClientLibrary));
+        factory.handleEvent(new Event("com/adobe/granite/ui/librarymanager/INVALIDATED", Collections.singletonMap(SlingConstants.PROPERTY_PATH, PROXIED_PATH)));
+
+        assertEquals(PROXY_PATH + ".js", rewriteScript(PROXY_PATH + ".js"));
+    }
+
+    @Test
+    public void testEventHandling_removedLibrary() throws Exception {
+        ClientLibrary clientLibrary = mock(ClientLibrary.class);
+        when(clientLibrary.getTypes()).thenReturn(Collections.singleton(LibraryType.JS));
+        when(clientLibrary.allowProxy()).thenReturn(true);
+        when(htmlLibraryManager.getLibraries()).thenReturn(Collections.singletonMap(PROXIED_PATH, clientLibrary));
+        when(htmlLibraryManager.getLibrary(eq(LibraryType.JS), eq(PROXIED_PATH))).thenReturn(proxiedHtmlLibrary);
+
+        assertEquals(PROXY_PATH + "." + PROXIED_FAKE_STREAM_CHECKSUM + ".js", rewriteScript(PROXY_PATH + ".js"));
+
+        when(htmlLibraryManager.getLibraries()).thenReturn(Collections.<String, ClientLibrary>emptyMap());
+        when(htmlLibraryManager.getLibrary(eq(LibraryType.JS), eq(PROXIED_PATH))).thenReturn(null);
+        factory.handleEvent(new Event("com/adobe/granite/ui/librarymanager/INVALIDATED", Collections.singletonMap(SlingConstants.PROPERTY_PATH, PROXIED_PATH)));
+
+        assertEquals(PROXY_PATH + ".js", rewriteScript(PROXY_PATH + ".js"));
     }
 
 
@@ -703,6 +749,112 @@ public class VersionedClientlibsTransformerFactoryTest {
         verifyNo404();
     }
 
+    @Test
+    public void testEventHandling_otherLibrary() throws Exception {
+        ClientLibrary clientLibrary = mock(ClientLibrary.class);
+        when(clientLibrary.getTypes()).thenReturn(Collections.singleton(LibraryType.JS));
+        when(clientLibrary.allowProxy()).thenReturn(true);
+        when(htmlLibraryManager.getLibraries()).thenReturn(Collections.singletonMap(PROXIED_PATH, clientLibrary));
+        when(htmlLibraryManager.getLibrary(eq(LibraryType.JS), eq(PROXIED_PATH))).thenReturn(proxiedHtmlLibrary);
+
+        assertEquals(PROXY_PATH + "." + PROXIED_FAKE_STREAM_CHECKSUM + ".js", rewriteScript(PROXY_PATH + ".js"));
+
+        factory.handleEvent(new Event("com/adobe/granite/ui/librarymanager/INVALIDATED", Collections.singletonMap(SlingConstants.PROPERTY_PATH, "/apps/myco/other")));
+
+        assertEquals(PROXY_PATH + "." + PROXIED_FAKE_STREAM_CHECKSUM + ".js", rewriteScript(PROXY_PATH + ".js"));
+
+        // the change of another library does not read all libraries again
+        verify(htmlLibraryManager, times(1)).getLibraries();
+    }
+
+    @Test
+    public void testMd5Index() throws Exception {
+        when(bundleContext.getDataFile(anyString())).thenReturn(new File(temporaryFolder.getRoot(), "md5.properties"));
+        Hashtable<String, Object> props = new Hashtable<String, Object>();
+        props.put("md5.index.enabled", Boolean.TRUE);
+        when(componentContext.getProperties()).thenReturn(props);
+        when(htmlLibrary.getType()).thenReturn(LibraryType.JS);
+        when(htmlLibrary.getLastModified()).thenReturn(1000L);
+        when(htmlLibraryManager.getLibrary(eq(LibraryType.JS), eq(PATH))).thenReturn(htmlLibrary);
+
+        factory.activate(componentContext);
+        assertEquals(PATH + "." + FAKE_STREAM_CHECKSUM + ".js", rewriteScript(PATH + ".js"));
+        factory.deactivate();
+
+        // after a restart, the md5 is taken from the index instead of the library
+        when(htmlLibrary.getInputStream(false)).thenReturn(new ByteArrayInputStream(BYTES));
+        factory.activate(componentContext);
+        assertEquals(PATH + "." + FAKE_STREAM_CHECKSUM + ".js", rewriteScript(PATH + ".js"));
+        factory.deactivate();
+
+        // unless the library was modified
+        when(htmlLibrary.getLastModified()).thenReturn(2000L);
+        factory.activate(componentContext);
+        assertEquals(PATH + "." + INPUTSTREAM_MD5 + ".js", rewriteScript(PATH + ".js"));
+    }
+
+    @Test
+    public void testMd5IndexOfOtherConfiguration() throws Exception {
+        when(bundleContext.getDataFile(anyString())).thenReturn(new File(temporaryFolder.getRoot(), "md5.properties"));
+        ServiceReference reference = mock(ServiceReference.class);
+        when(reference.getPropertyKeys()).thenReturn(new String[] { "htmllibmanager.minify" });
+        when(reference.getProperty("htmllibmanager.minify")).thenReturn(Boolean.FALSE);
+        when(bundleContext.getServiceReference(HtmlLibraryManager.class.getName())).thenReturn(reference);
+        Hashtable<String, Object> props = new Hashtable<String, Object>();
+        props.put("md5.index.enabled", Boolean.TRUE);
+        when(componentContext.getProperties()).thenReturn(props);
+        when(htmlLibrary.getType()).thenReturn(LibraryType.JS);
+        when(htmlLibrary.getLastModified()).thenReturn(1000L);
+        when(htmlLibraryManager.getLibrary(eq(LibraryType.JS), eq(PATH))).thenReturn(htmlLibrary);
+
+        factory.activate(componentContext);
+        assertEquals(PATH + "." + FAKE_STREAM_CHECKSUM + ".js", rewriteScript(PATH + ".js"));
+        factory.deactivate();
+
+        // the md5s computed with another configuration of the library manager are not used
+        when(reference.getProperty("htmllibmanager.minify")).thenReturn(Boolean.TRUE);
+        when(htmlLibrary.getInputStream(false)).thenReturn(new ByteArrayInputStream(BYTES));
+        factory.activate(componentContext);
+        assertEquals(PATH + "." + INPUTSTREAM_MD5 + ".js", rewriteScript(PATH + ".js"));
+    }
+
+    @Test
+    public void testMd5WarmUp() throws Exception {
+        ClientLibrary clientLibrary = mock(ClientLibrary.class);
+        when(clientLibrary.getPath()).thenReturn(PATH);
+        when(clientLibrary.getTypes()).thenReturn(Collections.singleton(LibraryType.JS));
+        when(htmlLibraryManager.getLibraries()).thenReturn(Collections.singletonMap(PATH, clientLibrary));
+        when(htmlLibraryManager.getLibrary(LibraryType.JS, PATH)).thenReturn(htmlLibrary);
+        when(htmlLibrary.getType()).thenReturn(LibraryType.JS);
+        Hashtable<String, Object> props = new Hashtable<String, Object>();
+        props.put("md5.warmup.threads", 2);
+        when(componentContext.getProperties()).thenReturn(props);
+
+        factory.activate(componentContext);
+
+        final VersionedClientLibraryMd5CacheKey key = new VersionedClientLibraryMd5CacheKey(PATH, LibraryType.JS);
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (factory.getCache().getIfPresent(key) == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(FAKE_STREAM_CHECKSUM, factory.getCache().getIfPresent(key));
+        factory.deactivate();
+    }
+
+    private String rewriteScript(String src) throws Exception {
+        final AttributesImpl in = new AttributesImpl();
+        in.addAttribute("", "src", "", "CDATA", src);
+        in.addAttribute("", "type", "", "CDATA", "text/javascript");
+
+        reset(handler);
+        transformer.startElement(null, "script", null, in);
+
+        ArgumentCaptor<Attributes> attributesCaptor = ArgumentCaptor.forClass(Attributes.class);
+        verify(handler).startElement(isNull(String.class), eq("script"), isNull(String.class),
+                attributesCaptor.capture());
+        return attributesCaptor.getValue().getValue(0);
+    }
+
     private void verifyNothingHappened() throws IOException, ServletException {
         verifyZeroInteractions(htmlLibraryManager);
         verifyNo404();
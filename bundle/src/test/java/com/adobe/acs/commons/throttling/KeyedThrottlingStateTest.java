@@ -0,0 +1,61 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2015 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.throttling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+
+import org.junit.Test;
+
+public class KeyedThrottlingStateTest {
+
+    private final Clock clock = Clock.fixed(Instant.now(), ZoneOffset.UTC);
+
+    @Test
+    public void budgetPerKey() {
+        KeyedThrottlingState keyed = new KeyedThrottlingState(clock, () -> 1, 100);
+
+        ThrottlingState crawler = keyed.get("10.0.0.1");
+        assertSame(crawler, keyed.get("10.0.0.1"));
+        assertEquals(ThrottlingDecision.State.NOTHROTTLE, crawler.evaluateThrottling().getState());
+        assertEquals(ThrottlingDecision.State.THROTTLE, keyed.get("10.0.0.1").evaluateThrottling().getState());
+
+        ThrottlingState client = keyed.get("10.0.0.2");
+        assertNotSame(crawler, client);
+        assertEquals(ThrottlingDecision.State.NOTHROTTLE, client.evaluateThrottling().getState());
+        assertEquals(2, keyed.size());
+    }
+
+    @Test
+    public void boundedNumberOfKeys() {
+        KeyedThrottlingState keyed = new KeyedThrottlingState(clock, () -> 1, 10);
+        for (int i = 0; i < 1000; i++) {
+            keyed.get("10.0.0." + i).evaluateThrottling();
+        }
+        assertTrue(keyed.size() <= 10);
+    }
+
+}
@@ -19,13 +19,21 @@
  */
 package com.adobe.acs.commons.throttling;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.*;
 
 import java.io.IOException;
 import java.time.Clock;
 import java.time.Instant;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.management.DynamicMBean;
 
 import javax.servlet.FilterChain;
 import javax.servlet.ServletException;
@@ -34,11 +42,15 @@ import javax.servlet.http.HttpServletResponse;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.request.RequestProgressTracker;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.testing.mock.sling.junit.SlingContext;
 import org.junit.Before;
 import org.junit.Ignore;
 import org.junit.Rule;
 import org.junit.Test;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceReference;
 
 public class RequestThrottlerTest {
 
@@ -47,35 +59,38 @@ public class RequestThrottlerTest {
 
     RequestThrottler rt;
     RequestThrottler.Config config;
+    Map<String, Object> properties;
 
     @Before
     public void before() {
         RequestThrottler r = new RequestThrottler();
         rt = spy(r);
         config = mock(RequestThrottler.Config.class);
+        properties = new HashMap<>();
+        properties.put(Constants.SERVICE_PID, "com.adobe.acs.commons.throttling.RequestThrottler.1");
         context.create().resource("/content/foobar", "a", "b");
     }
 
     @Test
-    public void pathFilterNoConfiguration() {
+    public void pathFilterNoConfiguration() throws Exception {
         when(config.filtered_paths()).thenReturn(new String[] {});
-        rt.activate(config);
+        rt.activate(context.bundleContext(), config, properties);
         assertFalse(rt.needsFiltering("/bla"));
     }
 
     @Test
-    public void pathFilterExactMatch() {
+    public void pathFilterExactMatch() throws Exception {
         when(config.filtered_paths()).thenReturn(new String[] { "/content" });
-        rt.activate(config);
+        rt.activate(context.bundleContext(), config, properties);
         assertTrue(rt.needsFiltering("/content"));
         assertFalse(rt.needsFiltering("/content/something"));
         assertFalse(rt.needsFiltering("/foo"));
     }
 
     @Test
-    public void pathFilterWildcardMatch() {
+    public void pathFilterWildcardMatch() throws Exception {
         when(config.filtered_paths()).thenReturn(new String[] { "/content.*" });
-        rt.activate(config);
+        rt.activate(context.bundleContext(), config, properties);
         assertTrue(rt.needsFiltering("/content"));
         assertTrue(rt.needsFiltering("/content/something"));
         assertFalse(rt.needsFiltering("/foo"));
@@ -86,7 +101,7 @@ public class RequestThrottlerTest {
     public void noMatchingPath() throws Exception {
         when(config.filtered_paths()).thenReturn(new String[] { "/content" });
         when(config.max_requests_per_minute()).thenReturn(10);
-        rt.activate(config);
+        rt.activate(context.bundleContext(), config, properties);
         context.request().setResource(context.resourceResolver().getResource("/"));
         FilterChain chain = mock(FilterChain.class);
         doNothing().when(chain).doFilter(anyObject(), anyObject());
@@ -104,7 +119,7 @@ public class RequestThrottlerTest {
         when(c.instant()).thenReturn(now);
         when(config.filtered_paths()).thenReturn(new String[] { "/content/.*" });
         when(config.max_requests_per_minute()).thenReturn(10);
-        rt.activate(config);
+        rt.activate(context.bundleContext(), config, properties);
         rt.clock = c;
         /*
          * The implementation of context.response() is current incomplete and throws an
@@ -126,4 +141,154 @@ public class RequestThrottlerTest {
 
     }
 
+    @Test
+    public void throttlingKeys() throws Exception {
+        when(config.filtered_paths()).thenReturn(new String[] { "/content/([^/]+)/.*", "/etc/.*" });
+        when(config.throttling_key_header()).thenReturn("X-Forwarded-For");
+        SlingHttpServletRequest request = request("/content/site/page", "10.0.0.1");
+        when(request.getHeader("X-Forwarded-For")).thenReturn(" 192.168.0.1, 10.0.0.2");
+        when(request.getResourceResolver().getUserID()).thenReturn("crawler");
+
+        rt.activate(context.bundleContext(), config, properties);
+        assertNull(rt.getThrottlingKey(request));
+
+        when(config.throttling_key()).thenReturn(RequestThrottler.KEY_CLIENT_IP);
+        rt.activate(context.bundleContext(), config, properties);
+        assertEquals("10.0.0.1", rt.getThrottlingKey(request));
+
+        when(config.throttling_key()).thenReturn(RequestThrottler.KEY_USER_ID);
+        rt.activate(context.bundleContext(), config, properties);
+        assertEquals("crawler", rt.getThrottlingKey(request));
+
+        when(config.throttling_key()).thenReturn(RequestThrottler.KEY_HEADER);
+        rt.activate(context.bundleContext(), config, properties);
+        assertEquals("192.168.0.1", rt.getThrottlingKey(request));
+        when(request.getHeader("X-Forwarded-For")).thenReturn(null);
+        assertNull(rt.getThrottlingKey(request));
+
+        when(config.throttling_key()).thenReturn(RequestThrottler.KEY_PATH_GROUP);
+        rt.activate(context.bundleContext(), config, properties);
+        assertEquals("site", rt.getThrottlingKey(request));
+        assertNull("no capture group", rt.getThrottlingKey(request("/etc/designs", "10.0.0.1")));
+    }
+
+    @Test
+    public void budgetPerThrottlingKey() throws Exception {
+        when(config.filtered_paths()).thenReturn(new String[] { "/content/.*" });
+        when(config.max_requests_per_minute()).thenReturn(2);
+        // never limited by the CPU load
+        when(config.start_throttling_percentage()).thenReturn(100);
+        when(config.reject_on_throttle()).thenReturn(true);
+        when(config.http_status_on_reject()).thenReturn(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        when(config.throttling_key()).thenReturn(RequestThrottler.KEY_CLIENT_IP);
+        rt.activate(context.bundleContext(), config, properties);
+
+        SlingHttpServletRequest crawler = request("/content/foobar", "10.0.0.1");
+        SlingHttpServletRequest client = request("/content/foobar", "10.0.0.2");
+        SlingHttpServletResponse response = mock(SlingHttpServletResponse.class);
+
+        rt.doFilterInternal(crawler, response);
+        rt.doFilterInternal(crawler, response);
+        rt.doFilterInternal(crawler, response);
+        verify(response).sendError(eq(HttpServletResponse.SC_SERVICE_UNAVAILABLE), anyString());
+        verify(crawler.getRequestProgressTracker()).log(startsWith("Request rejected because of throttling for key 10.0.0.1"));
+
+        // the crawler does not use up the budget of other clients
+        rt.doFilterInternal(client, response);
+        verify(client.getRequestProgressTracker()).log("Request not throttled for key 10.0.0.2");
+        verify(response).sendError(anyInt(), anyString());
+
+        assertEquals(3, rt.stats.getPassedRequestCount());
+        assertEquals(1, rt.stats.getThrottledRequestCount());
+        assertEquals(1, rt.stats.getRejectedRequestCount());
+        assertEquals(2, rt.stats.getKeyCount());
+        assertEquals(2, rt.stats.getMaxRequestsPerMinute());
+        assertEquals(1, rt.stats.getMostThrottledKeys().size());
+    }
+
+    @Test
+    public void totalBudgetOverAllThrottlingKeys() throws Exception {
+        when(config.filtered_paths()).thenReturn(new String[] { "/content/.*" });
+        when(config.max_requests_per_minute()).thenReturn(2);
+        when(config.throttling_key_total_max_requests_per_minute()).thenReturn(3);
+        when(config.start_throttling_percentage()).thenReturn(100);
+        when(config.reject_on_throttle()).thenReturn(true);
+        when(config.http_status_on_reject()).thenReturn(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        when(config.throttling_key()).thenReturn(RequestThrottler.KEY_CLIENT_IP);
+        rt.activate(context.bundleContext(), config, properties);
+
+        SlingHttpServletResponse response = mock(SlingHttpServletResponse.class);
+        rt.doFilterInternal(request("/content/foobar", "10.0.0.1"), response);
+        rt.doFilterInternal(request("/content/foobar", "10.0.0.2"), response);
+        rt.doFilterInternal(request("/content/foobar", "10.0.0.3"), response);
+        verify(response, never()).sendError(anyInt(), anyString());
+
+        // every key is within its budget, but all keys together are not
+        SlingHttpServletRequest fourth = request("/content/foobar", "10.0.0.4");
+        rt.doFilterInternal(fourth, response);
+        verify(response).sendError(eq(HttpServletResponse.SC_SERVICE_UNAVAILABLE), anyString());
+        verify(fourth.getRequestProgressTracker()).log(startsWith("Request rejected because of throttling for all keys"));
+
+        assertEquals(3, rt.stats.getPassedRequestCount());
+        assertEquals(1, rt.stats.getRejectedRequestCount());
+    }
+
+    @Test
+    public void rejectionByTotalBudgetDoesNotUseUpKeyBudget() throws Exception {
+        when(config.filtered_paths()).thenReturn(new String[] { "/content/.*" });
+        when(config.max_requests_per_minute()).thenReturn(2);
+        when(config.throttling_key_total_max_requests_per_minute()).thenReturn(2);
+        when(config.start_throttling_percentage()).thenReturn(100);
+        when(config.reject_on_throttle()).thenReturn(true);
+        when(config.http_status_on_reject()).thenReturn(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        when(config.throttling_key()).thenReturn(RequestThrottler.KEY_CLIENT_IP);
+        rt.activate(context.bundleContext(), config, properties);
+
+        SlingHttpServletResponse response = mock(SlingHttpServletResponse.class);
+        rt.doFilterInternal(request("/content/foobar", "10.0.0.1"), response);
+        rt.doFilterInternal(request("/content/foobar", "10.0.0.1"), response);
+        verify(response, never()).sendError(anyInt(), anyString());
+
+        // the second key is within its budget, all keys together are not
+        rt.doFilterInternal(request("/content/foobar", "10.0.0.2"), response);
+        rt.doFilterInternal(request("/content/foobar", "10.0.0.2"), response);
+        verify(response, times(2)).sendError(eq(HttpServletResponse.SC_SERVICE_UNAVAILABLE), anyString());
+
+        // the rejected requests are not counted for their key
+        assertEquals(0, rt.keyedState.get("10.0.0.2").getRequestCount());
+        assertEquals(2, rt.keyedState.get("10.0.0.1").getRequestCount());
+        assertEquals(2, rt.totalState.getRequestCount());
+        assertEquals(2, rt.stats.getRejectedRequestCount());
+    }
+
+    @Test
+    public void statsNamedByServicePid() throws Exception {
+        when(config.filtered_paths()).thenReturn(new String[] { "/content/.*" });
+        rt.activate(context.bundleContext(), config, properties);
+
+        RequestThrottler other = new RequestThrottler();
+        Map<String, Object> otherProperties = new HashMap<>();
+        otherProperties.put(Constants.SERVICE_PID, "com.adobe.acs.commons.throttling.RequestThrottler.2");
+        other.activate(context.bundleContext(), config, otherProperties);
+
+        ServiceReference<?>[] references = context.bundleContext().getServiceReferences(DynamicMBean.class.getName(), null);
+        Set<Object> names = new HashSet<>();
+        for (ServiceReference<?> reference : references) {
+            names.add(reference.getProperty("jmx.objectname"));
+        }
+        assertTrue(names.contains("com.adobe.acs.commons:type=Request Throttler,name=\"/content/.*\",pid=\"com.adobe.acs.commons.throttling.RequestThrottler.1\""));
+        assertTrue(names.contains("com.adobe.acs.commons:type=Request Throttler,name=\"/content/.*\",pid=\"com.adobe.acs.commons.throttling.RequestThrottler.2\""));
+    }
+
+    private SlingHttpServletRequest request(String path, String remoteAddr) {
+        SlingHttpServletRequest request = mock(SlingHttpServletRequest.class);
+        Resource resource = mock(Resource.class);
+        when(resource.getPath()).thenReturn(path);
+        when(request.getResource()).thenReturn(resource);
+        when(request.getRemoteAddr()).thenReturn(remoteAddr);
+        when(request.getResourceResolver()).thenReturn(mock(ResourceResolver.class));
+        when(request.getRequestProgressTracker()).thenReturn(mock(RequestProgressTracker.class));
+        return request;
+    }
+
 }
@@ -20,13 +20,24 @@
 package com.adobe.acs.commons.throttling;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import java.time.Clock;
 import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -128,62 +139,49 @@ public class ThrottlingStateTest {
     }
 
     @Test
-    public void testResize_SimpleResize() {
+    public void testDecreasedLoadLimit() {
 
         Instant startTime = Instant.now();
         Mockito.when(clock.instant()).thenReturn(startTime);
-        ThrottlingState s = new ThrottlingState(clock, getConstantLoad());
-        for (int i = 0; i < CONSTANT_LOAD_SIZE; i++) {
+        AtomicInteger limit = new AtomicInteger(CONSTANT_LOAD_SIZE);
+        ThrottlingState s = new ThrottlingState(clock, limit::get);
+        for (int i = 0; i < 5; i++) {
             s.evaluateThrottling();
         }
+        limit.set(4);
 
-        s.resize(8);
-
-        // check that all timestamps are preserved
-        assertEquals(s.timestamps.length, 8);
-        for (int i = 0; i < s.timestamps.length; i++) {
-            assertEquals(startTime, s.timestamps[i]);
-        }
+        // the requests already passed still count
+        ThrottlingDecision decision = s.evaluateThrottling();
+        assertEquals(ThrottlingDecision.State.THROTTLE, decision.getState());
+        assertEquals(60 * 1000, decision.getDelay());
+        assertEquals(5, s.getRequestCount());
     }
 
     @Test
-    public void testResize_DecreaseSize() {
+    public void testIncreasedLoadLimit() {
 
         Instant startTime = Instant.now();
         Mockito.when(clock.instant()).thenReturn(startTime);
-        ThrottlingState s = new ThrottlingState(clock, getConstantLoad());
-        for (int i = 0; i < 5; i++) {
-            s.evaluateThrottling();
-        }
-        Instant time2 = startTime.plusSeconds(2);
-        Mockito.when(clock.instant()).thenReturn(time2);
-        for (int i = 5; i < CONSTANT_LOAD_SIZE; i++) {
+        AtomicInteger limit = new AtomicInteger(CONSTANT_LOAD_SIZE);
+        ThrottlingState s = new ThrottlingState(clock, limit::get);
+        for (int i = 0; i < CONSTANT_LOAD_SIZE; i++) {
             s.evaluateThrottling();
         }
-        assertEquals(0, s.currentIndex.get());
-
-        s.resize(8);
-        assertEquals(s.timestamps.length, 8);
+        assertEquals(ThrottlingDecision.State.THROTTLE, s.evaluateThrottling().getState());
 
-        // check that first 5 entries are time2
-        for (int i = 0; i < 5; i++) {
-            assertEquals(time2, s.timestamps[i]);
-        }
-        // and the remaining 3 should be of startTime
-        for (int i = 5; i < 8; i++) {
-            assertEquals(startTime, s.timestamps[i]);
-        }
-        // and currentIndex should be 0
-        assertEquals(0, s.currentIndex.get());
+        limit.set(12);
+        assertEquals(ThrottlingDecision.State.NOTHROTTLE, s.evaluateThrottling().getState());
+        assertEquals(ThrottlingDecision.State.NOTHROTTLE, s.evaluateThrottling().getState());
+        assertEquals(ThrottlingDecision.State.THROTTLE, s.evaluateThrottling().getState());
+        assertEquals(12, s.getRequestCount());
     }
 
     @Test
-    public void testResize_DecreaseSize_2() {
+    public void testSlidingWindow() {
 
         Instant startTime = Instant.now();
         Mockito.when(clock.instant()).thenReturn(startTime);
-        LoadEstimator le = () -> 10;
-        ThrottlingState s = new ThrottlingState(clock, le);
+        ThrottlingState s = new ThrottlingState(clock, getConstantLoad());
         for (int i = 0; i < 5; i++) {
             s.evaluateThrottling();
         }
@@ -193,70 +191,130 @@ public class ThrottlingStateTest {
             s.evaluateThrottling();
         }
 
-        // now all slots are full
-        Instant time3 = time2.plusSeconds(60); // should cause the first entries to get purged
+        // now the window is full
+        Instant time3 = time2.plusSeconds(59); // the first 5 requests have expired
         Mockito.when(clock.instant()).thenReturn(time3);
-        assertEquals(ThrottlingDecision.State.NOTHROTTLE, s.evaluateThrottling().getState());
-        assertEquals(ThrottlingDecision.State.NOTHROTTLE, s.evaluateThrottling().getState());
-
-        assertEquals(2, s.currentIndex.get());
+        assertEquals(5, s.getRequestCount());
+        for (int i = 0; i < 5; i++) {
+            assertEquals(ThrottlingDecision.State.NOTHROTTLE, s.evaluateThrottling().getState());
+        }
+        ThrottlingDecision decision = s.evaluateThrottling();
+        assertEquals(ThrottlingDecision.State.THROTTLE, decision.getState());
+        assertEquals(1000, decision.getDelay());
 
-        s.loadEstimator = () -> 8; // reduce the number of slots to 8
+        Instant time4 = time3.plusSeconds(61); // and all others as well
+        Mockito.when(clock.instant()).thenReturn(time4);
+        assertEquals(0, s.getRequestCount());
+    }
 
-        assertEquals(ThrottlingDecision.State.THROTTLE, s.evaluateThrottling().getState());
+    @Test
+    public void testNoRequestsPermitted() {
+        Mockito.when(clock.instant()).thenReturn(Instant.now());
+        ThrottlingState s = new ThrottlingState(clock, () -> 0);
 
-        // resize has happened
-        assertEquals(s.timestamps.length, 8);
+        ThrottlingDecision decision = s.evaluateThrottling();
+        assertEquals(ThrottlingDecision.State.THROTTLE, decision.getState());
+        assertEquals(1000, decision.getDelay());
+    }
 
-        // check that first 2 entries are time3
-        for (int i = 0; i < 2; i++) {
-            assertEquals(time3, s.timestamps[i]);
+    @Test
+    public void testConcurrentRequests() throws Exception {
+        int threads = 16;
+        int requestsPerThread = 500;
+        int limit = 1000;
+        Mockito.when(clock.instant()).thenReturn(Instant.now());
+        ThrottlingState s = new ThrottlingState(clock, () -> limit);
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<Integer>> results = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            results.add(executor.submit(() -> {
+                start.await();
+                int passed = 0;
+                for (int i = 0; i < requestsPerThread; i++) {
+                    if (s.evaluateThrottling().getState() == ThrottlingDecision.State.NOTHROTTLE) {
+                        passed++;
+                    }
+                }
+                return passed;
+            }));
         }
-        // and the next 5 should be of time2
-        for (int i = 2; i < 7; i++) {
-            assertEquals(time2, s.timestamps[i]);
+        start.countDown();
+        int passed = 0;
+        for (Future<Integer> result : results) {
+            passed += result.get(10, TimeUnit.SECONDS);
         }
-        // slot 8 should be empty
-        assertEquals(Instant.EPOCH, s.timestamps[7]);
-
-        // and currentIndex should be 0
-        assertEquals(0, s.currentIndex.get());
+        executor.shutdown();
 
+        // the limit holds exactly, no matter how many threads are racing
+        assertEquals(limit, passed);
+        assertEquals(limit, s.getRequestCount());
     }
 
     @Test
-    public void testResize_IncreaseSize() {
-
+    public void testAwait() {
         Instant startTime = Instant.now();
         Mockito.when(clock.instant()).thenReturn(startTime);
-        ThrottlingState s = new ThrottlingState(clock, getConstantLoad());
-        for (int i = 0; i < 5; i++) {
-            s.evaluateThrottling();
-        }
-        Instant time2 = startTime.plusSeconds(2);
-        Mockito.when(clock.instant()).thenReturn(time2);
-        for (int i = 5; i < CONSTANT_LOAD_SIZE; i++) {
-            s.evaluateThrottling();
+        ThrottlingState s = new ThrottlingState(clock, () -> 1);
+
+        assertTrue(s.await(0));
+        assertFalse("no request expires in time", s.await(10));
+        assertEquals(0, s.getWaiting());
+
+        Mockito.when(clock.instant()).thenReturn(startTime.plusSeconds(61));
+        assertTrue(s.await(10));
+        assertEquals(1, s.getRequestCount());
+    }
+
+    @Test
+    public void testAwaitInOrder() throws Exception {
+        Instant startTime = Instant.now();
+        AtomicReference<Instant> now = new AtomicReference<>(startTime);
+        ThrottlingState s = new ThrottlingState(new MutableClock(now), () -> 1);
+        assertEquals(ThrottlingDecision.State.NOTHROTTLE, s.evaluateThrottling().getState());
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<Boolean> waiting = executor.submit(() -> s.await(1000));
+        while (s.getWaiting() == 0) {
+            Thread.sleep(1);
         }
-        assertEquals(0, s.currentIndex.get());
 
-        s.resize(12);
-        assertEquals(s.timestamps.length, 12);
+        // a new request does not overtake the waiting one, although the first request has expired
+        now.set(startTime.plusSeconds(61));
+        assertEquals(ThrottlingDecision.State.THROTTLE, s.evaluateThrottling().getState());
 
-        // check that first 5 entries are startTime
-        for (int i = 0; i < 5; i++) {
-            assertEquals(startTime, s.timestamps[i]);
+        assertTrue(waiting.get(10, TimeUnit.SECONDS));
+        executor.shutdown();
+        assertEquals(0, s.getWaiting());
+        assertEquals(1, s.getRequestCount());
+    }
+
+    /**
+     * A clock which can be moved while other threads read it.
+     */
+    private static class MutableClock extends Clock {
+
+        private final AtomicReference<Instant> now;
+
+        MutableClock(AtomicReference<Instant> now) {
+            this.now = now;
         }
-        // the next 5 should be of startTime
-        for (int i = 5; i < 10; i++) {
-            assertEquals(time2, s.timestamps[i]);
+
+        @Override
+        public Instant instant() {
+            return now.get();
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
         }
-        // 11 and 12 are still default
-        assertEquals(Instant.EPOCH, s.timestamps[10]);
-        assertEquals(Instant.EPOCH, s.timestamps[11]);
 
-        // and currentIndex should point to freshly added entries
-        assertEquals(10, s.currentIndex.get());
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
     }
 
 }